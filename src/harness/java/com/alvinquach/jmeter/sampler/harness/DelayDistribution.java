@@ -0,0 +1,62 @@
+package com.alvinquach.jmeter.sampler.harness;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Distribution of the delay between the mock API accepting a request and it
+ * sending the callback.
+ *
+ * @author Alvin Quach
+ */
+enum DelayDistribution {
+
+	/**
+	 * Every callback is delayed by the mean delay.
+	 */
+	CONSTANT {
+		@Override
+		long sample(long mean) {
+			return mean;
+		}
+	},
+
+	/**
+	 * Delays are uniformly distributed between 0 and twice the mean.
+	 */
+	UNIFORM {
+		@Override
+		long sample(long mean) {
+			return mean == 0 ? 0 : ThreadLocalRandom.current().nextLong(2 * mean + 1);
+		}
+	},
+
+	/**
+	 * Delays are exponentially distributed, so most callbacks come back quickly
+	 * but some take several times the mean.
+	 */
+	EXPONENTIAL {
+		@Override
+		long sample(long mean) {
+			return Math.round(-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * mean);
+		}
+	};
+
+	/**
+	 * Returns a delay in milliseconds.
+	 */
+	abstract long sample(long mean);
+
+	static DelayDistribution parse(String value) {
+		if (StringUtils.isBlank(value)) {
+			return EXPONENTIAL;
+		}
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown delay distribution '" + value + "'");
+		}
+	}
+
+}
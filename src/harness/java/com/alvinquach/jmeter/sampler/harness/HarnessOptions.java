@@ -0,0 +1,108 @@
+package com.alvinquach.jmeter.sampler.harness;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Command line options of the harness, given as <code>--name=value</code>.
+ * Options that are not read by the time {@link #rejectUnknown()} is called
+ * are reported as errors, so that typos do not silently fall back to the
+ * defaults.
+ *
+ * @author Alvin Quach
+ */
+final class HarnessOptions {
+
+	private static final String PREFIX = "--";
+
+	private final Map<String, String> values = new LinkedHashMap<>();
+
+	private final Set<String> read = new HashSet<>();
+
+	static HarnessOptions parse(String[] args) {
+		HarnessOptions options = new HarnessOptions();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (!arg.startsWith(PREFIX) || separator <= PREFIX.length()) {
+				throw new IllegalArgumentException("Options must be given as --name=value, got '" + arg + "'");
+			}
+			options.values.put(arg.substring(PREFIX.length(), separator), arg.substring(separator + 1));
+		}
+		return options;
+	}
+
+	private HarnessOptions() {
+
+	}
+
+	boolean has(String name) {
+		read.add(name);
+		return StringUtils.isNotBlank(values.get(name));
+	}
+
+	String getString(String name, String defaultValue) {
+		read.add(name);
+		String value = values.get(name);
+		return StringUtils.isBlank(value) ? defaultValue : value.trim();
+	}
+
+	int getInt(String name, int defaultValue) {
+		String value = getString(name, null);
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be an integer, got '" + value + "'");
+		}
+	}
+
+	long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		try {
+			return value == null ? defaultValue : Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be an integer, got '" + value + "'");
+		}
+	}
+
+	double getDouble(String name, double defaultValue) {
+		String value = getString(name, null);
+		try {
+			return value == null ? defaultValue : Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be a number, got '" + value + "'");
+		}
+	}
+
+	/**
+	 * Returns a probability option, which must be between 0 and 1.
+	 */
+	double getProbability(String name, double defaultValue) {
+		double value = getDouble(name, defaultValue);
+		if (value < 0 || value > 1) {
+			throw new IllegalArgumentException(name + " must be between 0 and 1, got " + value);
+		}
+		return value;
+	}
+
+	boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if any option was given that has not been
+	 *         read.
+	 */
+	void rejectUnknown() {
+		for (String name : values.keySet()) {
+			if (!read.contains(name)) {
+				throw new IllegalArgumentException("Unknown option --" + name);
+			}
+		}
+	}
+
+}
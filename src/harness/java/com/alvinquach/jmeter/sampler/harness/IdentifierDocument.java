@@ -0,0 +1,74 @@
+package com.alvinquach.jmeter.sampler.harness;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * JSON document with an identifier at a given path, padded to a given size.
+ * The document is built once around a placeholder, so that rendering it for
+ * an identifier only concatenates bytes.
+ * <p>
+ * The padding goes at the start of the root container, ahead of the
+ * identifier, so that the listener has to skip over it to find the
+ * identifier.
+ *
+ * @author Alvin Quach
+ */
+final class IdentifierDocument {
+
+	private static final String PLACEHOLDER = "\u0000identifier\u0000";
+
+	private final byte[] prefix;
+
+	private final byte[] suffix;
+
+	/**
+	 * @param size Minimum size of a rendered document in bytes. Documents are
+	 *        not padded if the identifier path alone is larger.
+	 */
+	IdentifierDocument(IdentifierPath path, int size) {
+		String value = "\"" + PLACEHOLDER + "\"";
+		for (int i = path.length() - 1; i >= 0; i--) {
+			IdentifierPath.Segment segment = path.segment(i);
+			if (segment.fieldName() != null) {
+				value = "{\"" + new String(JsonStringEncoder.getInstance().quoteAsString(segment.fieldName())) + "\":" + value + "}";
+			} else {
+				value = "[" + StringUtils.repeat("null,", segment.index()) + value + "]";
+			}
+		}
+
+		int paddingLength = size - value.length();
+		if (paddingLength > 0) {
+			/*
+			 * Array elements cannot be prepended without shifting the identifier, so the
+			 * padding goes at the end of a root array instead.
+			 */
+			value = value.charAt(0) == '{'
+					? "{\"padding\":\"" + StringUtils.repeat('x', Math.max(0, paddingLength - 13)) + "\"," + value.substring(1)
+					: value.substring(0, value.length() - 1) + ",\"" + StringUtils.repeat('x', Math.max(0, paddingLength - 3)) + "\"]";
+		}
+
+		int placeholder = value.indexOf(PLACEHOLDER);
+		prefix = value.substring(0, placeholder).getBytes(StandardCharsets.UTF_8);
+		suffix = value.substring(placeholder + PLACEHOLDER.length()).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Renders the document for the given identifier, which must not need to be
+	 * escaped.
+	 */
+	byte[] render(String identifier) {
+		byte[] document = Arrays.copyOf(prefix, prefix.length + identifier.length() + suffix.length);
+		for (int i = 0; i < identifier.length(); i++) {
+			document[prefix.length + i] = (byte) identifier.charAt(i);
+		}
+		System.arraycopy(suffix, 0, document, prefix.length + identifier.length(), suffix.length);
+		return document;
+	}
+
+}
@@ -0,0 +1,630 @@
+package com.alvinquach.jmeter.sampler.harness;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import com.alvinquach.jmeter.sampler.async.AsyncHttpListener;
+import com.alvinquach.jmeter.sampler.async.CallbackPayload;
+import com.alvinquach.jmeter.sampler.async.ListenerMetrics;
+import com.alvinquach.jmeter.sampler.async.registry.ResponseRegistryType;
+import com.alvinquach.jmeter.sampler.async.relay.RelayConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerShardMode;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerThreadMode;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportType;
+import com.alvinquach.jmeter.sampler.util.ArrivalRateScheduler;
+import com.alvinquach.jmeter.sampler.util.HttpAsyncClientPool;
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+import com.alvinquach.jmeter.sampler.util.JsonIdentifierExtractor;
+import com.alvinquach.jmeter.sampler.util.VirtualThreads;
+
+/**
+ * End-to-end load harness for the {@link AsyncHttpListener}, which runs
+ * entirely on loopback. Requests are sent to a {@link MockAsyncApi} at a
+ * target arrival rate, and every callback that the API sends back is
+ * correlated with its request through the listener, the same way the
+ * asynchronous samplers do it.
+ * <p>
+ * The harness reports the rate of verified callbacks, the correlation latency
+ * (from the callback reaching the listener to the waiting request being
+ * resumed), and heap and GC behavior, both per interval and for the whole
+ * measurement. Ramping the arrival rate up shows the highest rate that one
+ * load generator can verify.
+ * <p>
+ * The mock API runs in the same JVM unless <code>--apiUrl</code> points at
+ * one that was started separately with {@link MockAsyncApi#main(String[])},
+ * in which case the heap and GC figures only cover the listener side.
+ * <p>
+ * With <code>--relayNodes</code>, the harness runs several listeners on
+ * consecutive ports that relay callbacks to each other, the way the nodes of a
+ * distributed test do. Requests are spread over the nodes, and each one asks
+ * the mock API for an identifier tagged with the node that sent it, while the
+ * callbacks are spread over all of the nodes.
+ *
+ * @author Alvin Quach
+ */
+public final class LoadHarness {
+
+	static final int DEFAULT_LISTENER_PORT = 18080;
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private static final long BYTES_PER_MB = 1024 * 1024;
+
+	/**
+	 * How far behind the arrival schedule the senders may fall before the
+	 * harness considers itself saturated.
+	 */
+	private static final long MAX_SENDER_LAG = 100;
+
+	/*
+	 * Listener settings.
+	 */
+
+	private final int listenerPort;
+
+	private final ListenerTransportType listenerTransport;
+
+	private final int listenerWorkerThreads;
+
+	private final int listenerAcceptQueue;
+
+	private final int listenerWorkerQueue;
+
+	private final int listenerShards;
+
+	private final ListenerShardMode listenerShardMode;
+
+	private final ListenerThreadMode listenerThreadMode;
+
+	private final int maxPendingCallbacks;
+
+	private final int retryAfter;
+
+	private final ResponseRegistryType responseRegistry;
+
+	private final boolean discardBodies;
+
+	private final long timeoutDuration;
+
+	private final int relayNodes;
+
+	private final int relayPort;
+
+	private final int relayBatchSize;
+
+	private final long relayLinger;
+
+	/*
+	 * Driver settings.
+	 */
+
+	private final IdentifierPath identifierPath;
+
+	private final JsonIdentifierExtractor identifierExtractor;
+
+	private final ArrivalRateScheduler.Config arrivalConfig;
+
+	private final long duration;
+
+	private final long warmup;
+
+	private final long reportInterval;
+
+	private final int senderThreads;
+
+	private final int maxInFlight;
+
+	private final int connections;
+
+	private final byte[] requestBody;
+
+	private final String externalApiUrl;
+
+	private final MockAsyncApi.Config apiConfig;
+
+	/*
+	 * Run state.
+	 */
+
+	private AsyncHttpListener listener;
+
+	/**
+	 * Every listener, starting with the singleton. There is more than one if
+	 * callbacks are relayed between nodes.
+	 */
+	private final List<AsyncHttpListener> nodes = new ArrayList<>();
+
+	private final AtomicInteger nextNode = new AtomicInteger();
+
+	private MockAsyncApi api;
+
+	private String apiUrl;
+
+	private HttpAsyncClientPool clientPool;
+
+	private ArrivalRateScheduler arrivalScheduler;
+
+	private final Semaphore inFlight;
+
+	private final LongAdder sentCount = new LongAdder();
+
+	private final LongAdder verifiedCount = new LongAdder();
+
+	private final LongAdder timeoutCount = new LongAdder();
+
+	private final LongAdder errorCount = new LongAdder();
+
+	private final LongAdder skippedCount = new LongAdder();
+
+	private final LongAccumulator maxSenderLag = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Time from a callback reaching the listener to the waiting request being
+	 * resumed, in microseconds.
+	 */
+	private final Recorder correlationLatency = new Recorder(SIGNIFICANT_DIGITS);
+
+	/**
+	 * Time from sending a request to it being resumed with its callback, in
+	 * microseconds.
+	 */
+	private final Recorder endToEndLatency = new Recorder(SIGNIFICANT_DIGITS);
+
+	LoadHarness(HarnessOptions options) {
+		listenerPort = options.getInt("listenerPort", DEFAULT_LISTENER_PORT);
+		listenerTransport = ListenerTransportType.parse(options.getString("listenerTransport", null));
+		listenerWorkerThreads = options.getInt("listenerWorkerThreads", 0);
+		listenerAcceptQueue = options.getInt("listenerAcceptQueue", 0);
+		listenerWorkerQueue = options.getInt("listenerWorkerQueue", 0);
+		listenerShards = options.getInt("listenerShards", 1);
+		listenerShardMode = ListenerShardMode.parse(options.getString("listenerShardMode", null));
+		listenerThreadMode = ListenerThreadMode.parse(options.getString("listenerThreads", null));
+		maxPendingCallbacks = options.getInt("maxPendingCallbacks", 0);
+		retryAfter = options.getInt("retryAfter", AsyncHttpListener.DEFAULT_RETRY_AFTER);
+		responseRegistry = ResponseRegistryType.parse(options.getString("responseRegistry", null));
+		discardBodies = options.getBoolean("discardCallbackBody", false);
+		timeoutDuration = options.getLong("timeoutDuration", 30000);
+		relayNodes = options.getInt("relayNodes", 1);
+		relayPort = options.getInt("relayPort", listenerPort + 100);
+		relayBatchSize = options.getInt("relayBatchSize", RelayConfig.DEFAULT_MAX_BATCH_SIZE);
+		relayLinger = options.getLong("relayLinger", RelayConfig.DEFAULT_LINGER);
+		if (relayNodes <= 0 || (relayNodes > 1 && listenerShards > 1)) {
+			throw new IllegalArgumentException("Relay nodes must be positive, and relaying between nodes cannot be combined with shards");
+		}
+
+		identifierPath = IdentifierPath.compile(options.getString("identifierPath", "id"));
+		identifierExtractor = new JsonIdentifierExtractor(identifierPath);
+		arrivalConfig = new ArrivalRateScheduler.Config(
+				options.getDouble("initialRate", 0),
+				options.getDouble("rate", 1000),
+				options.getLong("rampDuration", 0),
+				ArrivalRateScheduler.Distribution.parse(options.getString("arrivalDistribution", null)));
+		duration = options.getLong("duration", 60000);
+		warmup = options.getLong("warmup", 10000);
+		reportInterval = options.getLong("reportInterval", 5000);
+		senderThreads = options.getInt("senderThreads", 2);
+		maxInFlight = options.getInt("maxInFlight", 100000);
+		connections = options.getInt("connections", 256);
+		requestBody = ("{\"padding\":\"" + StringUtils.repeat('x', Math.max(0, options.getInt("requestSize", 128) - 14)) + "\"}")
+				.getBytes(StandardCharsets.UTF_8);
+		if (timeoutDuration <= 0 || duration <= 0 || warmup < 0 || warmup >= duration || reportInterval <= 0
+				|| senderThreads <= 0 || maxInFlight <= 0 || connections <= 0) {
+			throw new IllegalArgumentException("Durations, thread counts and limits must be positive, and the warm-up must be shorter than the duration");
+		}
+
+		externalApiUrl = options.getString("apiUrl", null);
+		apiConfig = externalApiUrl == null ? new MockAsyncApi.Config(options, listenerPort) : null;
+
+		inFlight = new Semaphore(maxInFlight);
+	}
+
+	public static void main(String[] args) throws Exception {
+		MockAsyncApi.disableNagle();
+		HarnessOptions options = HarnessOptions.parse(args);
+		LoadHarness harness = new LoadHarness(options);
+		options.rejectUnknown();
+		harness.run();
+		System.exit(0);
+	}
+
+	void run() throws Exception {
+		start();
+		try {
+			drive();
+		} finally {
+			stop();
+		}
+	}
+
+	private void start() throws IOException {
+		ListenerTransportConfig transportConfig = new ListenerTransportConfig(listenerTransport, listenerPort, listenerWorkerThreads, listenerAcceptQueue, listenerWorkerQueue)
+				.withShards(listenerShards, listenerShardMode)
+				.withThreadMode(listenerThreadMode);
+		listener = AsyncHttpListener.instantiate(transportConfig, identifierPath, timeoutDuration);
+		nodes.add(listener);
+		for (int i = 1; i < relayNodes; i++) {
+			nodes.add(AsyncHttpListener.newInstance(
+					new ListenerTransportConfig(listenerTransport, listenerPort + i, listenerWorkerThreads, listenerAcceptQueue, listenerWorkerQueue)
+							.withThreadMode(listenerThreadMode),
+					identifierPath, timeoutDuration));
+		}
+		Map<String, InetSocketAddress> relayPeers = new LinkedHashMap<>();
+		for (int i = 0; i < relayNodes; i++) {
+			relayPeers.put(nodeId(i), new InetSocketAddress("127.0.0.1", relayPort + i));
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			AsyncHttpListener node = nodes.get(i);
+			node.setResponseRegistryType(responseRegistry);
+			node.setDiscardBodies(discardBodies);
+			node.setAdmissionLimits(maxPendingCallbacks, retryAfter);
+			if (relayNodes > 1) {
+				node.setRelay(new RelayConfig(nodeId(i), relayPort + i, relayPeers).withBatching(relayBatchSize, relayLinger));
+			}
+			node.start();
+		}
+
+		if (apiConfig != null) {
+			api = new MockAsyncApi(apiConfig);
+			api.start();
+			apiUrl = api.url();
+		} else {
+			apiUrl = externalApiUrl;
+		}
+
+		clientPool = HttpAsyncClientPool.acquireShared(new HttpAsyncClientPool.Config(0, connections, connections));
+		arrivalScheduler = ArrivalRateScheduler.acquireShared(arrivalConfig);
+	}
+
+	private void stop() {
+		arrivalScheduler.close();
+		clientPool.close();
+		if (api != null) {
+			api.close();
+		}
+		AsyncHttpListener.removeInstance().stop();
+		for (AsyncHttpListener node : nodes.subList(1, nodes.size())) {
+			node.stop();
+		}
+	}
+
+	private static String nodeId(int node) {
+		return "n" + node;
+	}
+
+	/**
+	 * Sends requests for the configured duration, and reports on them until every
+	 * request has either been verified or has timed out.
+	 */
+	private void drive() throws InterruptedException {
+		long startNanos = System.nanoTime();
+		long warmupEndNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(warmup);
+		long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(duration);
+		long drainEndNanos = endNanos + TimeUnit.MILLISECONDS.toNanos(timeoutDuration + reportInterval);
+
+		List<Thread> senders = new ArrayList<>();
+		for (int i = 0; i < senderThreads; i++) {
+			Thread sender = new Thread(() -> sendUntil(endNanos), "load-harness-sender-" + i);
+			sender.setDaemon(true);
+			sender.start();
+			senders.add(sender);
+		}
+		System.out.printf("Sending to %s at %s for %d s (%d s warm-up), callbacks to port %d on %s threads%n",
+				apiUrl, arrivalConfig, TimeUnit.MILLISECONDS.toSeconds(duration), TimeUnit.MILLISECONDS.toSeconds(warmup), listenerPort,
+				listenerThreadMode == ListenerThreadMode.VIRTUAL && VirtualThreads.isSupported() ? "virtual" : "platform");
+
+		Snapshot previous = new Snapshot(startNanos);
+		Snapshot measurementStart = null;
+		Snapshot measurementEnd = null;
+		Histogram totalCorrelation = new Histogram(SIGNIFICANT_DIGITS);
+		Histogram totalEndToEnd = new Histogram(SIGNIFICANT_DIGITS);
+		Histogram reportCorrelation = new Histogram(SIGNIFICANT_DIGITS);
+		Histogram reportEndToEnd = new Histogram(SIGNIFICANT_DIGITS);
+		Histogram intervalCorrelation = null;
+		Histogram intervalEndToEnd = null;
+		long peakHeap = 0;
+
+		long nextReportNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(reportInterval);
+		while (true) {
+			/*
+			 * Wake up at the boundaries of the measurement as well as for reports, so
+			 * that the measured counts line up with them.
+			 */
+			long wakeNanos = nextReportNanos;
+			if (measurementStart == null) {
+				wakeNanos = Math.min(wakeNanos, warmupEndNanos);
+			} else if (measurementEnd == null) {
+				wakeNanos = Math.min(wakeNanos, endNanos);
+			}
+			long sleepNanos = wakeNanos - System.nanoTime();
+			if (sleepNanos > 0) {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			}
+
+			long now = System.nanoTime();
+			if (now < wakeNanos) {
+				// Sleeping can end slightly early.
+				continue;
+			}
+			intervalCorrelation = correlationLatency.getIntervalHistogram(intervalCorrelation);
+			intervalEndToEnd = endToEndLatency.getIntervalHistogram(intervalEndToEnd);
+			reportCorrelation.add(intervalCorrelation);
+			reportEndToEnd.add(intervalEndToEnd);
+			if (measurementStart != null) {
+				totalCorrelation.add(intervalCorrelation);
+				totalEndToEnd.add(intervalEndToEnd);
+			}
+
+			Snapshot current = new Snapshot(now);
+			peakHeap = Math.max(peakHeap, current.heapUsed);
+			if (measurementStart == null && now >= warmupEndNanos) {
+				measurementStart = current;
+			} else if (measurementStart != null && measurementEnd == null && now >= endNanos) {
+				measurementEnd = current;
+			}
+			if (now < nextReportNanos) {
+				continue;
+			}
+			report(now - startNanos, previous, current, reportCorrelation, reportEndToEnd);
+			reportCorrelation.reset();
+			reportEndToEnd.reset();
+			previous = current;
+			nextReportNanos += TimeUnit.MILLISECONDS.toNanos(reportInterval);
+
+			if (measurementEnd != null && (inFlight.availablePermits() == maxInFlight || now >= drainEndNanos)) {
+				break;
+			}
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+
+		summarize(measurementStart, measurementEnd, totalCorrelation, totalEndToEnd, peakHeap);
+	}
+
+	private void sendUntil(long endNanos) {
+		while (true) {
+			long intendedStartTime;
+			try {
+				intendedStartTime = arrivalScheduler.awaitNextArrival();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (System.nanoTime() >= endNanos) {
+				return;
+			}
+			maxSenderLag.accumulate(System.currentTimeMillis() - intendedStartTime);
+			if (!inFlight.tryAcquire()) {
+				skippedCount.increment();
+				continue;
+			}
+			send();
+		}
+	}
+
+	private void send() {
+		AsyncHttpListener node = nodes.get(Math.floorMod(nextNode.getAndIncrement(), nodes.size()));
+		HttpPost post = new HttpPost(apiUrl);
+		post.setEntity(new ByteArrayEntity(requestBody, ContentType.APPLICATION_JSON));
+		if (node.getRelay() != null) {
+			post.setHeader(MockAsyncApi.IDENTIFIER_PREFIX_HEADER, node.getRelay().getConfig().tag(""));
+		}
+		long sentNanos = System.nanoTime();
+		sentCount.increment();
+		clientPool.client().execute(post, new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse response) {
+				awaitCallback(node, response, sentNanos);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				errorCount.increment();
+				inFlight.release();
+			}
+
+			@Override
+			public void cancelled() {
+				errorCount.increment();
+				inFlight.release();
+			}
+		});
+	}
+
+	/**
+	 * Registers the identifier in the initial response with the listener of the
+	 * node that sent the request, and records the latencies once its callback has
+	 * been correlated with it.
+	 */
+	private void awaitCallback(AsyncHttpListener node, HttpResponse response, long sentNanos) {
+		String identifier = null;
+		try {
+			byte[] body = EntityUtils.toByteArray(response.getEntity());
+			if (response.getStatusLine().getStatusCode() / 100 == 2 && body != null) {
+				identifier = identifierExtractor.extract(body);
+			}
+		} catch (IOException e) {
+			// Counted as an error below.
+		}
+		if (identifier == null) {
+			errorCount.increment();
+			inFlight.release();
+			return;
+		}
+
+		String awaited = identifier;
+		CompletableFuture<CallbackPayload> future = node.getResponse(awaited);
+		future.whenComplete((payload, error) -> {
+			long resumedNanos = System.nanoTime();
+			if (payload != null) {
+				correlationLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(Math.max(0, resumedNanos - payload.arrivalNanos())));
+				endToEndLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(resumedNanos - sentNanos));
+				node.recordEndToEndLatency(resumedNanos - sentNanos);
+				verifiedCount.increment();
+			} else {
+				timeoutCount.increment();
+			}
+			node.notifyComplete(awaited);
+			inFlight.release();
+		});
+	}
+
+	private void report(long elapsedNanos, Snapshot previous, Snapshot current, Histogram correlation, Histogram endToEnd) {
+		double seconds = (current.nanos - previous.nanos) / 1e9;
+		System.out.printf("[%5ds] sent %8.0f/s  verified %8.0f/s  in flight %7d  timeouts %6d  errors %6d  skipped %6d"
+				+ "  correlation p50 %6d us p99 %7d us max %8d us  end-to-end p99 %6d ms"
+				+ "  heap %5d MB  gc %3d (%d ms)%n",
+				TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+				(current.sent - previous.sent) / seconds,
+				(current.verified - previous.verified) / seconds,
+				maxInFlight - inFlight.availablePermits(),
+				current.timeouts - previous.timeouts,
+				current.errors - previous.errors,
+				current.skipped - previous.skipped,
+				correlation.getValueAtPercentile(50),
+				correlation.getValueAtPercentile(99),
+				correlation.getMaxValue(),
+				TimeUnit.MICROSECONDS.toMillis(endToEnd.getValueAtPercentile(99)),
+				current.heapUsed / BYTES_PER_MB,
+				current.gcCount - previous.gcCount,
+				current.gcTime - previous.gcTime);
+	}
+
+	private void summarize(Snapshot start, Snapshot end, Histogram correlation, Histogram endToEnd, long peakHeap) {
+		double seconds = (end.nanos - start.nanos) / 1e9;
+		long verified = end.verified - start.verified;
+		long sent = end.sent - start.sent;
+		long gcTime = end.gcTime - start.gcTime;
+
+		System.gc();
+		long retainedHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		System.out.println();
+		System.out.printf("Measured %.0f s after the warm-up%n", seconds);
+		System.out.printf("  Sustained verified callbacks: %.0f/s (%.0f requests/s sent)%n", verified / seconds, sent / seconds);
+		System.out.printf("  Correlation latency: p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+				correlation.getValueAtPercentile(50), correlation.getValueAtPercentile(90),
+				correlation.getValueAtPercentile(99), correlation.getValueAtPercentile(99.9), correlation.getMaxValue());
+		System.out.printf("  End-to-end latency: p50 %d ms, p99 %d ms, max %d ms%n",
+				TimeUnit.MICROSECONDS.toMillis(endToEnd.getValueAtPercentile(50)),
+				TimeUnit.MICROSECONDS.toMillis(endToEnd.getValueAtPercentile(99)),
+				TimeUnit.MICROSECONDS.toMillis(endToEnd.getMaxValue()));
+		System.out.printf("  Heap: peak %d MB sampled, %d MB retained after the run; GC: %d collections, %d ms (%.1f%% of the time)%n",
+				peakHeap / BYTES_PER_MB, retainedHeap / BYTES_PER_MB, end.gcCount - start.gcCount, gcTime, gcTime / (seconds * 10));
+		System.out.printf("  Threads: peak %d platform threads%n", ManagementFactory.getThreadMXBean().getPeakThreadCount());
+
+		ListenerMetrics metrics = listener.getMetrics();
+		System.out.printf("  Listener: processing p99 %.0f us; %d early, %d orphaned, %d evicted, %d late callbacks; %d rejected while busy, %d over the pending limit%n",
+				metrics.getCallbackProcessingP99Micros(), metrics.getEarlyArrivalCount(), metrics.getOrphanedCount(),
+				metrics.getEvictedCount(), metrics.getLateCount(), metrics.getBusyRejectedCount(), metrics.getPendingLimitRejectedCount());
+		if (metrics.getBatchCount() > 0) {
+			System.out.printf("  Batches: %d callbacks in %d batches, up to %d per batch; %d invalid%n",
+					metrics.getBatchElementCount(), metrics.getBatchCount(), metrics.getMaxBatchSize(), metrics.getInvalidBatchElementCount());
+		}
+		if (listener.getShardCount() > 1) {
+			System.out.printf("  Shards: %s requests%n", Arrays.toString(metrics.getShardRequestCounts()));
+		}
+		if (relayNodes > 1) {
+			long relayed = 0;
+			long received = 0;
+			long frames = 0;
+			long lost = 0;
+			long rejected = 0;
+			List<String> hopLatencies = new ArrayList<>();
+			for (AsyncHttpListener node : nodes) {
+				ListenerMetrics nodeMetrics = node.getMetrics();
+				relayed += nodeMetrics.getRelaySentCount();
+				received += nodeMetrics.getRelayReceivedCount();
+				frames += node.getRelay().getFrameCount();
+				lost += nodeMetrics.getRelayLostCount();
+				rejected += nodeMetrics.getRelayRejectedCount();
+				hopLatencies.add(String.format("%.0f/%.0f", nodeMetrics.getRelayHopLatencyP50Micros(), nodeMetrics.getRelayHopLatencyP99Micros()));
+			}
+			System.out.printf("  Relay: %d callbacks relayed in %d frames, %d received; %d lost, %d turned away; hop p50/p99 by node %s us%n",
+					relayed, frames, received, lost, rejected, hopLatencies);
+		}
+		long expectedTimeouts = 0;
+		if (api != null) {
+			System.out.printf("  Mock API: %d requests, %d callbacks sent in %d batches, %d retried, %d failed, %d lost, %d duplicated, %d early%n",
+					api.requestCount(), api.callbackCount(), api.batchCount(), api.retriedCount(), api.failedCount(), api.lostCount(), api.duplicateCount(), api.earlyCount());
+			expectedTimeouts = api.lostCount();
+		}
+		System.out.printf("  Totals: %d sent, %d verified, %d timed out, %d errors, %d skipped; senders fell up to %d ms behind%n",
+				sentCount.sum(), verifiedCount.sum(), timeoutCount.sum(), errorCount.sum(), skippedCount.sum(), maxSenderLag.get());
+
+		List<String> problems = new ArrayList<>();
+		if (skippedCount.sum() > 0) {
+			problems.add("requests were skipped because " + maxInFlight + " were already in flight");
+		}
+		if (maxSenderLag.get() > MAX_SENDER_LAG) {
+			problems.add("the senders fell behind the arrival schedule");
+		}
+		if (errorCount.sum() > 0) {
+			problems.add("requests failed");
+		}
+		if (timeoutCount.sum() > expectedTimeouts) {
+			problems.add("callbacks that were sent timed out");
+		}
+		System.out.println(problems.isEmpty()
+				? "The load generator kept up with the offered load."
+				: "The load generator did not keep up: " + String.join(", ", problems) + ".");
+	}
+
+	/**
+	 * Counters and JVM state at a point in time.
+	 */
+	private final class Snapshot {
+
+		private final long nanos;
+
+		private final long sent = sentCount.sum();
+
+		private final long verified = verifiedCount.sum();
+
+		private final long timeouts = timeoutCount.sum();
+
+		private final long errors = errorCount.sum();
+
+		private final long skipped = skippedCount.sum();
+
+		private final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		private long gcCount;
+
+		private long gcTime;
+
+		private Snapshot(long nanos) {
+			this.nanos = nanos;
+			for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(0, collector.getCollectionCount());
+				gcTime += Math.max(0, collector.getCollectionTime());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,507 @@
+package com.alvinquach.jmeter.sampler.harness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alvinquach.jmeter.sampler.async.transport.ListenerShardMode;
+import com.alvinquach.jmeter.sampler.util.HashedTimingWheel;
+import com.alvinquach.jmeter.sampler.util.HttpAsyncClientPool;
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stub of an asynchronous API on loopback. It accepts any POST, answers with
+ * a new identifier at the configured identifier path, and later POSTs a
+ * callback with the same identifier to the listener.
+ * <p>
+ * Callbacks can be delayed according to a distribution, duplicated, lost, sent
+ * before the initial response (so that they arrive early), and held back to
+ * be released in bursts. Callbacks that the listener rejects with a 429 or 503
+ * response are sent again after the delay in its Retry-After header. If the
+ * listener is sharded over a range of ports, callbacks are spread randomly over
+ * the ports.
+ * <p>
+ * Requests can ask for their identifier to start with a prefix, in the
+ * {@value #IDENTIFIER_PREFIX_HEADER} header, the way a service that echoes a
+ * correlation ID chosen by the client would tag it.
+ * <p>
+ * Callbacks that come due around the same time can be coalesced into batches,
+ * sent as a JSON array or as NDJSON, the way a backend that coalesces its
+ * notifications would send them.
+ * <p>
+ * The API can be embedded in the {@link LoadHarness}, or run on its own with
+ * {@link #main(String[])} to be driven by a JMeter test plan.
+ *
+ * @author Alvin Quach
+ */
+public final class MockAsyncApi implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MockAsyncApi.class);
+
+	private static final long SCHEDULER_RESOLUTION = 5;
+
+	private static final int SCHEDULER_WHEEL_SIZE = 512;
+
+	/**
+	 * How long the API waits for an early callback to be delivered before it
+	 * answers the initial request anyway.
+	 */
+	private static final long EARLY_CALLBACK_TIMEOUT = 1000;
+
+	/**
+	 * Makes the JDK HTTP server disable Nagle's algorithm. Otherwise, responses
+	 * that are written as separate header and body packets are held back by
+	 * delayed ACKs for up to 40 ms, which makes most callbacks arrive before
+	 * their initial response. The property is read once, when the first server
+	 * is created.
+	 */
+	private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+	/**
+	 * Header that a request can set to a prefix for its identifier.
+	 */
+	static final String IDENTIFIER_PREFIX_HEADER = "X-Identifier-Prefix";
+
+	private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+	private static final byte[] RESPONSE_405 = "Method Not Allowed".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Mock API settings.
+	 */
+	static final class Config {
+
+		final int port;
+
+		final int workerThreads;
+
+		/**
+		 * URLs that callbacks are spread over.
+		 */
+		final String[] callbackUrls;
+
+		final IdentifierPath identifierPath;
+
+		final boolean uuidIdentifiers;
+
+		final int responseSize;
+
+		final int callbackSize;
+
+		final DelayDistribution delayDistribution;
+
+		final long meanDelay;
+
+		final double lossRate;
+
+		final double duplicateRate;
+
+		final double earlyRate;
+
+		final long burstInterval;
+
+		final int callbackConnections;
+
+		final int batchSize;
+
+		final boolean ndjsonBatches;
+
+		final long batchLinger;
+
+		Config(HarnessOptions options, int listenerPort) {
+			port = options.getInt("apiPort", 0);
+			workerThreads = options.getInt("apiWorkerThreads", Runtime.getRuntime().availableProcessors());
+			String callbackUrl = options.getString("callbackUrl", null);
+			if (callbackUrl != null) {
+				callbackUrls = StringUtils.split(callbackUrl, ',');
+			} else {
+				/*
+				 * Spread the callbacks over the ports of the shards, or of the nodes if they
+				 * relay callbacks to each other.
+				 */
+				int shardCount = options.getInt("listenerShards", 1);
+				boolean portRange = ListenerShardMode.parse(options.getString("listenerShardMode", null)) == ListenerShardMode.PORT_RANGE;
+				int portCount = Math.max(portRange ? shardCount : 1, options.getInt("relayNodes", 1));
+				callbackUrls = new String[Math.max(1, portCount)];
+				for (int i = 0; i < callbackUrls.length; i++) {
+					callbackUrls[i] = "http://127.0.0.1:" + (listenerPort + i) + "/";
+				}
+			}
+			identifierPath = IdentifierPath.compile(options.getString("identifierPath", "id"));
+			String identifierFormat = options.getString("identifierFormat", "numeric");
+			if (!"numeric".equals(identifierFormat) && !"uuid".equals(identifierFormat)) {
+				throw new IllegalArgumentException("Unknown identifier format '" + identifierFormat + "'");
+			}
+			uuidIdentifiers = "uuid".equals(identifierFormat);
+			responseSize = options.getInt("responseSize", 128);
+			callbackSize = options.getInt("callbackSize", 512);
+			delayDistribution = DelayDistribution.parse(options.getString("delayDistribution", null));
+			meanDelay = options.getLong("meanDelay", 50);
+			lossRate = options.getProbability("lossRate", 0);
+			duplicateRate = options.getProbability("duplicateRate", 0);
+			earlyRate = options.getProbability("earlyRate", 0);
+			burstInterval = options.getLong("burstInterval", 0);
+			callbackConnections = options.getInt("callbackConnections", 64);
+			batchSize = options.getInt("callbackBatchSize", 1);
+			String batchFormat = options.getString("callbackBatchFormat", "array");
+			if (!"array".equals(batchFormat) && !"ndjson".equals(batchFormat)) {
+				throw new IllegalArgumentException("Unknown callback batch format '" + batchFormat + "'");
+			}
+			ndjsonBatches = "ndjson".equals(batchFormat);
+			batchLinger = options.getLong("callbackBatchLinger", 10);
+			if (workerThreads <= 0 || meanDelay < 0 || burstInterval < 0 || callbackConnections <= 0 || batchSize <= 0 || batchLinger <= 0) {
+				throw new IllegalArgumentException("Worker threads, callback connections and batch settings must be positive, and delays must not be negative");
+			}
+		}
+	}
+
+	private final Config config;
+
+	private final IdentifierDocument responseDocument;
+
+	private final IdentifierDocument callbackDocument;
+
+	private final AtomicLong nextIdentifier = new AtomicLong();
+
+	private final LongAdder requestCount = new LongAdder();
+
+	private final LongAdder callbackCount = new LongAdder();
+
+	private final LongAdder failedCount = new LongAdder();
+
+	private final LongAdder lostCount = new LongAdder();
+
+	private final LongAdder duplicateCount = new LongAdder();
+
+	private final LongAdder earlyCount = new LongAdder();
+
+	private final LongAdder retriedCount = new LongAdder();
+
+	private final LongAdder batchCount = new LongAdder();
+
+	/**
+	 * Callbacks that are due, waiting to be sent in the next batch. Guarded by
+	 * itself.
+	 */
+	private final List<byte[]> pendingBatch = new ArrayList<>();
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private HashedTimingWheel scheduler;
+
+	private HttpAsyncClientPool clientPool;
+
+	MockAsyncApi(Config config) {
+		this.config = config;
+		responseDocument = new IdentifierDocument(config.identifierPath, config.responseSize);
+		callbackDocument = new IdentifierDocument(config.identifierPath, config.callbackSize);
+	}
+
+	void start() throws IOException {
+		clientPool = HttpAsyncClientPool.acquireShared(new HttpAsyncClientPool.Config(0, config.callbackConnections, config.callbackConnections));
+		scheduler = new HashedTimingWheel(SCHEDULER_RESOLUTION, TimeUnit.MILLISECONDS, SCHEDULER_WHEEL_SIZE, "mock-async-api-callbacks");
+		executor = Executors.newFixedThreadPool(config.workerThreads);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.port), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+		if (config.batchSize > 1) {
+			scheduleBatchFlush();
+		}
+		LOGGER.info("Mock async API listening on {}, sending callbacks to {}", url(), String.join(", ", config.callbackUrls));
+	}
+
+	/**
+	 * Must be called before any JDK HTTP server is created in this JVM, which
+	 * includes the listener's transport.
+	 */
+	static void disableNagle() {
+		if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+			System.setProperty(NO_DELAY_PROPERTY, "true");
+		}
+	}
+
+	/**
+	 * Returns the URL that requests should be sent to.
+	 */
+	String url() {
+		InetSocketAddress address = server.getAddress();
+		return "http://" + address.getHostString() + ":" + address.getPort() + "/";
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			IOUtils.skip(in, Long.MAX_VALUE);
+		}
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			respond(exchange, 405, "text/plain", RESPONSE_405);
+			return;
+		}
+		requestCount.increment();
+
+		String identifier = config.uuidIdentifiers
+				? UUID.randomUUID().toString()
+				: String.valueOf(nextIdentifier.incrementAndGet());
+		String prefix = exchange.getRequestHeaders().getFirst(IDENTIFIER_PREFIX_HEADER);
+		if (prefix != null) {
+			identifier = prefix + identifier;
+		}
+		byte[] callback = callbackDocument.render(identifier);
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (random.nextDouble() < config.lossRate) {
+			lostCount.increment();
+		} else if (random.nextDouble() < config.earlyRate) {
+			/*
+			 * Deliver the callback before answering, so that it reaches the listener
+			 * before the sampler knows the identifier.
+			 */
+			earlyCount.increment();
+			awaitCallback(sendCallback(callback, ContentType.APPLICATION_JSON, 1));
+		} else {
+			scheduleCallback(callback);
+		}
+		if (random.nextDouble() < config.duplicateRate) {
+			duplicateCount.increment();
+			scheduleCallback(callback);
+		}
+
+		respond(exchange, 202, "application/json", responseDocument.render(identifier));
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private void scheduleCallback(byte[] callback) {
+		long delay = config.delayDistribution.sample(config.meanDelay);
+		if (config.burstInterval > 0) {
+			/*
+			 * Hold the callback until the next burst, so that everything that comes due
+			 * within an interval is sent at once.
+			 */
+			long now = System.currentTimeMillis();
+			long due = now + delay;
+			delay = (due / config.burstInterval + 1) * config.burstInterval - now;
+		}
+		if (config.batchSize > 1) {
+			scheduler.schedule(() -> addToBatch(callback), delay, TimeUnit.MILLISECONDS);
+		} else {
+			scheduler.schedule(() -> sendCallback(callback, ContentType.APPLICATION_JSON, 1), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void addToBatch(byte[] callback) {
+		List<byte[]> batch = null;
+		synchronized (pendingBatch) {
+			pendingBatch.add(callback);
+			if (pendingBatch.size() >= config.batchSize) {
+				batch = new ArrayList<>(pendingBatch);
+				pendingBatch.clear();
+			}
+		}
+		if (batch != null) {
+			sendBatch(batch);
+		}
+	}
+
+	/**
+	 * Sends whatever is pending every linger interval, so that callbacks do not
+	 * wait for a batch to fill up for longer than that.
+	 */
+	private void scheduleBatchFlush() {
+		scheduler.schedule(() -> {
+			List<byte[]> batch;
+			synchronized (pendingBatch) {
+				batch = new ArrayList<>(pendingBatch);
+				pendingBatch.clear();
+			}
+			if (!batch.isEmpty()) {
+				sendBatch(batch);
+			}
+			if (server != null) {
+				scheduleBatchFlush();
+			}
+		}, config.batchLinger, TimeUnit.MILLISECONDS);
+	}
+
+	private void sendBatch(List<byte[]> batch) {
+		int length = 2;
+		for (byte[] callback : batch) {
+			length += callback.length + 1;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream(length);
+		if (!config.ndjsonBatches) {
+			body.write('[');
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			if (i > 0 && !config.ndjsonBatches) {
+				body.write(',');
+			}
+			body.write(batch.get(i), 0, batch.get(i).length);
+			if (config.ndjsonBatches) {
+				body.write('\n');
+			}
+		}
+		if (!config.ndjsonBatches) {
+			body.write(']');
+		}
+		batchCount.increment();
+		sendCallback(body.toByteArray(), config.ndjsonBatches ? NDJSON : ContentType.APPLICATION_JSON, batch.size());
+	}
+
+	/**
+	 * Sends a body that carries the given number of callbacks.
+	 */
+	private Future<HttpResponse> sendCallback(byte[] callback, ContentType contentType, int count) {
+		String[] urls = config.callbackUrls;
+		HttpPost post = new HttpPost(urls.length == 1 ? urls[0] : urls[ThreadLocalRandom.current().nextInt(urls.length)]);
+		post.setEntity(new ByteArrayEntity(callback, contentType));
+		return clientPool.client().execute(post, new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse response) {
+				int status = response.getStatusLine().getStatusCode();
+				if (status / 100 == 2) {
+					callbackCount.add(count);
+				} else if (status == 429 || status == 503) {
+					retriedCount.add(count);
+					scheduler.schedule(() -> sendCallback(callback, contentType, count), retryAfter(response), TimeUnit.SECONDS);
+				} else {
+					failedCount.add(count);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				failedCount.add(count);
+			}
+
+			@Override
+			public void cancelled() {
+				failedCount.add(count);
+			}
+		});
+	}
+
+	/**
+	 * Returns the delay in the Retry-After header of a response in seconds, or 1
+	 * if it has none.
+	 */
+	private static long retryAfter(HttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		try {
+			return header == null ? 1 : Math.max(0, Long.parseLong(header.getValue().trim()));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	private static void awaitCallback(Future<HttpResponse> callback) {
+		try {
+			callback.get(EARLY_CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (TimeoutException | ExecutionException e) {
+			// Counted by the callback result.
+		}
+	}
+
+	long requestCount() {
+		return requestCount.sum();
+	}
+
+	long callbackCount() {
+		return callbackCount.sum();
+	}
+
+	long failedCount() {
+		return failedCount.sum();
+	}
+
+	long lostCount() {
+		return lostCount.sum();
+	}
+
+	long batchCount() {
+		return batchCount.sum();
+	}
+
+	long retriedCount() {
+		return retriedCount.sum();
+	}
+
+	long duplicateCount() {
+		return duplicateCount.sum();
+	}
+
+	long earlyCount() {
+		return earlyCount.sum();
+	}
+
+	@Override
+	public void close() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			scheduler.close();
+			clientPool.close();
+			server = null;
+		}
+		LOGGER.info("Mock async API: {} requests, {} callbacks sent in {} batches, {} retried, {} failed, {} lost, {} duplicated, {} early",
+				requestCount(), callbackCount(), batchCount(), retriedCount(), failedCount(), lostCount(), duplicateCount(), earlyCount());
+	}
+
+	/**
+	 * Runs the mock API on its own until the process is stopped. Takes the same
+	 * options as the {@link LoadHarness}, of which only the mock API options and
+	 * <code>--listenerPort</code>, <code>--listenerShards</code> and
+	 * <code>--listenerShardMode</code> are used.
+	 */
+	public static void main(String[] args) throws Exception {
+		disableNagle();
+		HarnessOptions options = HarnessOptions.parse(args);
+		MockAsyncApi api = new MockAsyncApi(new Config(options, options.getInt("listenerPort", LoadHarness.DEFAULT_LISTENER_PORT)));
+		options.rejectUnknown();
+		api.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(api::close));
+		Thread.currentThread().join();
+	}
+
+}
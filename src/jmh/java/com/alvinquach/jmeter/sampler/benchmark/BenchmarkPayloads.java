@@ -0,0 +1,53 @@
+package com.alvinquach.jmeter.sampler.benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Callback payloads used by the benchmarks.
+ *
+ * @author Alvin Quach
+ */
+final class BenchmarkPayloads {
+
+	static final String IDENTIFIER_PATH = "data.id";
+
+	/**
+	 * Number of items in a large payload, which puts it at roughly 64 KB.
+	 */
+	private static final int LARGE_ITEM_COUNT = 800;
+
+	private BenchmarkPayloads() {
+
+	}
+
+	/**
+	 * Returns a JSON payload with the given identifier at {@link #IDENTIFIER_PATH}.
+	 * In the large payload, the identifier comes after a long array of nested
+	 * objects, which is the worst case for finding it.
+	 *
+	 * @param size Either "small" or "large".
+	 */
+	static String json(String size, String identifier) {
+		StringBuilder json = new StringBuilder("{\"status\":\"COMPLETED\",\"data\":{");
+		if ("large".equals(size)) {
+			json.append("\"items\":[");
+			for (int i = 0; i < LARGE_ITEM_COUNT; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				json.append("{\"index\":").append(i)
+						.append(",\"name\":\"item-").append(i)
+						.append("\",\"tags\":[\"alpha\",\"beta\",\"gamma\"],\"price\":").append(i * 1.25).append('}');
+			}
+			json.append("],");
+		} else if (!"small".equals(size)) {
+			throw new IllegalArgumentException("Unknown payload size '" + size + "'");
+		}
+		return json.append("\"id\":\"").append(identifier).append("\"}}").toString();
+	}
+
+	static byte[] jsonBytes(String size, String identifier) {
+		return json(size, identifier).getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,55 @@
+package com.alvinquach.jmeter.sampler.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import com.alvinquach.jmeter.sampler.async.transport.CallbackRequest;
+
+/**
+ * In-memory callback request, so that the listener can be benchmarked without
+ * going through a socket.
+ *
+ * @author Alvin Quach
+ */
+final class BenchmarkRequest implements CallbackRequest {
+
+	private final byte[] body;
+
+	private final boolean chunked;
+
+	BenchmarkRequest(byte[] body, boolean chunked) {
+		this.body = body;
+		this.chunked = chunked;
+	}
+
+	@Override
+	public String getMethod() {
+		return "POST";
+	}
+
+	@Override
+	public String getPath() {
+		return "/";
+	}
+
+	@Override
+	public String getHeader(String name) {
+		return "content-type".equalsIgnoreCase(name) ? "application/json" : null;
+	}
+
+	@Override
+	public long getReceivedNanos() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public long getContentLength() {
+		return chunked ? -1 : body.length;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(body);
+	}
+
+}
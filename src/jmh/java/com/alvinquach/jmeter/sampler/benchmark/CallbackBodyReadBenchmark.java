@@ -0,0 +1,58 @@
+package com.alvinquach.jmeter.sampler.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alvinquach.jmeter.sampler.util.CallbackBody;
+import com.alvinquach.jmeter.sampler.util.HttpListenerUtils;
+
+/**
+ * Measures reading callback bodies of various sizes, with a known content
+ * length and with chunked transfer encoding, where the length is not known in
+ * advance.
+ *
+ * @author Alvin Quach
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackBodyReadBenchmark {
+
+	@Param({"256", "16384", "1048576"})
+	public int bodySize;
+
+	@Param({"false", "true"})
+	public boolean chunked;
+
+	private BenchmarkRequest request;
+
+	@Setup
+	public void setup() {
+		byte[] body = new byte[bodySize];
+		Arrays.fill(body, (byte) 'a');
+		request = new BenchmarkRequest(body, chunked);
+	}
+
+	@Benchmark
+	public int readBody() throws IOException {
+		CallbackBody body = HttpListenerUtils.readBody(request, Integer.MAX_VALUE);
+		return body.length();
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.alvinquach.jmeter.sampler.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alvinquach.jmeter.sampler.async.AsyncHttpListener;
+import com.alvinquach.jmeter.sampler.async.CallbackPayload;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackResponse;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportType;
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+
+/**
+ * Measures the listener's handling of a callback end to end, without the
+ * network: reading the body, extracting the identifier, and completing the
+ * response that a sampler is waiting on.
+ *
+ * @author Alvin Quach
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CallbackHandleBenchmark {
+
+	/**
+	 * Number of distinct callbacks that each thread cycles through.
+	 */
+	private static final int CALLBACKS_PER_THREAD = 1024;
+
+	@Param({"small", "large"})
+	public String payload;
+
+	@Param({"false", "true"})
+	public boolean discardBodies;
+
+	private AsyncHttpListener listener;
+
+	private final AtomicInteger nextThread = new AtomicInteger();
+
+	@State(Scope.Thread)
+	public static class Callbacks {
+
+		private String[] identifiers;
+
+		private BenchmarkRequest[] requests;
+
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setup(CallbackHandleBenchmark benchmark) {
+			int thread = benchmark.nextThread.getAndIncrement();
+			identifiers = new String[CALLBACKS_PER_THREAD];
+			requests = new BenchmarkRequest[CALLBACKS_PER_THREAD];
+			for (int i = 0; i < CALLBACKS_PER_THREAD; i++) {
+				identifiers[i] = String.valueOf(thread * CALLBACKS_PER_THREAD + i);
+				requests[i] = new BenchmarkRequest(BenchmarkPayloads.jsonBytes(benchmark.payload, identifiers[i]), false);
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		ListenerTransportConfig transportConfig = new ListenerTransportConfig(ListenerTransportType.HTTP_SERVER, 0, 1);
+		listener = AsyncHttpListener.instantiate(transportConfig, IdentifierPath.compile(BenchmarkPayloads.IDENTIFIER_PATH), 0);
+		listener.setDiscardBodies(discardBodies);
+		listener.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		AsyncHttpListener.removeInstance().stop();
+	}
+
+	@Benchmark
+	public CallbackPayload handle(Callbacks callbacks) {
+		int i = callbacks.next;
+		callbacks.next = (i + 1) % CALLBACKS_PER_THREAD;
+		String identifier = callbacks.identifiers[i];
+
+		CompletableFuture<CallbackPayload> future = listener.getResponse(identifier);
+		CallbackResponse response = listener.handle(callbacks.requests[i]);
+		listener.notifyComplete(identifier);
+		if (response.getStatusCode() != 200) {
+			throw new IllegalStateException("Callback was rejected with status " + response.getStatusCode());
+		}
+		return future.getNow(null);
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.alvinquach.jmeter.sampler.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alvinquach.jmeter.sampler.util.HashedTimingWheel;
+
+/**
+ * Measures scheduling and cancelling response timeouts from several threads
+ * at once, which is what every completed transaction costs the timeout wheel.
+ *
+ * @author Alvin Quach
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class HashedTimingWheelBenchmark {
+
+	private static final Runnable NO_OP = () -> {
+		return;
+	};
+
+	private HashedTimingWheel wheel;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		wheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 512, "benchmark-timeouts");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		wheel.close();
+	}
+
+	@Benchmark
+	public boolean scheduleAndCancel() {
+		return wheel.schedule(NO_OP, 60, TimeUnit.SECONDS).cancel();
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.alvinquach.jmeter.sampler.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+import com.alvinquach.jmeter.sampler.util.JsonIdentifierExtractor;
+import com.alvinquach.jmeter.sampler.util.JsonNodeUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Compares reading the identifier from a callback payload through a JsonNode
+ * tree with streaming it out of the raw bytes.
+ *
+ * @author Alvin Quach
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonIdentifierBenchmark {
+
+	@Param({"small", "large"})
+	public String payload;
+
+	private String json;
+
+	private byte[] jsonBytes;
+
+	private JsonNode tree;
+
+	private IdentifierPath path;
+
+	private JsonIdentifierExtractor extractor;
+
+	@Setup
+	public void setup() throws IOException {
+		json = BenchmarkPayloads.json(payload, "123456789");
+		jsonBytes = BenchmarkPayloads.jsonBytes(payload, "123456789");
+		tree = JsonNodeUtils.deserializeString(json);
+		path = IdentifierPath.compile(BenchmarkPayloads.IDENTIFIER_PATH);
+		extractor = new JsonIdentifierExtractor(path);
+	}
+
+	@Benchmark
+	public JsonNode deserializeString() throws IOException {
+		return JsonNodeUtils.deserializeString(json);
+	}
+
+	@Benchmark
+	public String getNumberOrTextAsString() {
+		return JsonNodeUtils.getNumberOrTextAsString(tree, path);
+	}
+
+	@Benchmark
+	public String deserializeAndLookUp() throws IOException {
+		return JsonNodeUtils.getNumberOrTextAsString(JsonNodeUtils.deserializeString(json), path);
+	}
+
+	@Benchmark
+	public String extractFromBytes() throws IOException {
+		return extractor.extract(jsonBytes);
+	}
+
+	@Benchmark
+	public String extractFromString() throws IOException {
+		return extractor.extract(json);
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.alvinquach.jmeter.sampler.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.alvinquach.jmeter.sampler.async.AsyncHttpListener;
+import com.alvinquach.jmeter.sampler.async.CallbackPayload;
+import com.alvinquach.jmeter.sampler.async.registry.ResponseRegistryType;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportType;
+import com.alvinquach.jmeter.sampler.util.CallbackBody;
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+
+/**
+ * Measures registering and completing pending responses from several threads
+ * at once, with a given number of other responses already pending, and with
+ * and without response timeouts.
+ *
+ * @author Alvin Quach
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ResponseRegistryBenchmark {
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int pending;
+
+	@Param({"concurrentMap", "numeric"})
+	public String registry;
+
+	@Param({"0", "60000"})
+	public long timeoutDuration;
+
+	private AsyncHttpListener listener;
+
+	private CallbackPayload payload;
+
+	private final AtomicLong nextIdentifier = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		ListenerTransportConfig transportConfig = new ListenerTransportConfig(ListenerTransportType.HTTP_SERVER, 0, 1);
+		listener = AsyncHttpListener.instantiate(transportConfig, IdentifierPath.compile(BenchmarkPayloads.IDENTIFIER_PATH), timeoutDuration);
+		listener.setResponseRegistryType(ResponseRegistryType.parse(registry));
+		listener.start();
+		byte[] body = BenchmarkPayloads.jsonBytes("small", "0");
+		payload = CallbackPayload.copyOf(new CallbackBody(body, 0, body.length, StandardCharsets.UTF_8), "application/json", System.nanoTime());
+		for (int i = 0; i < pending; i++) {
+			listener.getResponse(String.valueOf(nextIdentifier.getAndIncrement()));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		AsyncHttpListener.removeInstance().stop();
+	}
+
+	/**
+	 * Registers a response and completes it the way a sampler does once its
+	 * callback has arrived. A response that is removed before it completes is
+	 * abandoned instead, which is a different path.
+	 */
+	@Benchmark
+	public CompletableFuture<CallbackPayload> addAndComplete() {
+		String identifier = String.valueOf(nextIdentifier.getAndIncrement());
+		CompletableFuture<CallbackPayload> future = listener.getResponse(identifier);
+		future.complete(payload);
+		listener.notifyComplete(identifier);
+		return future;
+	}
+
+}
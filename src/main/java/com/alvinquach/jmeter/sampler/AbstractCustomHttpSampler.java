@@ -1,42 +1,144 @@
 package com.alvinquach.jmeter.sampler;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.slf4j.Logger;
 
+import com.alvinquach.jmeter.sampler.util.ContentEncoding;
+import com.alvinquach.jmeter.sampler.util.HttpClientPool;
+import com.alvinquach.jmeter.sampler.util.PooledByteArrayEntity;
+import com.alvinquach.jmeter.sampler.util.RequestBodyEncoder;
+import com.alvinquach.jmeter.sampler.util.RequestBodyTemplate;
+
 public abstract class AbstractCustomHttpSampler extends AbstractJavaSamplerClient {
 
 	protected static final String REQUEST_URI_KEY = "requestUri";
 	
 	protected static final String REQUEST_BODY_KEY = "requestBody";
 	
+	protected static final String CONNECTION_POOL_SCOPE_KEY = "connectionPoolScope";
+	
+	protected static final String MAX_CONNECTIONS_KEY = "maxConnections";
+	
+	protected static final String MAX_CONNECTIONS_PER_ROUTE_KEY = "maxConnectionsPerRoute";
+	
+	protected static final String KEEP_ALIVE_TIMEOUT_KEY = "keepAliveTimeout";
+	
+	protected static final String IDLE_CONNECTION_TIMEOUT_KEY = "idleConnectionTimeout";
+	
+	protected static final String VALIDATE_AFTER_INACTIVITY_KEY = "validateAfterInactivity";
+	
+	protected static final String REQUEST_COMPRESSION_KEY = "requestCompression";
+	
+	protected static final String REQUEST_COMPRESSION_MIN_SIZE_KEY = "requestCompressionMinSize";
+	
+	protected static final String REQUEST_COMPRESSION_LEVEL_KEY = "requestCompressionLevel";
+	
+	/**
+	 * Maximum number of compressed static request bodies that are cached.
+	 */
+	private static final int PRECOMPRESSED_CACHE_SIZE = 64;
+	
+	/**
+	 * Compressed static request bodies, shared by every sampler so that threads
+	 * sending the same body only compress it once. Bodies are keyed by their
+	 * coding, compression level and template source.
+	 */
+	private static final Map<String, byte[]> PRECOMPRESSED_BODIES = Collections.synchronizedMap(
+			new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+				
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+					return size() > PRECOMPRESSED_CACHE_SIZE;
+				}
+			});
+	
+	/*
+	 * Names of the JMeter variables that the connection pool stats are written to
+	 * after each sample when pooling is enabled.
+	 */
+	protected static final String POOL_LEASED_VARIABLE = "connectionPoolLeased";
+	
+	protected static final String POOL_AVAILABLE_VARIABLE = "connectionPoolAvailable";
+	
+	protected static final String POOL_PENDING_VARIABLE = "connectionPoolPending";
+	
 	protected URI requestUri;
 	
 	protected URL requestUrl;
+	
+	/**
+	 * The connection pool used to send requests, or null if a new client should
+	 * be created for every sample.
+	 */
+	protected HttpClientPool clientPool;
+	
+	/**
+	 * The compiled request body, see {@link RequestBodyTemplate} for the
+	 * supported slots.
+	 */
+	protected RequestBodyTemplate requestBodyTemplate;
+	
+	/**
+	 * Entity that is reused for every request when the request body template does
+	 * not have any slots.
+	 */
+	private HttpEntity staticRequestEntity;
+	
+	private final PooledByteArrayEntity.Pool requestBodyBuffers = new PooledByteArrayEntity.Pool();
+	
+	/**
+	 * Encoder that request bodies are compressed with, or null if they are sent
+	 * as they are.
+	 */
+	private RequestBodyEncoder requestBodyEncoder;
+	
+	/**
+	 * Smallest request body that is compressed, in bytes.
+	 */
+	private int requestCompressionMinSize;
 
 	@Override
 	public Arguments getDefaultParameters() {
 		Arguments defaultArguments = new Arguments();
 		defaultArguments.addArgument(REQUEST_URI_KEY, "http://localhost:3000/rest/test/hello");
 		defaultArguments.addArgument(REQUEST_BODY_KEY, "{}");
+		defaultArguments.addArgument(CONNECTION_POOL_SCOPE_KEY, "none");
+		defaultArguments.addArgument(MAX_CONNECTIONS_KEY, "200");
+		defaultArguments.addArgument(MAX_CONNECTIONS_PER_ROUTE_KEY, "200");
+		defaultArguments.addArgument(KEEP_ALIVE_TIMEOUT_KEY, "30000");
+		defaultArguments.addArgument(IDLE_CONNECTION_TIMEOUT_KEY, "60000");
+		defaultArguments.addArgument(VALIDATE_AFTER_INACTIVITY_KEY, "2000");
+		defaultArguments.addArgument(REQUEST_COMPRESSION_KEY, "none");
+		defaultArguments.addArgument(REQUEST_COMPRESSION_MIN_SIZE_KEY, "1024");
+		defaultArguments.addArgument(REQUEST_COMPRESSION_LEVEL_KEY, "6");
 		return defaultArguments;
 	}
 	
@@ -48,6 +150,56 @@ public abstract class AbstractCustomHttpSampler extends AbstractJavaSamplerClien
 		} catch (URISyntaxException | MalformedURLException e) {
 			logger().error("Could not parse URI '{}'", requestUri);
 		}
+		clientPool = createClientPoolFromContext(context);
+		requestBodyEncoder = createRequestBodyEncoderFromContext(context);
+		requestCompressionMinSize = context.getIntParameter(REQUEST_COMPRESSION_MIN_SIZE_KEY, 1024);
+		compileRequestBodyTemplate(context.getParameter(REQUEST_BODY_KEY, ""));
+	}
+	
+	/**
+	 * Creates the encoder that request bodies are compressed with, or returns
+	 * null if request compression is disabled.
+	 */
+	protected RequestBodyEncoder createRequestBodyEncoderFromContext(JavaSamplerContext context) {
+		ContentEncoding encoding = ContentEncoding.parse(context.getParameter(REQUEST_COMPRESSION_KEY, "none"));
+		if (encoding == ContentEncoding.IDENTITY) {
+			return null;
+		}
+		return new RequestBodyEncoder(encoding, context.getIntParameter(REQUEST_COMPRESSION_LEVEL_KEY, 6));
+	}
+	
+	private void compileRequestBodyTemplate(String requestBody) {
+		requestBodyTemplate = RequestBodyTemplate.compile(requestBody);
+		staticRequestEntity = null;
+	}
+	
+	protected HttpClientPool createClientPoolFromContext(JavaSamplerContext context) {
+		HttpClientPool.Scope scope = HttpClientPool.Scope.parse(context.getParameter(CONNECTION_POOL_SCOPE_KEY));
+		if (scope == HttpClientPool.Scope.NONE) {
+			return null;
+		}
+		HttpClientPool.Config config = new HttpClientPool.Config(
+				context.getIntParameter(MAX_CONNECTIONS_KEY, 200),
+				context.getIntParameter(MAX_CONNECTIONS_PER_ROUTE_KEY, 200),
+				context.getLongParameter(KEEP_ALIVE_TIMEOUT_KEY, 30000),
+				context.getLongParameter(IDLE_CONNECTION_TIMEOUT_KEY, 60000),
+				context.getIntParameter(VALIDATE_AFTER_INACTIVITY_KEY, 2000));
+		if (scope == HttpClientPool.Scope.TEST_PLAN) {
+			return HttpClientPool.acquireShared(config);
+		}
+		return HttpClientPool.create(config);
+	}
+	
+	@Override
+	public void teardownTest(JavaSamplerContext context) {
+		if (clientPool != null) {
+			clientPool.close();
+			clientPool = null;
+		}
+		if (requestBodyEncoder != null) {
+			requestBodyEncoder.end();
+			requestBodyEncoder = null;
+		}
 	}
 	
 	protected URI parseUrlFromContext(JavaSamplerContext context) throws URISyntaxException {
@@ -59,27 +211,187 @@ public abstract class AbstractCustomHttpSampler extends AbstractJavaSamplerClien
 	public SampleResult runTest(JavaSamplerContext context) {
 		SampleResult result = new SampleResult();
 		result.setURL(requestUrl);
-		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-			HttpPost request = new HttpPost(requestUri);
-			request.setEntity(createRequestEntityFromContext(context));
-			populateHeaders(request);
-			result.sampleStart();
-			try (CloseableHttpResponse response = httpClient.execute(request)) {
-				result.sampleEnd();
-				populateResultFromResponse(context, result, response);
+		if (clientPool != null) {
+			try {
+				sendRequest(context, result, clientPool.client());
+			} catch (IOException e) {
+				logger().error("Exception encountered while sending request: {}", e.getClass().getSimpleName());
+				result.setSuccessful(false);
+			}
+			populatePoolStats(context.getJMeterVariables());
+		} else {
+			try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+				sendRequest(context, result, httpClient);
+			} catch (IOException e) {
+				logger().error("Exception encountered while sending request: {}", e.getClass().getSimpleName());
+				result.setSuccessful(false);
 			}
-		} catch (IOException e) {
-			logger().error("Exception encountered while sending request: {}", e.getClass().getSimpleName());
-			result.setSuccessful(false);
 		}
 		populateResultFromContext(context, result);
 		return result;
 	}
 	
+	private void sendRequest(JavaSamplerContext context, SampleResult result, CloseableHttpClient httpClient) throws IOException {
+		HttpPost request = createRequest(context);
+		result.sampleStart();
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			result.sampleEnd();
+			populateResultFromRequestEntity(result, request.getEntity());
+			try {
+				populateResultFromResponse(context, result, response);
+			} finally {
+				/*
+				 * The response entity has to be fully consumed for the connection to be
+				 * returned to the pool instead of being closed.
+				 */
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
+		} finally {
+			releaseRequestEntity(request.getEntity());
+		}
+	}
+	
+	/**
+	 * Writes the current connection pool stats into JMeter variables, so that
+	 * they can be recorded alongside the samples to tell whether the pool is the
+	 * bottleneck.
+	 */
+	protected void populatePoolStats(JMeterVariables variables) {
+		PoolStats stats = clientPool.stats();
+		variables.put(POOL_LEASED_VARIABLE, String.valueOf(stats.getLeased()));
+		variables.put(POOL_AVAILABLE_VARIABLE, String.valueOf(stats.getAvailable()));
+		variables.put(POOL_PENDING_VARIABLE, String.valueOf(stats.getPending()));
+		logger().debug("Connection pool stats: {}", stats);
+	}
+	
+	protected HttpPost createRequest(JavaSamplerContext context) {
+		HttpPost request = new HttpPost(requestUri);
+		request.setEntity(createRequestEntityFromContext(context));
+		populateHeaders(request);
+		return request;
+	}
+	
 	protected abstract void populateHeaders(HttpPost request);
 	
 	protected abstract HttpEntity createRequestEntityFromContext(JavaSamplerContext context);
 	
+	/**
+	 * Creates the request entity by rendering the request body template. If the
+	 * request body parameter has changed since the template was compiled (for
+	 * example, because it contains a JMeter function), the template is compiled
+	 * again.
+	 * <p>
+	 * If request compression is enabled, bodies that are at least the minimum
+	 * size are compressed. Compressed static bodies are cached across samplers.
+	 * <p>
+	 * The returned entity may hold a pooled buffer, so it must be passed to
+	 * {@link #releaseRequestEntity(HttpEntity)} once the request has been sent.
+	 */
+	protected HttpEntity createRequestEntityFromTemplate(JavaSamplerContext context, ContentType contentType) {
+		String requestBody = context.getParameter(REQUEST_BODY_KEY, "");
+		String source = requestBodyTemplate.source();
+		if (requestBody != source && !requestBody.equals(source)) {
+			compileRequestBodyTemplate(requestBody);
+		}
+		
+		if (requestBodyTemplate.isStatic()) {
+			if (staticRequestEntity == null) {
+				staticRequestEntity = createStaticRequestEntity(requestBodyTemplate.staticBytes(), contentType);
+			}
+			return staticRequestEntity;
+		}
+		
+		RequestBodyTemplate.Buffer buffer = requestBodyBuffers.acquire();
+		requestBodyTemplate.render(buffer, context.getJMeterVariables(), context.getJMeterContext().getThreadNum());
+		int length = buffer.length();
+		if (requestBodyEncoder == null || length < requestCompressionMinSize) {
+			return requestBodyBuffers.wrap(buffer, contentType);
+		}
+		
+		/*
+		 * Compress the rendered body into a second pooled buffer, and return the
+		 * rendered one straight away.
+		 */
+		RequestBodyTemplate.Buffer encoded = requestBodyBuffers.acquire();
+		requestBodyEncoder.encode(buffer.array(), 0, length, encoded);
+		requestBodyBuffers.release(buffer);
+		return requestBodyBuffers.wrap(encoded, contentType, requestBodyEncoder.getEncoding(), length);
+	}
+	
+	private HttpEntity createStaticRequestEntity(byte[] body, ContentType contentType) {
+		if (requestBodyEncoder == null || body.length < requestCompressionMinSize) {
+			return new ByteArrayEntity(body, contentType);
+		}
+		ContentEncoding encoding = requestBodyEncoder.getEncoding();
+		String key = encoding.token() + ':' + requestBodyEncoder.getLevel() + ':' + requestBodyTemplate.source();
+		byte[] encoded = PRECOMPRESSED_BODIES.get(key);
+		if (encoded == null) {
+			RequestBodyTemplate.Buffer buffer = new RequestBodyTemplate.Buffer(body.length + 64);
+			requestBodyEncoder.encode(body, 0, body.length, buffer);
+			encoded = Arrays.copyOf(buffer.array(), buffer.length());
+			PRECOMPRESSED_BODIES.put(key, encoded);
+		}
+		return new EncodedByteArrayEntity(encoded, contentType, encoding, body.length);
+	}
+	
+	/**
+	 * Returns the buffer of a request entity created by
+	 * {@link #createRequestEntityFromTemplate(JavaSamplerContext, ContentType)}
+	 * to the pool.
+	 */
+	protected static void releaseRequestEntity(HttpEntity entity) {
+		if (entity instanceof PooledByteArrayEntity) {
+			((PooledByteArrayEntity) entity).release();
+		}
+	}
+	
+	/**
+	 * Static request entity whose body is encoded, which keeps the length of the
+	 * body before it was encoded.
+	 */
+	private static final class EncodedByteArrayEntity extends ByteArrayEntity {
+		
+		private final int decodedLength;
+		
+		private EncodedByteArrayEntity(byte[] encoded, ContentType contentType, ContentEncoding encoding, int decodedLength) {
+			super(encoded, contentType);
+			setContentEncoding(encoding.token());
+			this.decodedLength = decodedLength;
+		}
+	}
+	
+	/**
+	 * Populates the result with the size of the request body, as it was sent.
+	 * If the body was encoded, the coding and the sizes of the body before and
+	 * after it was encoded are reported as well. This must be called before the
+	 * entity is released.
+	 */
+	protected static void populateResultFromRequestEntity(SampleResult result, HttpEntity requestEntity) {
+		if (requestEntity == null) {
+			return;
+		}
+		long length = requestEntity.getContentLength();
+		result.setSentBytes(length);
+		Header contentEncoding = requestEntity.getContentEncoding();
+		if (contentEncoding == null) {
+			return;
+		}
+		long decodedLength;
+		if (requestEntity instanceof PooledByteArrayEntity) {
+			decodedLength = ((PooledByteArrayEntity) requestEntity).getDecodedLength();
+		} else if (requestEntity instanceof EncodedByteArrayEntity) {
+			decodedLength = ((EncodedByteArrayEntity) requestEntity).decodedLength;
+		} else {
+			decodedLength = -1;
+		}
+		result.setRequestHeaders("Content-Encoding: " + contentEncoding.getValue() + "\n"
+				+ "Content-Length: " + length + "\n");
+		if (decodedLength >= 0) {
+			result.setSamplerData("Request body of " + decodedLength + " bytes, sent " + contentEncoding.getValue()
+					+ "-encoded as " + length + " bytes");
+		}
+	}
+	
 	protected void populateResultFromResponse(JavaSamplerContext context, SampleResult result, HttpResponse response) {
 		/*
 		 * Response status
@@ -109,22 +421,25 @@ public abstract class AbstractCustomHttpSampler extends AbstractJavaSamplerClien
 		if (responseEntity == null) {
 			return;
 		}
-		result.setBodySize(responseEntity.getContentLength());
 		Header contentType = responseEntity.getContentType();
 		if (contentType != null) {
 			result.setContentType(contentType.getValue());
 		}
 		try {
-			InputStream content = responseEntity.getContent();
-			String responseBody = IOUtils.toString(content, "UTF-8");
+			byte[] responseBody = EntityUtils.toByteArray(responseEntity);
+			result.setBodySize((long) responseBody.length);
 			populateResultFromResponseBody(context, result, responseBody);
 		} catch (Exception e) {
 			logger().warn("Could not parse body from response");
 		}
 	}
 	
-	protected void populateResultFromResponseBody(JavaSamplerContext context, SampleResult result, String responseBody) {
-		result.setResponseData(responseBody, "UTF-8");
+	/**
+	 * Populates the result from the raw response body. The body is kept as bytes
+	 * so that it does not have to be decoded unless something actually reads it.
+	 */
+	protected void populateResultFromResponseBody(JavaSamplerContext context, SampleResult result, byte[] responseBody) {
+		result.setResponseData(responseBody);
 	}
 	
 	protected void populateResultFromContext(JavaSamplerContext context, SampleResult result) {
@@ -3,7 +3,6 @@ package com.alvinquach.jmeter.sampler;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,8 +18,7 @@ public class CustomHttpSampler extends AbstractCustomHttpSampler {
 	
 	@Override
 	protected HttpEntity createRequestEntityFromContext(JavaSamplerContext context) {
-		String json = context.getParameter(REQUEST_BODY_KEY);	
-		return new StringEntity(json, ContentType.APPLICATION_JSON);
+		return createRequestEntityFromTemplate(context, ContentType.APPLICATION_JSON);
 	}
 
 	@Override
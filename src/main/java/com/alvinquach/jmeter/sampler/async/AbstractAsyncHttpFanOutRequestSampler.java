@@ -0,0 +1,353 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.EntityUtils;
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterVariables;
+
+import com.alvinquach.jmeter.sampler.util.HttpAsyncClientPool;
+import com.alvinquach.jmeter.sampler.util.HttpClientPool;
+
+/**
+ * Base sampler plug-in for sending a fan-out of several requests to an
+ * asynchronous API endpoint at once, for workflows that submit a number of
+ * jobs and then wait for all of them. The requests are sent in parallel
+ * through a shared non-blocking HTTP client, and the identifiers in their
+ * initial responses are written to JMeter variables the way JMeter's
+ * extractors write multiple matches: <code>identifier_1</code> to
+ * <code>identifier_N</code>, with the number of identifiers in
+ * <code>identifier_matchNr</code>. Requests that fail are left out.
+ * <p>
+ * The index of each request, starting at 1, is written to the
+ * {@value #FAN_OUT_INDEX_KEY} variable before its body is rendered, so that the
+ * requests can tell themselves apart with a <code>#{fanOutIndex}</code> slot
+ * in the request body.
+ * <p>
+ * The sample covers the time from sending the first request to receiving the
+ * last initial response, and has a sub-result for each request. It is only
+ * successful if every request returned an identifier.
+ *
+ * @author Alvin Quach
+ */
+public abstract class AbstractAsyncHttpFanOutRequestSampler extends AbstractAsyncHttpRequestSampler {
+
+	protected static final String FAN_OUT_KEY = "fanOut";
+
+	protected static final String REQUEST_TIMEOUT_KEY = "requestTimeout";
+
+	protected static final String IO_THREAD_COUNT_KEY = "ioThreadCount";
+
+	/**
+	 * Name of the JMeter variable that the index of the request whose body is
+	 * being rendered is written to.
+	 */
+	protected static final String FAN_OUT_INDEX_KEY = "fanOutIndex";
+
+	/**
+	 * Suffix of the JMeter variable that holds the number of identifiers, as
+	 * used by JMeter's extractors.
+	 */
+	static final String MATCH_COUNT_SUFFIX = "_matchNr";
+
+	private int fanOut;
+
+	private long requestTimeout;
+
+	private HttpAsyncClientPool asyncClientPool;
+
+	/**
+	 * Returns the name of the JMeter variable for the item of a fan-out with the
+	 * given index.
+	 */
+	static String indexed(String key, int index) {
+		return key + "_" + index;
+	}
+
+	@Override
+	public Arguments getDefaultParameters() {
+		Arguments defaultArguments = super.getDefaultParameters();
+		defaultArguments.addArgument(FAN_OUT_KEY, "4");
+		defaultArguments.addArgument(REQUEST_TIMEOUT_KEY, "30000");
+		defaultArguments.addArgument(IO_THREAD_COUNT_KEY, "0");
+		return defaultArguments;
+	}
+
+	@Override
+	public void setupTest(JavaSamplerContext context) {
+		super.setupTest(context);
+
+		fanOut = context.getIntParameter(FAN_OUT_KEY, 4);
+		requestTimeout = context.getLongParameter(REQUEST_TIMEOUT_KEY, 30000);
+		if (fanOut <= 0 || requestTimeout < 0) {
+			throw new IllegalArgumentException("Setup error: fan-out must be positive, and request timeout must not be negative");
+		}
+		asyncClientPool = HttpAsyncClientPool.acquireShared(new HttpAsyncClientPool.Config(
+				context.getIntParameter(IO_THREAD_COUNT_KEY, 0),
+				context.getIntParameter(MAX_CONNECTIONS_KEY, 200),
+				context.getIntParameter(MAX_CONNECTIONS_PER_ROUTE_KEY, 200)));
+	}
+
+	/**
+	 * The blocking client pool is never used by this sampler, since requests are
+	 * sent through the shared non-blocking client instead.
+	 */
+	@Override
+	protected HttpClientPool createClientPoolFromContext(JavaSamplerContext context) {
+		return null;
+	}
+
+	@Override
+	public SampleResult runTest(JavaSamplerContext context) {
+		long intendedStartTime = 0;
+		if (arrivalScheduler != null) {
+			try {
+				intendedStartTime = arrivalScheduler.awaitNextArrival();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				SampleResult result = new SampleResult();
+				result.setIgnore();
+				return result;
+			}
+		}
+
+		SampleResult result = sendAll(context);
+
+		if (intendedStartTime > 0) {
+			/*
+			 * Time the sample from the intended send time, so that fan-outs that were sent
+			 * late are not reported with artificially low latencies.
+			 */
+			result = timedFromIntendedStart(result, intendedStartTime);
+			context.getJMeterVariables().put(INTENDED_START_TIME_KEY, String.valueOf(intendedStartTime));
+		}
+		return result;
+	}
+
+	private SampleResult sendAll(JavaSamplerContext context) {
+		JMeterVariables variables = context.getJMeterVariables();
+		SampleResult result = new SampleResult();
+		result.setURL(requestUrl);
+
+		/*
+		 * Send every request before waiting for any of them.
+		 */
+		List<FanOutRequest> requests = new ArrayList<>(fanOut);
+		result.sampleStart();
+		try {
+			for (int i = 1; i <= fanOut; i++) {
+				variables.put(FAN_OUT_INDEX_KEY, String.valueOf(i));
+				HttpPost request = createRequest(context);
+				FanOutRequest fanOutRequest = new FanOutRequest(i, request.getEntity());
+				requests.add(fanOutRequest);
+				fanOutRequest.sent = asyncClientPool.client().execute(request, fanOutRequest);
+			}
+		} catch (RuntimeException e) {
+			/*
+			 * Stop the requests that were already sent, and release every entity that was
+			 * taken, including that of the request that could not be sent.
+			 */
+			for (FanOutRequest request : requests) {
+				if (request.sent != null) {
+					request.sent.cancel(true);
+					request.completion.join();
+				}
+				releaseRequestEntity(request.requestEntity);
+			}
+			throw e;
+		}
+		awaitAll(requests);
+		result.sampleEnd();
+		result.latencyEnd();
+
+		/*
+		 * Write out the identifiers of the requests that returned one, and clear the
+		 * ones that are left over from a larger fan-out.
+		 */
+		String identifierKey = identifierKey();
+		List<String> identifiers = new ArrayList<>(fanOut);
+		for (FanOutRequest request : requests) {
+			SampleResult subResult = request.toSubResult();
+			/*
+			 * The request entities are only released once every request is complete, so
+			 * that their sizes can still be reported. The sent bytes of the sub-results
+			 * add up to those of the fan-out.
+			 */
+			releaseRequestEntity(request.requestEntity);
+			result.addSubResult(subResult, false);
+			if (request.identifier == null) {
+				continue;
+			}
+			identifiers.add(request.identifier);
+			int index = identifiers.size();
+			variables.put(indexed(identifierKey, index), request.identifier);
+			variables.put(indexed(REQUEST_SENT_NANOS_KEY, index), String.valueOf(request.sentNanos));
+			variables.put(indexed(INITIAL_RESPONSE_NANOS_KEY, index), String.valueOf(request.initialResponseNanos));
+		}
+		String previousCount = variables.get(identifierKey + MATCH_COUNT_SUFFIX);
+		for (int i = identifiers.size() + 1; StringUtils.isNumeric(previousCount) && i <= Integer.parseInt(previousCount); i++) {
+			variables.remove(indexed(identifierKey, i));
+			variables.remove(indexed(REQUEST_SENT_NANOS_KEY, i));
+			variables.remove(indexed(INITIAL_RESPONSE_NANOS_KEY, i));
+		}
+		variables.put(identifierKey + MATCH_COUNT_SUFFIX, String.valueOf(identifiers.size()));
+
+		boolean successful = identifiers.size() == fanOut;
+		if (successful) {
+			result.setResponseCodeOK();
+		}
+		result.setSuccessful(successful);
+		result.setResponseMessage(identifiers.size() + " of " + fanOut + " requests returned an identifier");
+		result.setResponseData(String.join("\n", identifiers), StandardCharsets.UTF_8.name());
+		result.setDataType(SampleResult.TEXT);
+		logger().debug("Received {} of {} identifiers", identifiers.size(), fanOut);
+		return result;
+	}
+
+	/**
+	 * Waits for every request to complete, and cancels the ones that are still
+	 * outstanding after the request timeout.
+	 */
+	private void awaitAll(List<FanOutRequest> requests) {
+		CompletableFuture<?>[] completions = new CompletableFuture<?>[requests.size()];
+		for (int i = 0; i < completions.length; i++) {
+			completions[i] = requests.get(i).completion;
+		}
+		CompletableFuture<Void> all = CompletableFuture.allOf(completions);
+		try {
+			if (requestTimeout > 0) {
+				all.get(requestTimeout, TimeUnit.MILLISECONDS);
+			} else {
+				all.get();
+			}
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (TimeoutException e) {
+			logger().error("Fan-out requests did not complete within {} ms", requestTimeout);
+		} catch (ExecutionException e) {
+			// The completions never complete exceptionally.
+		}
+		for (FanOutRequest request : requests) {
+			request.sent.cancel(true);
+		}
+		all.join();
+	}
+
+	/**
+	 * One request of a fan-out, whose initial response is handled on one of the
+	 * I/O dispatcher threads.
+	 */
+	private final class FanOutRequest implements FutureCallback<HttpResponse> {
+
+		private final int index;
+
+		private final HttpEntity requestEntity;
+
+		private final long sentNanos = System.nanoTime();
+
+		private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+		private Future<HttpResponse> sent;
+
+		/*
+		 * Outcome, written before the completion is completed.
+		 */
+
+		private long initialResponseNanos;
+
+		private String responseCode;
+
+		private String responseMessage;
+
+		private String identifier;
+
+		private FanOutRequest(int index, HttpEntity requestEntity) {
+			this.index = index;
+			this.requestEntity = requestEntity;
+		}
+
+		@Override
+		public void completed(HttpResponse response) {
+			initialResponseNanos = System.nanoTime();
+			int statusCode = response.getStatusLine().getStatusCode();
+			responseCode = String.valueOf(statusCode);
+			responseMessage = response.getStatusLine().getReasonPhrase();
+			try {
+				HttpEntity entity = response.getEntity();
+				byte[] responseBody = entity == null ? null : EntityUtils.toByteArray(entity);
+				if (statusCode == 200 && responseBody != null) {
+					identifier = parseIdentifierFromResponseBody(responseBody);
+					if (identifier == null) {
+						responseMessage = "Initial response does not contain an identifier";
+					}
+				}
+			} catch (IOException e) {
+				logger().error("Exception encountered while reading initial response: {}", e.getClass().getSimpleName());
+				responseMessage = e.getClass().getSimpleName();
+			}
+			completion.complete(null);
+		}
+
+		@Override
+		public void failed(Exception e) {
+			initialResponseNanos = System.nanoTime();
+			logger().error("Exception encountered while sending request: {}", e.getClass().getSimpleName());
+			responseMessage = e.getClass().getSimpleName();
+			completion.complete(null);
+		}
+
+		@Override
+		public void cancelled() {
+			initialResponseNanos = System.nanoTime();
+			responseMessage = "Request timed out";
+			completion.complete(null);
+		}
+
+		private SampleResult toSubResult() {
+			SampleResult subResult = AsyncLatencyBreakdown.stage("Request " + index, sentNanos, initialResponseNanos);
+			subResult.setURL(requestUrl);
+			populateResultFromRequestEntity(subResult, requestEntity);
+			if (responseCode != null) {
+				subResult.setResponseCode(responseCode);
+			}
+			subResult.setResponseMessage(responseMessage);
+			if (identifier != null) {
+				subResult.setResponseData(identifier, StandardCharsets.UTF_8.name());
+			}
+			subResult.setSuccessful(identifier != null);
+			return subResult;
+		}
+	}
+
+	@Override
+	public void teardownTest(JavaSamplerContext context) {
+		super.teardownTest(context);
+		if (asyncClientPool != null) {
+			asyncClientPool.close();
+			asyncClientPool = null;
+		}
+	}
+
+	/**
+	 * Get the base name of the JMeter variables that the identifiers are written
+	 * to.
+	 */
+	protected abstract String identifierKey();
+
+}
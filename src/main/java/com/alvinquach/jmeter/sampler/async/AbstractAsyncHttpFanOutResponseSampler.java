@@ -0,0 +1,229 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterVariables;
+import org.slf4j.Logger;
+
+/**
+ * Base sampler plug-in for waiting on the asynchronous responses to a fan-out
+ * of requests sent by the AbstractAsyncHttpFanOutRequestSampler. The sampler
+ * waits until all of the responses have arrived, or until any one of them has,
+ * depending on the completion mode, with a single deadline for the whole
+ * fan-out on top of the listener's timeout for each response.
+ * <p>
+ * Each response is added to the sample as a sub-result, timed from sending its
+ * request to the listener receiving its response. The time from sending the
+ * first request to receiving the response that completed the fan-out is
+ * written to the {@value #FAN_OUT_LATENCY_KEY} variable, in microseconds.
+ * Responses that are still outstanding when the sampler stops waiting are
+ * abandoned.
+ *
+ * @author Alvin Quach
+ */
+public abstract class AbstractAsyncHttpFanOutResponseSampler extends AbstractJavaSamplerClient {
+
+	protected static final String COMPLETION_KEY = "completion";
+
+	protected static final String DEADLINE_KEY = "deadline";
+
+	/**
+	 * Name of the JMeter variable that the number of responses that arrived is
+	 * written to.
+	 */
+	protected static final String COMPLETED_COUNT_KEY = "asyncFanOutCompletedCount";
+
+	/**
+	 * Name of the JMeter variable that the time from sending the first request to
+	 * the listener receiving the response that completed the fan-out is written
+	 * to, in microseconds.
+	 */
+	protected static final String FAN_OUT_LATENCY_KEY = "asyncFanOutLatencyMicros";
+
+	private FanOutCompletion completion;
+
+	private long deadline;
+
+	@Override
+	public Arguments getDefaultParameters() {
+		Arguments defaultArguments = new Arguments();
+		defaultArguments.addArgument(COMPLETION_KEY, "all");
+		defaultArguments.addArgument(DEADLINE_KEY, "0");
+		return defaultArguments;
+	}
+
+	@Override
+	public void setupTest(JavaSamplerContext context) {
+		completion = FanOutCompletion.parse(context.getParameter(COMPLETION_KEY));
+		deadline = context.getLongParameter(DEADLINE_KEY, 0);
+		if (deadline < 0) {
+			throw new IllegalArgumentException("Setup error: deadline must not be negative");
+		}
+	}
+
+	@Override
+	public SampleResult runTest(JavaSamplerContext context) {
+		SampleResult result = new SampleResult();
+		result.sampleStart();
+
+		runTest(context, result);
+
+		if (result.getEndTime() == 0) {
+			result.sampleEnd();
+		}
+
+		/*
+		 * If the requests were sent on an arrival schedule, then time the responses
+		 * from the intended send time, as the single response sampler does, and clear
+		 * it once it has been used.
+		 */
+		String intendedStartTime = context.getJMeterVariables().get(AbstractAsyncHttpRequestSampler.INTENDED_START_TIME_KEY);
+		context.getJMeterVariables().remove(AbstractAsyncHttpRequestSampler.INTENDED_START_TIME_KEY);
+		if (StringUtils.isNumeric(intendedStartTime)) {
+			return AbstractAsyncHttpRequestSampler.timedFromIntendedStart(result, Long.parseLong(intendedStartTime));
+		}
+		return result;
+	}
+
+	private void runTest(JavaSamplerContext context, SampleResult result) {
+		JMeterVariables variables = context.getJMeterVariables();
+		String identifierKey = identifierKey();
+		String countValue = variables.get(identifierKey + AbstractAsyncHttpFanOutRequestSampler.MATCH_COUNT_SUFFIX);
+		if (!StringUtils.isNumeric(countValue) || Integer.parseInt(countValue) == 0) {
+			logger().error("Previous result did not leave any identifiers to wait for");
+			return;
+		}
+
+		int count = Integer.parseInt(countValue);
+		List<String> identifiers = new ArrayList<>(count);
+		for (int i = 1; i <= count; i++) {
+			String identifier = variables.get(AbstractAsyncHttpFanOutRequestSampler.indexed(identifierKey, i));
+			if (StringUtils.isBlank(identifier)) {
+				logger().error("Identifier {} of {} from previous result is missing", i, count);
+				return;
+			}
+			identifiers.add(identifier);
+		}
+
+		/*
+		 * Register every identifier with the listener before waiting on any of them.
+		 */
+		AbstractAsyncHttpListener listener = httpListener();
+		List<CompletableFuture<CallbackPayload>> futures = new ArrayList<>(count);
+		Long[] sentNanos = new Long[count];
+		Long firstSentNanos = null;
+		for (int i = 0; i < count; i++) {
+			futures.add(listener.getResponse(identifiers.get(i)));
+			sentNanos[i] = parseNanos(variables.get(AbstractAsyncHttpFanOutRequestSampler.indexed(AbstractAsyncHttpRequestSampler.REQUEST_SENT_NANOS_KEY, i + 1)));
+			if (sentNanos[i] != null && (firstSentNanos == null || sentNanos[i] - firstSentNanos < 0)) {
+				firstSentNanos = sentNanos[i];
+			}
+		}
+
+		CompletableFuture<?> completed = completion.of(futures);
+		try {
+			if (deadline > 0) {
+				completed.get(deadline, TimeUnit.MILLISECONDS);
+			} else {
+				completed.get();
+			}
+		} catch (TimeoutException e) {
+			logger().error("Fan-out of {} responses was not complete within the deadline of {} ms", count, deadline);
+		} catch (CancellationException | ExecutionException e) {
+			logger().error("Fan-out of {} responses timed out", count);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long wokenNanos = System.nanoTime();
+		result.sampleEnd();
+
+		/*
+		 * Report every response, and stop waiting for the ones that are still
+		 * outstanding.
+		 */
+		int arrived = 0;
+		long completingNanos = 0;
+		for (int i = 0; i < count; i++) {
+			CompletableFuture<CallbackPayload> future = futures.get(i);
+			SampleResult subResult;
+			if (future.isDone() && !future.isCompletedExceptionally()) {
+				CallbackPayload response = future.join();
+				long arrivalNanos = response.arrivalNanos();
+				subResult = AsyncLatencyBreakdown.stage("Response " + (i + 1), sentNanos[i] != null ? sentNanos[i] : arrivalNanos, arrivalNanos);
+				response.applyTo(subResult);
+				if (sentNanos[i] != null) {
+					listener.recordEndToEndLatency(arrivalNanos - sentNanos[i]);
+				}
+				/*
+				 * All of the responses are complete with the last one to arrive, and any of
+				 * them with the first one.
+				 */
+				if (arrived == 0 || (completion == FanOutCompletion.ALL) == (arrivalNanos - completingNanos > 0)) {
+					completingNanos = arrivalNanos;
+				}
+				arrived++;
+			} else {
+				long start = sentNanos[i] != null ? sentNanos[i] : wokenNanos;
+				subResult = AsyncLatencyBreakdown.stage("Response " + (i + 1), start, wokenNanos);
+				subResult.setResponseMessage(future.isDone() ? "Response timed out" : "Response abandoned");
+				subResult.setSuccessful(false);
+			}
+			result.addSubResult(subResult, false);
+			listener.notifyComplete(identifiers.get(i));
+		}
+
+		boolean successful = completion == FanOutCompletion.ALL ? arrived == count : arrived > 0;
+		if (successful) {
+			result.setResponseCodeOK();
+		}
+		if (successful && firstSentNanos != null) {
+			variables.put(FAN_OUT_LATENCY_KEY, String.valueOf(TimeUnit.NANOSECONDS.toMicros(completingNanos - firstSentNanos)));
+		} else {
+			variables.remove(FAN_OUT_LATENCY_KEY);
+		}
+		result.setSuccessful(successful);
+		result.setResponseMessage(arrived + " of " + count + " responses received");
+		variables.put(COMPLETED_COUNT_KEY, String.valueOf(arrived));
+		logger().debug("Received {} of {} async responses", arrived, count);
+	}
+
+	/**
+	 * Parses a {@link System#nanoTime()} stamp written by the request sampler, or
+	 * returns null if there is none.
+	 */
+	private static Long parseNanos(String value) {
+		try {
+			return value == null ? null : Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the HTTP listener.
+	 */
+	protected abstract AbstractAsyncHttpListener httpListener();
+
+	/**
+	 * Get the base name of the JMeter variables that the identifiers are read
+	 * from.
+	 */
+	protected abstract String identifierKey();
+
+	/**
+	 * Get the logger for this class.
+	 */
+	protected abstract Logger logger();
+
+}
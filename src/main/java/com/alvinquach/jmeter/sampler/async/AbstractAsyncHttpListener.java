@@ -1,103 +1,719 @@
 package com.alvinquach.jmeter.sampler.async;
 
 import java.io.IOException;
-import java.util.Date;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
+import com.alvinquach.jmeter.sampler.async.registry.ResponseRegistry;
+import com.alvinquach.jmeter.sampler.async.registry.ResponseRegistryType;
+import com.alvinquach.jmeter.sampler.async.polling.PollingConfig;
+import com.alvinquach.jmeter.sampler.async.polling.StatusPoller;
+import com.alvinquach.jmeter.sampler.async.relay.CallbackRelay;
+import com.alvinquach.jmeter.sampler.async.relay.RelayConfig;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackHandler;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackRequest;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackResponse;
+import com.alvinquach.jmeter.sampler.async.transport.EventStreamTransport;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransport;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportType;
+import com.alvinquach.jmeter.sampler.util.CallbackBody;
+import com.alvinquach.jmeter.sampler.util.ContentEncoding;
+import com.alvinquach.jmeter.sampler.util.EarlyArrivalBuffer;
+import com.alvinquach.jmeter.sampler.util.HashedTimingWheel;
 import com.alvinquach.jmeter.sampler.util.HttpListenerUtils;
-
-import fi.iki.elonen.NanoHTTPD;
-import fi.iki.elonen.NanoHTTPD.Response.IStatus;
-import fi.iki.elonen.NanoHTTPD.Response.Status;
+import com.alvinquach.jmeter.sampler.util.JsonBatchReader;
 
 /**
+ * Base HTTP listener for asynchronous responses. Incoming requests are
+ * received by a pluggable ListenerTransport, and matched to the samplers
+ * waiting on them by identifier.
+ * <p>
+ * A request can carry a single callback, or a batch of callbacks as a JSON
+ * array or as NDJSON (<code>application/x-ndjson</code>). The elements of a
+ * batch are read as they arrive, and each one is handled as soon as it has been
+ * read. A batch is answered with the number of elements that were accepted,
+ * rejected to be retried later and invalid, and with the status of
+ * the worst of them.
+ * <p>
+ * Callbacks sent with a <code>Content-Encoding</code> of gzip or deflate are
+ * decoded as they are read, so that batches are split and identifiers are
+ * extracted while the body is being inflated. If bodies are discarded, a
+ * compressed callback is never buffered as a whole, neither compressed nor
+ * inflated.
+ * <p>
+ * Besides receiving callbacks, the listener can read them from the event
+ * streams of services that publish their notifications, see
+ * {@link #addEventStream(URI, long)}.
+ * <p>
+ * In a distributed test, the listeners of the nodes can relay callbacks to
+ * each other, so that a callback reaches the node that is waiting on it even if
+ * it was sent to another one, see {@link #setRelay(RelayConfig)}.
+ * <p>
+ * For APIs that do not call back at all, the listener can poll them for the
+ * status of every transaction that a sampler waits on instead, and complete the
+ * same responses with the status documents, see
+ * {@link #setPolling(PollingConfig)}.
  * 
  * @see <a href="https://github.com/pleutres/jmeter-asynchronous-http">https://github.com/pleutres/jmeter-asynchronous-http</a>
  */
-public abstract class AbstractAsyncHttpListener extends NanoHTTPD {
+public abstract class AbstractAsyncHttpListener implements CallbackHandler {
 
 	protected static class ResponseWrapper {
 		
-		public final CompletableFuture<String> future = new CompletableFuture<>();
+		public final CompletableFuture<CallbackPayload> future = new CompletableFuture<>();
 		
-		public final long expirationTime;
+		/**
+		 * Pending timeout of the response, or null if responses do not time out.
+		 */
+		volatile HashedTimingWheel.Timeout timeout;
 		
-		ResponseWrapper(long timeoutDuration) {
-			if (timeoutDuration == 0) {
-				expirationTime = Long.MAX_VALUE;
-			} else {
-				expirationTime = new Date().getTime() + timeoutDuration;
+		void cancelTimeout() {
+			HashedTimingWheel.Timeout timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel();
 			}
 		}
 	}
 	
 	protected static final String MIME_JSON = "application/json";
 	
-	protected static final Response RESPONSE_200 = NanoHTTPD.newFixedLengthResponse("OK");
+	protected static final String MIME_NDJSON = "application/x-ndjson";
 	
-	protected static final Response RESPONSE_400;
-	static {
-		IStatus status = Status.BAD_REQUEST;
-		String message = status.getDescription();
-		RESPONSE_400 = NanoHTTPD.newFixedLengthResponse(status, NanoHTTPD.MIME_PLAINTEXT, message);
-	}
+	/**
+	 * Path that GET requests can read the listener metrics from, in Prometheus
+	 * text format.
+	 */
+	public static final String METRICS_PATH = "/metrics";
 	
-	protected static final Response RESPONSE_405;
-	static {
-		IStatus status = Status.METHOD_NOT_ALLOWED;
-		String message = "Currently, only POST responses are supported";
-		RESPONSE_405 = NanoHTTPD.newFixedLengthResponse(status, NanoHTTPD.MIME_PLAINTEXT, message);
-	}
+	private static final String MBEAN_NAME_PREFIX = "com.alvinquach.jmeter.sampler:type=AsyncHttpListener,port=";
 	
-	protected static final Response RESPONSE_415;
-	static {
-		IStatus status = new IStatus() {
-			private static final String DESCRIPTION = "Unsupported Media Type";
-			@Override public int getRequestStatus() {
-				return 415;
-			}
-			@Override public String getDescription() {
-				return DESCRIPTION;
-			}
-		};
-		String message = "Currently, only " + MIME_JSON + " content type is supported";
-		RESPONSE_415 = NanoHTTPD.newFixedLengthResponse(status, NanoHTTPD.MIME_PLAINTEXT, message);
-	}
+	protected static final CallbackResponse RESPONSE_200 = new CallbackResponse(200, "OK", "OK");
+	
+	/**
+	 * Response to a relayed callback that is still queued for its node, whose
+	 * own response is not known yet.
+	 */
+	protected static final CallbackResponse RESPONSE_202 = new CallbackResponse(202, "Accepted", "Accepted");
+	
+	protected static final CallbackResponse RESPONSE_400 = new CallbackResponse(400, "Bad Request", "Bad Request");
+	
+	protected static final CallbackResponse RESPONSE_405 = new CallbackResponse(405, "Method Not Allowed", "Currently, only POST responses are supported");
+	
+	protected static final CallbackResponse RESPONSE_413 = new CallbackResponse(413, "Payload Too Large", "Payload Too Large");
+	
+	protected static final CallbackResponse RESPONSE_415 = new CallbackResponse(415, "Unsupported Media Type", "Currently, only " + MIME_JSON + " and " + MIME_NDJSON + " content types are supported");
+	
+	protected static final CallbackResponse RESPONSE_415_ENCODING = new CallbackResponse(415, "Unsupported Media Type", "Currently, only gzip and deflate content encodings are supported");
+	
+	protected static final CallbackResponse RESPONSE_429 = new CallbackResponse(429, "Too Many Requests", "Too Many Requests");
+	
+	/**
+	 * Default resolution of the response timeouts, in milliseconds.
+	 */
+	public static final long DEFAULT_TIMEOUT_RESOLUTION = 10;
+	
+	/**
+	 * Number of buckets in the timeout wheel. With the default resolution, one
+	 * turn of the wheel covers a little over 5 seconds.
+	 */
+	private static final int TIMEOUT_WHEEL_SIZE = 512;
+	
+	/**
+	 * Default maximum size of a request body, in bytes.
+	 */
+	public static final int DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * Default time that a callback for an identifier that no sampler is waiting
+	 * on yet is held for, in milliseconds.
+	 */
+	public static final long DEFAULT_EARLY_ARRIVAL_TTL = 30000;
+	
+	/**
+	 * Default maximum number of held callbacks.
+	 */
+	public static final int DEFAULT_EARLY_ARRIVAL_MAX_ENTRIES = 100000;
+	
+	/**
+	 * Default maximum total size of held callbacks, in bytes.
+	 */
+	public static final long DEFAULT_EARLY_ARRIVAL_MAX_BYTES = 64L * 1024 * 1024;
+	
+	/**
+	 * Default number of seconds that rejected senders are asked to wait before
+	 * retrying.
+	 */
+	public static final int DEFAULT_RETRY_AFTER = 1;
+	
+	/**
+	 * How long a relayed callback waits for the node that owns it to acknowledge
+	 * it, in milliseconds.
+	 */
+	private static final long RELAY_ACKNOWLEDGEMENT_TIMEOUT = 5000;
+	
+	/**
+	 * Responses that a sampler is waiting on. Only samplers add entries here,
+	 * through {@link #addOrRetrieveResponse(String)}, so entries are always
+	 * removed again by {@link #notifyComplete(String)} or by their timeout.
+	 */
+	private volatile ResponseRegistry<ResponseWrapper> responses = ResponseRegistryType.CONCURRENT_MAP.create();
+	
+	/**
+	 * Callbacks that arrived before any sampler was waiting on them.
+	 */
+	private volatile EarlyArrivalBuffer<String, CallbackPayload> earlyArrivals;
 	
-	protected static final long EXPIRED_RESPONSE_CHECK_INTERVAL = 100;
+	private long earlyArrivalTtl = DEFAULT_EARLY_ARRIVAL_TTL;
 	
-	private final ConcurrentHashMap<String, ResponseWrapper> responses = new ConcurrentHashMap<>();
+	private int earlyArrivalMaxEntries = DEFAULT_EARLY_ARRIVAL_MAX_ENTRIES;
+	
+	private long earlyArrivalMaxBytes = DEFAULT_EARLY_ARRIVAL_MAX_BYTES;
+	
+	/**
+	 * Identifiers whose samplers have stopped waiting without receiving a
+	 * callback, so that callbacks that arrive for them afterwards can be counted
+	 * as late instead of being held. Bounded to the early arrival entry limit.
+	 */
+	private volatile Set<String> abandonedIdentifiers;
+	
+	private final LongAdder lateCount = new LongAdder();
 	
 	private final long timeoutDuration;
 	
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+	private final LongAdder timeoutCount = new LongAdder();
+	
+	private volatile long timeoutResolution = DEFAULT_TIMEOUT_RESOLUTION;
+	
+	private volatile HashedTimingWheel timeoutWheel;
+	
+	/**
+	 * Transports that receive callbacks, all feeding the same registry. There is
+	 * more than one if the listener is sharded across ports or sockets.
+	 */
+	private final List<Shard> shards;
+	
+	private final int port;
+	
+	/**
+	 * Event streams that callbacks are read from. Guarded by this.
+	 */
+	private final List<EventStreamTransport> eventStreams = new ArrayList<>();
+	
+	/**
+	 * Relay to the listeners of the other nodes, or null if callbacks are not
+	 * relayed.
+	 */
+	private volatile CallbackRelay relay;
+	
+	/**
+	 * Statuses of the callbacks that the batch being handled on the current
+	 * thread has relayed, or null outside of a batch. They are awaited once the
+	 * whole batch has been read, so that the callbacks of a batch share frames
+	 * instead of waiting for the acknowledgement of one frame each.
+	 */
+	private final ThreadLocal<List<CompletableFuture<Integer>>> batchRelayStatuses = new ThreadLocal<>();
+	
+	/**
+	 * Poller of the status of the awaited transactions, or null if the API calls
+	 * back.
+	 */
+	private volatile StatusPoller poller;
+	
+	private final ListenerMetrics metrics = new ListenerMetrics(this);
+	
+	private ObjectName metricsMBeanName;
+	
+	private volatile int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+	
+	private volatile boolean discardBodies;
+	
+	/**
+	 * Maximum number of pending responses and held callbacks, beyond which
+	 * callbacks that would have to be held are rejected; 0 for no limit.
+	 */
+	private volatile int maxPendingCallbacks;
+	
+	private volatile CallbackResponse busyResponse = retryLater(RESPONSE_503, DEFAULT_RETRY_AFTER);
+	
+	private volatile CallbackResponse pendingLimitResponse = retryLater(RESPONSE_429, DEFAULT_RETRY_AFTER);
+	
+	private final LongAdder busyRejectedCount = new LongAdder();
+	
+	private final LongAdder pendingLimitRejectedCount = new LongAdder();
+	
+	private final LongAdder batchCount = new LongAdder();
+	
+	private final LongAdder batchElementCount = new LongAdder();
+	
+	private final LongAdder invalidBatchElementCount = new LongAdder();
+	
+	private final LongAccumulator maxBatchSize = new LongAccumulator(Math::max, 0);
 	
 	public AbstractAsyncHttpListener(int port) {
 		this(port, 0);
 	}
 	
 	public AbstractAsyncHttpListener(int port, long timeoutDuration) {
-		super(port);
-		
+		this(new ListenerTransportConfig(ListenerTransportType.NANOHTTPD, port, 0), timeoutDuration);
+	}
+	
+	public AbstractAsyncHttpListener(ListenerTransportConfig transportConfig, long timeoutDuration) {
 		this.timeoutDuration = timeoutDuration;
-		if (timeoutDuration > 0) {
-			scheduler.scheduleAtFixedRate(this::timeoutReponses, timeoutDuration, EXPIRED_RESPONSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		int shardCount = transportConfig.getShardCount();
+		List<Shard> shards = new ArrayList<>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			shards.add(new Shard(transportConfig.forShard(i)));
 		}
+		this.shards = Collections.unmodifiableList(shards);
+		port = transportConfig.getPort();
+	}
+	
+	/**
+	 * One of the transports of the listener, which counts the requests that it
+	 * receives and passes them on to the listener.
+	 */
+	private final class Shard implements CallbackHandler {
+		
+		private final int port;
+		
+		private final ListenerTransport transport;
+		
+		private final LongAdder requestCount = new LongAdder();
+		
+		private Shard(ListenerTransportConfig config) {
+			port = config.getPort();
+			transport = config.getType().create(config, this);
+		}
+		
+		@Override
+		public CallbackResponse handle(CallbackRequest request) {
+			requestCount.increment();
+			return AbstractAsyncHttpListener.this.handle(request);
+		}
+		
+		@Override
+		public CallbackResponse reject(CallbackRequest request) {
+			requestCount.increment();
+			return AbstractAsyncHttpListener.this.reject(request);
+		}
+	}
+	
+	/**
+	 * Sets the maximum size of a request body in bytes. Larger requests are
+	 * rejected with a 413 response, and larger events fail their event stream.
+	 */
+	public synchronized void setMaxBodySize(int maxBodySize) {
+		if (maxBodySize <= 0) {
+			throw new IllegalArgumentException("Maximum body size must be positive");
+		}
+		this.maxBodySize = maxBodySize;
+		for (EventStreamTransport eventStream : eventStreams) {
+			eventStream.setMaxBodySize(maxBodySize);
+		}
+	}
+	
+	/**
+	 * Sets whether to discard callback bodies and only keep their size and
+	 * checksum.
+	 */
+	public void setDiscardBodies(boolean discardBodies) {
+		this.discardBodies = discardBodies;
+	}
+	
+	/**
+	 * Sets how precisely response timeouts are enforced, in milliseconds. Must be
+	 * called before the listener is started.
+	 */
+	public void setTimeoutResolution(long timeoutResolution) {
+		if (timeoutResolution <= 0) {
+			throw new IllegalArgumentException("Timeout resolution must be positive");
+		}
+		this.timeoutResolution = timeoutResolution;
+	}
+	
+	/**
+	 * Returns how long responses are awaited before they time out, in
+	 * milliseconds, or 0 if they never time out.
+	 */
+	public long getTimeoutDuration() {
+		return timeoutDuration;
+	}
+	
+	/**
+	 * Returns the number of responses that have timed out so far.
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.sum();
+	}
+	
+	/**
+	 * Sets the kind of registry that pending responses are kept in. Must be
+	 * called before the listener is started.
+	 */
+	public void setResponseRegistryType(ResponseRegistryType type) {
+		responses = type.create();
+	}
+	
+	/**
+	 * Sets the limits on callbacks that arrive before any sampler is waiting on
+	 * them. Must be called before the listener is started.
+	 * 
+	 * @param ttl How long such a callback is held, in milliseconds, or 0 to hold
+	 *        it until it is evicted.
+	 * @param maxEntries Maximum number of callbacks to hold.
+	 * @param maxBytes Maximum total size of the callbacks to hold, in bytes.
+	 */
+	public void setEarlyArrivalLimits(long ttl, int maxEntries, long maxBytes) {
+		if (ttl < 0 || maxEntries <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("Early arrival TTL must not be negative, and maximum entries and bytes must be positive");
+		}
+		earlyArrivalTtl = ttl;
+		earlyArrivalMaxEntries = maxEntries;
+		earlyArrivalMaxBytes = maxBytes;
+	}
+	
+	/**
+	 * Sets when callbacks are turned away so that their senders back off.
+	 * Callbacks that the transport has no room to queue are always rejected with
+	 * a 503 response.
+	 * 
+	 * @param maxPendingCallbacks Maximum number of responses that samplers are
+	 *        waiting on plus callbacks held for them. Beyond it, callbacks that
+	 *        would have to be held are rejected with a 429 response, while
+	 *        callbacks that complete a waiting response are still accepted. 0 for
+	 *        no limit.
+	 * @param retryAfter Number of seconds that rejected senders are asked to wait
+	 *        before retrying, in the Retry-After header.
+	 */
+	public void setAdmissionLimits(int maxPendingCallbacks, int retryAfter) {
+		if (maxPendingCallbacks < 0 || retryAfter < 0) {
+			throw new IllegalArgumentException("Maximum pending callbacks and retry delay must not be negative");
+		}
+		this.maxPendingCallbacks = maxPendingCallbacks;
+		busyResponse = retryLater(RESPONSE_503, retryAfter);
+		pendingLimitResponse = retryLater(RESPONSE_429, retryAfter);
+	}
+	
+	private static CallbackResponse retryLater(CallbackResponse response, int retryAfter) {
+		return response.withHeader("Retry-After", String.valueOf(retryAfter));
+	}
+	
+	/**
+	 * Returns the number of callbacks that were rejected because the transport
+	 * had no room to queue them.
+	 */
+	public long getBusyRejectedCount() {
+		return busyRejectedCount.sum();
+	}
+	
+	/**
+	 * Returns the number of callbacks that were rejected because the pending
+	 * callback limit was reached.
+	 */
+	public long getPendingLimitRejectedCount() {
+		return pendingLimitRejectedCount.sum();
+	}
+	
+	/**
+	 * Returns the number of callbacks that arrived before any sampler was waiting
+	 * on them and were held.
+	 */
+	public long getEarlyArrivalCount() {
+		EarlyArrivalBuffer<String, CallbackPayload> buffer = earlyArrivals;
+		return buffer == null ? 0 : buffer.bufferedCount();
+	}
+	
+	/**
+	 * Returns the number of held callbacks that expired before any sampler asked
+	 * for them.
+	 */
+	public long getOrphanedCount() {
+		EarlyArrivalBuffer<String, CallbackPayload> buffer = earlyArrivals;
+		if (buffer == null) {
+			return 0;
+		}
+		buffer.purgeExpired();
+		return buffer.expiredCount();
+	}
+	
+	/**
+	 * Returns the number of held callbacks that were evicted to stay within the
+	 * entry and byte limits.
+	 */
+	public long getEvictedCount() {
+		EarlyArrivalBuffer<String, CallbackPayload> buffer = earlyArrivals;
+		return buffer == null ? 0 : buffer.evictedCount();
+	}
+	
+	/**
+	 * Returns the number of callbacks that arrived after their sampler had
+	 * stopped waiting on them.
+	 */
+	public long getLateCount() {
+		return lateCount.sum();
+	}
+	
+	/**
+	 * Adds an event stream that the listener reads callbacks from, either as
+	 * server-sent events or by long polling. Must be called before the listener
+	 * is started.
+	 * 
+	 * @param reconnectDelay How long to wait before reconnecting after the
+	 *        stream ends or fails, in milliseconds.
+	 */
+	public synchronized void addEventStream(URI uri, long reconnectDelay) {
+		eventStreams.add(new EventStreamTransport(uri, reconnectDelay, maxBodySize, this));
+	}
+	
+	/**
+	 * Relays callbacks for identifiers that are tagged with the ID of another
+	 * node to that node, and accepts the callbacks that other nodes relay to this
+	 * one. Relayed callbacks are answered with the status that their node
+	 * answered them with, or with a 202 response if it does not acknowledge them
+	 * in time. Callbacks that cannot be queued for their node, or that may not
+	 * have reached it, are rejected with a 503 response. Must be called before
+	 * the listener is started.
+	 */
+	public void setRelay(RelayConfig config) {
+		relay = new CallbackRelay(config, this::completeLocally, metrics::recordRelayHop);
+	}
+	
+	/**
+	 * Returns the relay to the other nodes, or null if callbacks are not
+	 * relayed.
+	 */
+	public CallbackRelay getRelay() {
+		return relay;
+	}
+	
+	/**
+	 * Polls the API for the status of every transaction that a sampler waits on,
+	 * and completes its response with the status document once it reports a
+	 * terminal state. Callbacks are still received as well. Must be called before
+	 * the listener is started.
+	 */
+	public void setPolling(PollingConfig config) {
+		poller = new StatusPoller(config, this::isAwaiting, this::completePolled);
+	}
+	
+	/**
+	 * Returns the status poller, or null if the API is not polled.
+	 */
+	public StatusPoller getPoller() {
+		return poller;
+	}
+	
+	/**
+	 * Returns the number of batch requests received so far.
+	 */
+	public long getBatchCount() {
+		return batchCount.sum();
+	}
+	
+	/**
+	 * Returns the number of callbacks received in batches so far.
+	 */
+	public long getBatchElementCount() {
+		return batchElementCount.sum();
+	}
+	
+	/**
+	 * Returns the number of callbacks in batches that were answered with a
+	 * client error, other than being rejected to be retried later.
+	 */
+	public long getInvalidBatchElementCount() {
+		return invalidBatchElementCount.sum();
+	}
+	
+	/**
+	 * Returns the largest number of callbacks received in a single batch.
+	 */
+	public long getMaxBatchSize() {
+		return maxBatchSize.get();
+	}
+	
+	/**
+	 * Returns the number of shards that the listener receives callbacks on.
+	 */
+	public int getShardCount() {
+		return shards.size();
+	}
+	
+	/**
+	 * Returns the port that the given shard listens on. Shards that share a port
+	 * with SO_REUSEPORT all return the same port.
+	 */
+	public int getShardPort(int shard) {
+		return shards.get(shard).port;
+	}
+	
+	/**
+	 * Returns the number of requests that each shard has received, including
+	 * rejected ones.
+	 */
+	public long[] getShardRequestCounts() {
+		long[] counts = new long[shards.size()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = shards.get(i).requestCount.sum();
+		}
+		return counts;
+	}
+	
+	/**
+	 * Returns the number of responses that samplers are currently waiting on.
+	 */
+	public int getPendingCount() {
+		return responses.size();
+	}
+	
+	public ListenerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Records the time from sending a request to the listener receiving its
+	 * asynchronous response.
+	 */
+	public void recordEndToEndLatency(long nanos) {
+		metrics.recordEndToEnd(nanos);
 	}
 	
-	@Override
 	public void start() throws IOException {
-		super.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+		earlyArrivals = new EarlyArrivalBuffer<>(earlyArrivalTtl, TimeUnit.MILLISECONDS, earlyArrivalMaxEntries, earlyArrivalMaxBytes);
+		abandonedIdentifiers = createAbandonedIdentifierSet(earlyArrivalMaxEntries);
+		if (timeoutDuration > 0) {
+			timeoutWheel = new HashedTimingWheel(timeoutResolution, TimeUnit.MILLISECONDS, TIMEOUT_WHEEL_SIZE, "async-http-listener-timeouts");
+		}
+		CallbackRelay relay = this.relay;
+		StatusPoller poller = this.poller;
+		/*
+		 * If anything fails to start, whatever was started before it is stopped
+		 * again, so that a failed listener does not keep threads or ports.
+		 */
+		boolean relayStarted = false;
+		boolean shardsStarted = false;
+		boolean pollerStarted = false;
+		int eventStreamsStarted = 0;
+		try {
+			if (relay != null) {
+				relay.start();
+				relayStarted = true;
+			}
+			startShards();
+			shardsStarted = true;
+			if (poller != null) {
+				poller.start();
+				pollerStarted = true;
+			}
+			synchronized (this) {
+				for (ListenerTransport eventStream : eventStreams) {
+					eventStream.start();
+					eventStreamsStarted++;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				for (int i = 0; i < eventStreamsStarted; i++) {
+					eventStreams.get(i).stop();
+				}
+			}
+			if (pollerStarted) {
+				poller.stop();
+			}
+			if (shardsStarted) {
+				for (Shard shard : shards) {
+					shard.transport.stop();
+				}
+			}
+			if (relayStarted) {
+				relay.stop();
+			}
+			HashedTimingWheel wheel = timeoutWheel;
+			timeoutWheel = null;
+			if (wheel != null) {
+				wheel.close();
+			}
+			throw e;
+		}
+		registerMetricsMBean();
+	}
+	
+	/**
+	 * Starts every shard, stopping the ones already started if one of them fails
+	 * to start.
+	 */
+	private void startShards() throws IOException {
+		for (int i = 0; i < shards.size(); i++) {
+			try {
+				shards.get(i).transport.start();
+			} catch (IOException | RuntimeException e) {
+				for (int j = 0; j < i; j++) {
+					shards.get(j).transport.stop();
+				}
+				throw e;
+			}
+		}
+		if (shards.size() > 1) {
+			logger().info("Listening on {} shards.", shards.size());
+		}
+	}
+	
+	private void registerMetricsMBean() {
+		try {
+			/*
+			 * Named by the port that the listener is bound to, so that listeners that
+			 * were configured with port 0 do not replace each other.
+			 */
+			int localPort = shards.get(0).transport.getLocalPort();
+			ObjectName name = new ObjectName(MBEAN_NAME_PREFIX + (localPort > 0 ? localPort : port));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metrics, name);
+			metricsMBeanName = name;
+		} catch (JMException e) {
+			logger().warn("Could not register listener metrics with JMX: {}", e.getClass().getSimpleName());
+		}
+	}
+	
+	private void unregisterMetricsMBean() {
+		if (metricsMBeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsMBeanName);
+		} catch (JMException e) {
+			logger().warn("Could not unregister listener metrics from JMX: {}", e.getClass().getSimpleName());
+		}
+		metricsMBeanName = null;
 	}
 	
-	public CompletableFuture<String> getResponse(String identifier) {
+	public CompletableFuture<CallbackPayload> getResponse(String identifier) {
 		if (identifier == null) {
 			// TODO Throw exception instead
 			return null;
@@ -107,84 +723,520 @@ public abstract class AbstractAsyncHttpListener extends NanoHTTPD {
 
 	public void notifyComplete(String identifier) {
 		ResponseWrapper removed = responses.remove(identifier);
-		if (removed != null && removed.future.isDone()) {
+		if (removed == null) {
+			return;
+		}
+		removed.cancelTimeout();
+		if (!removed.future.isDone()) {
 			removed.future.cancel(true);
+			abandon(identifier);
 		}
 	}
 
+	/**
+	 * Returns the response that a sampler is waiting on for the given identifier,
+	 * adding it if there is none. If a callback for the identifier has already
+	 * arrived, the added response is completed with it.
+	 */
 	protected ResponseWrapper addOrRetrieveResponse(String identifier) {
-		return responses.computeIfAbsent(identifier, this::mappingFunction);
+		EarlyArrivalBuffer<String, CallbackPayload> buffer = earlyArrivals;
+		CallbackPayload[] earlyBody = new CallbackPayload[1];
+		ResponseWrapper response = responses.computeIfAbsent(identifier, key -> {
+			if (buffer != null) {
+				earlyBody[0] = buffer.remove(key);
+			}
+			return mappingFunction(key);
+		});
+		if (earlyBody[0] != null) {
+			response.cancelTimeout();
+			response.future.complete(earlyBody[0]);
+		}
+		return response;
+	}
+	
+	/**
+	 * Completes the response for the given identifier with a callback payload. If
+	 * no sampler is waiting on the identifier yet, the payload is held until one
+	 * asks for it, unless the sampler has already stopped waiting or the pending
+	 * callback limit has been reached. If the identifier is owned by another
+	 * node, the payload is relayed to it instead.
+	 * 
+	 * @return The response that the callback should be answered with.
+	 */
+	protected CallbackResponse completeResponse(String identifier, CallbackPayload payload) {
+		CallbackRelay relay = this.relay;
+		String owner = relay == null ? null : relay.remoteOwner(identifier);
+		if (owner == null) {
+			return completeLocally(identifier, payload);
+		}
+		CompletableFuture<Integer> status = relay.forward(owner, identifier, payload);
+		if (status == null) {
+			logger().debug("Rejected a callback because the relay queue for node {} is full", owner);
+			return busyResponse;
+		}
+		List<CompletableFuture<Integer>> batchStatuses = batchRelayStatuses.get();
+		if (batchStatuses != null) {
+			batchStatuses.add(status);
+			return RESPONSE_202;
+		}
+		return awaitRelayed(status, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RELAY_ACKNOWLEDGEMENT_TIMEOUT));
+	}
+	
+	/**
+	 * Waits for the node that a callback was relayed to to acknowledge it, and
+	 * returns the response that the callback should be answered with here.
+	 */
+	private CallbackResponse awaitRelayed(CompletableFuture<Integer> status, long deadlineNanos) {
+		int statusCode;
+		try {
+			statusCode = status.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			return RESPONSE_202;
+		} catch (ExecutionException e) {
+			logger().debug("Rejected a relayed callback: {}", e.getCause().getMessage());
+			return busyResponse;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return busyResponse;
+		}
+		/*
+		 * Local completion only answers with a 200 or a 429 response, and the
+		 * Retry-After header of this node is as good as that of the other.
+		 */
+		if (statusCode / 100 == 2) {
+			return RESPONSE_200;
+		}
+		return statusCode == 429 ? pendingLimitResponse : busyResponse;
+	}
+	
+	private CallbackResponse completeLocally(String identifier, CallbackPayload payload) {
+		EarlyArrivalBuffer<String, CallbackPayload> buffer = earlyArrivals;
+		/*
+		 * The sizes are read up front, since reading them while holding a lock of the
+		 * registry could deadlock with another callback. The size of the registry is
+		 * counted without locking it, so the limit is only approximate under
+		 * concurrent callbacks.
+		 */
+		int limit = maxPendingCallbacks;
+		boolean overLimit = limit > 0 && responses.size() + (buffer == null ? 0 : buffer.size()) >= limit;
+		boolean[] rejected = new boolean[1];
+		/*
+		 * The lookup and the buffering are done atomically with respect to
+		 * addOrRetrieveResponse, so that a callback cannot be buffered right after a
+		 * sampler has found the buffer empty. The future is completed outside of the
+		 * map operation, since completing it may run code that updates the map.
+		 */
+		Set<String> abandoned = abandonedIdentifiers;
+		ResponseWrapper response = responses.getOrElse(identifier, key -> {
+			if (abandoned != null && abandoned.contains(key)) {
+				lateCount.increment();
+			} else if (overLimit) {
+				rejected[0] = true;
+			} else if (buffer != null) {
+				buffer.put(key, payload, payload.retainedSize());
+			}
+		});
+		if (response != null) {
+			response.cancelTimeout();
+			response.future.complete(payload);
+		}
+		if (rejected[0]) {
+			pendingLimitRejectedCount.increment();
+			logger().debug("Rejected a callback because the pending callback limit of {} was reached", limit);
+			return pendingLimitResponse;
+		}
+		return RESPONSE_200;
+	}
+	
+	/**
+	 * Returns whether a sampler is waiting on the response for the given
+	 * identifier.
+	 */
+	private boolean isAwaiting(String identifier) {
+		ResponseWrapper response = responses.getOrElse(identifier, key -> { });
+		return response != null && !response.future.isDone();
+	}
+	
+	/**
+	 * Completes the response for the given identifier with the status document
+	 * that reported it complete. Runs on an I/O thread of the status poller.
+	 */
+	private void completePolled(String identifier, CallbackBody status, String contentType, long arrivalNanos) {
+		completeLocally(identifier, discardBodies
+				? CallbackPayload.discarded(status, contentType, arrivalNanos)
+				: CallbackPayload.copyOf(status, contentType, arrivalNanos));
+	}
+	
+	private void abandon(String identifier) {
+		Set<String> identifiers = abandonedIdentifiers;
+		if (identifiers != null) {
+			identifiers.add(identifier);
+		}
+	}
+	
+	private static Set<String> createAbandonedIdentifierSet(int maxEntries) {
+		return Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+			
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > maxEntries;
+			}
+		}));
+	}
+	
+	@Override
+	public CallbackResponse handle(CallbackRequest request) {
+		if ("GET".equals(request.getMethod()) && METRICS_PATH.equals(request.getPath())) {
+			return metrics.toPrometheusResponse();
+		}
+		CallbackResponse response = handleCallback(request);
+		metrics.recordCallback(response.getStatusCode(), System.nanoTime() - request.getReceivedNanos());
+		return response;
 	}
 	
 	@Override
-	public Response serve(IHTTPSession session) {
+	public CallbackResponse reject(CallbackRequest request) {
+		busyRejectedCount.increment();
+		CallbackResponse response = busyResponse;
+		metrics.recordCallback(response.getStatusCode(), System.nanoTime() - request.getReceivedNanos());
+		return response;
+	}
+	
+	private CallbackResponse handleCallback(CallbackRequest request) {
 	    /*
-	     * Currently, only POST requests are supported.
+	     * Currently, only POST requests are supported, besides reading the metrics.
 	     */
-		if (session.getMethod() != Method.POST) {
-			logger().error("Received a {} request; only POST requests are supported at this time", session.getMethod().name());
+		if (!"POST".equals(request.getMethod())) {
+			logger().error("Received a {} request; only POST requests are supported at this time", request.getMethod());
 	    	return RESPONSE_405;
 	    }
 	    
 	    /*
-	     * Current, only application/json content type is supported.
+	     * Currently, only application/json and application/x-ndjson content types
+	     * are supported.
 	     */
-		String contentType = session.getHeaders().get("content-type");
+		String contentType = request.getHeader("content-type");
 	    if (StringUtils.isBlank(contentType)) {
-			logger().error("Content-type was not provided; content-type must be {}", contentType, MIME_JSON);
+			logger().error("Content-type was not provided; content-type must be {}", MIME_JSON);
 	    	return RESPONSE_415;
 	    }
-	    if (!contentType.toLowerCase().startsWith(MIME_JSON)) {
-			logger().error("Content-type is {}; only {} is supported at this time", contentType, MIME_JSON);
+	    String mimeType = contentType.toLowerCase();
+	    boolean ndjson = mimeType.startsWith(MIME_NDJSON);
+	    if (!ndjson && !mimeType.startsWith(MIME_JSON)) {
+			logger().error("Content-type is {}; only {} and {} are supported at this time", contentType, MIME_JSON, MIME_NDJSON);
 			return RESPONSE_415;
 	    }
 	    
 	    /*
-	     * Retrieve the body from the HTTP response as a string.
+	     * A JSON body that starts with a bracket is a batch. The first byte is peeked
+	     * at, so that the rest of the body is only buffered if it is not a batch.
+	     */
+	    Charset charset = HttpListenerUtils.parseCharset(contentType);
+	    if (ndjson && !JsonBatchReader.supports(charset)) {
+	    	logger().error("Content-type is {}; {} cannot be read in {}", contentType, MIME_NDJSON, charset);
+	    	return RESPONSE_415;
+	    }
+	    
+	    /*
+	     * A compressed body is decoded as it is read, so that it does not have to be
+	     * buffered before it is decoded.
 	     */
-	    String body;
+	    String contentEncoding = request.getHeader("content-encoding");
+	    ContentEncoding encoding;
+	    try {
+	    	encoding = ContentEncoding.parse(contentEncoding);
+	    } catch (IllegalArgumentException e) {
+	    	logger().error("Content-encoding is {}; only gzip and deflate are supported at this time", contentEncoding);
+	    	return RESPONSE_415_ENCODING;
+	    }
+	    if (encoding == ContentEncoding.IDENTITY) {
+	    	return readCallback(request, ndjson, charset);
+	    }
+	    DecodedCallbackRequest decoded;
 	    try {
-	    	body = HttpListenerUtils.parseResponseBody(session);
-	    	logger().debug("Received response: '{}'", body);
-	    } catch (Exception e) {
-			logger().error("Exception encountered while parsing response body: {}", e.getClass().getSimpleName());
+	    	decoded = new DecodedCallbackRequest(request, encoding);
+	    } catch (IOException e) {
+	    	logger().error("Response body is not valid {} data: {}", contentEncoding, e.getClass().getSimpleName());
+	    	return RESPONSE_400;
+	    }
+	    try {
+	    	return readCallback(decoded, ndjson, charset);
+	    } finally {
+	    	decoded.release();
+	    }
+	}
+	
+	/**
+	 * Reads the body of a callback whose headers have been checked, and handles
+	 * it as a single callback or as a batch.
+	 */
+	private CallbackResponse readCallback(CallbackRequest request, boolean ndjson, Charset charset) {
+	    if (ndjson) {
+	    	return processBatch(request, new JsonBatchReader(request.getInputStream(), false, charset, maxBodySize));
+	    }
+	    InputStream in = request.getInputStream();
+	    long contentLength = request.getContentLength();
+	    if (JsonBatchReader.supports(charset)) {
+	    	PushbackInputStream pushback = new PushbackInputStream(in, 1);
+	    	try {
+	    		int skipped = HttpListenerUtils.skipWhitespace(pushback);
+	    		if (contentLength > 0) {
+	    			contentLength -= skipped;
+	    		}
+	    		int first = pushback.read();
+	    		if (first == '[') {
+	    			return processBatch(request, new JsonBatchReader(pushback, true, charset, maxBodySize));
+	    		}
+	    		if (first != -1) {
+	    			pushback.unread(first);
+	    		}
+	    	} catch (IOException e) {
+	    		logger().error("Exception encountered while reading response body: {}", e.getClass().getSimpleName());
+	    		return RESPONSE_400;
+	    	}
+	    	in = pushback;
+	    }
+	    
+	    /*
+	     * A compressed body whose payload is discarded is handled as it is decoded,
+	     * without being buffered.
+	     */
+	    if (discardBodies && request instanceof DecodedCallbackRequest) {
+	    	try {
+	    		return processResponseStream(request, HttpListenerUtils.limit(in, maxBodySize), charset);
+	    	} catch (HttpListenerUtils.BodyTooLargeException e) {
+	    		logger().error("Response body is larger than the maximum of {} bytes", maxBodySize);
+	    		return RESPONSE_413;
+	    	} catch (IOException e) {
+	    		logger().error("Exception encountered while reading response body: {}", e.getClass().getSimpleName());
+	    		return RESPONSE_400;
+	    	}
+	    }
+	    
+	    /*
+	     * Retrieve the raw body from the HTTP response. The body is only valid until
+	     * the next request is handled on this thread.
+	     */
+	    CallbackBody body;
+	    try {
+	    	body = HttpListenerUtils.readBody(request, in, contentLength, maxBodySize);
+	    	if (logger().isDebugEnabled()) {
+	    		logger().debug("Received response: '{}'", body.asString());
+	    	}
+	    } catch (HttpListenerUtils.BodyTooLargeException e) {
+			logger().error("Response body is larger than the maximum of {} bytes", maxBodySize);
+			return RESPONSE_413;
+	    } catch (IOException e) {
+			logger().error("Exception encountered while reading response body: {}", e.getClass().getSimpleName());
 			return RESPONSE_400;
 	    }
-	    if (StringUtils.isBlank(body)) {
+	    if (body.isBlank()) {
 			logger().error("Response does not contain a body");
 	    	return RESPONSE_400;
 	    }
 	    
-	    return processResponseBody(session, body);
+	    return processResponseBody(request, body);
 	}
 	
-	protected abstract Response processResponseBody(IHTTPSession session, String body);
-	
 	/**
-	 * Goes through the responses that have not been completed yet and cancels the
-	 * ones that are expired.
+	 * Handles every element of a batch as it is read. Elements that were read
+	 * before the batch turned out to be malformed or too large have already been
+	 * handled, and stay that way.
 	 */
-	private void timeoutReponses() {
-		int count = 0;
-		long now = new Date().getTime();
-		for (ResponseWrapper response : responses.values()) {
-			if (!response.future.isDone() && now > response.expirationTime) {
-				response.future.cancel(true);
-				count++;
+	private CallbackResponse processBatch(CallbackRequest request, JsonBatchReader reader) {
+		if (request instanceof DecodedCallbackRequest) {
+			((DecodedCallbackRequest) request).markBatch();
+		}
+		int accepted = 0;
+		int rejected = 0;
+		int invalid = 0;
+		CallbackResponse response = RESPONSE_200;
+		List<CompletableFuture<Integer>> relayStatuses = relay != null ? new ArrayList<>() : null;
+		batchRelayStatuses.set(relayStatuses);
+		try {
+			CallbackBody element;
+			while ((element = reader.next()) != null) {
+				CallbackResponse elementResponse = processResponseBody(request, element);
+				int status = elementResponse.getStatusCode();
+				if (status / 100 == 2) {
+					accepted++;
+				} else if (status == 429 || status == 503) {
+					// Rejected until the sender retries, over the pending limit or the relay queue.
+					rejected++;
+					response = elementResponse;
+				} else {
+					invalid++;
+					if (rejected == 0) {
+						response = elementResponse;
+					}
+				}
 			}
+		} catch (HttpListenerUtils.BodyTooLargeException e) {
+			logger().error("Batch element {} is larger than the maximum of {} bytes", reader.elementCount() + 1, maxBodySize);
+			invalid++;
+			response = RESPONSE_413;
+		} catch (IOException e) {
+			logger().error("Exception encountered while reading batch element {}: {}", reader.elementCount() + 1, e.getMessage());
+			invalid++;
+			response = RESPONSE_400;
+		} finally {
+			batchRelayStatuses.remove();
 		}
-		if (count > 0) {
-			logger().info("Cancelled {} awaiting responses due to exceeding timeout limit.", count);
+		
+		/*
+		 * Relayed elements were counted as accepted while they were queued. Those
+		 * that their node did not accept are rejected until the sender retries them.
+		 */
+		if (relayStatuses != null && !relayStatuses.isEmpty()) {
+			long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RELAY_ACKNOWLEDGEMENT_TIMEOUT);
+			for (CompletableFuture<Integer> status : relayStatuses) {
+				CallbackResponse relayedResponse = awaitRelayed(status, deadlineNanos);
+				if (relayedResponse.getStatusCode() / 100 != 2) {
+					accepted--;
+					rejected++;
+					response = relayedResponse;
+				}
+			}
+		}
+		
+		int size = accepted + rejected + invalid;
+		batchCount.increment();
+		batchElementCount.add(size);
+		invalidBatchElementCount.add(invalid);
+		maxBatchSize.accumulate(size);
+		if (logger().isDebugEnabled()) {
+			logger().debug("Received a batch of {} callbacks: {} accepted, {} rejected, {} invalid", size, accepted, rejected, invalid);
+		}
+		
+		/*
+		 * Keep the headers of the worst response, such as Retry-After, but report
+		 * what happened to each element in the body.
+		 */
+		String summary = "{\"accepted\":" + accepted + ",\"rejected\":" + rejected + ",\"invalid\":" + invalid + "}";
+		CallbackResponse batchResponse = new CallbackResponse(response.getStatusCode(), response.getReasonPhrase(),
+				MIME_JSON, summary.getBytes(StandardCharsets.UTF_8));
+		for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+			batchResponse = batchResponse.withHeader(header.getKey(), header.getValue());
+		}
+		return batchResponse;
+	}
+	
+	/**
+	 * Processes the body of a callback request. The body is backed by a buffer
+	 * that is reused for the next request, so it must be copied if it is needed
+	 * after this method returns.
+	 */
+	protected abstract CallbackResponse processResponseBody(CallbackRequest request, CallbackBody body);
+	
+	/**
+	 * Processes a single callback by reading its body as a stream, instead of
+	 * having it buffered. This is used for compressed callbacks whose bodies are
+	 * discarded, so that the body can be handled while it is being decoded. By
+	 * default, the body is buffered and passed to
+	 * {@link #processResponseBody(CallbackRequest, CallbackBody)}.
+	 * 
+	 * @param body The decoded body, which fails with a
+	 *        {@link HttpListenerUtils.BodyTooLargeException} once more than the
+	 *        maximum body size has been read from it.
+	 */
+	protected CallbackResponse processResponseStream(CallbackRequest request, InputStream body, Charset charset) throws IOException {
+		CallbackBody buffered = HttpListenerUtils.readBody(request, body, -1, maxBodySize);
+		if (buffered.isBlank()) {
+			logger().error("Response does not contain a body");
+			return RESPONSE_400;
+		}
+		return processResponseBody(request, buffered);
+	}
+	
+	/**
+	 * Creates the payload that samplers receive for a callback body. The body is
+	 * copied, or only summarized if bodies are discarded.
+	 */
+	protected CallbackPayload createPayload(CallbackRequest request, CallbackBody body) {
+		String contentType = request.getHeader("content-type");
+		return withEncoding(request, discardBodies
+				? CallbackPayload.discarded(body, contentType, request.getReceivedNanos())
+				: CallbackPayload.copyOf(body, contentType, request.getReceivedNanos()));
+	}
+	
+	/**
+	 * Creates the payload for a callback body that was discarded while it was
+	 * read by {@link #processResponseStream(CallbackRequest, InputStream, Charset)}.
+	 */
+	protected CallbackPayload createPayload(CallbackRequest request, Charset charset, int size, long checksum) {
+		return withEncoding(request, CallbackPayload.discarded(size, checksum, request.getHeader("content-type"), charset, request.getReceivedNanos()));
+	}
+	
+	/**
+	 * Records the content coding and the encoded size of a callback that was sent
+	 * compressed in its payload.
+	 */
+	private static CallbackPayload withEncoding(CallbackRequest request, CallbackPayload payload) {
+		if (!(request instanceof DecodedCallbackRequest)) {
+			return payload;
+		}
+		DecodedCallbackRequest decoded = (DecodedCallbackRequest) request;
+		return payload.encoded(decoded.getEncoding().token(), decoded.getEncodedLength());
+	}
+	
+	/**
+	 * Cancels a response whose timeout has elapsed. Runs on the timeout wheel's
+	 * thread.
+	 */
+	private void timeoutResponse(String identifier, ResponseWrapper response) {
+		if (response.future.cancel(true)) {
+			responses.remove(identifier, response);
+			abandon(identifier);
+			timeoutCount.increment();
+			logger().debug("Cancelled an awaiting response due to exceeding timeout limit.");
 		}
 	}
 	
-	@Override
 	public void stop() {
-		scheduler.shutdown();
-		super.stop();
+		HashedTimingWheel wheel = timeoutWheel;
+		timeoutWheel = null;
+		if (wheel != null) {
+			wheel.close();
+		}
+		StatusPoller poller = this.poller;
+		if (poller != null) {
+			poller.stop();
+		}
+		synchronized (this) {
+			for (ListenerTransport eventStream : eventStreams) {
+				eventStream.stop();
+			}
+		}
+		for (Shard shard : shards) {
+			shard.transport.stop();
+		}
+		/*
+		 * The relay is stopped after the shards, so that it can still pass on the
+		 * callbacks that they have queued for other nodes.
+		 */
+		CallbackRelay relay = this.relay;
+		if (relay != null) {
+			relay.stop();
+		}
+		unregisterMetricsMBean();
+		if (timeoutCount.sum() > 0) {
+			logger().info("{} awaiting responses were cancelled due to exceeding timeout limit.", timeoutCount.sum());
+		}
+		if (batchCount.sum() > 0) {
+			logger().info("Received {} callbacks in {} batches, up to {} per batch; {} were invalid.",
+					batchElementCount.sum(), batchCount.sum(), maxBatchSize.get(), invalidBatchElementCount.sum());
+		}
+		if (busyRejectedCount.sum() > 0 || pendingLimitRejectedCount.sum() > 0) {
+			logger().info("Rejected {} callbacks while busy and {} callbacks over the pending callback limit.",
+					busyRejectedCount.sum(), pendingLimitRejectedCount.sum());
+		}
 		
+		List<ResponseWrapper> pending = new ArrayList<>();
+		responses.forEach(pending::add);
 		int count = 0;
-		for (ResponseWrapper response : responses.values()) {
+		for (ResponseWrapper response : pending) {
 			if (!response.future.isDone()) {
 				response.future.cancel(true);
 				count++;
@@ -193,10 +1245,26 @@ public abstract class AbstractAsyncHttpListener extends NanoHTTPD {
 		if (count > 0) {
 			logger().info("Cancelled {} awaiting responses due to HTTP listener shutting down.", count);
 		}
+		
+		EarlyArrivalBuffer<String, CallbackPayload> buffer = earlyArrivals;
+		if (buffer != null) {
+			buffer.clear();
+			logger().info("Early callbacks: {} held, {} orphaned, {} evicted; {} late callbacks.",
+					buffer.bufferedCount(), buffer.expiredCount(), buffer.evictedCount(), lateCount.sum());
+		}
 	}
 	
 	protected ResponseWrapper mappingFunction(String identifier) {
-		return new ResponseWrapper(timeoutDuration);
+		ResponseWrapper response = new ResponseWrapper();
+		HashedTimingWheel wheel = timeoutWheel;
+		if (wheel != null) {
+			response.timeout = wheel.schedule(() -> timeoutResponse(identifier, response), timeoutDuration, TimeUnit.MILLISECONDS);
+		}
+		StatusPoller poller = this.poller;
+		if (poller != null) {
+			poller.watch(identifier);
+		}
+		return response;
 	}
 	
 	protected abstract Logger logger();
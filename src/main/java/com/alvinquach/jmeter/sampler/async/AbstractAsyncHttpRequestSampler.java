@@ -1,7 +1,223 @@
 package com.alvinquach.jmeter.sampler.async;
 
+import java.io.IOException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterVariables;
+
 import com.alvinquach.jmeter.sampler.AbstractCustomHttpSampler;
+import com.alvinquach.jmeter.sampler.util.ArrivalRateScheduler;
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+import com.alvinquach.jmeter.sampler.util.JsonIdentifierExtractor;
 
+/**
+ * Base sampler plug-in for sending HTTP requests to an asynchronous API
+ * endpoint. The initial response must contain an identifier value at the
+ * configured identifier path, which is used to track the corresponding
+ * asynchronous response.
+ * <p>
+ * By default, a request is sent as soon as the thread gets to this sampler
+ * (closed model). If an arrival rate is configured, requests are instead sent
+ * at the intended send times of a test plan wide arrival schedule (open
+ * model), and samples are timed from the intended send time so that requests
+ * that went out late are not reported with artificially low latencies.
+ *
+ * @author Alvin Quach
+ */
 public abstract class AbstractAsyncHttpRequestSampler extends AbstractCustomHttpSampler {
 
+	protected static final String IDENTIFIER_PATH_KEY = "identifierPath";
+	
+	protected static final String ARRIVAL_RATE_KEY = "arrivalRate";
+	
+	protected static final String INITIAL_ARRIVAL_RATE_KEY = "initialArrivalRate";
+	
+	protected static final String ARRIVAL_RAMP_DURATION_KEY = "arrivalRampDuration";
+	
+	protected static final String ARRIVAL_DISTRIBUTION_KEY = "arrivalDistribution";
+	
+	/**
+	 * Name of the JMeter variable that the intended send time of the last request
+	 * is written to, so that the response sampler can also measure from it.
+	 */
+	protected static final String INTENDED_START_TIME_KEY = "intendedStartTime";
+	
+	/**
+	 * Name of the JMeter variable that the {@link System#nanoTime()} at which the
+	 * last request was sent is written to.
+	 */
+	protected static final String REQUEST_SENT_NANOS_KEY = "requestSentNanos";
+	
+	/**
+	 * Name of the JMeter variable that the {@link System#nanoTime()} at which the
+	 * initial response to the last request was received is written to.
+	 */
+	protected static final String INITIAL_RESPONSE_NANOS_KEY = "initialResponseNanos";
+	
+	protected IdentifierPath identifierPath;
+	
+	protected JsonIdentifierExtractor identifierExtractor;
+	
+	/**
+	 * The arrival schedule that requests are sent on, or null if requests should
+	 * be sent as soon as the sampler runs.
+	 */
+	protected ArrivalRateScheduler arrivalScheduler;
+	
+	@Override
+	public Arguments getDefaultParameters() {
+		Arguments defaultArguments = super.getDefaultParameters();
+		defaultArguments.addArgument(IDENTIFIER_PATH_KEY, "");
+		defaultArguments.addArgument(ARRIVAL_RATE_KEY, "0");
+		defaultArguments.addArgument(INITIAL_ARRIVAL_RATE_KEY, "0");
+		defaultArguments.addArgument(ARRIVAL_RAMP_DURATION_KEY, "0");
+		defaultArguments.addArgument(ARRIVAL_DISTRIBUTION_KEY, "constant");
+		return defaultArguments;
+	}
+	
+	@Override
+	public void setupTest(JavaSamplerContext context) {
+		super.setupTest(context);
+		
+		String identifierPathValue = context.getParameter(IDENTIFIER_PATH_KEY);
+		if (StringUtils.isEmpty(identifierPathValue)) {
+			throw new IllegalArgumentException("Setup error: identifier path must not be blank");
+		}
+		identifierPath = IdentifierPath.compile(identifierPathValue);
+		identifierExtractor = new JsonIdentifierExtractor(identifierPath);
+		
+		arrivalScheduler = createArrivalSchedulerFromContext(context);
+	}
+	
+	protected ArrivalRateScheduler createArrivalSchedulerFromContext(JavaSamplerContext context) {
+		double arrivalRate = parseRate(context, ARRIVAL_RATE_KEY);
+		if (arrivalRate <= 0) {
+			return null;
+		}
+		ArrivalRateScheduler.Config config = new ArrivalRateScheduler.Config(
+				parseRate(context, INITIAL_ARRIVAL_RATE_KEY),
+				arrivalRate,
+				context.getLongParameter(ARRIVAL_RAMP_DURATION_KEY, 0),
+				ArrivalRateScheduler.Distribution.parse(context.getParameter(ARRIVAL_DISTRIBUTION_KEY)));
+		return ArrivalRateScheduler.acquireShared(config);
+	}
+	
+	private static double parseRate(JavaSamplerContext context, String key) {
+		String value = context.getParameter(key);
+		try {
+			return StringUtils.isBlank(value) ? 0 : Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setup error: " + key + " must be a number");
+		}
+	}
+	
+	@Override
+	public SampleResult runTest(JavaSamplerContext context) {
+		if (arrivalScheduler == null) {
+			return sendAndStamp(context);
+		}
+		
+		/*
+		 * Wait for the next slot in the arrival schedule, and time the sample from the
+		 * intended send time instead of the actual send time.
+		 */
+		long intendedStartTime;
+		try {
+			intendedStartTime = arrivalScheduler.awaitNextArrival();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			SampleResult result = new SampleResult();
+			result.setIgnore();
+			return result;
+		}
+		SampleResult result = timedFromIntendedStart(sendAndStamp(context), intendedStartTime);
+		context.getJMeterVariables().put(INTENDED_START_TIME_KEY, String.valueOf(intendedStartTime));
+		return result;
+	}
+	
+	/**
+	 * Returns a finished result timed from the given intended start time instead
+	 * of its actual start time. JMeter does not allow a result whose start or end
+	 * time has been set to be stamped again, so the times are set on a new result
+	 * that everything else is copied onto. A result that has not ended is
+	 * returned as it is.
+	 */
+	static SampleResult timedFromIntendedStart(SampleResult result, long intendedStartTime) {
+		long endTime = result.getEndTime();
+		if (endTime == 0) {
+			return result;
+		}
+		SampleResult timed = AsyncLatencyBreakdown.spanning(intendedStartTime, endTime);
+		timed.setSampleLabel(result.getSampleLabel());
+		timed.setURL(result.getURL());
+		timed.setResponseCode(result.getResponseCode());
+		timed.setResponseMessage(result.getResponseMessage());
+		timed.setResponseHeaders(result.getResponseHeaders());
+		timed.setRequestHeaders(result.getRequestHeaders());
+		timed.setSamplerData(result.getSamplerData());
+		timed.setContentType(result.getContentType());
+		timed.setDataEncoding(result.getDataEncodingNoDefault());
+		timed.setDataType(result.getDataType());
+		timed.setResponseData(result.getResponseData());
+		timed.setLatency(result.getLatency());
+		timed.setConnectTime(result.getConnectTime());
+		for (SampleResult subResult : result.getSubResults()) {
+			timed.addSubResult(subResult, false);
+		}
+		/*
+		 * The sizes already include those of the sub-results, so they are copied
+		 * after the sub-results have been added.
+		 */
+		timed.setBytes(result.getBytesAsLong());
+		timed.setSentBytes(result.getSentBytes());
+		timed.setHeadersSize(result.getHeadersSize());
+		timed.setBodySize(result.getBodySizeAsLong());
+		timed.setSuccessful(result.isSuccessful());
+		if (result.isIgnore()) {
+			timed.setIgnore();
+		}
+		return timed;
+	}
+	
+	/**
+	 * Sends the request, and records when it was sent and when its initial
+	 * response came back, so that the response sampler can break down the
+	 * latency of the whole transaction.
+	 */
+	private SampleResult sendAndStamp(JavaSamplerContext context) {
+		long sentNanos = System.nanoTime();
+		SampleResult result = super.runTest(context);
+		long initialResponseNanos = System.nanoTime();
+		JMeterVariables variables = context.getJMeterVariables();
+		variables.put(REQUEST_SENT_NANOS_KEY, String.valueOf(sentNanos));
+		variables.put(INITIAL_RESPONSE_NANOS_KEY, String.valueOf(initialResponseNanos));
+		return result;
+	}
+	
+	@Override
+	public void teardownTest(JavaSamplerContext context) {
+		super.teardownTest(context);
+		if (arrivalScheduler != null) {
+			arrivalScheduler.close();
+			arrivalScheduler = null;
+		}
+	}
+	
+	protected String parseIdentifierFromResponseBody(byte[] responseBody) {
+		String identifier;
+		try {
+			identifier = identifierExtractor.extract(responseBody);
+		} catch (IOException e) {
+			logger().error("Exception encountered while parsing the response body: {}", e.getClass().getSimpleName());
+			return null;
+		}
+		if (identifier == null) {
+			logger().error("Response body does not contain a valid identifier value at the specified path '{}'", identifierPath);
+		}
+		return identifier;
+	}
+
 }
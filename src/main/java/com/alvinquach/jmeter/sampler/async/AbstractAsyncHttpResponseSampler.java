@@ -3,11 +3,13 @@ package com.alvinquach.jmeter.sampler.async;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.slf4j.Logger;
 
 /**
@@ -16,11 +18,39 @@ import org.slf4j.Logger;
  * by an identifier value provided in the previous sample result by the
  * AbstractAsyncHttpRequestSampler. This requires the unique identifier to be
  * present in the asynchronous response.
+ * <p>
+ * The sampler blocks its JMeter thread until the response arrives, so a test
+ * plan needs a thread for every transaction that is pending at the same time.
+ * The wait parks on the listener's future without holding any locks, so it
+ * does not pin a carrier thread when a thread group runs its samplers on
+ * virtual threads. With platform threads, the
+ * {@link AbstractAsyncHttpTransactionSampler} keeps transactions pending
+ * without a thread each.
  *
  * @author Alvin Quach
  */
 public abstract class AbstractAsyncHttpResponseSampler extends AbstractJavaSamplerClient {
 
+	/**
+	 * Name of the JMeter variable that the initial response time of the
+	 * transaction is written to, in microseconds.
+	 */
+	protected static final String INITIAL_RESPONSE_TIME_KEY = "asyncInitialResponseMicros";
+	
+	/**
+	 * Name of the JMeter variable that the time from sending the request to the
+	 * listener receiving the asynchronous response is written to, in
+	 * microseconds.
+	 */
+	protected static final String CALLBACK_LATENCY_KEY = "asyncCallbackLatencyMicros";
+	
+	/**
+	 * Name of the JMeter variable that the time from the listener receiving the
+	 * asynchronous response to the sampler picking it up is written to, in
+	 * microseconds.
+	 */
+	protected static final String WAKEUP_DELAY_KEY = "asyncWakeupDelayMicros";
+
 	@Override
 	public SampleResult runTest(JavaSamplerContext context) {
 		/*
@@ -34,6 +64,18 @@ public abstract class AbstractAsyncHttpResponseSampler extends AbstractJavaSampl
 		if (result.getEndTime() == 0) {
 			result.sampleEnd();
 		}
+		
+		/*
+		 * If the request was sent on an arrival schedule, then time the response from
+		 * the intended send time of the request, so that requests that were sent late
+		 * are not reported with artificially low latencies. The intended send time is
+		 * cleared once it has been used, so that it cannot apply to a later response.
+		 */
+		String intendedStartTime = context.getJMeterVariables().get(AbstractAsyncHttpRequestSampler.INTENDED_START_TIME_KEY);
+		context.getJMeterVariables().remove(AbstractAsyncHttpRequestSampler.INTENDED_START_TIME_KEY);
+		if (StringUtils.isNumeric(intendedStartTime)) {
+			return AbstractAsyncHttpRequestSampler.timedFromIntendedStart(result, Long.parseLong(intendedStartTime));
+		}
 		return result;
 	}
 	
@@ -67,13 +109,15 @@ public abstract class AbstractAsyncHttpResponseSampler extends AbstractJavaSampl
 		
 		logger().info("Waiting for response with identifier '{}'", identifier);
 		
-		CompletableFuture<String> future = httpListener().getResponse(identifier);
-		String response;
+		CompletableFuture<CallbackPayload> future = httpListener().getResponse(identifier);
+		CallbackPayload response;
 		try {
 			response = future.get();
+			long wokenNanos = System.nanoTime();
 			result.sampleEnd();
 			logger().info("Received async response with identifier '{}'", identifier);
 			populateResult(result, previousResult, response);
+			recordLatencyBreakdown(context, result, response, wokenNanos);
 		} catch (CancellationException | ExecutionException e) {
 			logger().error("Response timed out for identifier '{}'", identifier);
 		} catch (Exception e) {
@@ -83,11 +127,38 @@ public abstract class AbstractAsyncHttpResponseSampler extends AbstractJavaSampl
 		httpListener().notifyComplete(identifier);
 	}
 	
-	protected void populateResult(SampleResult result, SampleResult previousResult, String response) {
-		result.setBodySize((long) response.length());
-		result.setContentType("application/json");
-		result.setResponseData(response, "UTF-8");
-		result.setResponseCodeOK();
+	/**
+	 * Adds the stages of the transaction's latency to the result as sub-results,
+	 * and writes them to JMeter variables, if the request sampler recorded when
+	 * it sent the request.
+	 */
+	private void recordLatencyBreakdown(JavaSamplerContext context, SampleResult result, CallbackPayload response, long wokenNanos) {
+		JMeterVariables variables = context.getJMeterVariables();
+		String sentNanos = variables.get(AbstractAsyncHttpRequestSampler.REQUEST_SENT_NANOS_KEY);
+		String initialResponseNanos = variables.get(AbstractAsyncHttpRequestSampler.INITIAL_RESPONSE_NANOS_KEY);
+		if (sentNanos == null || initialResponseNanos == null) {
+			return;
+		}
+		AsyncLatencyBreakdown breakdown;
+		try {
+			breakdown = new AsyncLatencyBreakdown(Long.parseLong(sentNanos), Long.parseLong(initialResponseNanos), response.arrivalNanos(), wokenNanos);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		breakdown.addSubResults(result);
+		httpListener().recordEndToEndLatency(breakdown.requestToCallbackTime());
+		variables.put(INITIAL_RESPONSE_TIME_KEY, String.valueOf(TimeUnit.NANOSECONDS.toMicros(breakdown.initialResponseTime())));
+		variables.put(CALLBACK_LATENCY_KEY, String.valueOf(TimeUnit.NANOSECONDS.toMicros(breakdown.requestToCallbackTime())));
+		variables.put(WAKEUP_DELAY_KEY, String.valueOf(TimeUnit.NANOSECONDS.toMicros(breakdown.callbackToSamplerTime())));
+	}
+	
+	/**
+	 * Populates the result with the asynchronous response. The raw body is
+	 * handed to the result as is, so it is only decoded if a post-processor or
+	 * assertion reads it as text.
+	 */
+	protected void populateResult(SampleResult result, SampleResult previousResult, CallbackPayload response) {
+		response.applyTo(result);
 		result.setSuccessful(true);
 	}
 	
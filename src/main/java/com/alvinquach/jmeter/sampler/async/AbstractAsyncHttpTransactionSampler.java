@@ -0,0 +1,449 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.EntityUtils;
+import org.apache.jmeter.config.Arguments;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.threads.JMeterThread;
+import org.apache.jmeter.util.JMeterUtils;
+
+import com.alvinquach.jmeter.sampler.util.HttpAsyncClientPool;
+import com.alvinquach.jmeter.sampler.util.HttpClientPool;
+
+/**
+ * Base sampler plug-in for running whole asynchronous HTTP transactions
+ * (initial request and asynchronous response) without blocking the JMeter
+ * thread.
+ * <p>
+ * Each call to runTest submits a request through a shared non-blocking HTTP
+ * client and returns immediately. Once the initial response arrives, the
+ * identifier is parsed from it and the wait for the asynchronous response is
+ * handed over to the HTTP listener. When the asynchronous response arrives
+ * (or times out), a SampleResult covering the whole transaction is queued,
+ * and it is returned by a subsequent call to runTest. Calls that do not have
+ * a completed transaction to report return an ignored SampleResult.
+ * <p>
+ * This allows a small number of JMeter threads to keep a large number of
+ * transactions in flight. The number of transactions that a single thread may
+ * have in flight is capped, and a thread that reaches the cap waits for one of
+ * its transactions to complete before submitting another one.
+ * <p>
+ * Since results are only reported by later calls to runTest, a thread drains
+ * its transactions before it stops: it stops submitting new ones, and its
+ * calls to runTest keep reporting the transactions in flight as they
+ * complete. A thread drains for the last {@value #DRAIN_PERIOD_KEY}
+ * milliseconds before its scheduled end time, which defaults to the response
+ * timeout of the listener, and every thread drains once the
+ * {@value #DRAIN_PROPERTY} JMeter property is set to true. Transactions that
+ * are still in flight when a thread stops cannot be reported, since JMeter
+ * does not accept samples from a thread once it has stopped, and are counted
+ * in a warning instead.
+ *
+ * @author Alvin Quach
+ */
+public abstract class AbstractAsyncHttpTransactionSampler extends AbstractAsyncHttpRequestSampler {
+
+	protected static final String MAX_PENDING_TRANSACTIONS_KEY = "maxPendingTransactions";
+
+	/**
+	 * How long before its scheduled end time a thread stops submitting new
+	 * transactions, in milliseconds. Blank for the response timeout of the
+	 * listener, and 0 to keep submitting until the end.
+	 */
+	protected static final String DRAIN_PERIOD_KEY = "drainPeriod";
+
+	protected static final String IO_THREAD_COUNT_KEY = "ioThreadCount";
+
+	/**
+	 * How long a thread that has reached the pending transaction cap waits for
+	 * one of them to complete before checking again, in milliseconds.
+	 */
+	private static final long COMPLETION_POLL_INTERVAL = 1000;
+
+	/**
+	 * How long a thread that has reached the pending transaction cap waits for
+	 * one of them to complete before it gives up, in milliseconds, if responses
+	 * never time out.
+	 */
+	private static final long MAX_COMPLETION_WAIT = 60000;
+
+	/**
+	 * JMeter property that makes every thread stop submitting new transactions
+	 * and only report the ones in flight, when set to true. This lets a test end
+	 * without losing results, by setting it shortly before stopping the test.
+	 */
+	public static final String DRAIN_PROPERTY = "asynchttp.drain";
+
+	private final BlockingQueue<SampleResult> completedResults = new LinkedBlockingQueue<>();
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	private int maxPendingTransactions;
+
+	/**
+	 * Configured drain period, or -1 for the response timeout of the listener.
+	 */
+	private long drainPeriod;
+
+	/**
+	 * Time at which this thread starts draining, 0 if it only drains when the
+	 * drain property is set, or -1 if it has not been resolved yet.
+	 */
+	private long drainStartTime;
+
+	/**
+	 * Set once the thread is torn down, so that no more transactions are
+	 * submitted.
+	 */
+	private volatile boolean stopped;
+
+	private HttpAsyncClientPool asyncClientPool;
+
+	@Override
+	public Arguments getDefaultParameters() {
+		Arguments defaultArguments = super.getDefaultParameters();
+		defaultArguments.addArgument(MAX_PENDING_TRANSACTIONS_KEY, "1000");
+		defaultArguments.addArgument(IO_THREAD_COUNT_KEY, "0");
+		defaultArguments.addArgument(DRAIN_PERIOD_KEY, "");
+		return defaultArguments;
+	}
+
+	@Override
+	public void setupTest(JavaSamplerContext context) {
+		super.setupTest(context);
+
+		maxPendingTransactions = context.getIntParameter(MAX_PENDING_TRANSACTIONS_KEY, 1000);
+		if (maxPendingTransactions <= 0) {
+			throw new IllegalArgumentException("Setup error: maximum pending transactions must be positive");
+		}
+		String drainPeriodValue = context.getParameter(DRAIN_PERIOD_KEY);
+		try {
+			drainPeriod = StringUtils.isBlank(drainPeriodValue) ? -1 : Long.parseLong(drainPeriodValue.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setup error: drain period must be a number", e);
+		}
+		if (drainPeriod < 0 && !StringUtils.isBlank(drainPeriodValue)) {
+			throw new IllegalArgumentException("Setup error: drain period must not be negative");
+		}
+		drainStartTime = -1;
+		stopped = false;
+		asyncClientPool = HttpAsyncClientPool.acquireShared(new HttpAsyncClientPool.Config(
+				context.getIntParameter(IO_THREAD_COUNT_KEY, 0),
+				context.getIntParameter(MAX_CONNECTIONS_KEY, 200),
+				context.getIntParameter(MAX_CONNECTIONS_PER_ROUTE_KEY, 200)));
+	}
+
+	/**
+	 * The blocking client pool is never used by this sampler, since requests are
+	 * sent through the shared non-blocking client instead.
+	 */
+	@Override
+	protected HttpClientPool createClientPoolFromContext(JavaSamplerContext context) {
+		return null;
+	}
+
+	@Override
+	public SampleResult runTest(JavaSamplerContext context) {
+		try {
+			if (isDraining(context)) {
+				/*
+				 * Only report the transactions in flight as they complete, so that they are
+				 * not lost when the thread stops.
+				 */
+				return awaitCompletedResult(drainPollInterval(context));
+			}
+
+			/*
+			 * If this thread already has the maximum number of transactions in flight,
+			 * then wait for one of them to complete and report it instead of submitting a
+			 * new one. The wait is bounded, so that a thread whose transactions do not
+			 * complete still gets back to JMeter, and can drain or be stopped.
+			 */
+			if (pendingCount.get() >= maxPendingTransactions) {
+				long maxWait = maxCompletionWait();
+				long waitDeadline = System.currentTimeMillis() + maxWait;
+				while (pendingCount.get() >= maxPendingTransactions) {
+					long remaining = waitDeadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						logger().warn("No transaction completed within {} ms while {} were in flight.", maxWait, pendingCount.get());
+						return ignoredResult();
+					}
+					SampleResult completed = completedResults.poll(Math.min(remaining, COMPLETION_POLL_INTERVAL), TimeUnit.MILLISECONDS);
+					if (completed != null) {
+						return completed;
+					}
+					if (isDraining(context)) {
+						return ignoredResult();
+					}
+				}
+			}
+
+			long intendedStartTime = 0;
+			if (arrivalScheduler != null) {
+				intendedStartTime = arrivalScheduler.awaitNextArrival();
+			}
+
+			submitTransaction(context, intendedStartTime);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return ignoredResult();
+		}
+
+		SampleResult completed = completedResults.poll();
+		return completed != null ? completed : ignoredResult();
+	}
+
+	/**
+	 * Returns whether this thread should stop submitting new transactions.
+	 */
+	private boolean isDraining(JavaSamplerContext context) {
+		if (stopped || JMeterUtils.getPropDefault(DRAIN_PROPERTY, false)) {
+			return true;
+		}
+		if (drainStartTime < 0) {
+			drainStartTime = resolveDrainStartTime(context);
+		}
+		return drainStartTime > 0 && System.currentTimeMillis() >= drainStartTime;
+	}
+
+	/**
+	 * Returns the time at which this thread starts draining, from its scheduled
+	 * end time, or 0 if it has none.
+	 */
+	private long resolveDrainStartTime(JavaSamplerContext context) {
+		long endTime = scheduledEndTime(context);
+		long period = drainPeriod >= 0 ? drainPeriod : httpListener().getTimeoutDuration();
+		return endTime > 0 && period > 0 ? Math.max(endTime - period, 1) : 0;
+	}
+
+	/**
+	 * Returns the time at which JMeter stops the thread, or 0 if the thread
+	 * group is not scheduled to end.
+	 */
+	private static long scheduledEndTime(JavaSamplerContext context) {
+		JMeterThread thread = context.getJMeterContext().getThread();
+		return thread != null ? thread.getEndTime() : 0;
+	}
+
+	/**
+	 * Returns how long a draining thread waits for a transaction to complete,
+	 * without waiting past the scheduled end time of the thread.
+	 */
+	private static long drainPollInterval(JavaSamplerContext context) {
+		long endTime = scheduledEndTime(context);
+		if (endTime <= 0) {
+			return COMPLETION_POLL_INTERVAL;
+		}
+		return Math.max(Math.min(endTime - System.currentTimeMillis(), COMPLETION_POLL_INTERVAL), 1);
+	}
+
+	/**
+	 * Returns how long a thread at the pending transaction cap waits for one of
+	 * them to complete. Transactions complete by the response timeout of the
+	 * listener at the latest, if there is one.
+	 */
+	private long maxCompletionWait() {
+		long timeoutDuration = httpListener().getTimeoutDuration();
+		return timeoutDuration > 0 ? timeoutDuration + COMPLETION_POLL_INTERVAL : MAX_COMPLETION_WAIT;
+	}
+
+	/**
+	 * Returns the next completed transaction, waiting up to the given time for
+	 * one, or an ignored result if none completes.
+	 */
+	private SampleResult awaitCompletedResult(long timeout) throws InterruptedException {
+		SampleResult completed = completedResults.poll();
+		if (completed == null && pendingCount.get() > 0) {
+			completed = completedResults.poll(timeout, TimeUnit.MILLISECONDS);
+		} else if (completed == null) {
+			/*
+			 * Nothing is left in flight. Still wait, so that the thread does not spin
+			 * through ignored results until it stops.
+			 */
+			Thread.sleep(timeout);
+		}
+		return completed != null ? completed : ignoredResult();
+	}
+
+	/**
+	 * Submits a new transaction.
+	 * 
+	 * @param intendedStartTime The intended send time from the arrival schedule,
+	 *        or 0 if the transaction is not scheduled.
+	 */
+	private void submitTransaction(JavaSamplerContext context, long intendedStartTime) {
+		SampleResult result = new SampleResult();
+		result.setURL(requestUrl);
+		HttpPost request = createRequest(context);
+		/*
+		 * The transaction only counts as pending once the client has taken it, so
+		 * that a request that could not be created or sent does not hold a slot.
+		 */
+		pendingCount.incrementAndGet();
+		result.sampleStart();
+		try {
+			asyncClientPool.client().execute(request, new InitialResponseCallback(result, intendedStartTime, request.getEntity()));
+		} catch (RuntimeException e) {
+			pendingCount.decrementAndGet();
+			releaseRequestEntity(request.getEntity());
+			throw e;
+		}
+	}
+
+	/**
+	 * Handles the initial response to a submitted request, on one of the I/O
+	 * dispatcher threads.
+	 */
+	private final class InitialResponseCallback implements FutureCallback<HttpResponse> {
+
+		private final SampleResult result;
+
+		private final long intendedStartTime;
+
+		private final HttpEntity requestEntity;
+
+		private final long sentNanos = System.nanoTime();
+
+		private long initialResponseNanos;
+
+		/**
+		 * Latency stages of the transaction, once its asynchronous response has
+		 * been received.
+		 */
+		private AsyncLatencyBreakdown latencyBreakdown;
+
+		private InitialResponseCallback(SampleResult result, long intendedStartTime, HttpEntity requestEntity) {
+			this.result = result;
+			this.intendedStartTime = intendedStartTime;
+			this.requestEntity = requestEntity;
+		}
+
+		private void completeTransaction(String responseCode, boolean successful) {
+			result.sampleEnd();
+			if (latencyBreakdown != null) {
+				latencyBreakdown.addSubResults(result);
+			}
+			if (responseCode != null) {
+				result.setResponseCode(responseCode);
+			}
+			result.setSuccessful(successful);
+			/*
+			 * Time the transaction from its intended send time, so that transactions that
+			 * were sent late are not reported with artificially low latencies.
+			 */
+			completedResults.add(intendedStartTime > 0 ? timedFromIntendedStart(result, intendedStartTime) : result);
+			pendingCount.decrementAndGet();
+		}
+
+		@Override
+		public void completed(HttpResponse response) {
+			initialResponseNanos = System.nanoTime();
+			result.latencyEnd();
+			populateResultFromRequestEntity(result, requestEntity);
+			releaseRequestEntity(requestEntity);
+
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode != 200) {
+				result.setResponseMessage("Initial request failed: " + response.getStatusLine().getReasonPhrase());
+				completeTransaction(String.valueOf(statusCode), false);
+				return;
+			}
+
+			byte[] responseBody;
+			try {
+				HttpEntity entity = response.getEntity();
+				responseBody = entity == null ? null : EntityUtils.toByteArray(entity);
+			} catch (IOException e) {
+				logger().error("Exception encountered while reading initial response: {}", e.getClass().getSimpleName());
+				completeTransaction(null, false);
+				return;
+			}
+
+			String identifier = responseBody == null ? null : parseIdentifierFromResponseBody(responseBody);
+			if (identifier == null) {
+				result.setResponseMessage("Initial response does not contain an identifier");
+				completeTransaction(null, false);
+				return;
+			}
+
+			/*
+			 * Hand the wait for the asynchronous response over to the HTTP listener. The
+			 * transaction is completed on whichever thread completes the future.
+			 */
+			AbstractAsyncHttpListener listener = httpListener();
+			CompletableFuture<CallbackPayload> future = listener.getResponse(identifier);
+			future.whenComplete((asyncResponse, exception) -> {
+				listener.notifyComplete(identifier);
+				if (exception != null) {
+					boolean timedOut = exception instanceof CancellationException;
+					result.setResponseMessage(timedOut ? "Response timed out" : exception.getClass().getSimpleName());
+					completeTransaction(null, false);
+					return;
+				}
+				latencyBreakdown = new AsyncLatencyBreakdown(sentNanos, initialResponseNanos, asyncResponse.arrivalNanos(), System.nanoTime());
+				listener.recordEndToEndLatency(latencyBreakdown.requestToCallbackTime());
+				populateResult(result, asyncResponse);
+				completeTransaction(null, true);
+			});
+		}
+
+		@Override
+		public void failed(Exception e) {
+			releaseRequestEntity(requestEntity);
+			logger().error("Exception encountered while sending request: {}", e.getClass().getSimpleName());
+			result.setResponseMessage(e.getClass().getSimpleName());
+			completeTransaction(null, false);
+		}
+
+		@Override
+		public void cancelled() {
+			releaseRequestEntity(requestEntity);
+			result.setResponseMessage("Request cancelled");
+			completeTransaction(null, false);
+		}
+	}
+
+	protected void populateResult(SampleResult result, CallbackPayload response) {
+		response.applyTo(result);
+	}
+
+	private static SampleResult ignoredResult() {
+		SampleResult result = new SampleResult();
+		result.setIgnore();
+		return result;
+	}
+
+	@Override
+	public void teardownTest(JavaSamplerContext context) {
+		super.teardownTest(context);
+		stopped = true;
+
+		int pending = pendingCount.get() + completedResults.size();
+		if (pending > 0) {
+			logger().warn("Discarding {} unreported transactions at the end of the test.", pending);
+		}
+		if (asyncClientPool != null) {
+			asyncClientPool.close();
+			asyncClientPool = null;
+		}
+	}
+
+	/**
+	 * Get the HTTP listener.
+	 */
+	protected abstract AbstractAsyncHttpListener httpListener();
+
+}
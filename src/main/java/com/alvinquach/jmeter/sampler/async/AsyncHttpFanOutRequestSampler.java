@@ -0,0 +1,46 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generic sampler plug-in for sending a fan-out of requests to an asynchronous
+ * API endpoint, and passing all of their identifiers on to the
+ * AsyncHttpFanOutResponseSampler.
+ * <p>
+ * The test plan should be set up such that a AsyncHttpFanOutResponseSampler is
+ * placed directly after this sampler in the same thread group.
+ *
+ * @author Alvin Quach
+ */
+public class AsyncHttpFanOutRequestSampler extends AbstractAsyncHttpFanOutRequestSampler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpFanOutRequestSampler.class);
+
+	private static final String IDENTIFIER_KEY = "identifier";
+
+	@Override
+	protected void populateHeaders(HttpPost request) {
+		return;
+	}
+
+	@Override
+	protected HttpEntity createRequestEntityFromContext(JavaSamplerContext context) {
+		return createRequestEntityFromTemplate(context, ContentType.APPLICATION_JSON);
+	}
+
+	@Override
+	protected String identifierKey() {
+		return IDENTIFIER_KEY;
+	}
+
+	@Override
+	protected Logger logger() {
+		return LOGGER;
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generic sampler plug-in for waiting on the asynchronous responses to a
+ * fan-out of requests sent by the AsyncHttpFanOutRequestSampler.
+ * <p>
+ * The test plan should be set up such that a AsyncHttpFanOutRequestSampler is
+ * placed directly before this in the same thread group. In addition, the test
+ * plan should include an AsyncHttpListenerSetup that runs once before this
+ * sampler runs the first time.
+ *
+ * @author Alvin Quach
+ */
+public class AsyncHttpFanOutResponseSampler extends AbstractAsyncHttpFanOutResponseSampler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpFanOutResponseSampler.class);
+
+	private static final String IDENTIFIER_KEY = "identifier";
+
+	private static AsyncHttpListener httpListener;
+
+	@Override
+	public void setupTest(JavaSamplerContext context) {
+		super.setupTest(context);
+		if (httpListener == null) {
+			httpListener = AsyncHttpListener.instance();
+		}
+	}
+
+	@Override
+	public void teardownTest(JavaSamplerContext context) {
+		/*
+		 * Must dereference the HTTP listener here since a new instance will be created
+		 * when the test is run again.
+		 */
+		httpListener = null;
+	}
+
+	@Override
+	protected AbstractAsyncHttpListener httpListener() {
+		return httpListener;
+	}
+
+	@Override
+	protected String identifierKey() {
+		return IDENTIFIER_KEY;
+	}
+
+	@Override
+	protected Logger logger() {
+		return LOGGER;
+	}
+
+}
@@ -1,12 +1,25 @@
 package com.alvinquach.jmeter.sampler.async;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.alvinquach.jmeter.sampler.util.JsonNodeUtils;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackRequest;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackResponse;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportType;
+import com.alvinquach.jmeter.sampler.util.CallbackBody;
+import com.alvinquach.jmeter.sampler.util.HttpListenerUtils;
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+import com.alvinquach.jmeter.sampler.util.JsonIdentifierExtractor;
 
 /**
  * Generic HTTP server that listens for asynchronous HTTP responses. The server
@@ -34,15 +47,31 @@ public class AsyncHttpListener extends AbstractAsyncHttpListener {
 	/**
 	 * Instantiates the AsyncHttpListener singleton instance.
 	 */
-	public static AsyncHttpListener instantiate(int port, String identifierPath, long timeoutDuration) {
+	public static AsyncHttpListener instantiate(int port, IdentifierPath identifierPath, long timeoutDuration) {
+		return instantiate(new ListenerTransportConfig(ListenerTransportType.NANOHTTPD, port, 0), identifierPath, timeoutDuration);
+	}
+	
+	/**
+	 * Instantiates the AsyncHttpListener singleton instance on the given
+	 * transport.
+	 */
+	public static AsyncHttpListener instantiate(ListenerTransportConfig transportConfig, IdentifierPath identifierPath, long timeoutDuration) {
 		synchronized (AsyncHttpListener.class) {
 			if (instance != null) {
 				throw new IllegalStateException("AsyncHttpListener instance is already initialized");
 			}
-			return instance = new AsyncHttpListener(port, identifierPath, timeoutDuration);
+			return instance = new AsyncHttpListener(transportConfig, identifierPath, timeoutDuration);
 		}
 	}
 
+	/**
+	 * Creates a listener that is not the singleton instance, such as one of the
+	 * nodes of a relay that is tested on loopback ports in a single JVM.
+	 */
+	public static AsyncHttpListener newInstance(ListenerTransportConfig transportConfig, IdentifierPath identifierPath, long timeoutDuration) {
+		return new AsyncHttpListener(transportConfig, identifierPath, timeoutDuration);
+	}
+
 	/**
 	 * Removes the AsyncHttpListener singleton instance and returns it.
 	 */
@@ -58,46 +87,76 @@ public class AsyncHttpListener extends AbstractAsyncHttpListener {
 		}
 	}
 
-	private final String identifierPath;
+	private final IdentifierPath identifierPath;
 	
-	private AsyncHttpListener(int port, String identifierPath, long timeoutDuration) {
-		super(port, timeoutDuration);
+	private final JsonIdentifierExtractor identifierExtractor;
+	
+	private AsyncHttpListener(ListenerTransportConfig transportConfig, IdentifierPath identifierPath, long timeoutDuration) {
+		super(transportConfig, timeoutDuration);
 		this.identifierPath = identifierPath;
+		identifierExtractor = new JsonIdentifierExtractor(identifierPath);
 	}
 
 	@Override
-	protected Response processResponseBody(IHTTPSession session, String body) {
-   	    /*
-		 * Deserialize the response body into a JsonNode.
+	protected CallbackResponse processResponseBody(CallbackRequest request, CallbackBody body) {
+		/*
+		 * Retrieve the identifier from the response body at the location specified by
+		 * the identifier path. The body is streamed through the parser, which stops as
+		 * soon as the identifier is found. The parser detects the Unicode encodings by
+		 * itself, so only other charsets need to be decoded first.
 		 */
-		JsonNode jsonNode;
+		String identifier;
 		try {
-			jsonNode = JsonNodeUtils.deserializeString(body);
-		} catch (JsonProcessingException e) {
-			LOGGER.error("Exception encountered while deserializing the response body: {}", e.getClass().getSimpleName());
+			identifier = body.isUnicode()
+					? identifierExtractor.extract(body.array(), body.offset(), body.length())
+					: identifierExtractor.extract(body.asString());
+		} catch (IOException e) {
+			LOGGER.error("Exception encountered while parsing the response body: {}", e.getClass().getSimpleName());
 			return RESPONSE_400;
 		}
-	    
-		/*
-		 * Retrieve the identifier from the JsonNode at the location specified by the
-		 * identifier path.
-		 */
-	    String identifier = JsonNodeUtils.getNumberOrTextAsString(jsonNode, identifierPath);
 	    if (StringUtils.isEmpty(identifier)) {
 	    	LOGGER.error("Payload does not contain a valid identifier value at the specified path '{}'", identifierPath);
 	    	return RESPONSE_400;
 	    }
 	    
 		/*
-		 * Retrieve (or add) the CompletableFuture object from the results map that is
-		 * associated with the identifier key, and mark it as complete.
+		 * Complete the CompletableFuture object that is associated with the
+		 * identifier key, or hold the body until a sampler asks for it.
 		 */
-	    ResponseWrapper response = addOrRetrieveResponse(identifier);
-	    response.future.complete(body);
-	    
-	    return RESPONSE_200;
+	    return completeResponse(identifier, createPayload(request, body));
     }
 
+	/**
+	 * Extracts the identifier while the body is being decoded, and then only
+	 * reads the rest of the body to count and checksum it. Bodies in charsets
+	 * that the parser cannot read as bytes are buffered instead.
+	 */
+	@Override
+	protected CallbackResponse processResponseStream(CallbackRequest request, InputStream body, Charset charset) throws IOException {
+		if (!CallbackBody.isUnicode(charset)) {
+			return super.processResponseStream(request, body, charset);
+		}
+		CountingInputStream counted = new CountingInputStream(body);
+		CheckedInputStream checked = new CheckedInputStream(counted, new CRC32());
+		String identifier;
+		try {
+			identifier = identifierExtractor.extract(checked);
+		} catch (HttpListenerUtils.BodyTooLargeException e) {
+			throw e;
+		} catch (IOException e) {
+			LOGGER.error("Exception encountered while parsing the response body: {}", e.getClass().getSimpleName());
+			return RESPONSE_400;
+		}
+	    if (StringUtils.isEmpty(identifier)) {
+	    	LOGGER.error("Payload does not contain a valid identifier value at the specified path '{}'", identifierPath);
+	    	return RESPONSE_400;
+	    }
+	    while (checked.skip(Long.MAX_VALUE) > 0) {
+	    	// Read to the end of the body, so that all of it is counted.
+	    }
+	    return completeResponse(identifier, createPayload(request, charset, (int) counted.getByteCount(), checked.getChecksum().getValue()));
+	}
+
 	@Override
 	protected Logger logger() {
 		return LOGGER;
@@ -1,21 +1,54 @@
 package com.alvinquach.jmeter.sampler.async;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.protocol.java.sampler.AbstractJavaSamplerClient;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.alvinquach.jmeter.sampler.async.registry.ResponseRegistryType;
+import com.alvinquach.jmeter.sampler.async.polling.PollingConfig;
+import com.alvinquach.jmeter.sampler.async.relay.RelayConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerShardMode;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerThreadMode;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportConfig;
+import com.alvinquach.jmeter.sampler.async.transport.ListenerTransportType;
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+
 /**
  * Special sampler that initializes the AsyncHttpListener singleton instance. It
  * is recommended to run this sampler in a setUp thread group before the main
  * thread group(s). The AsyncHttpListener will automatically be removed at the
  * end of the test, so the test can be run again with different parameters
  * without having to restart JMeter.
+ * <p>
+ * In a distributed test, setting a relay node ID makes the listeners of the
+ * nodes relay callbacks to each other. The node ID is published as the
+ * <code>asyncListenerNodeId</code> JMeter property, so that the test plan can
+ * tag the identifiers it chooses with <code>${__P(asyncListenerNodeId)}~</code>,
+ * for services that echo an identifier chosen by the client.
+ * <p>
+ * For APIs that do not call back, setting a status URL such as
+ * <code>http://api/status/{id}</code> makes the listener poll the status of
+ * every transaction that a sampler waits on instead, until the value at the
+ * status path is one of the terminal states. The response samplers work the
+ * same either way.
+ * <p>
+ * On Java 21 and later, the listener can handle connections on virtual
+ * threads, so that many thousands of open callback connections do not take an
+ * operating system thread each. On older runtimes, it keeps using platform
+ * threads.
  * 
  * @author Alvin Quach
  */
@@ -23,18 +56,134 @@ public final class AsyncHttpListenerSetup extends AbstractJavaSamplerClient {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpListenerSetup.class);
 
+	/**
+	 * Default time to wait before reconnecting to an event stream, in
+	 * milliseconds.
+	 */
+	private static final long DEFAULT_EVENT_STREAM_RECONNECT_DELAY = 1000;
+	
 	private static final String PORT_NUMBER_KEY = "listenerPortNumber";
 	
 	private static final String IDENTIFIER_PATH_KEY = "identifierPath";
 	
 	private static final String TIMEOUT_DURATION_KEY = "timeoutDuration";
 	
+	private static final String TIMEOUT_RESOLUTION_KEY = "timeoutResolution";
+	
+	private static final String EARLY_ARRIVAL_TTL_KEY = "earlyArrivalTtl";
+	
+	private static final String EARLY_ARRIVAL_MAX_ENTRIES_KEY = "earlyArrivalMaxEntries";
+	
+	private static final String EARLY_ARRIVAL_MAX_BYTES_KEY = "earlyArrivalMaxBytes";
+	
+	private static final String DISCARD_BODY_KEY = "discardCallbackBody";
+	
+	private static final String RESPONSE_REGISTRY_KEY = "responseRegistry";
+	
+	private static final String TRANSPORT_KEY = "listenerTransport";
+	
+	private static final String WORKER_THREADS_KEY = "listenerWorkerThreads";
+	
+	private static final String ACCEPT_QUEUE_KEY = "listenerAcceptQueue";
+	
+	private static final String WORKER_QUEUE_KEY = "listenerWorkerQueue";
+	
+	private static final String SHARDS_KEY = "listenerShards";
+	
+	private static final String SHARD_MODE_KEY = "listenerShardMode";
+	
+	private static final String THREAD_MODE_KEY = "listenerThreads";
+	
+	private static final String EVENT_STREAM_URL_KEY = "eventStreamUrl";
+	
+	private static final String EVENT_STREAM_RECONNECT_DELAY_KEY = "eventStreamReconnectDelay";
+	
+	private static final String RELAY_NODE_ID_KEY = "relayNodeId";
+	
+	private static final String RELAY_PORT_KEY = "relayPort";
+	
+	private static final String RELAY_PEERS_KEY = "relayPeers";
+	
+	private static final String RELAY_BATCH_SIZE_KEY = "relayBatchSize";
+	
+	private static final String RELAY_LINGER_KEY = "relayLinger";
+	
+	private static final String RELAY_QUEUE_SIZE_KEY = "relayQueueSize";
+	
+	private static final String RELAY_TAG_SEPARATOR_KEY = "relayTagSeparator";
+	
+	/**
+	 * JMeter property that the relay node ID is published as.
+	 */
+	private static final String NODE_ID_PROPERTY = "asyncListenerNodeId";
+	
+	private static final String STATUS_URL_KEY = "statusUrl";
+	
+	private static final String BATCH_STATUS_URL_KEY = "batchStatusUrl";
+	
+	private static final String STATUS_PATH_KEY = "statusPath";
+	
+	private static final String STATUS_IDENTIFIER_PATH_KEY = "statusIdentifierPath";
+	
+	private static final String TERMINAL_STATES_KEY = "terminalStates";
+	
+	private static final String POLL_BATCH_SIZE_KEY = "pollBatchSize";
+	
+	private static final String POLL_INITIAL_INTERVAL_KEY = "pollInitialInterval";
+	
+	private static final String POLL_MAX_INTERVAL_KEY = "pollMaxInterval";
+	
+	private static final String POLL_BACKOFF_KEY = "pollBackoff";
+	
+	private static final String POLL_MAX_CONCURRENCY_KEY = "pollMaxConcurrency";
+	
+	private static final String MAX_PENDING_CALLBACKS_KEY = "maxPendingCallbacks";
+	
+	private static final String RETRY_AFTER_KEY = "retryAfter";
+	
+	private static final String MAX_BODY_SIZE_KEY = "maxCallbackBodySize";
+	
 	@Override
 	public Arguments getDefaultParameters() {
 		Arguments defaultArguments = new Arguments();
 		defaultArguments.addArgument(PORT_NUMBER_KEY, "8080");
 		defaultArguments.addArgument(IDENTIFIER_PATH_KEY, StringUtils.EMPTY);
 		defaultArguments.addArgument(TIMEOUT_DURATION_KEY, "5000");
+		defaultArguments.addArgument(TIMEOUT_RESOLUTION_KEY, String.valueOf(AbstractAsyncHttpListener.DEFAULT_TIMEOUT_RESOLUTION));
+		defaultArguments.addArgument(EARLY_ARRIVAL_TTL_KEY, String.valueOf(AbstractAsyncHttpListener.DEFAULT_EARLY_ARRIVAL_TTL));
+		defaultArguments.addArgument(EARLY_ARRIVAL_MAX_ENTRIES_KEY, String.valueOf(AbstractAsyncHttpListener.DEFAULT_EARLY_ARRIVAL_MAX_ENTRIES));
+		defaultArguments.addArgument(EARLY_ARRIVAL_MAX_BYTES_KEY, String.valueOf(AbstractAsyncHttpListener.DEFAULT_EARLY_ARRIVAL_MAX_BYTES));
+		defaultArguments.addArgument(DISCARD_BODY_KEY, "false");
+		defaultArguments.addArgument(RESPONSE_REGISTRY_KEY, "concurrentMap");
+		defaultArguments.addArgument(TRANSPORT_KEY, "nanohttpd");
+		defaultArguments.addArgument(WORKER_THREADS_KEY, "0");
+		defaultArguments.addArgument(ACCEPT_QUEUE_KEY, "0");
+		defaultArguments.addArgument(WORKER_QUEUE_KEY, "0");
+		defaultArguments.addArgument(SHARDS_KEY, "1");
+		defaultArguments.addArgument(SHARD_MODE_KEY, "portRange");
+		defaultArguments.addArgument(THREAD_MODE_KEY, "platform");
+		defaultArguments.addArgument(EVENT_STREAM_URL_KEY, StringUtils.EMPTY);
+		defaultArguments.addArgument(EVENT_STREAM_RECONNECT_DELAY_KEY, String.valueOf(DEFAULT_EVENT_STREAM_RECONNECT_DELAY));
+		defaultArguments.addArgument(RELAY_NODE_ID_KEY, StringUtils.EMPTY);
+		defaultArguments.addArgument(RELAY_PORT_KEY, "9080");
+		defaultArguments.addArgument(RELAY_PEERS_KEY, StringUtils.EMPTY);
+		defaultArguments.addArgument(RELAY_BATCH_SIZE_KEY, String.valueOf(RelayConfig.DEFAULT_MAX_BATCH_SIZE));
+		defaultArguments.addArgument(RELAY_LINGER_KEY, String.valueOf(RelayConfig.DEFAULT_LINGER));
+		defaultArguments.addArgument(RELAY_QUEUE_SIZE_KEY, String.valueOf(RelayConfig.DEFAULT_MAX_QUEUED_CALLBACKS));
+		defaultArguments.addArgument(RELAY_TAG_SEPARATOR_KEY, String.valueOf(RelayConfig.DEFAULT_TAG_SEPARATOR));
+		defaultArguments.addArgument(STATUS_URL_KEY, StringUtils.EMPTY);
+		defaultArguments.addArgument(BATCH_STATUS_URL_KEY, StringUtils.EMPTY);
+		defaultArguments.addArgument(STATUS_PATH_KEY, "status");
+		defaultArguments.addArgument(STATUS_IDENTIFIER_PATH_KEY, PollingConfig.DEFAULT_IDENTIFIER_PATH);
+		defaultArguments.addArgument(TERMINAL_STATES_KEY, "COMPLETED,FAILED");
+		defaultArguments.addArgument(POLL_BATCH_SIZE_KEY, String.valueOf(PollingConfig.DEFAULT_MAX_BATCH_SIZE));
+		defaultArguments.addArgument(POLL_INITIAL_INTERVAL_KEY, String.valueOf(PollingConfig.DEFAULT_INITIAL_INTERVAL));
+		defaultArguments.addArgument(POLL_MAX_INTERVAL_KEY, String.valueOf(PollingConfig.DEFAULT_MAX_INTERVAL));
+		defaultArguments.addArgument(POLL_BACKOFF_KEY, String.valueOf(PollingConfig.DEFAULT_BACKOFF_MULTIPLIER));
+		defaultArguments.addArgument(POLL_MAX_CONCURRENCY_KEY, String.valueOf(PollingConfig.DEFAULT_MAX_CONCURRENT_POLLS));
+		defaultArguments.addArgument(MAX_PENDING_CALLBACKS_KEY, "0");
+		defaultArguments.addArgument(RETRY_AFTER_KEY, String.valueOf(AbstractAsyncHttpListener.DEFAULT_RETRY_AFTER));
+		defaultArguments.addArgument(MAX_BODY_SIZE_KEY, String.valueOf(AbstractAsyncHttpListener.DEFAULT_MAX_BODY_SIZE));
 		return defaultArguments;
 	}
 
@@ -56,10 +205,11 @@ public final class AsyncHttpListenerSetup extends AbstractJavaSamplerClient {
 			throw new IllegalArgumentException("Port number must be an integer");
 		}
 
-		String identifierPath = context.getParameter(IDENTIFIER_PATH_KEY);
-		if (StringUtils.isEmpty(identifierPath)) {
+		String identifierPathValue = context.getParameter(IDENTIFIER_PATH_KEY);
+		if (StringUtils.isEmpty(identifierPathValue)) {
 			throw new IllegalArgumentException("Identifier path is required");
 		}
+		IdentifierPath identifierPath = IdentifierPath.compile(identifierPathValue);
 		
 		String timeoutDurationValue = context.getParameter(TIMEOUT_DURATION_KEY);
 		long timeoutDuration;
@@ -69,10 +219,178 @@ public final class AsyncHttpListenerSetup extends AbstractJavaSamplerClient {
 			throw new IllegalArgumentException("Timeout duration must be an integer");
 		}
 
-		AsyncHttpListener httpListener = AsyncHttpListener.instantiate(portNumber, identifierPath, timeoutDuration);
+		String timeoutResolutionValue = context.getParameter(TIMEOUT_RESOLUTION_KEY);
+		long timeoutResolution;
+		try {
+			timeoutResolution = StringUtils.isBlank(timeoutResolutionValue) ? AbstractAsyncHttpListener.DEFAULT_TIMEOUT_RESOLUTION : Long.parseLong(timeoutResolutionValue);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Timeout resolution must be an integer");
+		}
+
+		long earlyArrivalTtl;
+		int earlyArrivalMaxEntries;
+		long earlyArrivalMaxBytes;
+		try {
+			earlyArrivalTtl = context.getLongParameter(EARLY_ARRIVAL_TTL_KEY, AbstractAsyncHttpListener.DEFAULT_EARLY_ARRIVAL_TTL);
+			earlyArrivalMaxEntries = context.getIntParameter(EARLY_ARRIVAL_MAX_ENTRIES_KEY, AbstractAsyncHttpListener.DEFAULT_EARLY_ARRIVAL_MAX_ENTRIES);
+			earlyArrivalMaxBytes = context.getLongParameter(EARLY_ARRIVAL_MAX_BYTES_KEY, AbstractAsyncHttpListener.DEFAULT_EARLY_ARRIVAL_MAX_BYTES);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Early arrival TTL, maximum entries and maximum bytes must be integers");
+		}
+
+		ResponseRegistryType responseRegistryType = ResponseRegistryType.parse(context.getParameter(RESPONSE_REGISTRY_KEY));
+
+		ListenerTransportType transportType = ListenerTransportType.parse(context.getParameter(TRANSPORT_KEY));
+		
+		String workerThreadsValue = context.getParameter(WORKER_THREADS_KEY);
+		int workerThreads;
+		try {
+			workerThreads = StringUtils.isBlank(workerThreadsValue) ? 0 : Integer.parseInt(workerThreadsValue);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Worker thread count must be an integer");
+		}
+		
+		int acceptQueueSize;
+		int workerQueueSize;
+		try {
+			acceptQueueSize = context.getIntParameter(ACCEPT_QUEUE_KEY, 0);
+			workerQueueSize = context.getIntParameter(WORKER_QUEUE_KEY, 0);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Accept queue and worker queue sizes must be integers");
+		}
+		
+		int shardCount;
+		try {
+			shardCount = context.getIntParameter(SHARDS_KEY, 1);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Listener shard count must be an integer");
+		}
+		ListenerShardMode shardMode = ListenerShardMode.parse(context.getParameter(SHARD_MODE_KEY));
+		ListenerThreadMode threadMode = ListenerThreadMode.parse(context.getParameter(THREAD_MODE_KEY));
+		
+		List<URI> eventStreamUris = new ArrayList<>();
+		for (String url : StringUtils.split(StringUtils.defaultString(context.getParameter(EVENT_STREAM_URL_KEY)), ',')) {
+			try {
+				eventStreamUris.add(new URI(url.trim()));
+			} catch (URISyntaxException e) {
+				throw new IllegalArgumentException("Event stream URL '" + url.trim() + "' is not valid");
+			}
+		}
+		long eventStreamReconnectDelay;
+		try {
+			eventStreamReconnectDelay = context.getLongParameter(EVENT_STREAM_RECONNECT_DELAY_KEY, DEFAULT_EVENT_STREAM_RECONNECT_DELAY);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Event stream reconnect delay must be an integer");
+		}
+		
+		RelayConfig relayConfig = null;
+		String relayNodeId = context.getParameter(RELAY_NODE_ID_KEY);
+		if (StringUtils.isNotBlank(relayNodeId)) {
+			int relayPort;
+			int relayBatchSize;
+			long relayLinger;
+			int relayQueueSize;
+			try {
+				relayPort = context.getIntParameter(RELAY_PORT_KEY, 0);
+				relayBatchSize = context.getIntParameter(RELAY_BATCH_SIZE_KEY, RelayConfig.DEFAULT_MAX_BATCH_SIZE);
+				relayLinger = context.getLongParameter(RELAY_LINGER_KEY, RelayConfig.DEFAULT_LINGER);
+				relayQueueSize = context.getIntParameter(RELAY_QUEUE_SIZE_KEY, RelayConfig.DEFAULT_MAX_QUEUED_CALLBACKS);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Relay port, batch size, linger and queue size must be integers");
+			}
+			String tagSeparator = context.getParameter(RELAY_TAG_SEPARATOR_KEY, String.valueOf(RelayConfig.DEFAULT_TAG_SEPARATOR));
+			if (tagSeparator.length() != 1) {
+				throw new IllegalArgumentException("Relay tag separator must be a single character");
+			}
+			Map<String, InetSocketAddress> relayPeers = RelayConfig.parsePeers(context.getParameter(RELAY_PEERS_KEY));
+			relayConfig = new RelayConfig(relayNodeId.trim(), relayPort, relayPeers)
+					.withTagSeparator(tagSeparator.charAt(0))
+					.withBatching(relayBatchSize, relayLinger)
+					.withMaxQueuedCallbacks(relayQueueSize);
+		}
+		
+		PollingConfig pollingConfig = null;
+		String statusUrl = context.getParameter(STATUS_URL_KEY);
+		if (StringUtils.isNotBlank(statusUrl)) {
+			int pollBatchSize;
+			long pollInitialInterval;
+			long pollMaxInterval;
+			double pollBackoff;
+			int pollMaxConcurrency;
+			try {
+				pollBatchSize = context.getIntParameter(POLL_BATCH_SIZE_KEY, PollingConfig.DEFAULT_MAX_BATCH_SIZE);
+				pollInitialInterval = context.getLongParameter(POLL_INITIAL_INTERVAL_KEY, PollingConfig.DEFAULT_INITIAL_INTERVAL);
+				pollMaxInterval = context.getLongParameter(POLL_MAX_INTERVAL_KEY, PollingConfig.DEFAULT_MAX_INTERVAL);
+				pollMaxConcurrency = context.getIntParameter(POLL_MAX_CONCURRENCY_KEY, PollingConfig.DEFAULT_MAX_CONCURRENT_POLLS);
+				String pollBackoffValue = context.getParameter(POLL_BACKOFF_KEY);
+				pollBackoff = StringUtils.isBlank(pollBackoffValue) ? PollingConfig.DEFAULT_BACKOFF_MULTIPLIER : Double.parseDouble(pollBackoffValue);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Poll batch size, intervals and concurrency must be integers, and poll backoff must be a number");
+			}
+			String statusPath = context.getParameter(STATUS_PATH_KEY);
+			if (StringUtils.isBlank(statusPath)) {
+				throw new IllegalArgumentException("Status path is required when polling a status URL");
+			}
+			pollingConfig = new PollingConfig(statusUrl.trim(), IdentifierPath.compile(statusPath),
+					PollingConfig.parseStates(context.getParameter(TERMINAL_STATES_KEY)))
+					.withBackoff(pollInitialInterval, pollMaxInterval, pollBackoff)
+					.withMaxConcurrentPolls(pollMaxConcurrency);
+			String batchStatusUrl = context.getParameter(BATCH_STATUS_URL_KEY);
+			if (StringUtils.isNotBlank(batchStatusUrl)) {
+				String statusIdentifierPath = context.getParameter(STATUS_IDENTIFIER_PATH_KEY, PollingConfig.DEFAULT_IDENTIFIER_PATH);
+				pollingConfig = pollingConfig.withBatchStatusUrl(batchStatusUrl.trim(), IdentifierPath.compile(statusIdentifierPath), pollBatchSize);
+			}
+		}
+		
+		int maxPendingCallbacks;
+		int retryAfter;
+		try {
+			maxPendingCallbacks = context.getIntParameter(MAX_PENDING_CALLBACKS_KEY, 0);
+			retryAfter = context.getIntParameter(RETRY_AFTER_KEY, AbstractAsyncHttpListener.DEFAULT_RETRY_AFTER);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Maximum pending callbacks and retry delay must be integers");
+		}
+		
+		String maxBodySizeValue = context.getParameter(MAX_BODY_SIZE_KEY);
+		int maxBodySize;
+		try {
+			maxBodySize = StringUtils.isBlank(maxBodySizeValue) ? AbstractAsyncHttpListener.DEFAULT_MAX_BODY_SIZE : Integer.parseInt(maxBodySizeValue);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Maximum callback body size must be an integer");
+		}
+		
+		ListenerTransportConfig transportConfig = new ListenerTransportConfig(transportType, portNumber, workerThreads, acceptQueueSize, workerQueueSize)
+				.withShards(shardCount, shardMode)
+				.withThreadMode(threadMode);
+		if (threadMode == ListenerThreadMode.VIRTUAL && !transportConfig.isVirtualThreads()) {
+			LOGGER.warn("Virtual threads require Java 21 or later; AsyncHttpListener falls back to platform threads");
+		}
+		AsyncHttpListener httpListener = AsyncHttpListener.instantiate(transportConfig, identifierPath, timeoutDuration);
+		httpListener.setMaxBodySize(maxBodySize);
+		httpListener.setTimeoutResolution(timeoutResolution);
+		httpListener.setResponseRegistryType(responseRegistryType);
+		httpListener.setDiscardBodies(Boolean.parseBoolean(context.getParameter(DISCARD_BODY_KEY)));
+		httpListener.setEarlyArrivalLimits(earlyArrivalTtl, earlyArrivalMaxEntries, earlyArrivalMaxBytes);
+		httpListener.setAdmissionLimits(maxPendingCallbacks, retryAfter);
+		for (URI eventStreamUri : eventStreamUris) {
+			httpListener.addEventStream(eventStreamUri, eventStreamReconnectDelay);
+		}
+		if (relayConfig != null) {
+			httpListener.setRelay(relayConfig);
+			JMeterUtils.setProperty(NODE_ID_PROPERTY, relayConfig.getNodeId());
+		}
+		if (pollingConfig != null) {
+			httpListener.setPolling(pollingConfig);
+		}
 		try {
 			httpListener.start();
-			LOGGER.info("AsyncHttpListener started on port {}", portNumber);
+			LOGGER.info("AsyncHttpListener started on port {} using {} transport", portNumber, transportType);
+			if (shardCount > 1) {
+				LOGGER.info("AsyncHttpListener is sharded {} ways ({})", shardCount, shardMode);
+			}
+			if (transportConfig.isVirtualThreads()) {
+				LOGGER.info("AsyncHttpListener handles connections on virtual threads");
+			}
 			result.setSuccessful(true);
 		} catch (IOException e) {
 			LOGGER.error("Could not start the AsyncHttpListener on port {}", portNumber);
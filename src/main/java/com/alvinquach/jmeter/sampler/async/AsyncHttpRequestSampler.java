@@ -1,20 +1,13 @@
 package com.alvinquach.jmeter.sampler.async;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
 import org.apache.jmeter.samplers.SampleResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.alvinquach.jmeter.sampler.util.JsonNodeUtils;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-
 /**
  * Generic sampler plug-in for sending HTTP requests to an asynchronous API
  * endpoint.
@@ -36,27 +29,6 @@ public class AsyncHttpRequestSampler extends AbstractAsyncHttpRequestSampler {
 	
 	private static final String IDENTIFIER_KEY = "identifier";
 	
-	private static final String IDENTIFIER_PATH_KEY = "identifierPath";
-	
-	private String identifierPath;
-	
-	@Override
-	public Arguments getDefaultParameters() {
-		Arguments defaultArguments = super.getDefaultParameters();
-		defaultArguments.addArgument(IDENTIFIER_PATH_KEY, "");
-		return defaultArguments;
-	}
-	
-	@Override
-	public void setupTest(JavaSamplerContext context) {
-		super.setupTest(context);
-		
-		identifierPath = context.getParameter(IDENTIFIER_PATH_KEY);
-		if (StringUtils.isEmpty(identifierPath)) {
-			throw new IllegalArgumentException("Setup error: identifier path must not be blank");
-		}
-	}
-
 	@Override
 	protected void populateHeaders(HttpPost request) {
 		return;
@@ -64,18 +36,17 @@ public class AsyncHttpRequestSampler extends AbstractAsyncHttpRequestSampler {
 	
 	@Override
 	protected HttpEntity createRequestEntityFromContext(JavaSamplerContext context) {
-		String json = context.getParameter(REQUEST_BODY_KEY);	
-		return new StringEntity(json, ContentType.APPLICATION_JSON);
+		return createRequestEntityFromTemplate(context, ContentType.APPLICATION_JSON);
 	}
 	
 	@Override
-	protected void populateResultFromResponseBody(JavaSamplerContext context, SampleResult result, String responseBody) {
+	protected void populateResultFromResponseBody(JavaSamplerContext context, SampleResult result, byte[] responseBody) {
 		super.populateResultFromResponseBody(context, result, responseBody);
 		/*
 		 * Get a unique identifier for the result. This will be used by the response
 		 * sampler to track the corresponding asynchronous response for this request.
 		 */
-		String identifier = parseIdentifierFromResponseBody(context, responseBody);
+		String identifier = parseIdentifierFromResponseBody(responseBody);
 		if (identifier == null) {
 			result.setSuccessful(false);
 			return;
@@ -84,21 +55,6 @@ public class AsyncHttpRequestSampler extends AbstractAsyncHttpRequestSampler {
 		LOGGER.info("Receieved initial response with identifier '{}'", identifier);
 	}
 	
-	protected String parseIdentifierFromResponseBody(JavaSamplerContext context, String responseBody) {
-		JsonNode jsonNode;
-		try {
-			jsonNode = JsonNodeUtils.deserializeString(responseBody);
-		} catch (JsonProcessingException e) {
-			LOGGER.error("Exception encountered while deserializing the response body: {}", e.getClass().getSimpleName());
-			return null;
-		}
-		String identifier = JsonNodeUtils.getNumberOrTextAsString(jsonNode, identifierPath);
-		if (identifier == null) {
-	    	LOGGER.error("Response body does not contain a valid identifier value at the specified path '{}'", identifierPath);
-		}
-		return identifier;
-	}
-
 	@Override
 	protected Logger logger() {
 		return LOGGER;
@@ -0,0 +1,67 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.jmeter.protocol.java.sampler.JavaSamplerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generic sampler plug-in for running whole asynchronous HTTP transactions
+ * against an asynchronous API endpoint without blocking the JMeter thread. One
+ * SampleResult is reported for each transaction, covering the time from when
+ * the request was sent until the asynchronous response was received.
+ * <p>
+ * Unlike the AsyncHttpRequestSampler and AsyncHttpResponseSampler pair, this
+ * sampler does not need to be paired with another sampler. The test plan
+ * should include an AsyncHttpListenerSetup that runs once before this sampler
+ * runs the first time.
+ *
+ * @author Alvin Quach
+ */
+public class AsyncHttpTransactionSampler extends AbstractAsyncHttpTransactionSampler {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpTransactionSampler.class);
+	
+	private static AsyncHttpListener httpListener;
+	
+	@Override
+	public void setupTest(JavaSamplerContext context) {
+		super.setupTest(context);
+		if (httpListener == null) {
+			httpListener = AsyncHttpListener.instance();
+		}
+	}
+	
+	@Override
+	public void teardownTest(JavaSamplerContext context) {
+		super.teardownTest(context);
+		/*
+		 * Must dereference the HTTP listener here since a new instance will be created
+		 * when the test is run again.
+		 */
+		httpListener = null;
+	}
+
+	@Override
+	protected void populateHeaders(HttpPost request) {
+		return;
+	}
+	
+	@Override
+	protected HttpEntity createRequestEntityFromContext(JavaSamplerContext context) {
+		return createRequestEntityFromTemplate(context, ContentType.APPLICATION_JSON);
+	}
+
+	@Override
+	protected AbstractAsyncHttpListener httpListener() {
+		return httpListener;
+	}
+
+	@Override
+	protected Logger logger() {
+		return LOGGER;
+	}
+
+}
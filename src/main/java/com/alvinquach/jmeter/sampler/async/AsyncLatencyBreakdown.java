@@ -0,0 +1,99 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.util.JMeterUtils;
+
+/**
+ * Breaks the latency of an asynchronous transaction down into its stages,
+ * using {@link System#nanoTime()} stamps taken along the way:
+ * <ul>
+ * <li>Initial response - from sending the request to receiving the initial
+ * response.</li>
+ * <li>Request to callback - from sending the request to the listener
+ * receiving the asynchronous response.</li>
+ * <li>Callback to sampler - from the listener receiving the asynchronous
+ * response to the sampler picking it up, which is the time spent in the
+ * listener and waking up the waiting thread.</li>
+ * </ul>
+ *
+ * @author Alvin Quach
+ */
+final class AsyncLatencyBreakdown {
+
+	static final String INITIAL_RESPONSE_LABEL = "Initial response";
+
+	static final String REQUEST_TO_CALLBACK_LABEL = "Request to callback";
+
+	static final String CALLBACK_TO_SAMPLER_LABEL = "Callback to sampler";
+
+	/**
+	 * Whether JMeter stamps results with their start time rather than their end
+	 * time, which is also what {@link SampleResult#setStampAndTime(long, long)}
+	 * takes the stamp to be.
+	 */
+	private static final boolean TIMESTAMP_AT_START = JMeterUtils.getPropDefault("sampleresult.timestamp.start", false);
+
+	private final long sentNanos;
+
+	private final long initialResponseNanos;
+
+	private final long callbackNanos;
+
+	private final long wokenNanos;
+
+	AsyncLatencyBreakdown(long sentNanos, long initialResponseNanos, long callbackNanos, long wokenNanos) {
+		this.sentNanos = sentNanos;
+		this.initialResponseNanos = initialResponseNanos;
+		this.callbackNanos = callbackNanos;
+		this.wokenNanos = wokenNanos;
+	}
+
+	long initialResponseTime() {
+		return initialResponseNanos - sentNanos;
+	}
+
+	long requestToCallbackTime() {
+		return callbackNanos - sentNanos;
+	}
+
+	long callbackToSamplerTime() {
+		return wokenNanos - callbackNanos;
+	}
+
+	/**
+	 * Adds each stage to the result as a sub-result. Must be called after the
+	 * result has ended.
+	 */
+	void addSubResults(SampleResult result) {
+		result.addSubResult(stage(INITIAL_RESPONSE_LABEL, sentNanos, initialResponseNanos), false);
+		result.addSubResult(stage(REQUEST_TO_CALLBACK_LABEL, sentNanos, callbackNanos), false);
+		result.addSubResult(stage(CALLBACK_TO_SAMPLER_LABEL, callbackNanos, wokenNanos), false);
+	}
+
+	/**
+	 * Returns a successful sub-result that spans the given
+	 * {@link System#nanoTime()} stamps.
+	 */
+	static SampleResult stage(String label, long startNanos, long endNanos) {
+		long startTime = toEpochMillis(startNanos);
+		SampleResult stage = spanning(startTime, startTime + TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos));
+		stage.setSampleLabel(label);
+		stage.setSuccessful(true);
+		return stage;
+	}
+
+	/**
+	 * Returns a new result that starts and ends at the given times, in
+	 * milliseconds since the epoch.
+	 */
+	static SampleResult spanning(long startTime, long endTime) {
+		return new SampleResult(TIMESTAMP_AT_START ? startTime : endTime, endTime - startTime);
+	}
+
+	private static long toEpochMillis(long nanos) {
+		return System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanos);
+	}
+
+}
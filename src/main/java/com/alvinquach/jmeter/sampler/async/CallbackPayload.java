@@ -0,0 +1,246 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.jmeter.samplers.SampleResult;
+
+import com.alvinquach.jmeter.sampler.util.CallbackBody;
+
+/**
+ * Asynchronous response received by the listener. The body is kept as the
+ * raw bytes that were received, and is only decoded into text if someone
+ * asks for it.
+ * <p>
+ * In discard mode, the body itself is not kept at all, and only its size and
+ * CRC32 checksum are recorded, which is enough to tell responses apart in
+ * pure throughput runs.
+ * <p>
+ * A body that was sent compressed is kept decoded, along with the number of
+ * bytes it took up on the wire.
+ *
+ * @author Alvin Quach
+ */
+public final class CallbackPayload {
+
+	/**
+	 * Rough number of bytes that a payload takes up besides its body.
+	 */
+	private static final int OVERHEAD = 64;
+
+	/**
+	 * Creates a payload that keeps a copy of the given body, since the body
+	 * itself is only valid until the listener thread reads the next request.
+	 */
+	public static CallbackPayload copyOf(CallbackBody body, String contentType, long arrivalNanos) {
+		return new CallbackPayload(body.copyBytes(), body.length(), -1, contentType, body.charset(), arrivalNanos);
+	}
+
+	/**
+	 * Creates a payload that only keeps the size and checksum of the given body.
+	 */
+	public static CallbackPayload discarded(CallbackBody body, String contentType, long arrivalNanos) {
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), body.offset(), body.length());
+		return new CallbackPayload(null, body.length(), crc.getValue(), contentType, body.charset(), arrivalNanos);
+	}
+
+	/**
+	 * Creates a payload from the size and checksum of a body that was discarded
+	 * while it was read, without ever being buffered.
+	 */
+	public static CallbackPayload discarded(int size, long checksum, String contentType, Charset charset, long arrivalNanos) {
+		return new CallbackPayload(null, size, checksum, contentType, charset, arrivalNanos);
+	}
+
+	/**
+	 * Recreates a payload that another listener received and relayed to this
+	 * one, from the parts that it sent along.
+	 *
+	 * @param bytes The body, or null if it was discarded.
+	 * @param checksum The checksum of a discarded body; ignored otherwise.
+	 */
+	public static CallbackPayload relayed(byte[] bytes, int size, long checksum, String contentType, Charset charset, long arrivalNanos) {
+		return new CallbackPayload(bytes, size, bytes == null ? checksum : -1, contentType, charset, arrivalNanos);
+	}
+
+	private final byte[] bytes;
+
+	private final int size;
+
+	private long checksum;
+
+	private final String contentType;
+
+	private final Charset charset;
+
+	private final long arrivalNanos;
+
+	private final long arrivalTime;
+
+	/**
+	 * Content coding that the body was sent with, or null if it was not encoded.
+	 */
+	private final String contentEncoding;
+
+	/**
+	 * Size of the body as it was sent, or -1 if it is not known.
+	 */
+	private final long encodedSize;
+
+	private volatile String text;
+
+	private CallbackPayload(byte[] bytes, int size, long checksum, String contentType, Charset charset, long arrivalNanos) {
+		this(bytes, size, checksum, contentType, charset, arrivalNanos,
+				System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - arrivalNanos), null, size);
+	}
+
+	private CallbackPayload(byte[] bytes, int size, long checksum, String contentType, Charset charset, long arrivalNanos,
+			long arrivalTime, String contentEncoding, long encodedSize) {
+		this.bytes = bytes;
+		this.size = size;
+		this.checksum = checksum;
+		this.contentType = contentType;
+		this.charset = charset;
+		this.arrivalNanos = arrivalNanos;
+		this.arrivalTime = arrivalTime;
+		this.contentEncoding = contentEncoding;
+		this.encodedSize = encodedSize;
+	}
+
+	/**
+	 * Returns a copy of this payload, whose body was decoded from the given
+	 * content coding.
+	 *
+	 * @param encodedSize The size of the body as it was sent, or -1 if it is not
+	 *        known, such as for an element of a compressed batch.
+	 */
+	public synchronized CallbackPayload encoded(String contentEncoding, long encodedSize) {
+		return new CallbackPayload(bytes, size, checksum, contentType, charset, arrivalNanos, arrivalTime, contentEncoding, encodedSize);
+	}
+
+	/**
+	 * Returns whether the body was discarded, in which case only its size and
+	 * checksum are available.
+	 */
+	public boolean isDiscarded() {
+		return bytes == null;
+	}
+
+	/**
+	 * Returns the size of the body in bytes, even if it was discarded. A body
+	 * that was sent compressed is counted decoded.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the raw body, or an empty array if it was discarded. The returned
+	 * array must not be modified.
+	 */
+	public byte[] bytes() {
+		return bytes != null ? bytes : ArrayUtils.EMPTY_BYTE_ARRAY;
+	}
+
+	/**
+	 * Returns the body decoded with its charset, or an empty string if it was
+	 * discarded. The body is decoded the first time this is called.
+	 */
+	public String text() {
+		String decoded = text;
+		if (decoded == null) {
+			decoded = bytes != null ? new String(bytes, charset) : "";
+			text = decoded;
+		}
+		return decoded;
+	}
+
+	/**
+	 * Returns the CRC32 checksum of the body.
+	 */
+	public synchronized long checksum() {
+		if (checksum < 0) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			checksum = crc.getValue();
+		}
+		return checksum;
+	}
+
+	public String contentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the content coding that the body was sent with, or null if it was
+	 * not encoded.
+	 */
+	public String contentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * Returns the size of the body as it was sent, which is the compressed size
+	 * for a compressed body, or -1 if it is not known.
+	 */
+	public long encodedSize() {
+		return encodedSize;
+	}
+
+	public Charset charset() {
+		return charset;
+	}
+
+	/**
+	 * Returns the time that the listener received the payload, in milliseconds
+	 * since the epoch.
+	 */
+	public long arrivalTime() {
+		return arrivalTime;
+	}
+
+	/**
+	 * Returns the {@link System#nanoTime()} at which the listener received the
+	 * payload.
+	 */
+	public long arrivalNanos() {
+		return arrivalNanos;
+	}
+
+	/**
+	 * Sets the response data of a sample result to this payload. The raw body is
+	 * handed over without being decoded. For a discarded body, the result gets
+	 * the size and checksum instead.
+	 * <p>
+	 * As with JMeter's HTTP sampler, the body size of the result is the number of
+	 * bytes received, so for a compressed body it is the compressed size, while
+	 * the response data is decoded. The content coding and the compressed size
+	 * are added to the response headers.
+	 */
+	public void applyTo(SampleResult result) {
+		result.setBodySize(encodedSize >= 0 ? encodedSize : size);
+		if (contentEncoding != null) {
+			result.setResponseHeaders("Content-Encoding: " + contentEncoding + "\n"
+					+ (encodedSize >= 0 ? "Content-Length: " + encodedSize + "\n" : ""));
+		}
+		result.setContentType(contentType != null ? contentType : "application/json");
+		result.setDataType(SampleResult.TEXT);
+		result.setDataEncoding(charset.name());
+		result.setResponseData(bytes());
+		if (isDiscarded()) {
+			result.setResponseMessage("Body discarded (" + size + " bytes, CRC32 " + String.format("%08x", checksum) + ")");
+		}
+		result.setResponseCodeOK();
+	}
+
+	/**
+	 * Returns roughly how many bytes of memory the payload holds on to.
+	 */
+	long retainedSize() {
+		return OVERHEAD + (bytes != null ? bytes.length : 0);
+	}
+
+}
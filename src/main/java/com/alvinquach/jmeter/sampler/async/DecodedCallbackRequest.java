@@ -0,0 +1,113 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+
+import com.alvinquach.jmeter.sampler.async.transport.CallbackRequest;
+import com.alvinquach.jmeter.sampler.util.ContentEncoding;
+
+/**
+ * A callback whose body was sent with a content coding, presented with its
+ * body decoded as it is read. The number of encoded bytes that have been read
+ * is counted, so that both sizes can be reported.
+ *
+ * @author Alvin Quach
+ */
+final class DecodedCallbackRequest implements CallbackRequest {
+
+	private final CallbackRequest request;
+
+	private final ContentEncoding encoding;
+
+	private final CountingInputStream encoded;
+
+	private final InputStream decoded;
+
+	private boolean batch;
+
+	/**
+	 * @throws IOException if the start of the body is not valid for the coding.
+	 */
+	DecodedCallbackRequest(CallbackRequest request, ContentEncoding encoding) throws IOException {
+		this.request = request;
+		this.encoding = encoding;
+		/*
+		 * The transport owns the stream of the request, so closing the decoder must
+		 * not close it.
+		 */
+		encoded = new CountingInputStream(new CloseShieldInputStream(request.getInputStream()));
+		decoded = encoding.decode(encoded);
+	}
+
+	ContentEncoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Marks the body as a batch, whose elements do not have an encoded size of
+	 * their own.
+	 */
+	void markBatch() {
+		batch = true;
+	}
+
+	/**
+	 * Returns the encoded size of the body, once it has been read to the end, or
+	 * -1 if the body is a batch.
+	 */
+	long getEncodedLength() {
+		return batch ? -1 : encoded.getByteCount();
+	}
+
+	@Override
+	public String getMethod() {
+		return request.getMethod();
+	}
+
+	@Override
+	public String getPath() {
+		return request.getPath();
+	}
+
+	@Override
+	public String getHeader(String name) {
+		String lowerCaseName = name.toLowerCase();
+		if ("content-length".equals(lowerCaseName) || "content-encoding".equals(lowerCaseName)) {
+			return null;
+		}
+		return request.getHeader(name);
+	}
+
+	@Override
+	public long getReceivedNanos() {
+		return request.getReceivedNanos();
+	}
+
+	/**
+	 * The decoded length is not known until the body has been decoded.
+	 */
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return decoded;
+	}
+
+	/**
+	 * Releases the decoder, without closing the stream of the request.
+	 */
+	void release() {
+		try {
+			decoded.close();
+		} catch (IOException e) {
+			// Nothing is left to read from it.
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * When a fan-out of asynchronous transactions counts as complete.
+ *
+ * @author Alvin Quach
+ */
+public enum FanOutCompletion {
+
+	/**
+	 * Every response has arrived, or failed.
+	 */
+	ALL {
+		@Override
+		CompletableFuture<?> of(List<CompletableFuture<CallbackPayload>> futures) {
+			return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+		}
+	},
+
+	/**
+	 * The first response has arrived. Responses that fail do not count, so this
+	 * only fails once every response has failed.
+	 */
+	ANY {
+		@Override
+		CompletableFuture<?> of(List<CompletableFuture<CallbackPayload>> futures) {
+			CompletableFuture<CallbackPayload> first = new CompletableFuture<>();
+			for (CompletableFuture<CallbackPayload> future : futures) {
+				future.thenAccept(first::complete);
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, exception) -> {
+				/*
+				 * This may run before the callbacks above, so look for a response that has
+				 * arrived before failing.
+				 */
+				for (CompletableFuture<CallbackPayload> future : futures) {
+					if (!future.isCompletedExceptionally()) {
+						first.complete(future.join());
+						return;
+					}
+				}
+				first.completeExceptionally(exception);
+			});
+			return first;
+		}
+	};
+
+	/**
+	 * Returns a future that completes once the given responses are complete by
+	 * this mode.
+	 */
+	abstract CompletableFuture<?> of(List<CompletableFuture<CallbackPayload>> futures);
+
+	public static FanOutCompletion parse(String value) {
+		if (StringUtils.isBlank(value)) {
+			return ALL;
+		}
+		String normalized = value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+		try {
+			return valueOf(normalized);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown fan-out completion mode '" + value + "'");
+		}
+	}
+
+}
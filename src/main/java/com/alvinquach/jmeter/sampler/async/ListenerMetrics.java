@@ -0,0 +1,354 @@
+package com.alvinquach.jmeter.sampler.async;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.alvinquach.jmeter.sampler.async.polling.StatusPoller;
+import com.alvinquach.jmeter.sampler.async.relay.CallbackRelay;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackResponse;
+
+/**
+ * Live metrics of an asynchronous HTTP listener. Latencies are recorded into
+ * HdrHistogram recorders and counts into LongAdders, so recording is
+ * wait-free and does not contend between listener threads. The recorded
+ * intervals are only merged when the metrics are read, either in Prometheus
+ * text format or over JMX.
+ *
+ * @author Alvin Quach
+ */
+public final class ListenerMetrics implements ListenerMetricsMBean {
+
+	private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private static final int MIN_STATUS = 100;
+
+	private static final int MAX_STATUS = 599;
+
+	/**
+	 * A latency that is recorded on the hot path and read as a whole.
+	 */
+	private static final class Latency {
+
+		private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+
+		/**
+		 * Everything recorded up to the last read. Guarded by the metrics.
+		 */
+		private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+
+		private Histogram interval;
+
+		private void record(long nanos) {
+			recorder.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+		}
+
+		private Histogram snapshot() {
+			interval = recorder.getIntervalHistogram(interval);
+			total.add(interval);
+			return total;
+		}
+	}
+
+	private final AbstractAsyncHttpListener listener;
+
+	private final Latency callbackProcessing = new Latency();
+
+	private final Latency endToEnd = new Latency();
+
+	private final Latency relayHop = new Latency();
+
+	private final LongAdder[] responses = new LongAdder[MAX_STATUS - MIN_STATUS + 1];
+
+	ListenerMetrics(AbstractAsyncHttpListener listener) {
+		this.listener = listener;
+		for (int i = 0; i < responses.length; i++) {
+			responses[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a callback that was answered with the given status code, and how
+	 * long it took to process.
+	 */
+	void recordCallback(int statusCode, long processingNanos) {
+		if (statusCode >= MIN_STATUS && statusCode <= MAX_STATUS) {
+			responses[statusCode - MIN_STATUS].increment();
+		}
+		callbackProcessing.record(processingNanos);
+	}
+
+	/**
+	 * Records the time from sending a request to receiving its asynchronous
+	 * response.
+	 */
+	void recordEndToEnd(long nanos) {
+		endToEnd.record(nanos);
+	}
+
+	/**
+	 * Records the time from queuing a callback for another node to that node
+	 * acknowledging it.
+	 */
+	void recordRelayHop(long nanos) {
+		relayHop.record(nanos);
+	}
+
+	private long countResponses(int fromStatus, int toStatus) {
+		long count = 0;
+		for (int status = fromStatus; status <= toStatus; status++) {
+			count += responses[status - MIN_STATUS].sum();
+		}
+		return count;
+	}
+
+	@Override
+	public long getCallbackCount() {
+		return countResponses(MIN_STATUS, MAX_STATUS);
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return countResponses(400, 499);
+	}
+
+	@Override
+	public long getBusyRejectedCount() {
+		return listener.getBusyRejectedCount();
+	}
+
+	@Override
+	public long getPendingLimitRejectedCount() {
+		return listener.getPendingLimitRejectedCount();
+	}
+
+	@Override
+	public long[] getShardRequestCounts() {
+		return listener.getShardRequestCounts();
+	}
+
+	@Override
+	public long getBatchCount() {
+		return listener.getBatchCount();
+	}
+
+	@Override
+	public long getBatchElementCount() {
+		return listener.getBatchElementCount();
+	}
+
+	@Override
+	public long getInvalidBatchElementCount() {
+		return listener.getInvalidBatchElementCount();
+	}
+
+	@Override
+	public long getMaxBatchSize() {
+		return listener.getMaxBatchSize();
+	}
+
+	@Override
+	public long getRelaySentCount() {
+		CallbackRelay relay = listener.getRelay();
+		return relay == null ? 0 : relay.getSentCount();
+	}
+
+	@Override
+	public long getRelayReceivedCount() {
+		CallbackRelay relay = listener.getRelay();
+		return relay == null ? 0 : relay.getReceivedCount();
+	}
+
+	@Override
+	public long getRelayLostCount() {
+		CallbackRelay relay = listener.getRelay();
+		return relay == null ? 0 : relay.getLostCount();
+	}
+
+	@Override
+	public long getRelayRejectedCount() {
+		CallbackRelay relay = listener.getRelay();
+		return relay == null ? 0 : relay.getRejectedCount();
+	}
+
+	@Override
+	public long getStatusPollCount() {
+		StatusPoller poller = listener.getPoller();
+		return poller == null ? 0 : poller.getPollCount();
+	}
+
+	@Override
+	public long getStatusQueryCount() {
+		StatusPoller poller = listener.getPoller();
+		return poller == null ? 0 : poller.getRequestCount();
+	}
+
+	@Override
+	public long getStatusQueryErrorCount() {
+		StatusPoller poller = listener.getPoller();
+		return poller == null ? 0 : poller.getErrorCount();
+	}
+
+	@Override
+	public int getPendingResponses() {
+		return listener.getPendingCount();
+	}
+
+	@Override
+	public long getTimeoutCount() {
+		return listener.getTimeoutCount();
+	}
+
+	@Override
+	public long getEarlyArrivalCount() {
+		return listener.getEarlyArrivalCount();
+	}
+
+	@Override
+	public long getOrphanedCount() {
+		return listener.getOrphanedCount();
+	}
+
+	@Override
+	public long getEvictedCount() {
+		return listener.getEvictedCount();
+	}
+
+	@Override
+	public long getLateCount() {
+		return listener.getLateCount();
+	}
+
+	@Override
+	public synchronized double getCallbackProcessingP50Micros() {
+		return callbackProcessing.snapshot().getValueAtPercentile(50);
+	}
+
+	@Override
+	public synchronized double getCallbackProcessingP99Micros() {
+		return callbackProcessing.snapshot().getValueAtPercentile(99);
+	}
+
+	@Override
+	public synchronized double getEndToEndLatencyP50Micros() {
+		return endToEnd.snapshot().getValueAtPercentile(50);
+	}
+
+	@Override
+	public synchronized double getEndToEndLatencyP99Micros() {
+		return endToEnd.snapshot().getValueAtPercentile(99);
+	}
+
+	@Override
+	public synchronized double getRelayHopLatencyP50Micros() {
+		return relayHop.snapshot().getValueAtPercentile(50);
+	}
+
+	@Override
+	public synchronized double getRelayHopLatencyP99Micros() {
+		return relayHop.snapshot().getValueAtPercentile(99);
+	}
+
+	/**
+	 * Returns the metrics in the Prometheus text exposition format.
+	 */
+	synchronized CallbackResponse toPrometheusResponse() {
+		StringBuilder text = new StringBuilder(2048);
+
+		appendSummary(text, "async_listener_callback_processing_seconds",
+				"Time from receiving a callback to answering it.", callbackProcessing.snapshot());
+		appendSummary(text, "async_listener_end_to_end_latency_seconds",
+				"Time from sending a request to receiving its asynchronous response.", endToEnd.snapshot());
+
+		appendHeader(text, "async_listener_callbacks_total", "Callbacks received, by response status.", "counter");
+		for (int status = MIN_STATUS; status <= MAX_STATUS; status++) {
+			long count = responses[status - MIN_STATUS].sum();
+			if (count > 0) {
+				text.append("async_listener_callbacks_total{status=\"").append(status).append("\"} ").append(count).append('\n');
+			}
+		}
+
+		appendHeader(text, "async_listener_rejected_total", "Callbacks that were turned away so that the sender backs off, by reason.", "counter");
+		text.append("async_listener_rejected_total{reason=\"busy\"} ").append(getBusyRejectedCount()).append('\n');
+		text.append("async_listener_rejected_total{reason=\"pending_limit\"} ").append(getPendingLimitRejectedCount()).append('\n');
+		text.append("async_listener_rejected_total{reason=\"relay_queue\"} ").append(getRelayRejectedCount()).append('\n');
+
+		appendHeader(text, "async_listener_shard_requests_total", "Requests received, by listener shard.", "counter");
+		long[] shardCounts = getShardRequestCounts();
+		for (int shard = 0; shard < shardCounts.length; shard++) {
+			text.append("async_listener_shard_requests_total{shard=\"").append(shard)
+					.append("\",port=\"").append(listener.getShardPort(shard)).append("\"} ")
+					.append(shardCounts[shard]).append('\n');
+		}
+
+		appendValue(text, "async_listener_batches_total", "Requests that carried a batch of callbacks.", "counter", getBatchCount());
+		appendValue(text, "async_listener_batch_elements_total", "Callbacks received in batches.", "counter", getBatchElementCount());
+		appendValue(text, "async_listener_batch_elements_invalid_total", "Callbacks in batches that could not be handled.", "counter", getInvalidBatchElementCount());
+		appendValue(text, "async_listener_batch_size_max", "Largest number of callbacks in a single batch.", "gauge", getMaxBatchSize());
+
+		CallbackRelay relay = listener.getRelay();
+		if (relay != null) {
+			appendSummary(text, "async_listener_relay_hop_seconds",
+					"Time from queuing a callback for the node that owns it to that node acknowledging it.", relayHop.snapshot());
+			appendHeader(text, "async_listener_relay_sent_total", "Callbacks relayed to the nodes that own them, by node.", "counter");
+			for (String peer : relay.getPeerIds()) {
+				text.append("async_listener_relay_sent_total{peer=\"").append(peer).append("\"} ")
+						.append(relay.getSentCount(peer)).append('\n');
+			}
+			appendValue(text, "async_listener_relay_frames_total", "Frames of callbacks sent to other nodes.", "counter", relay.getFrameCount());
+			appendValue(text, "async_listener_relay_received_total", "Callbacks that other nodes relayed to this one.", "counter", relay.getReceivedCount());
+			appendValue(text, "async_listener_relay_lost_total", "Relayed callbacks whose connection broke before they were acknowledged.", "counter", relay.getLostCount());
+		}
+
+		StatusPoller poller = listener.getPoller();
+		if (poller != null) {
+			appendValue(text, "async_listener_status_polls_total", "Times a transaction was polled for its status.", "counter", poller.getPollCount());
+			appendValue(text, "async_listener_status_queries_total", "Status queries sent, each polling one or a batch of transactions.", "counter", poller.getRequestCount());
+			appendValue(text, "async_listener_status_query_errors_total", "Status queries that failed or returned an error.", "counter", poller.getErrorCount());
+			appendValue(text, "async_listener_status_completed_total", "Transactions that were found complete by polling.", "counter", poller.getCompletedCount());
+			appendValue(text, "async_listener_status_watched", "Transactions being polled.", "gauge", poller.getWatchedCount());
+		}
+
+		appendValue(text, "async_listener_pending_responses", "Responses that samplers are waiting on.", "gauge", getPendingResponses());
+		appendValue(text, "async_listener_timeouts_total", "Responses that timed out.", "counter", getTimeoutCount());
+		appendValue(text, "async_listener_early_arrivals_total", "Callbacks that arrived before any sampler waited on them.", "counter", getEarlyArrivalCount());
+		appendValue(text, "async_listener_orphaned_total", "Early callbacks that expired without being claimed.", "counter", getOrphanedCount());
+		appendValue(text, "async_listener_evicted_total", "Early callbacks that were evicted to stay within limits.", "counter", getEvictedCount());
+		appendValue(text, "async_listener_late_total", "Callbacks that arrived after their sampler stopped waiting.", "counter", getLateCount());
+
+		return new CallbackResponse(200, "OK", PROMETHEUS_CONTENT_TYPE, text.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void appendHeader(StringBuilder text, String name, String help, String type) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void appendValue(StringBuilder text, String name, String help, String type, long value) {
+		appendHeader(text, name, help, type);
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void appendSummary(StringBuilder text, String name, String help, Histogram histogram) {
+		appendHeader(text, name, help, "summary");
+		for (double quantile : QUANTILES) {
+			text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(microsToSeconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+		}
+		long count = histogram.getTotalCount();
+		text.append(name).append("_sum ").append(microsToSeconds(histogram.getMean() * count)).append('\n');
+		text.append(name).append("_count ").append(count).append('\n');
+	}
+
+	private static double microsToSeconds(double micros) {
+		return micros / 1_000_000;
+	}
+
+}
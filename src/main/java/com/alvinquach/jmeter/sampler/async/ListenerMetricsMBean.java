@@ -0,0 +1,67 @@
+package com.alvinquach.jmeter.sampler.async;
+
+/**
+ * JMX view of the metrics of an asynchronous HTTP listener. Latency
+ * percentiles cover the whole run so far and are in microseconds.
+ *
+ * @author Alvin Quach
+ */
+public interface ListenerMetricsMBean {
+
+	long getCallbackCount();
+
+	long getRejectedCount();
+
+	long getBusyRejectedCount();
+
+	long getPendingLimitRejectedCount();
+
+	long[] getShardRequestCounts();
+
+	long getBatchCount();
+
+	long getBatchElementCount();
+
+	long getInvalidBatchElementCount();
+
+	long getMaxBatchSize();
+
+	long getRelaySentCount();
+
+	long getRelayReceivedCount();
+
+	long getRelayLostCount();
+
+	long getRelayRejectedCount();
+
+	long getStatusPollCount();
+
+	long getStatusQueryCount();
+
+	long getStatusQueryErrorCount();
+
+	int getPendingResponses();
+
+	long getTimeoutCount();
+
+	long getEarlyArrivalCount();
+
+	long getOrphanedCount();
+
+	long getEvictedCount();
+
+	long getLateCount();
+
+	double getCallbackProcessingP50Micros();
+
+	double getCallbackProcessingP99Micros();
+
+	double getEndToEndLatencyP50Micros();
+
+	double getEndToEndLatencyP99Micros();
+
+	double getRelayHopLatencyP50Micros();
+
+	double getRelayHopLatencyP99Micros();
+
+}
@@ -0,0 +1,260 @@
+package com.alvinquach.jmeter.sampler.async.polling;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.alvinquach.jmeter.sampler.util.IdentifierPath;
+
+/**
+ * Settings of the status poller, for asynchronous APIs that do not call back
+ * and have to be polled for the status of each transaction instead. The status
+ * URL is a template in which <code>{id}</code> is replaced by the identifier,
+ * such as <code>http://api/status/{id}</code>. If the API can return the
+ * statuses of several transactions at once, a batch status URL can be given in
+ * which <code>{ids}</code> is replaced by a comma-separated list of
+ * identifiers, such as <code>http://api/status?ids={ids}</code>.
+ * <p>
+ * A transaction is complete once the value at the state path of its status
+ * document is one of the terminal states.
+ * <p>
+ * Instances are immutable.
+ *
+ * @author Alvin Quach
+ */
+public final class PollingConfig {
+
+	public static final String IDENTIFIER_SLOT = "{id}";
+
+	public static final String IDENTIFIERS_SLOT = "{ids}";
+
+	/**
+	 * Default path of the identifier in the elements of a batch status response.
+	 */
+	public static final String DEFAULT_IDENTIFIER_PATH = "id";
+
+	/**
+	 * Default time from a sampler starting to wait on a transaction to its first
+	 * poll, in milliseconds.
+	 */
+	public static final long DEFAULT_INITIAL_INTERVAL = 250;
+
+	/**
+	 * Default longest time between two polls of the same transaction, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_MAX_INTERVAL = 5000;
+
+	/**
+	 * Default factor that the time between two polls of the same transaction
+	 * grows by after every poll that did not find it complete.
+	 */
+	public static final double DEFAULT_BACKOFF_MULTIPLIER = 2;
+
+	/**
+	 * Default maximum number of identifiers in one batch status query.
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+	/**
+	 * Default maximum number of status queries in flight at the same time.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_POLLS = 16;
+
+	private final String statusUrl;
+
+	private final String batchStatusUrl;
+
+	private final IdentifierPath identifierPath;
+
+	private final IdentifierPath statePath;
+
+	private final Set<String> terminalStates;
+
+	private final long initialInterval;
+
+	private final long maxInterval;
+
+	private final double backoffMultiplier;
+
+	private final int maxBatchSize;
+
+	private final int maxConcurrentPolls;
+
+	/**
+	 * @param statusUrl The template of the status URL of a single transaction.
+	 * @param statePath The path of the state in a status document.
+	 * @param terminalStates The states in which a transaction is complete.
+	 */
+	public PollingConfig(String statusUrl, IdentifierPath statePath, Collection<String> terminalStates) {
+		this(statusUrl, null, IdentifierPath.compile(DEFAULT_IDENTIFIER_PATH), statePath, terminalStates,
+				DEFAULT_INITIAL_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_BACKOFF_MULTIPLIER,
+				DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_CONCURRENT_POLLS);
+	}
+
+	private PollingConfig(String statusUrl, String batchStatusUrl, IdentifierPath identifierPath, IdentifierPath statePath,
+			Collection<String> terminalStates, long initialInterval, long maxInterval, double backoffMultiplier,
+			int maxBatchSize, int maxConcurrentPolls) {
+		if (StringUtils.isBlank(statusUrl) || !statusUrl.contains(IDENTIFIER_SLOT)) {
+			throw new IllegalArgumentException("Status URL must contain the identifier slot " + IDENTIFIER_SLOT);
+		}
+		if (batchStatusUrl != null && !batchStatusUrl.contains(IDENTIFIERS_SLOT)) {
+			throw new IllegalArgumentException("Batch status URL must contain the identifiers slot " + IDENTIFIERS_SLOT);
+		}
+		if (terminalStates.isEmpty()) {
+			throw new IllegalArgumentException("At least one terminal state must be given");
+		}
+		if (initialInterval <= 0 || maxInterval < initialInterval || backoffMultiplier < 1) {
+			throw new IllegalArgumentException("Poll intervals must be positive with the maximum at least the initial one, and the backoff multiplier must be at least 1");
+		}
+		if (maxBatchSize <= 0 || maxConcurrentPolls <= 0) {
+			throw new IllegalArgumentException("Poll batch size and concurrency must be positive");
+		}
+		this.statusUrl = statusUrl;
+		this.batchStatusUrl = batchStatusUrl;
+		this.identifierPath = identifierPath;
+		this.statePath = statePath;
+		this.terminalStates = Collections.unmodifiableSet(new LinkedHashSet<>(terminalStates));
+		this.initialInterval = initialInterval;
+		this.maxInterval = maxInterval;
+		this.backoffMultiplier = backoffMultiplier;
+		this.maxBatchSize = maxBatchSize;
+		this.maxConcurrentPolls = maxConcurrentPolls;
+	}
+
+	/**
+	 * Returns a copy of this configuration that polls the transactions that are
+	 * due at the same time with a single query of the given batch status URL,
+	 * up to the given number at a time. The response must be a JSON array or
+	 * NDJSON stream of status documents, with the identifier of each at the given
+	 * path.
+	 */
+	public PollingConfig withBatchStatusUrl(String batchStatusUrl, IdentifierPath identifierPath, int maxBatchSize) {
+		return new PollingConfig(statusUrl, batchStatusUrl, identifierPath, statePath, terminalStates,
+				initialInterval, maxInterval, backoffMultiplier, maxBatchSize, maxConcurrentPolls);
+	}
+
+	/**
+	 * Returns a copy of this configuration that first polls a transaction after
+	 * the initial interval, and then backs off by the multiplier after every poll
+	 * up to the maximum interval, in milliseconds.
+	 */
+	public PollingConfig withBackoff(long initialInterval, long maxInterval, double backoffMultiplier) {
+		return new PollingConfig(statusUrl, batchStatusUrl, identifierPath, statePath, terminalStates,
+				initialInterval, maxInterval, backoffMultiplier, maxBatchSize, maxConcurrentPolls);
+	}
+
+	/**
+	 * Returns a copy of this configuration that has up to the given number of
+	 * status queries in flight at the same time. Transactions that come due while
+	 * every query is in flight wait, and are coalesced into the next batch.
+	 */
+	public PollingConfig withMaxConcurrentPolls(int maxConcurrentPolls) {
+		return new PollingConfig(statusUrl, batchStatusUrl, identifierPath, statePath, terminalStates,
+				initialInterval, maxInterval, backoffMultiplier, maxBatchSize, maxConcurrentPolls);
+	}
+
+	/**
+	 * Parses a comma-separated list of terminal states.
+	 */
+	public static Set<String> parseStates(String value) {
+		Set<String> states = new LinkedHashSet<>();
+		for (String state : StringUtils.split(StringUtils.defaultString(value), ',')) {
+			if (StringUtils.isNotBlank(state)) {
+				states.add(state.trim());
+			}
+		}
+		return states;
+	}
+
+	/**
+	 * Returns the status URL of the transaction with the given identifier.
+	 */
+	public String statusUrlOf(String identifier) {
+		return statusUrl.replace(IDENTIFIER_SLOT, encode(identifier));
+	}
+
+	/**
+	 * Returns the batch status URL of the transactions with the given
+	 * identifiers.
+	 */
+	public String batchStatusUrlOf(Collection<String> identifiers) {
+		StringBuilder list = new StringBuilder();
+		for (String identifier : identifiers) {
+			if (list.length() > 0) {
+				list.append(',');
+			}
+			list.append(encode(identifier));
+		}
+		return batchStatusUrl.replace(IDENTIFIERS_SLOT, list);
+	}
+
+	private static String encode(String identifier) {
+		try {
+			return URLEncoder.encode(identifier, StandardCharsets.UTF_8.name()).replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public boolean isTerminal(String state) {
+		return state != null && terminalStates.contains(state);
+	}
+
+	public boolean isBatched() {
+		return batchStatusUrl != null;
+	}
+
+	public String getStatusUrl() {
+		return statusUrl;
+	}
+
+	public String getBatchStatusUrl() {
+		return batchStatusUrl;
+	}
+
+	public IdentifierPath getIdentifierPath() {
+		return identifierPath;
+	}
+
+	public IdentifierPath getStatePath() {
+		return statePath;
+	}
+
+	public Set<String> getTerminalStates() {
+		return terminalStates;
+	}
+
+	public long getInitialInterval() {
+		return initialInterval;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	public double getBackoffMultiplier() {
+		return backoffMultiplier;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public int getMaxConcurrentPolls() {
+		return maxConcurrentPolls;
+	}
+
+	@Override
+	public String toString() {
+		return statusUrl + (batchStatusUrl == null ? "" : " (batches of up to " + maxBatchSize + " at " + batchStatusUrl + ")")
+				+ ", terminal states " + terminalStates;
+	}
+
+}
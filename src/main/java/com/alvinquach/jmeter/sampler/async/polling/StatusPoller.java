@@ -0,0 +1,483 @@
+package com.alvinquach.jmeter.sampler.async.polling;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alvinquach.jmeter.sampler.util.CallbackBody;
+import com.alvinquach.jmeter.sampler.util.HashedTimingWheel;
+import com.alvinquach.jmeter.sampler.util.HttpAsyncClientPool;
+import com.alvinquach.jmeter.sampler.util.HttpListenerUtils;
+import com.alvinquach.jmeter.sampler.util.JsonBatchReader;
+import com.alvinquach.jmeter.sampler.util.JsonIdentifierExtractor;
+
+/**
+ * Poller that completes the responses of an asynchronous API that does not
+ * call back, by polling it for the status of every transaction that a sampler
+ * is waiting on.
+ * <p>
+ * Every transaction is polled on its own schedule, starting after the initial
+ * interval and backing off after every poll that does not find it complete, up
+ * to the maximum interval. The intervals are jittered, so that transactions
+ * that were started together drift apart instead of being polled in lockstep.
+ * A <code>Retry-After</code> header in a status response defers the next poll
+ * of the transactions in it.
+ * <p>
+ * The schedules run on a single timing wheel, which hands the transactions
+ * that are due to a dispatcher thread. The dispatcher sends their status
+ * queries through a shared non-blocking HTTP client, with up to the maximum
+ * number of queries in flight. If the API has a batch status URL, the
+ * transactions that are due at the same time are coalesced into a single query,
+ * and so are the ones that came due while every query was in flight.
+ *
+ * @author Alvin Quach
+ */
+public final class StatusPoller {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StatusPoller.class);
+
+	/**
+	 * Fraction by which every interval is randomly lengthened or shortened.
+	 */
+	private static final double JITTER = 0.2;
+
+	private static final long TICK_DURATION = 10;
+
+	private static final int TICKS_PER_WHEEL = 512;
+
+	/**
+	 * Timeout for connecting to the API and for reading a status response, in
+	 * milliseconds, so that a stalled query does not hold its slot forever.
+	 */
+	private static final int REQUEST_TIMEOUT = 10000;
+
+	/**
+	 * Largest status document that is accepted.
+	 */
+	private static final int MAX_STATUS_SIZE = 1 << 20;
+
+	/**
+	 * How often the dispatcher checks whether the poller has been stopped, in
+	 * milliseconds.
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	private static final long STOP_TIMEOUT = 1000;
+
+	/**
+	 * Receives the status documents of the transactions that have completed.
+	 */
+	public interface Receiver {
+
+		/**
+		 * Called on an I/O thread of the HTTP client. The status document is only
+		 * valid until this returns.
+		 */
+		void receive(String identifier, CallbackBody status, String contentType, long arrivalNanos);
+
+	}
+
+	private final PollingConfig config;
+
+	private final Predicate<String> awaiting;
+
+	private final Receiver receiver;
+
+	private final JsonIdentifierExtractor identifierExtractor;
+
+	private final JsonIdentifierExtractor stateExtractor;
+
+	private final RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout(REQUEST_TIMEOUT)
+			.setSocketTimeout(REQUEST_TIMEOUT)
+			.build();
+
+	private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+
+	private final BlockingQueue<Watch> due = new LinkedBlockingQueue<>();
+
+	private final Semaphore permits;
+
+	private final LongAdder requestCount = new LongAdder();
+
+	private final LongAdder pollCount = new LongAdder();
+
+	private final LongAdder completedCount = new LongAdder();
+
+	private final LongAdder errorCount = new LongAdder();
+
+	private final LongAccumulator maxBatchSize = new LongAccumulator(Math::max, 0);
+
+	private volatile boolean running;
+
+	private volatile HashedTimingWheel wheel;
+
+	private HttpAsyncClientPool clientPool;
+
+	private Thread dispatcher;
+
+	/**
+	 * @param awaiting Returns whether a sampler is still waiting on the
+	 *        transaction with the given identifier. Transactions that nobody waits
+	 *        on any more are no longer polled.
+	 * @param receiver Handles the status documents of the transactions that have
+	 *        completed.
+	 */
+	public StatusPoller(PollingConfig config, Predicate<String> awaiting, Receiver receiver) {
+		this.config = config;
+		this.awaiting = awaiting;
+		this.receiver = receiver;
+		identifierExtractor = new JsonIdentifierExtractor(config.getIdentifierPath());
+		stateExtractor = new JsonIdentifierExtractor(config.getStatePath());
+		permits = new Semaphore(config.getMaxConcurrentPolls());
+	}
+
+	/**
+	 * The polling schedule of a transaction.
+	 */
+	private static final class Watch {
+
+		private final String identifier;
+
+		/**
+		 * Time until the next poll, before jitter. Only touched by whoever holds the
+		 * watch: the wheel, the dispatcher, or the query it is in.
+		 */
+		private long interval;
+
+		private Watch(String identifier, long interval) {
+			this.identifier = identifier;
+			this.interval = interval;
+		}
+	}
+
+	public void start() {
+		clientPool = HttpAsyncClientPool.acquireShared(new HttpAsyncClientPool.Config(1,
+				config.getMaxConcurrentPolls(), config.getMaxConcurrentPolls()));
+		wheel = new HashedTimingWheel(TICK_DURATION, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL, "async-http-status-poller-timer");
+		running = true;
+		dispatcher = new Thread(this::dispatch, "async-http-status-poller");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		LOGGER.info("Polling for responses at {}", config);
+	}
+
+	/**
+	 * Starts polling for the transaction with the given identifier, unless it is
+	 * already being polled. Polling stops once it is complete, or once nobody
+	 * waits on it any more.
+	 */
+	public void watch(String identifier) {
+		if (!running) {
+			return;
+		}
+		Watch watch = new Watch(identifier, config.getInitialInterval());
+		if (watches.putIfAbsent(identifier, watch) == null) {
+			schedule(watch, 0);
+		}
+	}
+
+	/**
+	 * Schedules the next poll of a transaction after its interval, or after the
+	 * given minimum delay if that is longer, and backs off its interval.
+	 */
+	private void schedule(Watch watch, long minDelay) {
+		long interval = watch.interval;
+		watch.interval = Math.min(config.getMaxInterval(), (long) (interval * config.getBackoffMultiplier()));
+		long delay = Math.max(minDelay, (long) (interval * (1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1))));
+		HashedTimingWheel wheel = this.wheel;
+		try {
+			if (wheel != null) {
+				wheel.schedule(() -> due.add(watch), delay, TimeUnit.MILLISECONDS);
+			}
+		} catch (IllegalStateException e) {
+			// Stopped in the meantime.
+		}
+	}
+
+	/**
+	 * Sends the status queries of the transactions that are due, one or one
+	 * batch per free slot.
+	 */
+	private void dispatch() {
+		while (running) {
+			try {
+				Watch first = due.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				/*
+				 * Only take the rest of the batch once a slot is free, so that everything
+				 * that comes due while waiting for one goes into the same query.
+				 */
+				permits.acquire();
+				Map<String, Watch> batch = new LinkedHashMap<>();
+				for (Watch watch = first; watch != null; watch = batch.size() < batchLimit() ? due.poll() : null) {
+					if (isAwaited(watch)) {
+						batch.put(watch.identifier, watch);
+					}
+				}
+				if (batch.isEmpty()) {
+					permits.release();
+				} else {
+					send(batch);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				LOGGER.error("Exception encountered while polling for responses: {}", e.getClass().getSimpleName());
+			}
+		}
+	}
+
+	private int batchLimit() {
+		return config.isBatched() ? config.getMaxBatchSize() : 1;
+	}
+
+	/**
+	 * Returns whether a sampler still waits on the transaction, and stops
+	 * polling for it if not.
+	 */
+	private boolean isAwaited(Watch watch) {
+		if (awaiting.test(watch.identifier)) {
+			return true;
+		}
+		watches.remove(watch.identifier, watch);
+		/*
+		 * A sampler may have started waiting on it again before the watch was
+		 * removed, without starting a new one.
+		 */
+		if (awaiting.test(watch.identifier)) {
+			watch(watch.identifier);
+		}
+		return false;
+	}
+
+	private void send(Map<String, Watch> batch) {
+		String url = batch.size() == 1
+				? config.statusUrlOf(batch.keySet().iterator().next())
+				: config.batchStatusUrlOf(batch.keySet());
+		HttpGet request = new HttpGet(url);
+		request.setConfig(requestConfig);
+		requestCount.increment();
+		pollCount.add(batch.size());
+		maxBatchSize.accumulate(batch.size());
+		Query query = new Query(batch);
+		try {
+			clientPool.client().execute(request, query);
+		} catch (RuntimeException e) {
+			query.failed(e);
+		}
+	}
+
+	/**
+	 * A status query in flight, whose response is handled on one of the I/O
+	 * dispatcher threads.
+	 */
+	private final class Query implements FutureCallback<HttpResponse> {
+
+		private final Map<String, Watch> batch;
+
+		private Query(Map<String, Watch> batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void completed(HttpResponse response) {
+			long arrivalNanos = System.nanoTime();
+			long retryAfter = 0;
+			try {
+				int statusCode = response.getStatusLine().getStatusCode();
+				retryAfter = parseRetryAfter(response.getFirstHeader("Retry-After"));
+				HttpEntity entity = response.getEntity();
+				byte[] body = entity == null ? null : EntityUtils.toByteArray(entity);
+				if (statusCode == 200 && body != null) {
+					String contentType = entity.getContentType() == null ? null : entity.getContentType().getValue();
+					handleBody(body, contentType, arrivalNanos);
+				} else if (statusCode != 404) {
+					/*
+					 * A transaction that the API does not know yet keeps being polled, since the
+					 * status may lag behind the request that started it.
+					 */
+					errorCount.increment();
+					LOGGER.debug("Status query for {} transactions returned {}", batch.size(), statusCode);
+				}
+			} catch (IOException e) {
+				errorCount.increment();
+				LOGGER.debug("Exception encountered while reading status response: {}", e.getClass().getSimpleName());
+			} finally {
+				finish(retryAfter);
+			}
+		}
+
+		@Override
+		public void failed(Exception e) {
+			errorCount.increment();
+			LOGGER.debug("Exception encountered while querying status: {}", e.getClass().getSimpleName());
+			finish(0);
+		}
+
+		@Override
+		public void cancelled() {
+			finish(0);
+		}
+
+		/**
+		 * Completes the transactions whose status is terminal, and leaves the others
+		 * in the batch to be polled again.
+		 */
+		private void handleBody(byte[] body, String contentType, long arrivalNanos) throws IOException {
+			Charset charset = HttpListenerUtils.parseCharset(contentType);
+			if (batch.size() == 1) {
+				Watch watch = batch.values().iterator().next();
+				handleStatus(watch, new CallbackBody(body, 0, body.length, charset), contentType, arrivalNanos);
+				return;
+			}
+			boolean ndjson = contentType != null && contentType.toLowerCase().startsWith("application/x-ndjson");
+			PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(body), 1);
+			if (!ndjson) {
+				HttpListenerUtils.skipWhitespace(in);
+				if (in.read() != '[') {
+					throw new IOException("Batch status response is not a JSON array");
+				}
+			}
+			JsonBatchReader reader = new JsonBatchReader(in, !ndjson, charset, MAX_STATUS_SIZE);
+			CallbackBody element;
+			while ((element = reader.next()) != null) {
+				String identifier = identifierExtractor.extract(element.array(), element.offset(), element.length());
+				Watch watch = identifier == null ? null : batch.get(identifier);
+				if (watch != null) {
+					handleStatus(watch, element, contentType, arrivalNanos);
+				}
+			}
+		}
+
+		private void handleStatus(Watch watch, CallbackBody status, String contentType, long arrivalNanos) throws IOException {
+			String state = stateExtractor.extract(status.array(), status.offset(), status.length());
+			if (!config.isTerminal(state)) {
+				return;
+			}
+			batch.remove(watch.identifier);
+			watches.remove(watch.identifier, watch);
+			completedCount.increment();
+			receiver.receive(watch.identifier, status, contentType, arrivalNanos);
+		}
+
+		private void finish(long retryAfter) {
+			permits.release();
+			for (Watch watch : batch.values()) {
+				if (running && isAwaited(watch)) {
+					schedule(watch, retryAfter);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the delay requested by a <code>Retry-After</code> header in
+	 * milliseconds, or 0 if there is none or it is not given in seconds.
+	 */
+	private static long parseRetryAfter(Header header) {
+		String value = header == null ? null : header.getValue().trim();
+		return StringUtils.isNumeric(value) && value.length() < 10 ? TimeUnit.SECONDS.toMillis(Long.parseLong(value)) : 0;
+	}
+
+	public void stop() {
+		running = false;
+		HashedTimingWheel wheel = this.wheel;
+		this.wheel = null;
+		if (wheel != null) {
+			wheel.close();
+		}
+		if (dispatcher != null) {
+			dispatcher.interrupt();
+			try {
+				dispatcher.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			dispatcher = null;
+		}
+		if (clientPool != null) {
+			clientPool.close();
+			clientPool = null;
+		}
+		watches.clear();
+		due.clear();
+		if (requestCount.sum() > 0) {
+			LOGGER.info("Polled {} times in {} status queries, up to {} per query; {} completed, {} queries failed.",
+					pollCount.sum(), requestCount.sum(), maxBatchSize.get(), completedCount.sum(), errorCount.sum());
+		}
+	}
+
+	public PollingConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Returns the number of transactions being polled.
+	 */
+	public int getWatchedCount() {
+		return watches.size();
+	}
+
+	/**
+	 * Returns the number of status queries sent so far.
+	 */
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	/**
+	 * Returns the number of times a transaction was polled, counting every
+	 * transaction in a batch query.
+	 */
+	public long getPollCount() {
+		return pollCount.sum();
+	}
+
+	/**
+	 * Returns the number of transactions that were found complete.
+	 */
+	public long getCompletedCount() {
+		return completedCount.sum();
+	}
+
+	/**
+	 * Returns the number of status queries that failed or returned an error.
+	 */
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+
+	/**
+	 * Returns the largest number of transactions polled in a single query.
+	 */
+	public long getMaxBatchSize() {
+		return maxBatchSize.get();
+	}
+
+}
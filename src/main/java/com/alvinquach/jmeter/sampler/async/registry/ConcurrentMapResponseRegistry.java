@@ -0,0 +1,52 @@
+package com.alvinquach.jmeter.sampler.async.registry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Response registry backed by a ConcurrentHashMap, which accepts any
+ * identifier.
+ *
+ * @author Alvin Quach
+ */
+public final class ConcurrentMapResponseRegistry<V> implements ResponseRegistry<V> {
+
+	private final ConcurrentHashMap<String, V> values = new ConcurrentHashMap<>();
+
+	@Override
+	public V computeIfAbsent(String identifier, Function<String, V> mappingFunction) {
+		return values.computeIfAbsent(identifier, mappingFunction);
+	}
+
+	@Override
+	public V getOrElse(String identifier, Consumer<String> absentAction) {
+		return values.compute(identifier, (key, existing) -> {
+			if (existing == null) {
+				absentAction.accept(key);
+			}
+			return existing;
+		});
+	}
+
+	@Override
+	public V remove(String identifier) {
+		return values.remove(identifier);
+	}
+
+	@Override
+	public boolean remove(String identifier, V value) {
+		return values.remove(identifier, value);
+	}
+
+	@Override
+	public void forEach(Consumer<? super V> action) {
+		values.values().forEach(action);
+	}
+
+	@Override
+	public int size() {
+		return values.size();
+	}
+
+}
@@ -0,0 +1,295 @@
+package com.alvinquach.jmeter.sampler.async.registry;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Response registry for numeric identifiers. Identifiers that are the
+ * canonical decimal form of a 64-bit integer are stored as primitive longs in
+ * open-addressing hash tables, so an entry costs no String, boxed key or map
+ * node, and the slots that are freed when a response is removed are reused
+ * by later ones. The tables are split into stripes, each guarded by its own
+ * lock, so that threads working on different identifiers rarely contend. The
+ * number of entries is counted outside of the stripes, so that reading the
+ * size does not take any of their locks.
+ * <p>
+ * Any other identifier is stored in a {@link ConcurrentMapResponseRegistry}.
+ *
+ * @author Alvin Quach
+ */
+public final class NumericResponseRegistry<V> implements ResponseRegistry<V> {
+
+	private static final int DEFAULT_STRIPE_COUNT = 64;
+
+	private static final int DEFAULT_STRIPE_CAPACITY = 1024;
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	/**
+	 * Open-addressing hash table with linear probing. Empty slots have a null
+	 * value. Guarded by this.
+	 */
+	private static final class Stripe {
+
+		private long[] keys;
+
+		private Object[] values;
+
+		private int size;
+
+		private Stripe(int capacity) {
+			keys = new long[capacity];
+			values = new Object[capacity];
+		}
+
+		/**
+		 * Returns the slot that holds the key, or the empty slot where it would be
+		 * inserted.
+		 */
+		private int find(long key, long hash) {
+			int mask = keys.length - 1;
+			int slot = (int) hash & mask;
+			while (values[slot] != null && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void insert(int slot, long key, Object value) {
+			keys[slot] = key;
+			values[slot] = value;
+			if (++size > keys.length * LOAD_FACTOR) {
+				grow();
+			}
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[oldKeys.length << 1];
+			values = new Object[oldValues.length << 1];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != null) {
+					int slot = find(oldKeys[i], hash(oldKeys[i]));
+					keys[slot] = oldKeys[i];
+					values[slot] = oldValues[i];
+				}
+			}
+		}
+
+		/**
+		 * Empties the given slot, shifting back any entries further along the probe
+		 * sequence that would otherwise no longer be found.
+		 */
+		private void removeAt(int slot) {
+			int mask = keys.length - 1;
+			int hole = slot;
+			int next = slot;
+			while (true) {
+				next = (next + 1) & mask;
+				if (values[next] == null) {
+					break;
+				}
+				int home = (int) hash(keys[next]) & mask;
+				/*
+				 * The entry can fill the hole unless its home slot lies cyclically between
+				 * the hole and its current slot.
+				 */
+				boolean between = hole <= next
+						? hole < home && home <= next
+						: hole < home || home <= next;
+				if (!between) {
+					keys[hole] = keys[next];
+					values[hole] = values[next];
+					hole = next;
+				}
+			}
+			keys[hole] = 0;
+			values[hole] = null;
+			size--;
+		}
+	}
+
+	private final Stripe[] stripes;
+
+	private final int stripeShift;
+
+	private final ConcurrentMapResponseRegistry<V> fallback = new ConcurrentMapResponseRegistry<>();
+
+	/**
+	 * Number of entries in the stripes.
+	 */
+	private final LongAdder stripedSize = new LongAdder();
+
+	public NumericResponseRegistry() {
+		this(DEFAULT_STRIPE_COUNT, DEFAULT_STRIPE_CAPACITY);
+	}
+
+	/**
+	 * @param stripeCount Number of stripes, rounded up to a power of two.
+	 * @param stripeCapacity Initial number of slots per stripe, rounded up to a
+	 *        power of two. Stripes grow when they are half full.
+	 */
+	public NumericResponseRegistry(int stripeCount, int stripeCapacity) {
+		if (stripeCount <= 0 || stripeCapacity <= 0) {
+			throw new IllegalArgumentException("Stripe count and capacity must be positive");
+		}
+		int stripeBits = 32 - Integer.numberOfLeadingZeros(stripeCount - 1);
+		int capacity = Math.max(2, Integer.highestOneBit(stripeCapacity - 1) << 1);
+		stripes = new Stripe[1 << stripeBits];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(capacity);
+		}
+		stripeShift = 64 - stripeBits;
+	}
+
+	/**
+	 * Returns whether the identifier is the canonical decimal form of a long, so
+	 * that converting it to a long and back gives the same identifier.
+	 */
+	static boolean isCanonicalLong(String identifier) {
+		int length = identifier.length();
+		int start = length > 0 && identifier.charAt(0) == '-' ? 1 : 0;
+		int digits = length - start;
+		if (digits == 0 || digits > 19) {
+			return false;
+		}
+		if (identifier.charAt(start) == '0' && (digits > 1 || start == 1)) {
+			// Leading zeros and negative zero
+			return false;
+		}
+		for (int i = start; i < length; i++) {
+			char c = identifier.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		if (digits == 19) {
+			/*
+			 * The longest values may overflow, which parseLong would reject.
+			 */
+			String limit = start == 1 ? "9223372036854775808" : "9223372036854775807";
+			for (int i = 0; i < digits; i++) {
+				char c = identifier.charAt(start + i);
+				if (c != limit.charAt(i)) {
+					return c < limit.charAt(i);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static long hash(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return hash ^ (hash >>> 29);
+	}
+
+	private Stripe stripe(long hash) {
+		return stripes[(int) (hash >>> stripeShift) & (stripes.length - 1)];
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V computeIfAbsent(String identifier, Function<String, V> mappingFunction) {
+		if (!isCanonicalLong(identifier)) {
+			return fallback.computeIfAbsent(identifier, mappingFunction);
+		}
+		long key = Long.parseLong(identifier);
+		long hash = hash(key);
+		Stripe stripe = stripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (stripe.values[slot] != null) {
+				return (V) stripe.values[slot];
+			}
+			V value = mappingFunction.apply(identifier);
+			if (value != null) {
+				stripe.insert(slot, key, value);
+				stripedSize.increment();
+			}
+			return value;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V getOrElse(String identifier, Consumer<String> absentAction) {
+		if (!isCanonicalLong(identifier)) {
+			return fallback.getOrElse(identifier, absentAction);
+		}
+		long key = Long.parseLong(identifier);
+		long hash = hash(key);
+		Stripe stripe = stripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (stripe.values[slot] != null) {
+				return (V) stripe.values[slot];
+			}
+			absentAction.accept(identifier);
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(String identifier) {
+		if (!isCanonicalLong(identifier)) {
+			return fallback.remove(identifier);
+		}
+		long key = Long.parseLong(identifier);
+		long hash = hash(key);
+		Stripe stripe = stripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			Object value = stripe.values[slot];
+			if (value != null) {
+				stripe.removeAt(slot);
+				stripedSize.decrement();
+			}
+			return (V) value;
+		}
+	}
+
+	@Override
+	public boolean remove(String identifier, V value) {
+		if (!isCanonicalLong(identifier)) {
+			return fallback.remove(identifier, value);
+		}
+		long key = Long.parseLong(identifier);
+		long hash = hash(key);
+		Stripe stripe = stripe(hash);
+		synchronized (stripe) {
+			int slot = stripe.find(key, hash);
+			if (stripe.values[slot] == null || stripe.values[slot] != value) {
+				return false;
+			}
+			stripe.removeAt(slot);
+			stripedSize.decrement();
+			return true;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void forEach(Consumer<? super V> action) {
+		for (Stripe stripe : stripes) {
+			Object[] snapshot;
+			synchronized (stripe) {
+				snapshot = stripe.values.clone();
+			}
+			for (Object value : snapshot) {
+				if (value != null) {
+					action.accept((V) value);
+				}
+			}
+		}
+		fallback.forEach(action);
+	}
+
+	@Override
+	public int size() {
+		return fallback.size() + stripedSize.intValue();
+	}
+
+}
@@ -0,0 +1,51 @@
+package com.alvinquach.jmeter.sampler.async.registry;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Registry of the responses that samplers are waiting on, keyed by
+ * identifier. Operations on the same identifier are atomic with respect to
+ * each other, and the functions passed to them are run while the identifier
+ * is locked, so they must be short and must not access the registry.
+ *
+ * @author Alvin Quach
+ */
+public interface ResponseRegistry<V> {
+
+	/**
+	 * Returns the value for the identifier, adding the one returned by the
+	 * mapping function if there is none.
+	 */
+	V computeIfAbsent(String identifier, Function<String, V> mappingFunction);
+
+	/**
+	 * Returns the value for the identifier, or runs the given action and returns
+	 * null if there is none.
+	 */
+	V getOrElse(String identifier, Consumer<String> absentAction);
+
+	/**
+	 * Removes and returns the value for the identifier, or returns null if there
+	 * is none.
+	 */
+	V remove(String identifier);
+
+	/**
+	 * Removes the value for the identifier only if it is the given value.
+	 */
+	boolean remove(String identifier, V value);
+
+	/**
+	 * Runs the given action for every value. Values that are added or removed
+	 * concurrently may or may not be visited.
+	 */
+	void forEach(Consumer<? super V> action);
+
+	/**
+	 * Returns the number of values, without locking any identifier. The count
+	 * may be slightly off while values are being added or removed concurrently.
+	 */
+	int size();
+
+}
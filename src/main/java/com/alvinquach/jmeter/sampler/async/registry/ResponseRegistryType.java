@@ -0,0 +1,48 @@
+package com.alvinquach.jmeter.sampler.async.registry;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The registry implementations that a listener can keep pending responses
+ * in.
+ *
+ * @author Alvin Quach
+ */
+public enum ResponseRegistryType {
+
+	/**
+	 * ConcurrentHashMap keyed by the identifier String. Suits any identifier.
+	 */
+	CONCURRENT_MAP {
+		@Override
+		public <V> ResponseRegistry<V> create() {
+			return new ConcurrentMapResponseRegistry<>();
+		}
+	},
+
+	/**
+	 * Striped open-addressing tables keyed by primitive longs, for numeric
+	 * identifiers. Other identifiers fall back to a ConcurrentHashMap.
+	 */
+	NUMERIC {
+		@Override
+		public <V> ResponseRegistry<V> create() {
+			return new NumericResponseRegistry<>();
+		}
+	};
+
+	public abstract <V> ResponseRegistry<V> create();
+
+	public static ResponseRegistryType parse(String value) {
+		if (StringUtils.isBlank(value)) {
+			return CONCURRENT_MAP;
+		}
+		String normalized = value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+		try {
+			return valueOf(normalized);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown response registry '" + value + "'");
+		}
+	}
+
+}
@@ -0,0 +1,739 @@
+package com.alvinquach.jmeter.sampler.async.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.LongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alvinquach.jmeter.sampler.async.CallbackPayload;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackResponse;
+
+/**
+ * Relay that forwards callbacks between the listeners of a distributed test,
+ * so that a callback that lands on a node other than the one that is waiting
+ * for it still reaches the waiting sampler.
+ * <p>
+ * Each node accepts relayed callbacks on its relay port, and keeps one
+ * persistent TCP connection to every peer. Callbacks for a peer are queued,
+ * and a sender thread writes whatever is queued as a single frame, waiting up
+ * to the linger for a frame to fill up. The peer acknowledges each frame once
+ * it has handed the callbacks in it to its listener, with the status that its
+ * listener answered each of them with, and the time from queuing a callback to
+ * its acknowledgement is recorded as the hop latency.
+ * <p>
+ * Callbacks stay queued while a peer cannot be reached, and are turned away
+ * once the queue is full, so that their senders retry them later. Callbacks
+ * that were written to a connection that broke before acknowledging them are
+ * counted as lost, since the peer may or may not have received them.
+ *
+ * @author Alvin Quach
+ */
+public final class CallbackRelay {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CallbackRelay.class);
+
+	/**
+	 * Sent by a node when it connects to a peer, followed by the protocol
+	 * version and its node ID.
+	 */
+	private static final int MAGIC = 0x41535952;
+
+	private static final int VERSION = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * How long to wait before connecting to a peer again after failing to, in
+	 * milliseconds.
+	 */
+	private static final long RECONNECT_DELAY = 1000;
+
+	/**
+	 * How often the sender threads check whether the relay has been stopped, in
+	 * milliseconds.
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * Largest frame and body that are accepted from a peer, to fail fast on a
+	 * corrupt stream.
+	 */
+	private static final int MAX_FRAME_SIZE = 1 << 20;
+
+	private static final int MAX_BODY_SIZE = 1 << 30;
+
+	private static final int MAX_STRING_SIZE = 1 << 20;
+
+	private static final long STOP_TIMEOUT = 1000;
+
+	private final RelayConfig config;
+
+	private final BiFunction<String, CallbackPayload, CallbackResponse> receiver;
+
+	private final LongConsumer hopLatencyRecorder;
+
+	private final Map<String, Peer> peers;
+
+	private final Set<Socket> inboundSockets = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder receivedCount = new LongAdder();
+
+	private volatile boolean running;
+
+	private ServerSocket serverSocket;
+
+	private Thread acceptThread;
+
+	/**
+	 * @param receiver Handles the callbacks that peers relay to this node, and
+	 *        returns the response whose status is passed back to the peer.
+	 * @param hopLatencyRecorder Records the hop latency of each relayed callback,
+	 *        in nanoseconds.
+	 */
+	public CallbackRelay(RelayConfig config, BiFunction<String, CallbackPayload, CallbackResponse> receiver, LongConsumer hopLatencyRecorder) {
+		this.config = config;
+		this.receiver = receiver;
+		this.hopLatencyRecorder = hopLatencyRecorder;
+		Map<String, Peer> peers = new LinkedHashMap<>();
+		for (Map.Entry<String, InetSocketAddress> peer : config.getPeers().entrySet()) {
+			peers.put(peer.getKey(), new Peer(peer.getKey(), peer.getValue()));
+		}
+		this.peers = Collections.unmodifiableMap(peers);
+	}
+
+	/**
+	 * A callback queued for a peer.
+	 */
+	private static final class Entry {
+
+		private final String identifier;
+
+		private final CallbackPayload payload;
+
+		private final long queuedNanos = System.nanoTime();
+
+		/**
+		 * Status that the peer answered the callback with.
+		 */
+		private final CompletableFuture<Integer> status = new CompletableFuture<>();
+
+		private Entry(String identifier, CallbackPayload payload) {
+			this.identifier = identifier;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Fails the status of callbacks that may not have reached their peer.
+	 */
+	private static void lose(Iterable<Entry> entries, String peerId) {
+		IOException lost = new IOException("Callback may not have reached relay peer " + peerId);
+		for (Entry entry : entries) {
+			entry.status.completeExceptionally(lost);
+		}
+	}
+
+	public void start() throws IOException {
+		running = true;
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(config.getPort()));
+		acceptThread = daemon(this::accept, "callback-relay-accept");
+		for (Peer peer : peers.values()) {
+			peer.sender = daemon(peer::send, "callback-relay-to-" + peer.nodeId);
+		}
+		LOGGER.info("Relaying callbacks as {}", config);
+	}
+
+	public void stop() {
+		/*
+		 * Give the callbacks that are still queued or unacknowledged a moment to
+		 * reach their peers.
+		 */
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT);
+		while (hasPendingCallbacks() && System.nanoTime() < deadline) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Already closed.
+		}
+		for (Socket socket : inboundSockets) {
+			closeQuietly(socket);
+		}
+		for (Peer peer : peers.values()) {
+			peer.close();
+		}
+		join(acceptThread);
+		for (Peer peer : peers.values()) {
+			join(peer.sender);
+			List<Entry> queued = new ArrayList<>();
+			peer.queue.drainTo(queued);
+			peer.lostCount.add(queued.size());
+			lose(queued, peer.nodeId);
+		}
+		if (getSentCount() > 0 || receivedCount.sum() > 0) {
+			LOGGER.info("Relayed {} callbacks to peers and received {} from them; {} were lost and {} turned away.",
+					getSentCount(), receivedCount.sum(), getLostCount(), getRejectedCount());
+		}
+	}
+
+	private boolean hasPendingCallbacks() {
+		for (Peer peer : peers.values()) {
+			Connection connection = peer.connection;
+			if (connection != null && !connection.closed && (!peer.queue.isEmpty() || !connection.unacknowledged.isEmpty())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the ID of the peer that owns the identifier, or null if it is owned
+	 * by this node or by no known node, in which case it is handled here.
+	 */
+	public String remoteOwner(String identifier) {
+		String owner = config.ownerOf(identifier);
+		return owner != null && peers.containsKey(owner) ? owner : null;
+	}
+
+	/**
+	 * Queues a callback to be relayed to the peer that owns it. Returns the
+	 * status that the peer answers the callback with, which fails if the
+	 * callback may not have reached the peer, or null if the queue for the peer
+	 * is full.
+	 */
+	public CompletableFuture<Integer> forward(String owner, String identifier, CallbackPayload payload) {
+		Peer peer = peers.get(owner);
+		Entry entry = new Entry(identifier, payload);
+		if (peer.queue.offer(entry)) {
+			return entry.status;
+		}
+		peer.rejectedCount.increment();
+		return null;
+	}
+
+	public RelayConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Returns the IDs of the peers, in the configured order.
+	 */
+	public Set<String> getPeerIds() {
+		return peers.keySet();
+	}
+
+	/**
+	 * Returns the number of callbacks that the given peer has acknowledged.
+	 */
+	public long getSentCount(String peer) {
+		return peers.get(peer).sentCount.sum();
+	}
+
+	/**
+	 * Returns the number of callbacks that peers have acknowledged.
+	 */
+	public long getSentCount() {
+		long count = 0;
+		for (Peer peer : peers.values()) {
+			count += peer.sentCount.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of frames that have been sent to peers.
+	 */
+	public long getFrameCount() {
+		long count = 0;
+		for (Peer peer : peers.values()) {
+			count += peer.frameCount.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of callbacks that peers have relayed to this node.
+	 */
+	public long getReceivedCount() {
+		return receivedCount.sum();
+	}
+
+	/**
+	 * Returns the number of callbacks that may not have reached their peer,
+	 * because the connection broke or the relay was stopped before they were
+	 * acknowledged.
+	 */
+	public long getLostCount() {
+		long count = 0;
+		for (Peer peer : peers.values()) {
+			count += peer.lostCount.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of callbacks that were turned away because the queue
+	 * for their peer was full.
+	 */
+	public long getRejectedCount() {
+		long count = 0;
+		for (Peer peer : peers.values()) {
+			count += peer.rejectedCount.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * The link to another node, which sends it the callbacks that it owns.
+	 */
+	private final class Peer {
+
+		private final String nodeId;
+
+		private final InetSocketAddress address;
+
+		private final BlockingQueue<Entry> queue;
+
+		private final LongAdder sentCount = new LongAdder();
+
+		private final LongAdder frameCount = new LongAdder();
+
+		private final LongAdder lostCount = new LongAdder();
+
+		private final LongAdder rejectedCount = new LongAdder();
+
+		private volatile Connection connection;
+
+		/**
+		 * Whether a failure has already been logged since the last time the peer
+		 * was connected to. Only accessed by the sender thread.
+		 */
+		private boolean failureLogged;
+
+		private Thread sender;
+
+		private Peer(String nodeId, InetSocketAddress address) {
+			this.nodeId = nodeId;
+			this.address = address;
+			queue = new ArrayBlockingQueue<>(config.getMaxQueuedCallbacks());
+		}
+
+		/**
+		 * Sends queued callbacks for as long as the relay runs, connecting to the
+		 * peer whenever there is no open connection.
+		 */
+		private void send() {
+			List<Entry> frame = new ArrayList<>(config.getMaxBatchSize());
+			while (running) {
+				Connection current = connection;
+				try {
+					if (current == null || current.closed) {
+						/*
+						 * Connect before taking anything off the queue, so that callbacks wait in
+						 * the queue while the peer is down.
+						 */
+						current = new Connection(this, connect());
+						connection = current;
+						failureLogged = false;
+						LOGGER.info("Connected to relay peer {} at {}", nodeId, address);
+					}
+					if (collect(frame)) {
+						current.write(frame);
+					}
+				} catch (InterruptedException e) {
+					/*
+					 * Callbacks that were taken off the queue but not written are not sent.
+					 */
+					lostCount.add(frame.size());
+					lose(frame, nodeId);
+					break;
+				} catch (IOException e) {
+					if (!running) {
+						break;
+					}
+					/*
+					 * Peers that have not been started yet are expected to refuse connections,
+					 * so only failures after having connected are warned about, once.
+					 */
+					if (!failureLogged) {
+						if (connection == null) {
+							LOGGER.info("Could not connect to relay peer {} at {} yet: {}", nodeId, address, e.toString());
+						} else {
+							LOGGER.warn("Could not relay callbacks to peer {} at {}: {}", nodeId, address, e.toString());
+						}
+						failureLogged = true;
+					}
+					if (current != null) {
+						current.close();
+					}
+					try {
+						TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY);
+					} catch (InterruptedException interrupted) {
+						break;
+					}
+				} finally {
+					frame.clear();
+				}
+			}
+		}
+
+		private Socket connect() throws IOException {
+			Socket socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				closeQuietly(socket);
+				throw e;
+			}
+			return socket;
+		}
+
+		/**
+		 * Takes the next frame off the queue, waiting up to the linger for it to
+		 * fill up once the first callback has been taken. Returns false if nothing
+		 * was queued within the poll interval.
+		 */
+		private boolean collect(List<Entry> frame) throws InterruptedException {
+			Entry first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				return false;
+			}
+			frame.add(first);
+			int maxBatchSize = config.getMaxBatchSize();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getLinger());
+			while (frame.size() < maxBatchSize) {
+				queue.drainTo(frame, maxBatchSize - frame.size());
+				long remaining = deadline - System.nanoTime();
+				if (frame.size() >= maxBatchSize || remaining <= 0) {
+					break;
+				}
+				Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+				if (next == null) {
+					break;
+				}
+				frame.add(next);
+			}
+			return true;
+		}
+
+		private void close() {
+			Connection current = connection;
+			if (current != null) {
+				current.close();
+			}
+		}
+	}
+
+	/**
+	 * An open connection to a peer. Frames are written by the peer's sender
+	 * thread, and their acknowledgements are read by a thread of their own.
+	 */
+	private final class Connection {
+
+		private final Peer peer;
+
+		private final Socket socket;
+
+		private final DataOutputStream out;
+
+		private final DataInputStream in;
+
+		/**
+		 * Callbacks of each frame that has not been acknowledged yet, in the order
+		 * that the frames were written.
+		 */
+		private final Queue<List<Entry>> unacknowledged = new ConcurrentLinkedQueue<>();
+
+		private volatile boolean closed;
+
+		private Connection(Peer peer, Socket socket) throws IOException {
+			this.peer = peer;
+			this.socket = socket;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, config.getNodeId());
+				out.flush();
+			} catch (IOException e) {
+				closeQuietly(socket);
+				throw e;
+			}
+			daemon(this::readAcknowledgements, "callback-relay-acks-" + peer.nodeId);
+		}
+
+		/**
+		 * Writes a frame. If this fails, the frame is counted as lost when the
+		 * connection is closed.
+		 */
+		private void write(List<Entry> frame) throws IOException {
+			unacknowledged.add(new ArrayList<>(frame));
+			out.writeInt(frame.size());
+			for (Entry entry : frame) {
+				writeEntry(out, entry);
+			}
+			out.flush();
+			peer.frameCount.increment();
+		}
+
+		private void readAcknowledgements() {
+			try {
+				while (true) {
+					int count = in.readInt();
+					long now = System.nanoTime();
+					List<Entry> frame = unacknowledged.peek();
+					if (frame == null || frame.size() != count) {
+						throw new IOException("Peer acknowledged a frame of " + count + " callbacks out of order");
+					}
+					int[] statuses = new int[count];
+					for (int i = 0; i < count; i++) {
+						statuses[i] = in.readInt();
+					}
+					/*
+					 * The frame is only taken off once its statuses have been read, so that it
+					 * is counted as lost if the connection breaks in between.
+					 */
+					if (unacknowledged.poll() != frame) {
+						throw new IOException("Connection to the peer was closed");
+					}
+					for (int i = 0; i < count; i++) {
+						Entry entry = frame.get(i);
+						hopLatencyRecorder.accept(now - entry.queuedNanos);
+						entry.status.complete(statuses[i]);
+					}
+					peer.sentCount.add(count);
+				}
+			} catch (EOFException e) {
+				if (running && !closed) {
+					LOGGER.info("Relay peer {} closed the connection", peer.nodeId);
+				}
+			} catch (IOException e) {
+				if (running && !closed) {
+					LOGGER.warn("Lost the connection to relay peer {}: {}", peer.nodeId, e.toString());
+				}
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Closes the connection, and counts the frames that have not been
+		 * acknowledged as lost. Frames that are written while it is being closed are
+		 * counted by the writer closing it again.
+		 */
+		private void close() {
+			closed = true;
+			closeQuietly(socket);
+			List<Entry> frame;
+			while ((frame = unacknowledged.poll()) != null) {
+				peer.lostCount.add(frame.size());
+				lose(frame, peer.nodeId);
+			}
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		CallbackPayload payload = entry.payload;
+		writeString(out, entry.identifier);
+		/*
+		 * Send the age of the callback rather than its arrival time, since the clocks
+		 * of the nodes are not comparable.
+		 */
+		out.writeLong(System.nanoTime() - payload.arrivalNanos());
+		writeString(out, payload.contentType());
+		writeString(out, payload.charset().name());
+		writeString(out, payload.contentEncoding());
+		out.writeLong(payload.encodedSize());
+		out.writeInt(payload.size());
+		if (payload.isDiscarded()) {
+			out.writeInt(-1);
+			out.writeLong(payload.checksum());
+		} else {
+			byte[] bytes = payload.bytes();
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (running) {
+					LOGGER.warn("Could not accept a relay connection: {}", e.toString());
+				}
+				continue;
+			}
+			inboundSockets.add(socket);
+			daemon(() -> receive(socket), "callback-relay-from-" + socket.getRemoteSocketAddress());
+		}
+	}
+
+	/**
+	 * Reads frames from a peer, hands each callback in them to the receiver, and
+	 * acknowledges each frame once all of its callbacks have been handed over.
+	 */
+	private void receive(Socket socket) {
+		String peerId = null;
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a relay peer of the same version");
+			}
+			peerId = readString(in);
+			LOGGER.info("Accepted relay connection from peer {}", peerId);
+			while (true) {
+				int count;
+				try {
+					count = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (count <= 0 || count > MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame of " + count + " callbacks");
+				}
+				long receivedNanos = System.nanoTime();
+				int[] statuses = new int[count];
+				for (int i = 0; i < count; i++) {
+					String identifier = readString(in);
+					CallbackPayload payload = readPayload(in, receivedNanos);
+					receivedCount.increment();
+					statuses[i] = receiver.apply(identifier, payload).getStatusCode();
+				}
+				out.writeInt(count);
+				for (int status : statuses) {
+					out.writeInt(status);
+				}
+				out.flush();
+			}
+		} catch (IOException | RuntimeException e) {
+			if (running && !(e instanceof SocketException && socket.isClosed())) {
+				LOGGER.warn("Relay connection from peer {} failed: {}", peerId, e.toString());
+			}
+		} finally {
+			inboundSockets.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	private static CallbackPayload readPayload(DataInputStream in, long receivedNanos) throws IOException {
+		long age = in.readLong();
+		String contentType = readString(in);
+		Charset charset = Charset.forName(readString(in));
+		String contentEncoding = readString(in);
+		long encodedSize = in.readLong();
+		int size = in.readInt();
+		int length = in.readInt();
+		byte[] bytes = null;
+		long checksum = -1;
+		if (length < 0) {
+			checksum = in.readLong();
+		} else if (length > MAX_BODY_SIZE) {
+			throw new IOException("Invalid body of " + length + " bytes");
+		} else {
+			bytes = new byte[length];
+			in.readFully(bytes);
+		}
+		CallbackPayload payload = CallbackPayload.relayed(bytes, size, checksum, contentType, charset, receivedNanos - Math.max(0, age));
+		return contentEncoding == null ? payload : payload.encoded(contentEncoding, encodedSize);
+	}
+
+	/**
+	 * Writes a string as its length in UTF-8 bytes followed by the bytes, or a
+	 * length of -1 for null. Unlike writeUTF, this is not limited to 64 KiB.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_STRING_SIZE) {
+			throw new IOException("Invalid string of " + length + " bytes");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static Thread daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void join(Thread thread) {
+		if (thread == null) {
+			return;
+		}
+		thread.interrupt();
+		try {
+			thread.join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing more to release.
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package com.alvinquach.jmeter.sampler.async.relay;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Settings of the callback relay between the listeners of a distributed test.
+ * Every node has an ID, and identifiers are owned by the node whose ID they
+ * start with, followed by the tag separator, such as <code>node2~12345</code>.
+ * Identifiers without a known tag are owned by whichever node receives their
+ * callback.
+ * <p>
+ * Instances are immutable.
+ *
+ * @author Alvin Quach
+ */
+public final class RelayConfig {
+
+	public static final char DEFAULT_TAG_SEPARATOR = '~';
+
+	/**
+	 * Default maximum number of callbacks sent to a peer in one frame.
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+	/**
+	 * Default time that a callback waits for more to be sent in the same frame,
+	 * in milliseconds.
+	 */
+	public static final long DEFAULT_LINGER = 1;
+
+	/**
+	 * Default maximum number of callbacks queued for a peer.
+	 */
+	public static final int DEFAULT_MAX_QUEUED_CALLBACKS = 10000;
+
+	private final String nodeId;
+
+	private final int port;
+
+	/**
+	 * Addresses of the other nodes by ID, not including this one.
+	 */
+	private final Map<String, InetSocketAddress> peers;
+
+	private final char tagSeparator;
+
+	private final int maxBatchSize;
+
+	private final long linger;
+
+	private final int maxQueuedCallbacks;
+
+	/**
+	 * @param nodeId The ID of this node.
+	 * @param port The port that this node accepts relayed callbacks on.
+	 * @param peers The relay addresses of the nodes by ID. An entry for this node
+	 *        is ignored, so that every node can be given the same list.
+	 */
+	public RelayConfig(String nodeId, int port, Map<String, InetSocketAddress> peers) {
+		this(nodeId, port, peers, DEFAULT_TAG_SEPARATOR, DEFAULT_MAX_BATCH_SIZE, DEFAULT_LINGER, DEFAULT_MAX_QUEUED_CALLBACKS);
+	}
+
+	private RelayConfig(String nodeId, int port, Map<String, InetSocketAddress> peers, char tagSeparator,
+			int maxBatchSize, long linger, int maxQueuedCallbacks) {
+		if (StringUtils.isBlank(nodeId) || nodeId.indexOf(tagSeparator) != -1) {
+			throw new IllegalArgumentException("Relay node ID must not be blank or contain the tag separator '" + tagSeparator + "'");
+		}
+		if (port <= 0 || port > 65535) {
+			throw new IllegalArgumentException("Relay port must be between 1 and 65535");
+		}
+		if (maxBatchSize <= 0 || linger < 0 || maxQueuedCallbacks <= 0) {
+			throw new IllegalArgumentException("Relay batch size and queue size must be positive, and linger must not be negative");
+		}
+		Map<String, InetSocketAddress> otherPeers = new LinkedHashMap<>(peers);
+		otherPeers.remove(nodeId);
+		this.nodeId = nodeId;
+		this.port = port;
+		this.peers = Collections.unmodifiableMap(otherPeers);
+		this.tagSeparator = tagSeparator;
+		this.maxBatchSize = maxBatchSize;
+		this.linger = linger;
+		this.maxQueuedCallbacks = maxQueuedCallbacks;
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given tag separator.
+	 */
+	public RelayConfig withTagSeparator(char tagSeparator) {
+		return new RelayConfig(nodeId, port, peers, tagSeparator, maxBatchSize, linger, maxQueuedCallbacks);
+	}
+
+	/**
+	 * Returns a copy of this configuration that sends up to the given number of
+	 * callbacks per frame, waiting up to the given linger in milliseconds for a
+	 * frame to fill up.
+	 */
+	public RelayConfig withBatching(int maxBatchSize, long linger) {
+		return new RelayConfig(nodeId, port, peers, tagSeparator, maxBatchSize, linger, maxQueuedCallbacks);
+	}
+
+	/**
+	 * Returns a copy of this configuration that queues up to the given number of
+	 * callbacks for each peer. Callbacks beyond it are turned away, so that their
+	 * senders retry them later.
+	 */
+	public RelayConfig withMaxQueuedCallbacks(int maxQueuedCallbacks) {
+		return new RelayConfig(nodeId, port, peers, tagSeparator, maxBatchSize, linger, maxQueuedCallbacks);
+	}
+
+	/**
+	 * Parses a comma-separated list of peers, each given as
+	 * <code>id=host:port</code>.
+	 *
+	 * @throws IllegalArgumentException if an entry is malformed.
+	 */
+	public static Map<String, InetSocketAddress> parsePeers(String value) {
+		Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+		for (String entry : StringUtils.split(StringUtils.defaultString(value), ',')) {
+			String trimmed = entry.trim();
+			int equals = trimmed.indexOf('=');
+			int colon = trimmed.lastIndexOf(':');
+			if (equals <= 0 || colon <= equals + 1 || !StringUtils.isNumeric(trimmed.substring(colon + 1))
+					|| trimmed.length() - colon > 6) {
+				throw new IllegalArgumentException("Relay peer '" + trimmed + "' must be given as id=host:port");
+			}
+			String host = trimmed.substring(equals + 1, colon);
+			peers.put(trimmed.substring(0, equals).trim(),
+					InetSocketAddress.createUnresolved(host, Integer.parseInt(trimmed.substring(colon + 1))));
+		}
+		return peers;
+	}
+
+	/**
+	 * Returns the ID of the node that the identifier is tagged with, or null if
+	 * it is not tagged.
+	 */
+	public String ownerOf(String identifier) {
+		int separator = identifier.indexOf(tagSeparator);
+		return separator > 0 ? identifier.substring(0, separator) : null;
+	}
+
+	/**
+	 * Returns the identifier tagged as owned by this node.
+	 */
+	public String tag(String identifier) {
+		return nodeId + tagSeparator + identifier;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public Map<String, InetSocketAddress> getPeers() {
+		return peers;
+	}
+
+	public char getTagSeparator() {
+		return tagSeparator;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public long getLinger() {
+		return linger;
+	}
+
+	public int getMaxQueuedCallbacks() {
+		return maxQueuedCallbacks;
+	}
+
+	@Override
+	public String toString() {
+		return "node " + nodeId + " on port " + port + ", peers " + peers.keySet();
+	}
+
+}
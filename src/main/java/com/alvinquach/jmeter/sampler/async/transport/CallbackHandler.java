@@ -0,0 +1,32 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+/**
+ * Handles the requests received by a listener transport.
+ *
+ * @author Alvin Quach
+ */
+@FunctionalInterface
+public interface CallbackHandler {
+
+	/**
+	 * Default response to requests that the transport is too busy to handle.
+	 */
+	CallbackResponse RESPONSE_503 = new CallbackResponse(503, "Service Unavailable", "Service Unavailable");
+
+	/**
+	 * Handles a request and returns the response that should be sent back. This
+	 * is called concurrently by the transport's worker threads.
+	 */
+	CallbackResponse handle(CallbackRequest request);
+
+	/**
+	 * Returns the response to a request that the transport could not queue for a
+	 * worker thread. This is called outside of the worker pool, so it must return
+	 * quickly and must not read the request body. The transport closes the
+	 * connection after sending the response.
+	 */
+	default CallbackResponse reject(CallbackRequest request) {
+		return RESPONSE_503;
+	}
+
+}
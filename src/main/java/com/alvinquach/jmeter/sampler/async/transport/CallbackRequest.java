@@ -0,0 +1,48 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.io.InputStream;
+
+/**
+ * An HTTP request received by a listener transport, independent of the server
+ * implementation that received it.
+ *
+ * @author Alvin Quach
+ */
+public interface CallbackRequest {
+
+	/**
+	 * Returns the request method in upper case, for example <code>POST</code>.
+	 */
+	String getMethod();
+
+	/**
+	 * Returns the path of the request URI, without the query string.
+	 */
+	String getPath();
+
+	/**
+	 * Returns the value of the given request header, or null if it was not sent.
+	 * Header names are case-insensitive.
+	 */
+	String getHeader(String name);
+
+	/**
+	 * Returns the {@link System#nanoTime()} at which the transport started
+	 * handling the request.
+	 */
+	long getReceivedNanos();
+
+	/**
+	 * Returns the length of the request body in bytes, or -1 if it is not known
+	 * in advance because the body was sent with chunked transfer encoding.
+	 */
+	long getContentLength();
+
+	/**
+	 * Returns the stream that the request body can be read from. The stream
+	 * has already been decoded from chunked transfer encoding if necessary, and
+	 * ends at the end of the body.
+	 */
+	InputStream getInputStream();
+
+}
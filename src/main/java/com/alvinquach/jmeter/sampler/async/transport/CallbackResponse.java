@@ -0,0 +1,83 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Response to a request received by a listener transport. Responses are
+ * immutable, so the common ones can be shared.
+ *
+ * @author Alvin Quach
+ */
+public final class CallbackResponse {
+
+	public static final String MIME_PLAINTEXT = "text/plain";
+
+	private final int statusCode;
+
+	private final String reasonPhrase;
+
+	private final String contentType;
+
+	private final byte[] body;
+
+	private final Map<String, String> headers;
+
+	/**
+	 * Creates a plain text response.
+	 */
+	public CallbackResponse(int statusCode, String reasonPhrase, String message) {
+		this(statusCode, reasonPhrase, MIME_PLAINTEXT, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public CallbackResponse(int statusCode, String reasonPhrase, String contentType, byte[] body) {
+		this(statusCode, reasonPhrase, contentType, body, Collections.emptyMap());
+	}
+
+	private CallbackResponse(int statusCode, String reasonPhrase, String contentType, byte[] body, Map<String, String> headers) {
+		this.statusCode = statusCode;
+		this.reasonPhrase = reasonPhrase;
+		this.contentType = contentType;
+		this.body = body;
+		this.headers = headers;
+	}
+
+	/**
+	 * Returns a copy of this response with the given header added, replacing any
+	 * header with the same name.
+	 */
+	public CallbackResponse withHeader(String name, String value) {
+		Map<String, String> newHeaders = new LinkedHashMap<>(headers);
+		newHeaders.put(name, value);
+		return new CallbackResponse(statusCode, reasonPhrase, contentType, body, Collections.unmodifiableMap(newHeaders));
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public String getReasonPhrase() {
+		return reasonPhrase;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the response body. The returned array must not be modified.
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	/**
+	 * Returns the headers to send besides the content type and length.
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+}
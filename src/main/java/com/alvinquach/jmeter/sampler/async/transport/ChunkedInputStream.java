@@ -0,0 +1,137 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a request body that was sent with chunked transfer encoding. The
+ * stream ends after the last chunk and its trailers, and leaves the
+ * underlying stream positioned at the start of the next request.
+ *
+ * @author Alvin Quach
+ */
+class ChunkedInputStream extends InputStream {
+
+	/**
+	 * Chunk size lines and trailers are not expected to be anywhere near this
+	 * long.
+	 */
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	private final InputStream in;
+
+	private final StringBuilder line = new StringBuilder();
+
+	/**
+	 * Remaining bytes in the current chunk.
+	 */
+	private long remaining;
+
+	/**
+	 * Whether the data of at least one chunk has been started, so that a line
+	 * break has to be skipped before the next chunk size.
+	 */
+	private boolean inChunk;
+
+	private boolean finished;
+
+	ChunkedInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) {
+			return -1;
+		}
+		int b = in.read();
+		if (b == -1) {
+			throw new EOFException("Unexpected end of chunked body");
+		}
+		remaining--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!nextChunk()) {
+			return -1;
+		}
+		int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+		if (read == -1) {
+			throw new EOFException("Unexpected end of chunked body");
+		}
+		remaining -= read;
+		return read;
+	}
+
+	/**
+	 * Moves on to the next chunk if the current one has been read completely.
+	 * Returns false if the last chunk has been read.
+	 */
+	private boolean nextChunk() throws IOException {
+		if (finished) {
+			return false;
+		}
+		if (remaining > 0) {
+			return true;
+		}
+		if (inChunk) {
+			// Skip the line break that terminates the data of the previous chunk.
+			if (!readLine().isEmpty()) {
+				throw new IOException("Chunk data is longer than its declared size");
+			}
+		}
+		String sizeLine = readLine();
+		int extensionStart = sizeLine.indexOf(';');
+		String size = (extensionStart == -1 ? sizeLine : sizeLine.substring(0, extensionStart)).trim();
+		try {
+			remaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException e) {
+			remaining = -1;
+		}
+		if (remaining < 0) {
+			throw new IOException("Invalid chunk size '" + size + "'");
+		}
+		if (remaining == 0) {
+			// Skip the trailers, which end with an empty line.
+			while (!readLine().isEmpty()) {
+				continue;
+			}
+			finished = true;
+			return false;
+		}
+		inChunk = true;
+		return true;
+	}
+
+	private String readLine() throws IOException {
+		line.setLength(0);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				throw new EOFException("Unexpected end of chunked body");
+			}
+			if (line.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("Chunk header is too long");
+			}
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Does not close the underlying stream, since the connection may be reused.
+	 */
+	@Override
+	public void close() {
+		return;
+	}
+
+}
@@ -0,0 +1,364 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client that connects out to the event stream of a service and passes every
+ * event to a CallbackHandler, for services that publish their notifications
+ * instead of sending webhooks. Two kinds of streams are supported:
+ * <ul>
+ * <li>Server-sent events (<code>text/event-stream</code>), where the data of
+ * each event is one callback. When the stream ends, the client reconnects
+ * after the reconnect delay, or the delay set by the stream's
+ * <code>retry</code> field, and resumes from the last event ID it has
+ * seen.</li>
+ * <li>Long polling, where any other successful response is one callback, or a
+ * batch of them, and the client polls again as soon as it has been handled. A
+ * 204 response means that there were no events, and the client waits for the
+ * reconnect delay before polling again.</li>
+ * </ul>
+ * Events are passed to the handler as POSTs on the path of the stream. A
+ * server-sent event whose data is larger than the maximum body size fails the
+ * stream, which is then reconnected. Since
+ * the client reads the events, it cannot ask the service to retry the ones
+ * that the handler does not accept; those are only counted by the handler.
+ *
+ * @author Alvin Quach
+ */
+public final class EventStreamTransport implements ListenerTransport {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EventStreamTransport.class);
+
+	private static final String MIME_EVENT_STREAM = "text/event-stream";
+
+	private static final String ACCEPT = MIME_EVENT_STREAM + ", application/json, application/x-ndjson";
+
+	/**
+	 * Content type of event data.
+	 */
+	private static final String EVENT_CONTENT_TYPE = "application/json";
+
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * Length of the longest field prefix, <code>"data: "</code>, which a line
+	 * may have on top of the maximum body size.
+	 */
+	private static final int MAX_FIELD_PREFIX_LENGTH = 6;
+
+	/**
+	 * How long to wait for the client thread to finish when stopping, in
+	 * milliseconds.
+	 */
+	private static final long STOP_TIMEOUT = 1000;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private final URI uri;
+
+	private final CallbackHandler handler;
+
+	private volatile long reconnectDelay;
+
+	private volatile int maxBodySize;
+
+	private volatile boolean running;
+
+	private volatile HttpGet currentRequest;
+
+	private String lastEventId;
+
+	private CloseableHttpClient client;
+
+	private Thread thread;
+
+	/**
+	 * @param uri The URI of the event stream.
+	 * @param reconnectDelay How long to wait before reconnecting after the
+	 *        stream ends or fails, in milliseconds.
+	 * @param maxBodySize The maximum size of the data of an event in bytes.
+	 */
+	public EventStreamTransport(URI uri, long reconnectDelay, int maxBodySize, CallbackHandler handler) {
+		if (reconnectDelay < 0) {
+			throw new IllegalArgumentException("Reconnect delay must not be negative");
+		}
+		this.uri = uri;
+		this.reconnectDelay = reconnectDelay;
+		this.handler = handler;
+		setMaxBodySize(maxBodySize);
+	}
+
+	/**
+	 * Sets the maximum size of the data of an event in bytes. It applies from the
+	 * next event that is read.
+	 */
+	public void setMaxBodySize(int maxBodySize) {
+		if (maxBodySize <= 0) {
+			throw new IllegalArgumentException("Maximum body size must be positive");
+		}
+		this.maxBodySize = maxBodySize;
+	}
+
+	@Override
+	public void start() throws IOException {
+		/*
+		 * There is no read timeout, since a stream may stay quiet for as long as
+		 * there are no events. Automatic retries are kept, so that polls made on a
+		 * pooled connection that the service has closed are made again.
+		 */
+		client = HttpClients.custom()
+				.setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT).setSocketTimeout(0).build())
+				.build();
+		running = true;
+		thread = new Thread(this::run, "async-http-listener-events-" + THREAD_COUNT.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Reading events from {}", uri);
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		HttpGet request = currentRequest;
+		if (request != null) {
+			request.abort();
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		if (client != null) {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// Nothing more to release.
+			}
+			client = null;
+		}
+	}
+
+	private void run() {
+		while (running) {
+			boolean pollAgain;
+			try {
+				pollAgain = poll();
+			} catch (IOException | RuntimeException e) {
+				if (!running) {
+					break;
+				}
+				LOGGER.warn("Event stream {} failed: {}", uri, e.toString());
+				pollAgain = false;
+			}
+			if (!pollAgain && running) {
+				try {
+					TimeUnit.MILLISECONDS.sleep(reconnectDelay);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes one request to the stream and handles what it returns. Returns
+	 * whether the next request can be made right away.
+	 */
+	private boolean poll() throws IOException {
+		HttpGet request = new HttpGet(uri);
+		request.setHeader("Accept", ACCEPT);
+		if (lastEventId != null) {
+			request.setHeader("Last-Event-ID", lastEventId);
+		}
+		currentRequest = request;
+		try (CloseableHttpResponse response = client.execute(request)) {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == 204) {
+				/*
+				 * Do not poll again right away, in case the service answers without
+				 * holding the request until there is an event.
+				 */
+				return false;
+			}
+			if (statusCode / 100 != 2) {
+				throw new IOException("Event stream answered with status " + statusCode);
+			}
+			HttpEntity entity = response.getEntity();
+			if (entity == null) {
+				return true;
+			}
+			ContentType contentType = ContentType.get(entity);
+			if (contentType != null && MIME_EVENT_STREAM.equalsIgnoreCase(contentType.getMimeType())) {
+				readEvents(entity);
+				return false;
+			}
+			byte[] body = EntityUtils.toByteArray(entity);
+			handler.handle(new MessageRequest(uri.getPath(), Collections.emptyMap(),
+					contentType == null ? EVENT_CONTENT_TYPE : contentType.toString(), body));
+			return true;
+		} finally {
+			currentRequest = null;
+		}
+	}
+
+	/**
+	 * Reads server-sent events until the stream ends, and handles the data of
+	 * each event as a callback.
+	 * 
+	 * @throws IOException if the data of an event is larger than the maximum
+	 *         body size.
+	 */
+	private void readEvents(HttpEntity entity) throws IOException {
+		LineReader reader = new LineReader(new BufferedInputStream(entity.getContent()));
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		int maxBodySize = this.maxBodySize;
+		while (reader.next(maxBodySize + MAX_FIELD_PREFIX_LENGTH)) {
+			byte[] line = reader.buffer;
+			int length = reader.length;
+			if (length == 0) {
+				/*
+				 * A blank line dispatches the event. The last newline of the data is not
+				 * part of it, and an event without any data is not a callback.
+				 */
+				if (data.size() > 1) {
+					handler.handle(new MessageRequest(uri.getPath(), Collections.emptyMap(), EVENT_CONTENT_TYPE,
+							Arrays.copyOf(data.toByteArray(), data.size() - 1)));
+				}
+				data.reset();
+				maxBodySize = this.maxBodySize;
+				continue;
+			}
+			if (line[0] == ':') {
+				// Comments are used as heartbeats.
+				continue;
+			}
+			int colon = indexOf(line, length, (byte) ':');
+			String field = new String(line, 0, colon == -1 ? length : colon, StandardCharsets.UTF_8);
+			int valueStart = colon == -1 ? length : colon + 1;
+			if (valueStart < length && line[valueStart] == ' ') {
+				valueStart++;
+			}
+			switch (field) {
+			case "data":
+				/*
+				 * The newline after the last line of data is not part of the event, so it is
+				 * not counted.
+				 */
+				if (data.size() + length - valueStart > maxBodySize) {
+					throw new IOException("Event data is larger than the maximum of " + maxBodySize + " bytes");
+				}
+				data.write(line, valueStart, length - valueStart);
+				data.write('\n');
+				break;
+			case "id":
+				if (indexOf(line, length, (byte) 0) == -1) {
+					lastEventId = new String(line, valueStart, length - valueStart, StandardCharsets.UTF_8);
+				}
+				break;
+			case "retry":
+				String value = new String(line, valueStart, length - valueStart, StandardCharsets.UTF_8);
+				if (StringUtils.isNumeric(value) && !value.isEmpty() && value.length() < 10) {
+					reconnectDelay = Long.parseLong(value);
+				}
+				break;
+			default:
+				// Event types are not used, since every event is a callback.
+				break;
+			}
+		}
+	}
+
+	private static int indexOf(byte[] bytes, int length, byte b) {
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the lines of an event stream as bytes, so that the data of an event
+	 * can be limited in bytes and passed on without being decoded. Lines may end
+	 * with CR, LF or CRLF.
+	 */
+	private static final class LineReader {
+
+		private final InputStream in;
+
+		private byte[] buffer = new byte[256];
+
+		private int length;
+
+		/**
+		 * Whether the last line ended with a CR, so that a LF right after it is
+		 * part of the same line ending.
+		 */
+		private boolean skipLineFeed;
+
+		LineReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * Reads the next line into the buffer, without its line ending. Returns
+		 * false if the stream ended, in which case an unterminated last line is
+		 * discarded like the event it belongs to.
+		 * 
+		 * @throws IOException if the line is longer than maxLength bytes.
+		 */
+		boolean next(int maxLength) throws IOException {
+			length = 0;
+			int b;
+			while ((b = in.read()) != -1) {
+				if (skipLineFeed) {
+					skipLineFeed = false;
+					if (b == '\n') {
+						continue;
+					}
+				}
+				if (b == '\n') {
+					return true;
+				}
+				if (b == '\r') {
+					skipLineFeed = true;
+					return true;
+				}
+				if (length == maxLength) {
+					throw new IOException("Event stream line is longer than " + maxLength + " bytes");
+				}
+				if (length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, (int) Math.min(maxLength, 2L * buffer.length));
+				}
+				buffer[length++] = (byte) b;
+			}
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Listener transport backed by the JDK's built-in HTTP server. Connections are
+ * accepted and read by a single selector thread and are kept alive between
+ * requests, and requests are handled on a fixed-size pool of worker threads,
+ * so the number of threads does not grow with the number of connections. On
+ * virtual threads, every request is handled on a virtual thread of its own
+ * instead, unless a number of worker threads is configured.
+ * <p>
+ * If the number of requests waiting for a worker is limited, requests beyond
+ * the limit are rejected by the handler, and their connections are closed.
+ *
+ * @author Alvin Quach
+ */
+class HttpServerTransport implements ListenerTransport {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpServerTransport.class);
+
+	/**
+	 * How long to wait for in-flight exchanges to finish when stopping, in
+	 * seconds.
+	 */
+	private static final int STOP_DELAY = 1;
+
+	private static final CallbackResponse RESPONSE_500 = new CallbackResponse(500, "Internal Server Error", "Internal Server Error");
+
+	private final ListenerTransportConfig config;
+
+	private final CallbackHandler handler;
+
+	private HttpServer server;
+
+	private WorkerPool workers;
+
+	HttpServerTransport(ListenerTransportConfig config, CallbackHandler handler) {
+		if (config.isReusePort()) {
+			throw new IllegalArgumentException("The JDK HTTP server cannot share a port with SO_REUSEPORT; use a port range instead");
+		}
+		this.config = config;
+		this.handler = handler;
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Transport is already started");
+		}
+		int workerThreads = config.getWorkerThreads() > 0 || config.isVirtualThreads()
+				? config.getWorkerThreads()
+				: 2 * Runtime.getRuntime().availableProcessors();
+		workers = new WorkerPool("async-http-listener-" + config.getPort(), workerThreads, config.getMaxQueuedRequests(), config.isVirtualThreads());
+		server = HttpServer.create(new InetSocketAddress(config.getPort()), config.getAcceptQueueSize());
+		/*
+		 * A rejected exchange still has to be run to send a response, but only up to
+		 * the point where the handler rejects it.
+		 */
+		server.setExecutor(exchange -> workers.execute(exchange, exchange));
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		boolean rejecting = WorkerPool.isRejecting();
+		CallbackResponse response;
+		try {
+			ExchangeRequest request = new ExchangeRequest(exchange);
+			response = rejecting ? handler.reject(request) : handler.handle(request);
+		} catch (RuntimeException e) {
+			LOGGER.error("Exception encountered while handling request: {}", e.getClass().getSimpleName());
+			response = RESPONSE_500;
+		}
+		try {
+			byte[] body = response.getBody();
+			Headers headers = exchange.getResponseHeaders();
+			headers.set("Content-Type", response.getContentType());
+			for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+				headers.set(header.getKey(), header.getValue());
+			}
+			if (rejecting) {
+				headers.set("Connection", "close");
+			}
+			exchange.sendResponseHeaders(response.getStatusCode(), body.length == 0 ? -1 : body.length);
+			if (body.length > 0) {
+				try (OutputStream responseBody = exchange.getResponseBody()) {
+					responseBody.write(body);
+				}
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		server.stop(STOP_DELAY);
+		workers.shutdown(STOP_DELAY, TimeUnit.SECONDS);
+		server = null;
+		workers = null;
+	}
+
+	@Override
+	public synchronized int getLocalPort() {
+		return server == null ? -1 : server.getAddress().getPort();
+	}
+
+	/**
+	 * Adapts an HttpExchange to a CallbackRequest.
+	 */
+	private static final class ExchangeRequest implements CallbackRequest {
+
+		private final long receivedNanos = System.nanoTime();
+
+		private final HttpExchange exchange;
+
+		private ExchangeRequest(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		@Override
+		public long getReceivedNanos() {
+			return receivedNanos;
+		}
+
+		@Override
+		public String getMethod() {
+			return exchange.getRequestMethod().toUpperCase();
+		}
+
+		@Override
+		public String getPath() {
+			return exchange.getRequestURI().getPath();
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return exchange.getRequestHeaders().getFirst(name);
+		}
+
+		@Override
+		public long getContentLength() {
+			String length = getHeader("Content-Length");
+			if (length == null) {
+				/*
+				 * The JDK server only accepts request bodies without a length if they are
+				 * chunked.
+				 */
+				return getHeader("Transfer-Encoding") != null ? -1 : 0;
+			}
+			try {
+				return Long.parseLong(length.trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * The JDK server already decodes chunked bodies.
+		 */
+		@Override
+		public InputStream getInputStream() {
+			return exchange.getRequestBody();
+		}
+	}
+
+}
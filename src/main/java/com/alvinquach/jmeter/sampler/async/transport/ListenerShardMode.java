@@ -0,0 +1,38 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * How the shards of a listener share out the callbacks.
+ *
+ * @author Alvin Quach
+ */
+public enum ListenerShardMode {
+
+	/**
+	 * Each shard listens on its own port, starting at the configured port, and
+	 * senders spread the callbacks over the ports.
+	 */
+	PORT_RANGE,
+
+	/**
+	 * All shards listen on the configured port with SO_REUSEPORT, and the
+	 * operating system spreads incoming connections over them. Requires Java 9 or
+	 * later, an operating system that balances SO_REUSEPORT sockets such as
+	 * Linux, and the NanoHTTPD transport.
+	 */
+	REUSE_PORT;
+
+	public static ListenerShardMode parse(String value) {
+		if (StringUtils.isBlank(value)) {
+			return PORT_RANGE;
+		}
+		String normalized = value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+		try {
+			return valueOf(normalized);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown listener shard mode '" + value + "'");
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Kind of threads that the listener handles connections and requests on.
+ *
+ * @author Alvin Quach
+ */
+public enum ListenerThreadMode {
+
+	/**
+	 * Operating system threads, as on every Java version.
+	 */
+	PLATFORM,
+
+	/**
+	 * Virtual threads, so that NanoHTTPD can keep a thread for each of many
+	 * thousands of open connections. Requires Java 21 or later; on older
+	 * runtimes, the listener falls back to platform threads.
+	 */
+	VIRTUAL;
+
+	public static ListenerThreadMode parse(String value) {
+		if (StringUtils.isBlank(value)) {
+			return PLATFORM;
+		}
+		String normalized = value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+		try {
+			return valueOf(normalized);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown listener thread mode '" + value + "'");
+		}
+	}
+
+}
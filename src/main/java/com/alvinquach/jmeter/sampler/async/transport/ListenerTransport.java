@@ -0,0 +1,32 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.io.IOException;
+
+/**
+ * HTTP server that receives asynchronous responses and passes them to a
+ * CallbackHandler.
+ *
+ * @author Alvin Quach
+ */
+public interface ListenerTransport {
+
+	/**
+	 * Starts accepting requests.
+	 */
+	void start() throws IOException;
+
+	/**
+	 * Stops accepting requests and releases the server's resources.
+	 */
+	void stop();
+
+	/**
+	 * Returns the port that the transport accepts requests on, which is the port
+	 * it was bound to if it was configured with port 0, or -1 if it is not
+	 * started or does not accept requests.
+	 */
+	default int getLocalPort() {
+		return -1;
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import com.alvinquach.jmeter.sampler.util.VirtualThreads;
+
+/**
+ * Listener transport settings.
+ *
+ * @author Alvin Quach
+ */
+public final class ListenerTransportConfig {
+
+	private final ListenerTransportType type;
+
+	private final int port;
+
+	private final int workerThreads;
+
+	private final int acceptQueueSize;
+
+	private final int maxQueuedRequests;
+
+	private final int shardCount;
+
+	private final ListenerShardMode shardMode;
+
+	private final ListenerThreadMode threadMode;
+
+	/**
+	 * @param type The server implementation to use.
+	 * @param port The port to listen on.
+	 * @param workerThreads Number of threads that handle requests, for
+	 *        transports that use a worker pool; 0 to use twice the number of
+	 *        available processors.
+	 */
+	public ListenerTransportConfig(ListenerTransportType type, int port, int workerThreads) {
+		this(type, port, workerThreads, 0, 0);
+	}
+
+	/**
+	 * @param type The server implementation to use.
+	 * @param port The port to listen on.
+	 * @param workerThreads Number of threads that handle requests; 0 for the
+	 *        transport's default. The JDK server defaults to twice the number of
+	 *        available processors, and NanoHTTPD defaults to a new thread for
+	 *        every connection.
+	 * @param acceptQueueSize Maximum number of connections that the operating
+	 *        system queues until the server accepts them; 0 for the system
+	 *        default.
+	 * @param maxQueuedRequests Maximum number of requests (or connections, for
+	 *        NanoHTTPD) that wait for a worker thread before the transport starts
+	 *        rejecting them; 0 for no limit.
+	 */
+	public ListenerTransportConfig(ListenerTransportType type, int port, int workerThreads, int acceptQueueSize, int maxQueuedRequests) {
+		if (workerThreads < 0 || acceptQueueSize < 0 || maxQueuedRequests < 0) {
+			throw new IllegalArgumentException("Worker thread count and queue sizes must not be negative");
+		}
+		this.type = type;
+		this.port = port;
+		this.workerThreads = workerThreads;
+		this.acceptQueueSize = acceptQueueSize;
+		this.maxQueuedRequests = maxQueuedRequests;
+		shardCount = 1;
+		shardMode = ListenerShardMode.PORT_RANGE;
+		threadMode = ListenerThreadMode.PLATFORM;
+	}
+
+	private ListenerTransportConfig(ListenerTransportConfig config, int port, int shardCount, ListenerShardMode shardMode,
+			ListenerThreadMode threadMode) {
+		type = config.type;
+		this.port = port;
+		workerThreads = config.workerThreads;
+		acceptQueueSize = config.acceptQueueSize;
+		maxQueuedRequests = config.maxQueuedRequests;
+		this.shardCount = shardCount;
+		this.shardMode = shardMode;
+		this.threadMode = threadMode;
+	}
+
+	/**
+	 * Returns a copy of these settings for a listener that is split into the
+	 * given number of shards. Each shard is a transport of its own, with its own
+	 * accept loop and worker threads.
+	 */
+	public ListenerTransportConfig withShards(int shardCount, ListenerShardMode shardMode) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("Shard count must be positive");
+		}
+		if (shardMode == ListenerShardMode.REUSE_PORT && port == 0) {
+			throw new IllegalArgumentException("Shards can only share a fixed port");
+		}
+		return new ListenerTransportConfig(this, port, shardCount, shardMode, threadMode);
+	}
+
+	/**
+	 * Returns a copy of these settings that handles connections on the given kind
+	 * of threads.
+	 */
+	public ListenerTransportConfig withThreadMode(ListenerThreadMode threadMode) {
+		return new ListenerTransportConfig(this, port, shardCount, shardMode, threadMode);
+	}
+
+	/**
+	 * Returns the settings of the transport of the shard with the given index.
+	 */
+	public ListenerTransportConfig forShard(int index) {
+		if (index < 0 || index >= shardCount) {
+			throw new IllegalArgumentException("Shard index " + index + " is out of range");
+		}
+		int shardPort = shardMode == ListenerShardMode.PORT_RANGE && port != 0 ? port + index : port;
+		return new ListenerTransportConfig(this, shardPort, 1, shardMode, threadMode);
+	}
+
+	public ListenerTransportType getType() {
+		return type;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the configured number of worker threads, or 0 if the transport's
+	 * default should be used.
+	 */
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public int getAcceptQueueSize() {
+		return acceptQueueSize;
+	}
+
+	public int getMaxQueuedRequests() {
+		return maxQueuedRequests;
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public ListenerShardMode getShardMode() {
+		return shardMode;
+	}
+
+	public ListenerThreadMode getThreadMode() {
+		return threadMode;
+	}
+
+	/**
+	 * Returns whether the transport runs on virtual threads, which is the case if
+	 * they were asked for and the runtime supports them.
+	 */
+	public boolean isVirtualThreads() {
+		return threadMode == ListenerThreadMode.VIRTUAL && VirtualThreads.isSupported();
+	}
+
+	/**
+	 * Returns whether the transport must bind its port with SO_REUSEPORT, so that
+	 * it can share the port with the other shards.
+	 */
+	public boolean isReusePort() {
+		return shardMode == ListenerShardMode.REUSE_PORT;
+	}
+
+}
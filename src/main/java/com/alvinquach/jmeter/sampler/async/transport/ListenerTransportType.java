@@ -0,0 +1,62 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The server implementations that a listener can receive asynchronous
+ * responses with.
+ *
+ * @author Alvin Quach
+ */
+public enum ListenerTransportType {
+
+	/**
+	 * NanoHTTPD server, which uses a thread per connection.
+	 */
+	NANOHTTPD {
+		@Override
+		public ListenerTransport create(ListenerTransportConfig config, CallbackHandler handler) {
+			return new NanoHttpdTransport(config, handler);
+		}
+	},
+
+	/**
+	 * The JDK's built-in HTTP server, which accepts and reads connections with a
+	 * selector and handles requests on a bounded pool of worker threads.
+	 */
+	HTTP_SERVER {
+		@Override
+		public ListenerTransport create(ListenerTransportConfig config, CallbackHandler handler) {
+			return new HttpServerTransport(config, handler);
+		}
+	},
+
+	/**
+	 * NanoHTTPD server that also lets senders upgrade their connections to
+	 * WebSockets, and push callbacks over them as messages.
+	 */
+	WEBSOCKET {
+		@Override
+		public ListenerTransport create(ListenerTransportConfig config, CallbackHandler handler) {
+			return new NanoHttpdTransport(config, handler, true);
+		}
+	};
+
+	/**
+	 * Creates a transport of this type that passes requests to the given handler.
+	 */
+	public abstract ListenerTransport create(ListenerTransportConfig config, CallbackHandler handler);
+
+	public static ListenerTransportType parse(String value) {
+		if (StringUtils.isBlank(value)) {
+			return NANOHTTPD;
+		}
+		String normalized = value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+		try {
+			return valueOf(normalized);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown listener transport '" + value + "'");
+		}
+	}
+
+}
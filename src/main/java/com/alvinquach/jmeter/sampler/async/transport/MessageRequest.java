@@ -0,0 +1,85 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A callback that arrived as a message on a long-lived channel rather than as
+ * an HTTP request of its own, such as a WebSocket frame or a server-sent event.
+ * It is presented to the handler as a POST whose headers are those of the
+ * request that opened the channel.
+ *
+ * @author Alvin Quach
+ */
+final class MessageRequest implements CallbackRequest {
+
+	private final long receivedNanos = System.nanoTime();
+
+	private final String path;
+
+	/**
+	 * Headers of the request that opened the channel, with lower case names.
+	 */
+	private final Map<String, String> headers;
+
+	private final String contentType;
+
+	private final byte[] body;
+
+	/**
+	 * @param contentType The content type of the message, which takes precedence
+	 *        over the one in the headers.
+	 */
+	MessageRequest(String path, Map<String, String> headers, String contentType, byte[] body) {
+		this.path = path;
+		this.headers = headers;
+		this.contentType = contentType;
+		this.body = body;
+	}
+
+	@Override
+	public String getMethod() {
+		return "POST";
+	}
+
+	@Override
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public String getHeader(String name) {
+		String lowerCaseName = name.toLowerCase();
+		if ("content-type".equals(lowerCaseName)) {
+			return contentType;
+		}
+		if ("content-length".equals(lowerCaseName)) {
+			return String.valueOf(body.length);
+		}
+		if ("content-encoding".equals(lowerCaseName)) {
+			/*
+			 * The coding of the opening request does not apply to the messages on the
+			 * channel.
+			 */
+			return null;
+		}
+		return headers.get(lowerCaseName);
+	}
+
+	@Override
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	@Override
+	public long getContentLength() {
+		return body.length;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(body);
+	}
+
+}
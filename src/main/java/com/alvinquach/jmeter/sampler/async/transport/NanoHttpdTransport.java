@@ -0,0 +1,445 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import com.alvinquach.jmeter.sampler.util.HashedTimingWheel;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+import fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode;
+import fi.iki.elonen.NanoHTTPD.Response.IStatus;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+
+/**
+ * Listener transport backed by NanoHTTPD. NanoHTTPD's default AsyncRunner
+ * starts a new thread for every connection. If a number of worker threads is
+ * configured, connections are instead served by a bounded pool, where each
+ * worker serves one connection at a time. Connections beyond the pool's queue
+ * are answered by the handler's rejection and then closed. On virtual threads,
+ * every connection gets a virtual thread of its own instead, unless a number
+ * of worker threads is configured, in which case the pool's workers are
+ * virtual threads.
+ * <p>
+ * Shards of a listener can share a port with SO_REUSEPORT, which Java only
+ * supports from version 9 on. It is looked up reflectively, so the transport
+ * still runs on Java 8 otherwise.
+ * <p>
+ * If WebSockets are accepted, senders can also upgrade a connection and push
+ * callbacks over it, one per text or binary message, without the overhead of
+ * an HTTP request each. Messages are passed to the handler as POSTs with the
+ * path and headers of the handshake, so the content type of the messages can
+ * be set in the handshake. Messages that are not accepted are answered with a
+ * text message holding the status line. Open WebSockets are pinged regularly,
+ * so that their connections do not hit the read timeout while they are idle.
+ * Each WebSocket keeps its connection's worker thread for as long as it is
+ * open.
+ *
+ * @see <a href="https://github.com/pleutres/jmeter-asynchronous-http">https://github.com/pleutres/jmeter-asynchronous-http</a>
+ */
+class NanoHttpdTransport extends NanoWSD implements ListenerTransport {
+
+	/**
+	 * Maximum number of body bytes that are read after a request has been
+	 * handled. Whatever the handler left of a body has to be read before the
+	 * next request on the connection, and reading some of it before closing the
+	 * connection keeps it from being reset before the client has read the
+	 * response.
+	 */
+	private static final long MAX_BODY_DRAIN = 64 * 1024;
+
+	/**
+	 * How long to wait for connections to finish when stopping, in seconds.
+	 */
+	private static final int STOP_DELAY = 1;
+
+	/**
+	 * How often open WebSockets are pinged, in milliseconds. Pongs have to
+	 * arrive well within the socket read timeout.
+	 */
+	private static final long PING_INTERVAL = NanoHTTPD.SOCKET_READ_TIMEOUT / 2;
+
+	private static final byte[] PING_PAYLOAD = new byte[0];
+
+	/**
+	 * Content type of WebSocket messages, unless the handshake sets another one.
+	 */
+	private static final String DEFAULT_MESSAGE_CONTENT_TYPE = "application/json";
+
+	/**
+	 * StandardSocketOptions.SO_REUSEPORT, or null before Java 9.
+	 */
+	private static final SocketOption<?> SO_REUSEPORT = findReusePortOption();
+
+	/**
+	 * ServerSocket.setOption, or null before Java 9.
+	 */
+	private static final java.lang.reflect.Method SET_OPTION = findSetOptionMethod();
+
+	private final ListenerTransportConfig config;
+
+	private final CallbackHandler handler;
+
+	private final boolean acceptWebSockets;
+
+	private final Set<CallbackWebSocket> openWebSockets = ConcurrentHashMap.newKeySet();
+
+	private HashedTimingWheel pingTimer;
+
+	NanoHttpdTransport(ListenerTransportConfig config, CallbackHandler handler) {
+		this(config, handler, false);
+	}
+
+	NanoHttpdTransport(ListenerTransportConfig config, CallbackHandler handler, boolean acceptWebSockets) {
+		super(config.getPort());
+		this.config = config;
+		this.handler = handler;
+		this.acceptWebSockets = acceptWebSockets;
+		int backlog = config.getAcceptQueueSize();
+		boolean reusePort = config.isReusePort();
+		if (reusePort && (SO_REUSEPORT == null || SET_OPTION == null)) {
+			throw new IllegalArgumentException("Sharing a port with SO_REUSEPORT requires Java 9 or later");
+		}
+		if (backlog > 0 || reusePort) {
+			/*
+			 * NanoHTTPD binds the socket itself, so the options have to be applied when
+			 * it does.
+			 */
+			setServerSocketFactory(() -> new ServerSocket() {
+				@Override
+				public void bind(SocketAddress endpoint) throws IOException {
+					if (reusePort) {
+						enableReusePort(this);
+					}
+					super.bind(endpoint, backlog);
+				}
+			});
+		}
+	}
+
+	private static SocketOption<?> findReusePortOption() {
+		try {
+			return (SocketOption<?>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static java.lang.reflect.Method findSetOptionMethod() {
+		try {
+			return ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static void enableReusePort(ServerSocket socket) throws IOException {
+		try {
+			SET_OPTION.invoke(socket, SO_REUSEPORT, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			throw new IOException("Could not enable SO_REUSEPORT", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IOException("Could not enable SO_REUSEPORT", e);
+		}
+	}
+
+	@Override
+	public void start() throws IOException {
+		if (config.getWorkerThreads() > 0 || config.isVirtualThreads()) {
+			setAsyncRunner(new PooledRunner(new WorkerPool("async-http-listener-" + config.getPort(), config.getWorkerThreads(),
+					config.getMaxQueuedRequests(), config.isVirtualThreads())));
+		}
+		super.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+		if (acceptWebSockets) {
+			pingTimer = new HashedTimingWheel(PING_INTERVAL, TimeUnit.MILLISECONDS, 8, "async-http-listener-" + config.getPort() + "-pings");
+			schedulePings();
+		}
+	}
+
+	@Override
+	public void stop() {
+		HashedTimingWheel timer = pingTimer;
+		pingTimer = null;
+		if (timer != null) {
+			timer.close();
+		}
+		super.stop();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return getListeningPort();
+	}
+
+	private void schedulePings() {
+		HashedTimingWheel timer = pingTimer;
+		if (timer == null) {
+			return;
+		}
+		timer.schedule(() -> {
+			for (CallbackWebSocket webSocket : openWebSockets) {
+				try {
+					webSocket.ping(PING_PAYLOAD);
+				} catch (IOException e) {
+					// The WebSocket is closed by its own thread when it fails to read.
+				}
+			}
+			schedulePings();
+		}, PING_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Response serve(IHTTPSession session) {
+		/*
+		 * Connections that are being rejected are not upgraded.
+		 */
+		return acceptWebSockets && !WorkerPool.isRejecting() ? super.serve(session) : serveHttp(session);
+	}
+
+	@Override
+	protected WebSocket openWebSocket(IHTTPSession handshake) {
+		return new CallbackWebSocket(handshake);
+	}
+
+	@Override
+	protected Response serveHttp(IHTTPSession session) {
+		boolean rejecting = WorkerPool.isRejecting();
+		SessionRequest request = new SessionRequest(session);
+		CallbackResponse response = rejecting ? handler.reject(request) : handler.handle(request);
+		/*
+		 * Handlers stop reading at the first error, such as an oversized or malformed
+		 * body. The connection is only kept alive if the rest of the body could be
+		 * read, since the next request on it would otherwise start in the middle of
+		 * this one.
+		 */
+		boolean bodyRead = drainBody(request);
+		/*
+		 * A new Response has to be created every time, since NanoHTTPD consumes its
+		 * data stream when it is sent.
+		 */
+		byte[] body = response.getBody();
+		Response nanoResponse = NanoHTTPD.newFixedLengthResponse(toStatus(response), response.getContentType(), new ByteArrayInputStream(body), body.length);
+		for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+			nanoResponse.addHeader(header.getKey(), header.getValue());
+		}
+		nanoResponse.closeConnection(rejecting || !bodyRead || response.getStatusCode() / 100 != 2);
+		return nanoResponse;
+	}
+
+	/**
+	 * Reads what is left of the body of a request, up to a limit. Returns
+	 * whether the end of the body was reached.
+	 */
+	private static boolean drainBody(CallbackRequest request) {
+		try {
+			return IOUtils.skip(request.getInputStream(), MAX_BODY_DRAIN) < MAX_BODY_DRAIN;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static IStatus toStatus(CallbackResponse response) {
+		int statusCode = response.getStatusCode();
+		for (Status status : Status.values()) {
+			if (status.getRequestStatus() == statusCode) {
+				return status;
+			}
+		}
+		String description = statusCode + " " + response.getReasonPhrase();
+		return new IStatus() {
+			@Override public int getRequestStatus() {
+				return statusCode;
+			}
+			@Override public String getDescription() {
+				return description;
+			}
+		};
+	}
+
+	/**
+	 * Passes every message of a WebSocket to the handler.
+	 */
+	private final class CallbackWebSocket extends WebSocket {
+
+		private final String path;
+
+		private final Map<String, String> headers;
+
+		private final String contentType;
+
+		private CallbackWebSocket(IHTTPSession handshake) {
+			super(handshake);
+			path = handshake.getUri();
+			headers = handshake.getHeaders();
+			String handshakeContentType = headers.get("content-type");
+			contentType = handshakeContentType == null ? DEFAULT_MESSAGE_CONTENT_TYPE : handshakeContentType;
+		}
+
+		@Override
+		protected void onOpen() {
+			openWebSockets.add(this);
+		}
+
+		@Override
+		protected void onClose(CloseCode code, String reason, boolean initiatedByRemote) {
+			openWebSockets.remove(this);
+		}
+
+		@Override
+		protected void onMessage(WebSocketFrame message) {
+			CallbackResponse response = handler.handle(new MessageRequest(path, headers, contentType, message.getBinaryPayload()));
+			int statusCode = response.getStatusCode();
+			if (statusCode / 100 != 2) {
+				try {
+					send(statusCode + " " + response.getReasonPhrase());
+				} catch (IOException e) {
+					// The WebSocket is closed by its own thread when it fails to read.
+				}
+			}
+		}
+
+		@Override
+		protected void onPong(WebSocketFrame pong) {
+
+		}
+
+		@Override
+		protected void onException(IOException exception) {
+			openWebSockets.remove(this);
+		}
+	}
+
+	/**
+	 * Runs connections on a worker pool instead of a platform thread each.
+	 */
+	private static final class PooledRunner implements AsyncRunner {
+
+		private final WorkerPool workers;
+
+		private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<>());
+
+		private PooledRunner(WorkerPool workers) {
+			this.workers = workers;
+		}
+
+		@Override
+		public void exec(ClientHandler clientHandler) {
+			running.add(clientHandler);
+			workers.execute(clientHandler, clientHandler);
+		}
+
+		@Override
+		public void closed(ClientHandler clientHandler) {
+			running.remove(clientHandler);
+		}
+
+		@Override
+		public void closeAll() {
+			List<ClientHandler> handlers;
+			synchronized (running) {
+				handlers = new ArrayList<>(running);
+			}
+			for (ClientHandler clientHandler : handlers) {
+				clientHandler.close();
+			}
+			workers.shutdown(STOP_DELAY, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Adapts a NanoHTTPD session to a CallbackRequest.
+	 */
+	private static final class SessionRequest implements CallbackRequest {
+
+		private final long receivedNanos = System.nanoTime();
+
+		private final IHTTPSession session;
+
+		private InputStream body;
+
+		private SessionRequest(IHTTPSession session) {
+			this.session = session;
+		}
+
+		@Override
+		public long getReceivedNanos() {
+			return receivedNanos;
+		}
+
+		@Override
+		public String getMethod() {
+			Method method = session.getMethod();
+			return method == null ? null : method.name();
+		}
+
+		@Override
+		public String getPath() {
+			return session.getUri();
+		}
+
+		@Override
+		public String getHeader(String name) {
+			/*
+			 * NanoHTTPD stores header names in lower case.
+			 */
+			Map<String, String> headers = session.getHeaders();
+			return headers.get(name.toLowerCase());
+		}
+
+		@Override
+		public long getContentLength() {
+			if (isChunked()) {
+				return -1;
+			}
+			String length = getHeader("content-length");
+			try {
+				return length == null ? 0 : Long.parseLong(length.trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+
+		/**
+		 * NanoHTTPD hands out the raw connection stream, which neither decodes
+		 * chunked bodies nor ends at the end of the body, so both have to be done
+		 * here. Otherwise, reading past the body would block on a kept-alive
+		 * connection.
+		 */
+		@Override
+		public InputStream getInputStream() {
+			if (body == null) {
+				InputStream in = session.getInputStream();
+				if (isChunked()) {
+					body = new ChunkedInputStream(in);
+				} else {
+					BoundedInputStream bounded = new BoundedInputStream(in, getContentLength());
+					bounded.setPropagateClose(false);
+					body = bounded;
+				}
+			}
+			return body;
+		}
+
+		private boolean isChunked() {
+			String transferEncoding = getHeader("transfer-encoding");
+			return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+		}
+	}
+
+}
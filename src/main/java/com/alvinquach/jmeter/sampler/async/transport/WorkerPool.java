@@ -0,0 +1,126 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.alvinquach.jmeter.sampler.util.VirtualThreads;
+
+/**
+ * Fixed-size pool of worker threads with an optionally bounded queue. Tasks
+ * that do not fit in the queue are not dropped; their rejection is run
+ * instead, on a separate thread, so that the transport can still answer them
+ * and the sender can back off.
+ * <p>
+ * Workers can be virtual threads, in which case the pool can also be
+ * unbounded and start a new thread for every task, since virtual threads are
+ * cheap to create and to keep blocked.
+ *
+ * @author Alvin Quach
+ */
+final class WorkerPool {
+
+	/**
+	 * Number of rejections that can wait for the rejection thread. Beyond this,
+	 * rejections run on the thread that submitted the task.
+	 */
+	private static final int MAX_QUEUED_REJECTIONS = 1024;
+
+	private static final ThreadLocal<Boolean> REJECTING = new ThreadLocal<>();
+
+	/**
+	 * Returns whether the current thread is running the rejection of a task.
+	 */
+	static boolean isRejecting() {
+		return REJECTING.get() != null;
+	}
+
+	private final ThreadPoolExecutor workers;
+
+	private final ThreadPoolExecutor rejections;
+
+	/**
+	 * @param name Prefix of the thread names.
+	 * @param threads Number of worker threads, or 0 to start a new virtual
+	 *        thread for every task.
+	 * @param maxQueued Maximum number of tasks that wait for a worker; 0 for no
+	 *        limit.
+	 * @param virtualThreads Whether the workers are virtual threads, which the
+	 *        runtime must support.
+	 */
+	WorkerPool(String name, int threads, int maxQueued, boolean virtualThreads) {
+		ThreadFactory threadFactory = virtualThreads ? VirtualThreads.factory(name) : new DaemonThreadFactory(name);
+		if (threads > 0) {
+			BlockingQueue<Runnable> queue = maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new LinkedBlockingQueue<>();
+			workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, threadFactory);
+		} else if (virtualThreads) {
+			workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), threadFactory);
+		} else {
+			throw new IllegalArgumentException("Only a pool of virtual threads can start a thread for every task");
+		}
+		rejections = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_REJECTIONS),
+				new DaemonThreadFactory(name + "-rejections"), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Runs the task on a worker thread, or runs the rejection instead if too many
+	 * tasks are already waiting. While the rejection runs,
+	 * {@link #isRejecting()} returns true.
+	 */
+	void execute(Runnable task, Runnable rejection) {
+		try {
+			workers.execute(task);
+		} catch (RejectedExecutionException e) {
+			if (workers.isShutdown()) {
+				throw e;
+			}
+			rejections.execute(() -> {
+				REJECTING.set(Boolean.TRUE);
+				try {
+					rejection.run();
+				} finally {
+					REJECTING.remove();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops accepting tasks, and waits up to the given time for running tasks to
+	 * finish.
+	 */
+	void shutdown(long timeout, TimeUnit unit) {
+		workers.shutdown();
+		rejections.shutdown();
+		try {
+			workers.awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class DaemonThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final String name;
+
+		private DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
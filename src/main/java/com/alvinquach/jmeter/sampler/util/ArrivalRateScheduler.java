@@ -0,0 +1,256 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Open-model scheduler that hands out intended send times at a target arrival
+ * rate, independently of how long previous requests took to complete.
+ * <p>
+ * The arrival rate ramps linearly from an initial rate to the target rate
+ * over the ramp duration, and stays at the target rate afterwards. Arrivals
+ * are either evenly spaced, or spaced by exponentially distributed gaps so
+ * that they form a Poisson process.
+ * <p>
+ * Samplers should measure latency from the intended send time returned by
+ * {@link #awaitNextArrival()} rather than from when the request was actually
+ * sent. That way, requests that had to be sent late because the load
+ * generator fell behind are not reported with artificially low latencies
+ * (coordinated omission).
+ * <p>
+ * Schedulers are shared by every sampler in the test plan that uses the same
+ * configuration, so that the target rate applies to the test plan as a whole
+ * rather than to each thread. The schedule starts when the first arrival is
+ * requested.
+ *
+ * @author Alvin Quach
+ */
+public final class ArrivalRateScheduler implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArrivalRateScheduler.class);
+
+	/**
+	 * Determines how arrivals are spaced.
+	 */
+	public enum Distribution {
+
+		/**
+		 * Arrivals are evenly spaced.
+		 */
+		CONSTANT,
+
+		/**
+		 * Arrivals are spaced by exponentially distributed gaps.
+		 */
+		POISSON;
+
+		public static Distribution parse(String value) {
+			if (StringUtils.isBlank(value)) {
+				return CONSTANT;
+			}
+			try {
+				return valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown arrival distribution '" + value + "'");
+			}
+		}
+	}
+
+	/**
+	 * Arrival rate settings.
+	 */
+	public static final class Config {
+
+		private final double initialRate;
+
+		private final double targetRate;
+
+		private final long rampDuration;
+
+		private final Distribution distribution;
+
+		/**
+		 * @param initialRate Arrival rate at the start of the ramp, in arrivals per
+		 *        second.
+		 * @param targetRate Arrival rate at the end of the ramp, in arrivals per
+		 *        second.
+		 * @param rampDuration Duration of the ramp in milliseconds.
+		 * @param distribution How arrivals are spaced.
+		 */
+		public Config(double initialRate, double targetRate, long rampDuration, Distribution distribution) {
+			if (targetRate <= 0 || initialRate < 0 || rampDuration < 0) {
+				throw new IllegalArgumentException("Target arrival rate must be positive, and initial rate and ramp duration must not be negative");
+			}
+			if (rampDuration == 0) {
+				initialRate = targetRate;
+			}
+			this.initialRate = initialRate;
+			this.targetRate = targetRate;
+			this.rampDuration = rampDuration;
+			this.distribution = distribution;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Config)) {
+				return false;
+			}
+			Config other = (Config) obj;
+			return initialRate == other.initialRate
+					&& targetRate == other.targetRate
+					&& rampDuration == other.rampDuration
+					&& distribution == other.distribution;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(initialRate, targetRate, rampDuration, distribution);
+		}
+
+		@Override
+		public String toString() {
+			return "initialRate=" + initialRate
+					+ ", targetRate=" + targetRate
+					+ ", rampDuration=" + rampDuration
+					+ ", distribution=" + distribution;
+		}
+	}
+
+	private static final Map<Config, ArrivalRateScheduler> SHARED_SCHEDULERS = new HashMap<>();
+
+	/**
+	 * Returns the test plan wide scheduler for the given configuration, creating
+	 * it if it does not exist yet. Each call must be matched by a call to
+	 * {@link #close()}.
+	 */
+	public static ArrivalRateScheduler acquireShared(Config config) {
+		synchronized (SHARED_SCHEDULERS) {
+			ArrivalRateScheduler scheduler = SHARED_SCHEDULERS.get(config);
+			if (scheduler == null) {
+				scheduler = new ArrivalRateScheduler(config);
+				SHARED_SCHEDULERS.put(config, scheduler);
+				LOGGER.info("Created shared arrival rate scheduler ({})", config);
+			}
+			scheduler.references++;
+			return scheduler;
+		}
+	}
+
+	private final Config config;
+
+	/**
+	 * Ramp duration in seconds.
+	 */
+	private final double rampSeconds;
+
+	/**
+	 * Number of arrivals that are scheduled during the ramp.
+	 */
+	private final double rampArrivals;
+
+	/**
+	 * Number of samplers holding this scheduler. Guarded by SHARED_SCHEDULERS.
+	 */
+	private int references;
+
+	/*
+	 * Schedule state, guarded by this.
+	 */
+
+	private boolean started;
+
+	private long startNanos;
+
+	private long startMillis;
+
+	/**
+	 * Cumulative number of arrivals handed out so far. This is fractional for the
+	 * Poisson distribution.
+	 */
+	private double arrivals;
+
+	private ArrivalRateScheduler(Config config) {
+		this.config = config;
+		rampSeconds = config.rampDuration / 1000.0;
+		rampArrivals = (config.initialRate + config.targetRate) * rampSeconds / 2;
+	}
+
+	/**
+	 * Claims the next arrival in the schedule and waits until its intended send
+	 * time. Returns immediately if the intended send time has already passed.
+	 *
+	 * @return The intended send time, in milliseconds since the epoch.
+	 */
+	public long awaitNextArrival() throws InterruptedException {
+		long intendedNanos;
+		long intendedMillis;
+		synchronized (this) {
+			if (!started) {
+				startNanos = System.nanoTime();
+				startMillis = System.currentTimeMillis();
+				started = true;
+			}
+			arrivals += config.distribution == Distribution.POISSON
+					? -Math.log(1 - ThreadLocalRandom.current().nextDouble())
+					: 1;
+			long offsetNanos = (long) (arrivalTime(arrivals) * TimeUnit.SECONDS.toNanos(1));
+			intendedNanos = startNanos + offsetNanos;
+			intendedMillis = startMillis + TimeUnit.NANOSECONDS.toMillis(offsetNanos);
+		}
+
+		long remaining;
+		while ((remaining = intendedNanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return intendedMillis;
+	}
+
+	/**
+	 * Returns the time in seconds since the start of the schedule at which the
+	 * cumulative number of arrivals reaches the given count.
+	 */
+	private double arrivalTime(double count) {
+		if (count > rampArrivals) {
+			return rampSeconds + (count - rampArrivals) / config.targetRate;
+		}
+		/*
+		 * During the ramp, the cumulative number of arrivals is r0*t + (r1-r0)*t^2/2D,
+		 * so solve the quadratic for t.
+		 */
+		double r0 = config.initialRate;
+		double a = (config.targetRate - r0) / (2 * rampSeconds);
+		if (a == 0) {
+			return count / r0;
+		}
+		return (-r0 + Math.sqrt(r0 * r0 + 4 * a * count)) / (2 * a);
+	}
+
+	/**
+	 * Releases the caller's reference to the scheduler.
+	 */
+	@Override
+	public void close() {
+		synchronized (SHARED_SCHEDULERS) {
+			if (--references > 0) {
+				return;
+			}
+			SHARED_SCHEDULERS.remove(config);
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Raw body of a request received by the listener, as a slice of a byte array
+ * together with the charset it is encoded in.
+ * <p>
+ * The backing array may be a buffer that is reused for the next request read
+ * on the same thread, so the body is only valid until then. Use
+ * {@link #copyBytes()} or {@link #asString()} to keep it for longer.
+ *
+ * @author Alvin Quach
+ */
+public final class CallbackBody {
+
+	private final byte[] array;
+
+	private final int offset;
+
+	private final int length;
+
+	private final Charset charset;
+
+	public CallbackBody(byte[] array, int offset, int length, Charset charset) {
+		this.array = array;
+		this.offset = offset;
+		this.length = length;
+		this.charset = charset;
+	}
+
+	public byte[] array() {
+		return array;
+	}
+
+	public int offset() {
+		return offset;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public Charset charset() {
+		return charset;
+	}
+
+	/**
+	 * Returns whether the body is in an encoding that JSON parsers can read
+	 * directly from bytes, without decoding it to characters first.
+	 */
+	public boolean isUnicode() {
+		return isUnicode(charset);
+	}
+
+	/**
+	 * Returns whether JSON parsers can read the given charset directly from
+	 * bytes.
+	 */
+	public static boolean isUnicode(Charset charset) {
+		return charset.equals(StandardCharsets.UTF_8)
+				|| charset.equals(StandardCharsets.US_ASCII)
+				|| charset.name().startsWith("UTF-");
+	}
+
+	/**
+	 * Returns whether the body is empty or only contains whitespace.
+	 */
+	public boolean isBlank() {
+		for (int i = offset; i < offset + length; i++) {
+			if (!Character.isWhitespace(array[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(array, offset, length).asReadOnlyBuffer();
+	}
+
+	public InputStream asInputStream() {
+		return new ByteArrayInputStream(array, offset, length);
+	}
+
+	public byte[] copyBytes() {
+		byte[] copy = new byte[length];
+		System.arraycopy(array, offset, copy, 0, length);
+		return copy;
+	}
+
+	public String asString() {
+		return new String(array, offset, length, charset);
+	}
+
+}
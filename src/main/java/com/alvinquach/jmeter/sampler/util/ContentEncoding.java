@@ -0,0 +1,111 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * HTTP content codings that bodies can be compressed with.
+ *
+ * @author Alvin Quach
+ */
+public enum ContentEncoding {
+
+	IDENTITY(null),
+
+	GZIP("gzip"),
+
+	/**
+	 * The <code>deflate</code> coding, which is meant to be zlib-wrapped
+	 * deflate data. Raw deflate data is accepted as well when decoding, since
+	 * many servers send that instead.
+	 */
+	DEFLATE("deflate");
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String token;
+
+	private ContentEncoding(String token) {
+		this.token = token;
+	}
+
+	/**
+	 * Returns the value of the <code>Content-Encoding</code> header for this
+	 * coding, or null if bodies are not encoded.
+	 */
+	public String token() {
+		return token;
+	}
+
+	/**
+	 * Returns a stream that decodes the given stream as it is read. The stream
+	 * is decoded in small chunks, so the encoded body is never buffered as a
+	 * whole.
+	 */
+	public InputStream decode(InputStream in) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		case DEFLATE:
+			/*
+			 * A zlib header is a compression method of 8 in the low bits of the first
+			 * byte, with the first two bytes together a multiple of 31.
+			 */
+			PushbackInputStream pushback = new PushbackInputStream(in, 2);
+			int first = pushback.read();
+			int second = first == -1 ? -1 : pushback.read();
+			if (second != -1) {
+				pushback.unread(second);
+			}
+			if (first != -1) {
+				pushback.unread(first);
+			}
+			boolean zlib = second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+			return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE) {
+
+				/*
+				 * The stream only ends inflaters that it created itself.
+				 */
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inf.end();
+				}
+			};
+		default:
+			return in;
+		}
+	}
+
+	/**
+	 * Parses a content coding, either as the value of a
+	 * <code>Content-Encoding</code> header or as the name of a coding. Blank
+	 * values, <code>identity</code> and <code>none</code> mean that bodies are
+	 * not encoded.
+	 */
+	public static ContentEncoding parse(String value) {
+		if (StringUtils.isBlank(value)) {
+			return IDENTITY;
+		}
+		String normalized = value.trim().toLowerCase();
+		switch (normalized) {
+		case "identity":
+		case "none":
+			return IDENTITY;
+		case "gzip":
+		case "x-gzip":
+			return GZIP;
+		case "deflate":
+			return DEFLATE;
+		default:
+			throw new IllegalArgumentException("Unknown content encoding '" + value + "'");
+		}
+	}
+
+}
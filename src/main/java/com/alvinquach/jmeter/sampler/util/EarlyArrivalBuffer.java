@@ -0,0 +1,197 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded buffer for values that arrive before anyone has asked for them.
+ * Values are held for a limited time, and the buffer is limited both in the
+ * number of values and in their total size. When a limit is exceeded, the
+ * oldest values are evicted first.
+ * <p>
+ * Values are never read without being removed, so arrival order is also
+ * least-recently-used order. All methods are thread-safe.
+ *
+ * @author Alvin Quach
+ */
+public final class EarlyArrivalBuffer<K, V> {
+
+	private static final class Entry<V> {
+
+		private final V value;
+
+		private final long size;
+
+		private final long arrivalTime;
+
+		private Entry(V value, long size, long arrivalTime) {
+			this.value = value;
+			this.size = size;
+			this.arrivalTime = arrivalTime;
+		}
+	}
+
+	/**
+	 * Entries in arrival order. Guarded by this.
+	 */
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>();
+
+	private final long ttl;
+
+	private final int maxEntries;
+
+	private final long maxBytes;
+
+	/*
+	 * Statistics, guarded by this.
+	 */
+
+	private long bytes;
+
+	private long bufferedCount;
+
+	private long claimedCount;
+
+	private long expiredCount;
+
+	private long evictedCount;
+
+	/**
+	 * @param ttl How long a value is held before it expires, or 0 to hold values
+	 *        until they are evicted.
+	 * @param maxEntries Maximum number of values to hold.
+	 * @param maxBytes Maximum total size of the values to hold.
+	 */
+	public EarlyArrivalBuffer(long ttl, TimeUnit unit, int maxEntries, long maxBytes) {
+		if (ttl < 0 || maxEntries <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("TTL must not be negative, and maximum entries and bytes must be positive");
+		}
+		this.ttl = unit.toNanos(ttl);
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds a value, replacing any value that is already held for the key. Older
+	 * values are evicted if the buffer is full. Returns false if the value is too
+	 * large to be held at all.
+	 *
+	 * @param size The size of the value in bytes.
+	 */
+	public synchronized boolean put(K key, V value, long size) {
+		long now = System.nanoTime();
+		purgeExpired(now);
+		if (size > maxBytes) {
+			evictedCount++;
+			return false;
+		}
+		Entry<V> replaced = entries.remove(key);
+		if (replaced != null) {
+			bytes -= replaced.size;
+			evictedCount++;
+		}
+		Iterator<Entry<V>> iterator = entries.values().iterator();
+		while (iterator.hasNext() && (entries.size() >= maxEntries || bytes + size > maxBytes)) {
+			bytes -= iterator.next().size;
+			iterator.remove();
+			evictedCount++;
+		}
+		entries.put(key, new Entry<>(value, size, now));
+		bytes += size;
+		bufferedCount++;
+		return true;
+	}
+
+	/**
+	 * Removes and returns the value held for the key, or returns null if there is
+	 * none or it has expired.
+	 */
+	public synchronized V remove(K key) {
+		purgeExpired(System.nanoTime());
+		Entry<V> entry = entries.remove(key);
+		if (entry == null) {
+			return null;
+		}
+		bytes -= entry.size;
+		claimedCount++;
+		return entry.value;
+	}
+
+	/**
+	 * Removes the values that have expired.
+	 */
+	public synchronized void purgeExpired() {
+		purgeExpired(System.nanoTime());
+	}
+
+	private void purgeExpired(long now) {
+		if (ttl == 0) {
+			return;
+		}
+		Iterator<Entry<V>> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry<V> entry = iterator.next();
+			if (now - entry.arrivalTime < ttl) {
+				/*
+				 * Entries are in arrival order, so the remaining ones have not expired either.
+				 */
+				return;
+			}
+			bytes -= entry.size;
+			iterator.remove();
+			expiredCount++;
+		}
+	}
+
+	/**
+	 * Removes all values. They are counted as expired.
+	 */
+	public synchronized void clear() {
+		expiredCount += entries.size();
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the total size of the values that are currently held.
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of values that have been added.
+	 */
+	public synchronized long bufferedCount() {
+		return bufferedCount;
+	}
+
+	/**
+	 * Returns the number of values that have been removed by their key.
+	 */
+	public synchronized long claimedCount() {
+		return claimedCount;
+	}
+
+	/**
+	 * Returns the number of values that expired before anyone removed them.
+	 */
+	public synchronized long expiredCount() {
+		return expiredCount;
+	}
+
+	/**
+	 * Returns the number of values that were evicted because the buffer was
+	 * full, that were replaced by another value for the same key, or that were
+	 * too large to be held.
+	 */
+	public synchronized long evictedCount() {
+		return evictedCount;
+	}
+
+}
@@ -0,0 +1,289 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel that runs tasks once their timeout has elapsed. Time is
+ * divided into ticks of a fixed duration, and each timeout is placed in the
+ * bucket of the tick it expires in, so each tick only has to look at the
+ * timeouts in one bucket instead of every pending timeout. Timeouts are
+ * measured with {@link System#nanoTime()} and fire within one tick after
+ * their deadline.
+ * <p>
+ * Scheduling and cancelling are lock-free and can be done from any thread.
+ * The buckets themselves are only touched by the wheel's own thread, which
+ * also runs the expired tasks, so tasks should be short.
+ *
+ * @author Alvin Quach
+ */
+public final class HashedTimingWheel implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+	/**
+	 * Maximum number of newly scheduled timeouts to move into buckets per tick,
+	 * so that a burst of scheduling cannot delay expiry indefinitely.
+	 */
+	private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+	private static final int PENDING = 0;
+
+	private static final int CANCELLED = 1;
+
+	private static final int EXPIRED = 2;
+
+	/**
+	 * Handle to a scheduled task.
+	 */
+	public final class Timeout {
+
+		private final Runnable task;
+
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		/*
+		 * Bucket membership, only accessed by the wheel thread.
+		 */
+
+		private long remainingRounds;
+
+		private Bucket bucket;
+
+		private Timeout previous;
+
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout, so that its task will not be run. Returns false if
+		 * the task has already been run or the timeout was already cancelled.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			cancelledTimeouts.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED)) {
+				return;
+			}
+			expiredCount.increment();
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				LOGGER.error("Exception encountered while running timeout task: {}", e.getClass().getSimpleName());
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts that fall into one slot of the wheel.
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		private Timeout remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.previous != null) {
+				timeout.previous.next = next;
+			} else {
+				head = next;
+			}
+			if (next != null) {
+				next.previous = timeout.previous;
+			} else {
+				tail = timeout.previous;
+			}
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+	}
+
+	private final long tickDuration;
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+	private final LongAdder expiredCount = new LongAdder();
+
+	private final Thread worker;
+
+	private final long startTime;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the wheel and starts its thread.
+	 *
+	 * @param tickDuration Duration of a tick, which is the resolution of the
+	 *        timeouts.
+	 * @param ticksPerWheel Number of buckets, rounded up to a power of two.
+	 *        Timeouts that are further away than one full turn of the wheel stay in
+	 *        their bucket for more than one turn.
+	 * @param threadName Name of the wheel's thread.
+	 */
+	public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, String threadName) {
+		if (tickDuration <= 0 || ticksPerWheel <= 0) {
+			throw new IllegalArgumentException("Tick duration and ticks per wheel must be positive");
+		}
+		this.tickDuration = unit.toNanos(tickDuration);
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		startTime = System.nanoTime();
+		worker = new Thread(this::run, threadName);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task to run once the given delay has elapsed.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (!running) {
+			throw new IllegalStateException("Timing wheel has been closed");
+		}
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of tasks that have been run because their timeout
+	 * elapsed.
+	 */
+	public long expiredCount() {
+		return expiredCount.sum();
+	}
+
+	private void run() {
+		long tick = 0;
+		while (running) {
+			long tickDeadline = startTime + (tick + 1) * tickDuration;
+			long remaining;
+			while ((remaining = tickDeadline - System.nanoTime()) > 0 && running) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			if (!running) {
+				break;
+			}
+			removeCancelledTimeouts();
+			transferNewTimeouts(tick);
+			expireTimeouts(wheel[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	private void removeCancelledTimeouts() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void transferNewTimeouts(long tick) {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = newTimeouts.poll();
+			if (timeout == null) {
+				return;
+			}
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			/*
+			 * Timeouts whose deadline has already passed go into the current bucket, so
+			 * that they expire on this tick.
+			 */
+			long expiryTick = Math.max((timeout.deadline - startTime + tickDuration - 1) / tickDuration - 1, tick);
+			timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+			wheel[(int) (expiryTick & mask)].add(timeout);
+		}
+	}
+
+	private void expireTimeouts(Bucket bucket) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			if (timeout.remainingRounds <= 0) {
+				Timeout next = bucket.remove(timeout);
+				timeout.expire();
+				timeout = next;
+			} else {
+				timeout.remainingRounds--;
+				timeout = timeout.next;
+			}
+		}
+	}
+
+	/**
+	 * Stops the wheel's thread. Pending timeouts are discarded without running
+	 * their tasks.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		LockSupport.unpark(worker);
+		if (Thread.currentThread() != worker) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
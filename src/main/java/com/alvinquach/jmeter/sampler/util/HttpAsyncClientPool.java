@@ -0,0 +1,174 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking HTTP client backed by a single shared I/O reactor. Requests
+ * are submitted without blocking the calling thread, so a small number of
+ * JMeter threads can keep a large number of requests in flight.
+ * <p>
+ * Clients are shared by every sampler in the test plan that uses the same
+ * configuration. They are reference counted and are only shut down once the
+ * last sampler using them has released them.
+ *
+ * @author Alvin Quach
+ */
+public final class HttpAsyncClientPool implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpAsyncClientPool.class);
+
+	/**
+	 * I/O reactor and connection pool settings.
+	 */
+	public static final class Config {
+
+		private final int ioThreadCount;
+
+		private final int maxConnections;
+
+		private final int maxConnectionsPerRoute;
+
+		/**
+		 * @param ioThreadCount Number of I/O dispatcher threads; 0 to use the number
+		 *        of available processors.
+		 * @param maxConnections Maximum number of connections in the pool.
+		 * @param maxConnectionsPerRoute Maximum number of connections per route.
+		 */
+		public Config(int ioThreadCount, int maxConnections, int maxConnectionsPerRoute) {
+			if (ioThreadCount < 0 || maxConnections <= 0 || maxConnectionsPerRoute <= 0) {
+				throw new IllegalArgumentException("I/O thread count and connection pool sizes must be positive");
+			}
+			this.ioThreadCount = ioThreadCount == 0 ? Runtime.getRuntime().availableProcessors() : ioThreadCount;
+			this.maxConnections = maxConnections;
+			this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Config)) {
+				return false;
+			}
+			Config other = (Config) obj;
+			return ioThreadCount == other.ioThreadCount
+					&& maxConnections == other.maxConnections
+					&& maxConnectionsPerRoute == other.maxConnectionsPerRoute;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ioThreadCount, maxConnections, maxConnectionsPerRoute);
+		}
+
+		@Override
+		public String toString() {
+			return "ioThreadCount=" + ioThreadCount
+					+ ", maxConnections=" + maxConnections
+					+ ", maxConnectionsPerRoute=" + maxConnectionsPerRoute;
+		}
+	}
+
+	private static final Map<Config, HttpAsyncClientPool> SHARED_POOLS = new HashMap<>();
+
+	/**
+	 * Returns the test plan wide client for the given configuration, creating and
+	 * starting it if it does not exist yet. Each call must be matched by a call
+	 * to {@link #close()}.
+	 */
+	public static HttpAsyncClientPool acquireShared(Config config) {
+		synchronized (SHARED_POOLS) {
+			HttpAsyncClientPool pool = SHARED_POOLS.get(config);
+			if (pool == null) {
+				pool = new HttpAsyncClientPool(config);
+				SHARED_POOLS.put(config, pool);
+				LOGGER.info("Started shared non-blocking HTTP client ({})", config);
+			}
+			pool.references++;
+			return pool;
+		}
+	}
+
+	private final Config config;
+
+	private final PoolingNHttpClientConnectionManager connectionManager;
+
+	private final CloseableHttpAsyncClient client;
+
+	/**
+	 * Number of samplers holding this client. Guarded by SHARED_POOLS.
+	 */
+	private int references;
+
+	private HttpAsyncClientPool(Config config) {
+		this.config = config;
+
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(config.ioThreadCount)
+				.setTcpNoDelay(true)
+				.setSoKeepAlive(true)
+				.build();
+		try {
+			connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig));
+		} catch (IOReactorException e) {
+			throw new IllegalStateException("Could not create I/O reactor", e);
+		}
+		connectionManager.setMaxTotal(config.maxConnections);
+		connectionManager.setDefaultMaxPerRoute(config.maxConnectionsPerRoute);
+
+		client = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.build();
+		client.start();
+	}
+
+	/**
+	 * Returns the shared non-blocking HTTP client. Callers must not close it.
+	 */
+	public CloseableHttpAsyncClient client() {
+		return client;
+	}
+
+	/**
+	 * Returns a snapshot of the number of leased, available and pending
+	 * connections in the pool.
+	 */
+	public PoolStats stats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * Releases the caller's reference to the client, shutting it down if it was
+	 * the last one.
+	 */
+	@Override
+	public void close() {
+		synchronized (SHARED_POOLS) {
+			if (--references > 0) {
+				return;
+			}
+			SHARED_POOLS.remove(config);
+			LOGGER.info("Shutting down shared non-blocking HTTP client ({})", config);
+		}
+		try {
+			client.close();
+		} catch (Exception e) {
+			LOGGER.error("Exception encountered while shutting down non-blocking HTTP client: {}", e.getClass().getSimpleName());
+		}
+	}
+
+}
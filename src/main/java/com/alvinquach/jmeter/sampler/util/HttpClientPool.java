@@ -0,0 +1,247 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keep-alive HTTP client backed by a PoolingHttpClientConnectionManager, so
+ * that connections (and TLS sessions) are reused across samples instead of
+ * being set up for every request.
+ * <p>
+ * A pool can either be owned by a single sampler instance (one per JMeter
+ * thread), or shared by every sampler in the test plan that uses the same
+ * configuration. Shared pools are reference counted and are only closed once
+ * the last sampler using them has released them.
+ *
+ * @author Alvin Quach
+ */
+public final class HttpClientPool implements Closeable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpClientPool.class);
+
+	/**
+	 * Determines how widely a connection pool is shared.
+	 */
+	public enum Scope {
+
+		/**
+		 * No pooling; a new client is created and closed for every sample.
+		 */
+		NONE,
+
+		/**
+		 * One pool per sampler instance, which is one per JMeter thread.
+		 */
+		THREAD,
+
+		/**
+		 * One pool shared by all samplers in the test plan with the same
+		 * configuration.
+		 */
+		TEST_PLAN;
+
+		public static Scope parse(String value) {
+			if (StringUtils.isBlank(value)) {
+				return NONE;
+			}
+			String normalized = value.trim().replaceAll("([a-z])([A-Z])", "$1_$2").replace('-', '_').toUpperCase();
+			try {
+				return valueOf(normalized);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown connection pool scope '" + value + "'");
+			}
+		}
+	}
+
+	/**
+	 * Connection pool settings. Two configurations are equal if all of their
+	 * settings are equal, which is used to decide whether a test plan scoped pool
+	 * can be shared.
+	 */
+	public static final class Config {
+
+		private final int maxConnections;
+
+		private final int maxConnectionsPerRoute;
+
+		private final long keepAliveTimeout;
+
+		private final long idleConnectionTimeout;
+
+		private final int validateAfterInactivity;
+
+		/**
+		 * @param maxConnections Maximum number of connections in the pool.
+		 * @param maxConnectionsPerRoute Maximum number of connections per route.
+		 * @param keepAliveTimeout Maximum time in milliseconds that an idle
+		 *        connection is kept alive, if the server does not ask for less.
+		 * @param idleConnectionTimeout Time in milliseconds after which idle
+		 *        connections are evicted from the pool; 0 to disable eviction.
+		 * @param validateAfterInactivity Time in milliseconds of inactivity after
+		 *        which a connection is checked for staleness before being leased;
+		 *        a negative value disables the stale check.
+		 */
+		public Config(int maxConnections, int maxConnectionsPerRoute, long keepAliveTimeout, long idleConnectionTimeout, int validateAfterInactivity) {
+			if (maxConnections <= 0 || maxConnectionsPerRoute <= 0) {
+				throw new IllegalArgumentException("Connection pool sizes must be positive");
+			}
+			this.maxConnections = maxConnections;
+			this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+			this.keepAliveTimeout = keepAliveTimeout;
+			this.idleConnectionTimeout = idleConnectionTimeout;
+			this.validateAfterInactivity = validateAfterInactivity;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Config)) {
+				return false;
+			}
+			Config other = (Config) obj;
+			return maxConnections == other.maxConnections
+					&& maxConnectionsPerRoute == other.maxConnectionsPerRoute
+					&& keepAliveTimeout == other.keepAliveTimeout
+					&& idleConnectionTimeout == other.idleConnectionTimeout
+					&& validateAfterInactivity == other.validateAfterInactivity;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(maxConnections, maxConnectionsPerRoute, keepAliveTimeout, idleConnectionTimeout, validateAfterInactivity);
+		}
+
+		@Override
+		public String toString() {
+			return "maxConnections=" + maxConnections
+					+ ", maxConnectionsPerRoute=" + maxConnectionsPerRoute
+					+ ", keepAliveTimeout=" + keepAliveTimeout
+					+ ", idleConnectionTimeout=" + idleConnectionTimeout
+					+ ", validateAfterInactivity=" + validateAfterInactivity;
+		}
+	}
+
+	private static final Map<Config, HttpClientPool> SHARED_POOLS = new HashMap<>();
+
+	/**
+	 * Returns a new pool that is owned by the caller.
+	 */
+	public static HttpClientPool create(Config config) {
+		return new HttpClientPool(config, false);
+	}
+
+	/**
+	 * Returns the test plan wide pool for the given configuration, creating it if
+	 * it does not exist yet. Each call must be matched by a call to
+	 * {@link #close()}.
+	 */
+	public static HttpClientPool acquireShared(Config config) {
+		synchronized (SHARED_POOLS) {
+			HttpClientPool pool = SHARED_POOLS.get(config);
+			if (pool == null) {
+				pool = new HttpClientPool(config, true);
+				SHARED_POOLS.put(config, pool);
+				LOGGER.info("Created shared HTTP connection pool ({})", config);
+			}
+			pool.references++;
+			return pool;
+		}
+	}
+
+	private final Config config;
+
+	private final boolean shared;
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private final CloseableHttpClient client;
+
+	/**
+	 * Number of samplers holding a shared pool. Guarded by SHARED_POOLS.
+	 */
+	private int references;
+
+	private HttpClientPool(Config config, boolean shared) {
+		this.config = config;
+		this.shared = shared;
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(config.maxConnections);
+		connectionManager.setDefaultMaxPerRoute(config.maxConnectionsPerRoute);
+		connectionManager.setValidateAfterInactivity(config.validateAfterInactivity);
+
+		ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			if (duration <= 0) {
+				return config.keepAliveTimeout;
+			}
+			return Math.min(duration, config.keepAliveTimeout);
+		};
+
+		/*
+		 * The client owns the connection manager, so closing the client will also shut
+		 * down the pool and the idle connection evictor thread.
+		 */
+		HttpClientBuilder builder = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.evictExpiredConnections();
+		if (config.idleConnectionTimeout > 0) {
+			builder.evictIdleConnections(config.idleConnectionTimeout, TimeUnit.MILLISECONDS);
+		}
+		client = builder.build();
+	}
+
+	/**
+	 * Returns the pooled HTTP client. Callers must not close it.
+	 */
+	public CloseableHttpClient client() {
+		return client;
+	}
+
+	/**
+	 * Returns a snapshot of the number of leased, available and pending
+	 * connections in the pool.
+	 */
+	public PoolStats stats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * Closes the pool, or releases the caller's reference to it if it is shared.
+	 */
+	@Override
+	public void close() {
+		if (shared) {
+			synchronized (SHARED_POOLS) {
+				if (--references > 0) {
+					return;
+				}
+				SHARED_POOLS.remove(config);
+				LOGGER.info("Closing shared HTTP connection pool ({})", config);
+			}
+		}
+		try {
+			client.close();
+		} catch (Exception e) {
+			LOGGER.error("Exception encountered while closing HTTP connection pool: {}", e.getClass().getSimpleName());
+		}
+	}
+
+}
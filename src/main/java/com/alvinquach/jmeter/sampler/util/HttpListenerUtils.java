@@ -1,28 +1,212 @@
 package com.alvinquach.jmeter.sampler.util;
 
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import com.alvinquach.jmeter.sampler.async.transport.CallbackRequest;
 
 public final class HttpListenerUtils {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(HttpListenerUtils.class);
 	
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	
+	/**
+	 * Buffers that grow beyond this size to fit an unusually large body are not
+	 * kept for reuse, so that each listener thread does not hold on to the
+	 * largest body it has ever seen.
+	 */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+	
+	private static final String CHARSET_PARAMETER = "charset=";
+	
+	private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+	
+	/**
+	 * Thrown when a request body is larger than the allowed maximum.
+	 */
+	public static final class BodyTooLargeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		BodyTooLargeException(long maxBodySize) {
+			super("Request body is larger than " + maxBodySize + " bytes");
+		}
+	}
+	
 	private HttpListenerUtils() {
 		
 	}
 	
-	public static String parseResponseBody(IHTTPSession session) throws Exception {
-		String length = session.getHeaders().get("content-length");
-		if (length == null) {
-			LOGGER.error("Content length is null");
-			return null;
+	/**
+	 * Reads the whole body of the given request into a buffer that is local to
+	 * the current thread. The returned body is only valid until the next call on
+	 * the same thread.
+	 * 
+	 * @param maxBodySize The maximum number of bytes to accept.
+	 * @throws BodyTooLargeException if the body is larger than maxBodySize.
+	 * @throws EOFException if the body is shorter than its content length.
+	 */
+	public static CallbackBody readBody(CallbackRequest request, int maxBodySize) throws IOException {
+		return readBody(request, request.getInputStream(), request.getContentLength(), maxBodySize);
+	}
+	
+	/**
+	 * Reads the rest of the body of the given request from a stream that may
+	 * already have been partly read, like {@link #readBody(CallbackRequest, int)}.
+	 * 
+	 * @param in The stream to read the body from.
+	 * @param contentLength The number of bytes left in the stream, or -1 if it is
+	 *        not known.
+	 */
+	public static CallbackBody readBody(CallbackRequest request, InputStream in, long contentLength, int maxBodySize) throws IOException {
+		if (contentLength > maxBodySize) {
+			throw new BodyTooLargeException(maxBodySize);
+		}
+		
+		byte[] buffer = BUFFERS.get();
+		if (contentLength > buffer.length) {
+			buffer = new byte[(int) contentLength];
+		}
+		
+		int length = 0;
+		if (contentLength >= 0) {
+			/*
+			 * The length is known, so the buffer already fits the whole body.
+			 */
+			while (length < contentLength) {
+				int read = in.read(buffer, length, (int) contentLength - length);
+				if (read == -1) {
+					throw new EOFException("Request body ended after " + length + " of " + contentLength + " bytes");
+				}
+				length += read;
+			}
+		} else {
+			/*
+			 * The body is chunked, so keep growing the buffer until the end of the body.
+			 * The retained buffer may be larger than the maximum body size, so reads are
+			 * capped at the maximum rather than at the end of the buffer.
+			 */
+			while (true) {
+				int capacity = Math.min(buffer.length, maxBodySize);
+				if (length == capacity) {
+					if (length >= maxBodySize) {
+						if (in.read() != -1) {
+							throw new BodyTooLargeException(maxBodySize);
+						}
+						break;
+					}
+					buffer = Arrays.copyOf(buffer, (int) Math.min(maxBodySize, 2L * buffer.length));
+					capacity = buffer.length;
+				}
+				int read = in.read(buffer, length, capacity - length);
+				if (read == -1) {
+					break;
+				}
+				length += read;
+			}
+		}
+		
+		if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+			BUFFERS.set(buffer);
+		}
+		return new CallbackBody(buffer, 0, length, parseCharset(request.getHeader("content-type")));
+	}
+	
+	/**
+	 * Skips the whitespace at the start of the given stream, and returns the
+	 * number of bytes skipped. The first byte that is not whitespace is pushed
+	 * back, so that it is the next byte read.
+	 */
+	public static int skipWhitespace(PushbackInputStream in) throws IOException {
+		int skipped = 0;
+		int b;
+		while ((b = in.read()) != -1) {
+			if (!Character.isWhitespace(b)) {
+				in.unread(b);
+				break;
+			}
+			skipped++;
+		}
+		return skipped;
+	}
+	
+	/**
+	 * Returns a stream that reads the given stream, and fails with a
+	 * {@link BodyTooLargeException} once more than maxBodySize bytes have been
+	 * read from it, for bodies that are read as a stream instead of being
+	 * buffered by {@link #readBody(CallbackRequest, InputStream, long, int)}.
+	 */
+	public static InputStream limit(InputStream in, int maxBodySize) {
+		return new FilterInputStream(in) {
+
+			private long remaining = maxBodySize;
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					consume(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					consume(read);
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				consume(skipped);
+				return skipped;
+			}
+
+			private void consume(long count) throws BodyTooLargeException {
+				remaining -= count;
+				if (remaining < 0) {
+					throw new BodyTooLargeException(maxBodySize);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Returns the charset given in a content type header, or UTF-8 if there is
+	 * none or it is not supported. UTF-8 is the default encoding for JSON.
+	 */
+	public static Charset parseCharset(String contentType) {
+		if (contentType == null) {
+			return StandardCharsets.UTF_8;
+		}
+		int start = StringUtils.indexOfIgnoreCase(contentType, CHARSET_PARAMETER);
+		if (start == -1) {
+			return StandardCharsets.UTF_8;
+		}
+		start += CHARSET_PARAMETER.length();
+		int end = contentType.indexOf(';', start);
+		String name = StringUtils.strip(contentType.substring(start, end == -1 ? contentType.length() : end).trim(), "\"");
+		try {
+			return Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn("Unsupported charset '{}'; falling back to UTF-8", name);
+			return StandardCharsets.UTF_8;
 		}
-		int contentLength = Integer.parseInt(length);
-		byte[] buffer = new byte[contentLength];
-		session.getInputStream().read(buffer, 0, contentLength);
-		return new String(buffer);
 	}
 	
 }
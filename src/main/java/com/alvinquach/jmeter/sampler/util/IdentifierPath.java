@@ -0,0 +1,197 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Compiled path to the identifier value in a JSON document. The path is
+ * parsed once into segments, so that looking up the identifier in a document
+ * only involves plain field and array element lookups.
+ * <p>
+ * Two syntaxes are supported:
+ * <ul>
+ * <li>Dot-separated field names, where array elements are selected with a
+ * bracketed index, for example <code>data.items[0].id</code>.</li>
+ * <li>JSON Pointer (RFC 6901), for example <code>/data/items/0/id</code>.
+ * Numeric reference tokens select an array element if the value at that point
+ * is an array, and a field otherwise.</li>
+ * </ul>
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author Alvin Quach
+ */
+public final class IdentifierPath {
+
+	private static final char FIELD_SEPARATOR = '.';
+
+	private static final char INDEX_START = '[';
+
+	private static final char INDEX_END = ']';
+
+	private static final char POINTER_SEPARATOR = '/';
+
+	/**
+	 * A single step in the path.
+	 */
+	public static final class Segment {
+
+		private final String fieldName;
+
+		private final int index;
+
+		private Segment(String fieldName, int index) {
+			this.fieldName = fieldName;
+			this.index = index;
+		}
+
+		/**
+		 * Returns the name of the field that this segment selects in an object, or
+		 * null if the segment can only select an array element.
+		 */
+		public String fieldName() {
+			return fieldName;
+		}
+
+		/**
+		 * Returns the index of the element that this segment selects in an array,
+		 * or -1 if the segment can only select a field.
+		 */
+		public int index() {
+			return index;
+		}
+
+		@Override
+		public String toString() {
+			return fieldName != null ? fieldName : "[" + index + "]";
+		}
+	}
+
+	/**
+	 * Compiles the given path. Paths that start with a slash are parsed as JSON
+	 * Pointers, and anything else is parsed as dot-separated field names.
+	 *
+	 * @throws IllegalArgumentException if the path is empty or malformed.
+	 */
+	public static IdentifierPath compile(String path) {
+		if (StringUtils.isEmpty(path)) {
+			throw new IllegalArgumentException("Identifier path must not be empty");
+		}
+		List<Segment> segments = path.charAt(0) == POINTER_SEPARATOR
+				? parsePointer(path)
+				: parseDotted(path);
+		return new IdentifierPath(path, segments.toArray(new Segment[0]));
+	}
+
+	private static List<Segment> parsePointer(String path) {
+		List<Segment> segments = new ArrayList<>();
+		/*
+		 * Every slash starts a reference token, so "/" refers to the field with an
+		 * empty name rather than to the whole document.
+		 */
+		for (String token : path.substring(1).split(String.valueOf(POINTER_SEPARATOR), -1)) {
+			String fieldName = token.replace("~1", "/").replace("~0", "~");
+			segments.add(new Segment(fieldName, parseIndex(fieldName, false)));
+		}
+		return segments;
+	}
+
+	private static List<Segment> parseDotted(String path) {
+		List<Segment> segments = new ArrayList<>();
+		for (String part : StringUtils.splitPreserveAllTokens(path, FIELD_SEPARATOR)) {
+			int indexStart = part.indexOf(INDEX_START);
+			String fieldName = indexStart == -1 ? part : part.substring(0, indexStart);
+			if (fieldName.isEmpty() && indexStart != 0) {
+				throw new IllegalArgumentException("Identifier path '" + path + "' contains an empty field name");
+			}
+			if (!fieldName.isEmpty()) {
+				segments.add(new Segment(fieldName, -1));
+			}
+			while (indexStart != -1) {
+				int indexEnd = part.indexOf(INDEX_END, indexStart);
+				if (indexEnd == -1) {
+					throw new IllegalArgumentException("Identifier path '" + path + "' contains an unterminated array index");
+				}
+				segments.add(new Segment(null, parseIndex(part.substring(indexStart + 1, indexEnd), true)));
+				/*
+				 * An index can only be followed by another index or the end of the part.
+				 */
+				if (indexEnd == part.length() - 1) {
+					indexStart = -1;
+				} else if (part.charAt(indexEnd + 1) == INDEX_START) {
+					indexStart = indexEnd + 1;
+				} else {
+					throw new IllegalArgumentException("Identifier path '" + path + "' contains text after an array index");
+				}
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Parses an array index. Returns -1 if the token is not a valid index and it
+	 * is not required to be one.
+	 */
+	private static int parseIndex(String token, boolean required) {
+		/*
+		 * Leading zeros are not allowed in JSON Pointer array indices, and anything
+		 * longer than 9 digits may not fit in an int.
+		 */
+		if (StringUtils.isNumeric(token) && token.length() < 10 && (token.length() == 1 || token.charAt(0) != '0')) {
+			return Integer.parseInt(token);
+		}
+		if (required) {
+			throw new IllegalArgumentException("'" + token + "' is not a valid array index");
+		}
+		return -1;
+	}
+
+	private final String path;
+
+	private final Segment[] segments;
+
+	private IdentifierPath(String path, Segment[] segments) {
+		this.path = path;
+		this.segments = segments;
+	}
+
+	/**
+	 * Returns the number of segments in the path.
+	 */
+	public int length() {
+		return segments.length;
+	}
+
+	public Segment segment(int i) {
+		return segments[i];
+	}
+
+	/**
+	 * Returns the node at this path, or null if there is none.
+	 */
+	public JsonNode resolve(JsonNode root) {
+		JsonNode node = root;
+		for (Segment segment : segments) {
+			if (node == null) {
+				return null;
+			}
+			if (node.isObject() && segment.fieldName != null) {
+				node = node.get(segment.fieldName);
+			} else if (node.isArray() && segment.index >= 0) {
+				node = node.get(segment.index);
+			} else {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of JSON documents into its elements as they arrive, so that
+ * each element can be handled as soon as it has been read instead of after the
+ * whole stream has been buffered. Two formats are supported:
+ * <ul>
+ * <li>A JSON array, whose elements are returned one by one. The opening
+ * bracket must already have been consumed.</li>
+ * <li>Newline delimited JSON (NDJSON), where every document in the stream is
+ * an element.</li>
+ * </ul>
+ * Elements are only delimited here, by tracking nesting and string literals
+ * at the byte level; they are parsed by whoever handles them. Stray closing
+ * brackets, missing or extra commas and data after the closing bracket of an
+ * array are rejected, so that a malformed batch always ends. This only works
+ * for charsets in which the JSON structural characters are single ASCII bytes,
+ * see {@link #supports(Charset)}.
+ * <p>
+ * Instances are not thread safe, and are meant to read a single stream.
+ *
+ * @author Alvin Quach
+ */
+public final class JsonBatchReader {
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	private final InputStream in;
+
+	private final boolean array;
+
+	private final Charset charset;
+
+	private final int maxElementSize;
+
+	private byte[] buffer;
+
+	/**
+	 * Start of the unread data in the buffer.
+	 */
+	private int position;
+
+	/**
+	 * End of the data in the buffer.
+	 */
+	private int limit;
+
+	private boolean endOfStream;
+
+	private boolean endOfBatch;
+
+	/**
+	 * Whether the comma that separates the next element of an array from the
+	 * previous one has been read.
+	 */
+	private boolean commaRead;
+
+	private int elementCount;
+
+	/**
+	 * @param in The stream to read. It is read up to its end, and is not closed.
+	 * @param array Whether the stream is a JSON array whose opening bracket has
+	 *        been consumed, rather than NDJSON.
+	 * @param charset The charset the stream is encoded in.
+	 * @param maxElementSize The maximum size of a single element, in bytes.
+	 */
+	public JsonBatchReader(InputStream in, boolean array, Charset charset, int maxElementSize) {
+		if (!supports(charset)) {
+			throw new IllegalArgumentException("Batches cannot be read in " + charset);
+		}
+		this.in = in;
+		this.array = array;
+		this.charset = charset;
+		this.maxElementSize = maxElementSize;
+		buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, maxElementSize)];
+	}
+
+	/**
+	 * Returns whether streams in the given charset can be split into elements.
+	 * UTF-16 and UTF-32 encode the structural characters in several bytes.
+	 */
+	public static boolean supports(Charset charset) {
+		String name = charset.name();
+		return !name.startsWith("UTF-16") && !name.startsWith("UTF-32");
+	}
+
+	/**
+	 * Returns the next element, or null if there are no more elements. The
+	 * returned body is backed by a buffer of this reader, and is only valid
+	 * until the next call.
+	 *
+	 * @throws HttpListenerUtils.BodyTooLargeException if an element is larger
+	 *         than the maximum element size.
+	 * @throws IOException if the stream is not a well-formed batch, in which case
+	 *         the elements before the malformed part have already been returned.
+	 */
+	public CallbackBody next() throws IOException {
+		if (endOfBatch || !skipSeparators()) {
+			return null;
+		}
+
+		int start = position;
+		int scanned = position;
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		while (true) {
+			if (scanned == limit) {
+				/*
+				 * Keep the partial element at the start of the buffer, and read more.
+				 */
+				boolean filled = fill(start);
+				scanned -= start;
+				start = 0;
+				if (!filled) {
+					if (depth == 0 && !inString && !array) {
+						// The last NDJSON document is not followed by a newline.
+						break;
+					}
+					throw new EOFException("Batch ended in the middle of element " + (elementCount + 1));
+				}
+			}
+			byte b = buffer[scanned];
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (b == '\\') {
+					escaped = true;
+				} else if (b == '"') {
+					inString = false;
+					if (depth == 0) {
+						scanned++;
+						break;
+					}
+				}
+			} else if (b == '{' || b == '[') {
+				depth++;
+			} else if (b == '}' || b == ']') {
+				if (depth == 0) {
+					if (b == '}' || !array) {
+						throw unexpected(b);
+					}
+					// The closing bracket of the batch ends a scalar element.
+					break;
+				}
+				if (--depth == 0) {
+					scanned++;
+					break;
+				}
+			} else if (b == '"') {
+				inString = true;
+			} else if (depth == 0 && (b == ',' || isWhitespace(b))) {
+				// The end of a scalar element.
+				break;
+			}
+			scanned++;
+		}
+
+		if (scanned == start) {
+			// Only a separator can end an element before it has started.
+			throw unexpected(buffer[scanned]);
+		}
+		position = scanned;
+		elementCount++;
+		return new CallbackBody(buffer, start, scanned - start, charset);
+	}
+
+	/**
+	 * Returns the number of elements that have been returned so far.
+	 */
+	public int elementCount() {
+		return elementCount;
+	}
+
+	/**
+	 * Skips whitespace, and in an array the comma between elements, up to the
+	 * start of the next element. Returns false if the batch has ended.
+	 */
+	private boolean skipSeparators() throws IOException {
+		while (true) {
+			if (position == limit && !fill(position)) {
+				if (array) {
+					throw new EOFException("Batch ended without a closing bracket");
+				}
+				endOfBatch = true;
+				return false;
+			}
+			byte b = buffer[position];
+			if (isWhitespace(b)) {
+				position++;
+				continue;
+			}
+			if (!array) {
+				return true;
+			}
+			if (b == ']') {
+				if (commaRead) {
+					throw unexpected(b);
+				}
+				position++;
+				endOfBatch = true;
+				skipTrailingWhitespace();
+				return false;
+			}
+			if (b == ',') {
+				if (elementCount == 0 || commaRead) {
+					throw unexpected(b);
+				}
+				commaRead = true;
+				position++;
+				continue;
+			}
+			if (elementCount > 0 && !commaRead) {
+				throw new IOException("Missing comma before element " + (elementCount + 1));
+			}
+			commaRead = false;
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the rest of the stream after the closing bracket of an array, which
+	 * may only be whitespace.
+	 */
+	private void skipTrailingWhitespace() throws IOException {
+		while (position < limit || fill(position)) {
+			if (!isWhitespace(buffer[position])) {
+				throw new IOException("Unexpected data after the end of the batch");
+			}
+			position++;
+		}
+	}
+
+	private IOException unexpected(byte b) {
+		return new IOException("Unexpected '" + (char) b + "' at element " + (elementCount + 1));
+	}
+
+	/**
+	 * Discards the data before the given offset, and reads more data into the
+	 * buffer. Returns false if the end of the stream has been reached.
+	 */
+	private boolean fill(int discard) throws IOException {
+		if (discard > 0) {
+			System.arraycopy(buffer, discard, buffer, 0, limit - discard);
+			limit -= discard;
+			position = Math.max(0, position - discard);
+		}
+		if (endOfStream) {
+			return false;
+		}
+		if (limit == buffer.length) {
+			if (limit >= maxElementSize) {
+				throw new HttpListenerUtils.BodyTooLargeException(maxElementSize);
+			}
+			buffer = Arrays.copyOf(buffer, (int) Math.min(maxElementSize, 2L * buffer.length));
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read == -1) {
+			endOfStream = true;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Extracts an identifier from a JSON document by streaming over its tokens,
+ * instead of deserializing the whole document into a JsonNode tree. Subtrees
+ * that are not on the identifier path are skipped without being materialized,
+ * and parsing stops as soon as the identifier has been found.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author Alvin Quach
+ */
+public final class JsonIdentifierExtractor {
+
+	private final IdentifierPath path;
+
+	private final JsonFactory factory;
+
+	public JsonIdentifierExtractor(IdentifierPath path) {
+		this.path = path;
+		factory = JsonNodeUtils.mapper().getFactory();
+	}
+
+	public IdentifierPath path() {
+		return path;
+	}
+
+	/**
+	 * Returns the identifier in the given UTF-8 encoded JSON, or null if the
+	 * document does not contain a number or text value at the identifier path.
+	 */
+	public String extract(byte[] json, int offset, int length) throws IOException {
+		try (JsonParser parser = factory.createParser(json, offset, length)) {
+			return extract(parser);
+		}
+	}
+
+	public String extract(byte[] json) throws IOException {
+		return extract(json, 0, json.length);
+	}
+
+	/**
+	 * Returns the identifier in the JSON read from the given stream, or null if
+	 * the document does not contain a number or text value at the identifier
+	 * path. The stream is not read any further than necessary, and is not
+	 * closed.
+	 */
+	public String extract(InputStream json) throws IOException {
+		try (JsonParser parser = factory.createParser(json)) {
+			parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+			return extract(parser);
+		}
+	}
+
+	public String extract(String json) throws IOException {
+		try (JsonParser parser = factory.createParser(json)) {
+			return extract(parser);
+		}
+	}
+
+	private String extract(JsonParser parser) throws IOException {
+		JsonToken value = parser.nextToken();
+		for (int i = 0; i < path.length() && value != null; i++) {
+			/*
+			 * The parser is positioned at the start of the container that should hold
+			 * the current segment. Skip over anything before it.
+			 */
+			IdentifierPath.Segment segment = path.segment(i);
+			if (value == JsonToken.START_OBJECT && segment.fieldName() != null) {
+				value = findField(parser, segment.fieldName());
+			} else if (value == JsonToken.START_ARRAY && segment.index() >= 0) {
+				value = findElement(parser, segment.index());
+			} else {
+				return null;
+			}
+		}
+		return isNumberOrText(value) ? parser.getText() : null;
+	}
+
+	/**
+	 * Advances the parser to the value of the field with the given name in the
+	 * current object, and returns the value token. Returns null if the object does
+	 * not contain the field.
+	 */
+	private static JsonToken findField(JsonParser parser, String name) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			boolean matches = name.equals(parser.getCurrentName());
+			JsonToken value = parser.nextToken();
+			if (matches) {
+				return value;
+			}
+			if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+				parser.skipChildren();
+			}
+		}
+		// The end of the object was reached without finding the field.
+		return null;
+	}
+
+	/**
+	 * Advances the parser to the element at the given index in the current array,
+	 * and returns its first token. Returns null if the array is not long enough.
+	 */
+	private static JsonToken findElement(JsonParser parser, int index) throws IOException {
+		for (int i = 0; i < index; i++) {
+			JsonToken element = parser.nextToken();
+			if (element == null || element == JsonToken.END_ARRAY) {
+				return null;
+			}
+			if (element == JsonToken.START_OBJECT || element == JsonToken.START_ARRAY) {
+				parser.skipChildren();
+			}
+		}
+		JsonToken element = parser.nextToken();
+		return element == JsonToken.END_ARRAY ? null : element;
+	}
+
+	private static boolean isNumberOrText(JsonToken token) {
+		return token == JsonToken.VALUE_STRING
+				|| token == JsonToken.VALUE_NUMBER_INT
+				|| token == JsonToken.VALUE_NUMBER_FLOAT;
+	}
+
+}
@@ -6,8 +6,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 public final class JsonNodeUtils {
 	
-	private static final String PATH_SEPARATOR = ".";
-	
 	public static final ObjectMapper MAPPER = new ObjectMapper();
 	
 	private JsonNodeUtils() {
@@ -19,19 +17,20 @@ public final class JsonNodeUtils {
 	}
 	
 	public static String getNumberOrTextAsString(JsonNode jsonNode, String path) {
-		int separatorIndex = path.indexOf(PATH_SEPARATOR);
-		String currentPath = separatorIndex == -1 ? path : path.substring(0, separatorIndex);
-
-		JsonNode currentPathNode = jsonNode.get(currentPath);
-		if (currentPathNode == null || currentPathNode.isNull()) {
+		return getNumberOrTextAsString(jsonNode, IdentifierPath.compile(path));
+	}
+	
+	/**
+	 * Returns the number or text value at the given path as a string, or null if
+	 * there is no such value.
+	 */
+	public static String getNumberOrTextAsString(JsonNode jsonNode, IdentifierPath path) {
+		JsonNode pathNode = path.resolve(jsonNode);
+		if (pathNode == null || pathNode.isNull()) {
 			return null;
 		}
-		if (currentPathNode.isNumber() || currentPathNode.isTextual()) {
-			return currentPathNode.asText();
-		}
-		if (currentPathNode.isObject() && separatorIndex != -1) {
-			// Find next path in JsonNode recursively.
-			return getNumberOrTextAsString(currentPathNode, path.substring(separatorIndex));
+		if (pathNode.isNumber() || pathNode.isTextual()) {
+			return pathNode.asText();
 		}
 		return null;
 	}
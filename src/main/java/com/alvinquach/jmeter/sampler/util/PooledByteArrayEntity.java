@@ -0,0 +1,135 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Request entity backed by a buffer that is borrowed from a pool. Once the
+ * request has been sent, {@link #release()} must be called so that the buffer
+ * can be reused for a later request.
+ *
+ * @author Alvin Quach
+ */
+public final class PooledByteArrayEntity extends AbstractHttpEntity {
+
+	/**
+	 * Pool of reusable buffers. A sampler that only has one request in flight at
+	 * a time will keep reusing the same buffer.
+	 */
+	public static final class Pool {
+
+		private final Queue<RequestBodyTemplate.Buffer> buffers = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Borrows a buffer from the pool, or creates a new one if none are
+		 * available.
+		 */
+		public RequestBodyTemplate.Buffer acquire() {
+			RequestBodyTemplate.Buffer buffer = buffers.poll();
+			return buffer != null ? buffer : new RequestBodyTemplate.Buffer();
+		}
+
+		/**
+		 * Wraps a buffer that was borrowed from this pool in an entity, which will
+		 * return the buffer to the pool when it is released.
+		 */
+		public PooledByteArrayEntity wrap(RequestBodyTemplate.Buffer buffer, ContentType contentType) {
+			return new PooledByteArrayEntity(this, buffer, contentType, -1);
+		}
+
+		/**
+		 * Wraps a buffer that holds a body encoded with the given coding, which was
+		 * the given number of bytes long before it was encoded.
+		 */
+		public PooledByteArrayEntity wrap(RequestBodyTemplate.Buffer buffer, ContentType contentType,
+				ContentEncoding contentEncoding, int decodedLength) {
+			PooledByteArrayEntity entity = new PooledByteArrayEntity(this, buffer, contentType, decodedLength);
+			entity.setContentEncoding(contentEncoding.token());
+			return entity;
+		}
+
+		/**
+		 * Returns a buffer that was borrowed from this pool without being wrapped.
+		 */
+		public void release(RequestBodyTemplate.Buffer buffer) {
+			buffers.add(buffer);
+		}
+	}
+
+	private final Pool pool;
+
+	private RequestBodyTemplate.Buffer buffer;
+
+	private final int decodedLength;
+
+	private PooledByteArrayEntity(Pool pool, RequestBodyTemplate.Buffer buffer, ContentType contentType, int decodedLength) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.decodedLength = decodedLength;
+		if (contentType != null) {
+			setContentType(contentType.toString());
+		}
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return buffer().length();
+	}
+
+	/**
+	 * Returns the length of the body before it was encoded, or its content
+	 * length if it is not encoded.
+	 */
+	public long getDecodedLength() {
+		return decodedLength >= 0 ? decodedLength : getContentLength();
+	}
+
+	@Override
+	public InputStream getContent() {
+		RequestBodyTemplate.Buffer buffer = buffer();
+		return new ByteArrayInputStream(buffer.array(), 0, buffer.length());
+	}
+
+	@Override
+	public void writeTo(OutputStream outStream) throws IOException {
+		RequestBodyTemplate.Buffer buffer = buffer();
+		outStream.write(buffer.array(), 0, buffer.length());
+		outStream.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * Returns the buffer to the pool. The entity must not be used afterwards.
+	 */
+	public void release() {
+		RequestBodyTemplate.Buffer released = buffer;
+		if (released != null) {
+			buffer = null;
+			pool.release(released);
+		}
+	}
+
+	private RequestBodyTemplate.Buffer buffer() {
+		if (buffer == null) {
+			throw new IllegalStateException("Entity has already been released");
+		}
+		return buffer;
+	}
+
+}
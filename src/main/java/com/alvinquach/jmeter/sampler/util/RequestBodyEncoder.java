@@ -0,0 +1,95 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies with a content coding, into reusable buffers. The
+ * deflater is kept and reset between bodies, so that compressing does not
+ * allocate its native state for every request.
+ * <p>
+ * Instances are not thread-safe, and must be ended with {@link #end()} once
+ * they are no longer used.
+ *
+ * @author Alvin Quach
+ */
+public final class RequestBodyEncoder {
+
+	/**
+	 * A gzip member header without a name, comment or modification time, the
+	 * same one that {@link java.util.zip.GZIPOutputStream} writes.
+	 */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final ContentEncoding encoding;
+
+	private final int level;
+
+	private final Deflater deflater;
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * @param encoding The content coding, either gzip or deflate.
+	 * @param level The compression level, from 0 to 9, or -1 for the default.
+	 */
+	public RequestBodyEncoder(ContentEncoding encoding, int level) {
+		if (encoding == ContentEncoding.IDENTITY) {
+			throw new IllegalArgumentException("Request bodies can only be encoded with gzip or deflate");
+		}
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between 0 and 9, or -1 for the default");
+		}
+		this.encoding = encoding;
+		this.level = level;
+		/*
+		 * Gzip wraps raw deflate data in its own header and trailer, while the
+		 * deflate coding is zlib-wrapped.
+		 */
+		deflater = new Deflater(level, encoding == ContentEncoding.GZIP);
+	}
+
+	public ContentEncoding getEncoding() {
+		return encoding;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Encodes the given bytes into the target buffer, replacing its contents.
+	 */
+	public void encode(byte[] source, int offset, int length, RequestBodyTemplate.Buffer target) {
+		target.reset();
+		if (encoding == ContentEncoding.GZIP) {
+			target.write(GZIP_HEADER);
+			crc.reset();
+			crc.update(source, offset, length);
+		}
+		deflater.reset();
+		deflater.setInput(source, offset, length);
+		deflater.finish();
+		while (!deflater.finished()) {
+			target.deflate(deflater);
+		}
+		if (encoding == ContentEncoding.GZIP) {
+			writeIntLittleEndian(target, (int) crc.getValue());
+			writeIntLittleEndian(target, length);
+		}
+	}
+
+	private static void writeIntLittleEndian(RequestBodyTemplate.Buffer target, int value) {
+		for (int i = 0; i < 4; i++) {
+			target.write((byte) (value >>> (i << 3)));
+		}
+	}
+
+	/**
+	 * Releases the native state of the deflater.
+	 */
+	public void end() {
+		deflater.end();
+	}
+
+}
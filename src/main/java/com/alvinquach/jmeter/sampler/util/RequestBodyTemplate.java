@@ -0,0 +1,332 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * Request body template that is compiled once into static UTF-8 byte segments
+ * and variable slots, and is then rendered for each request directly into a
+ * reusable byte buffer, without building an intermediate String.
+ * <p>
+ * Slots use the <code>#{...}</code> syntax, since JMeter already evaluates
+ * <code>${...}</code> expressions in sampler parameters before the sampler
+ * gets to see them. The following slots are supported:
+ * <ul>
+ * <li><code>#{__UUID}</code> - a random (version 4) UUID.</li>
+ * <li><code>#{__counter}</code> - a counter that is shared by all threads.</li>
+ * <li><code>#{__threadCounter}</code> - a counter that is local to the
+ * thread.</li>
+ * <li><code>#{__threadNum}</code> - the JMeter thread number.</li>
+ * <li><code>#{__time}</code> - the current time in milliseconds since the
+ * epoch.</li>
+ * <li><code>#{name}</code> - the value of the JMeter variable with the given
+ * name, or an empty string if it is not set.</li>
+ * </ul>
+ * An opening <code>#{</code> that is not followed by a slot name (letters,
+ * digits, underscores, dots or dashes) and a closing brace is treated as
+ * literal text.
+ * <p>
+ * Template instances keep the thread-local counter, so each JMeter thread
+ * should compile its own instance.
+ *
+ * @author Alvin Quach
+ */
+public final class RequestBodyTemplate {
+
+	private static final String SLOT_PREFIX = "#{";
+
+	private static final String SLOT_SUFFIX = "}";
+
+	private static final Pattern SLOT_NAME_PATTERN = Pattern.compile("[\\w.\\-]+");
+
+	private static final AtomicLong GLOBAL_COUNTER = new AtomicLong();
+
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private enum SlotType {
+		UUID, COUNTER, THREAD_COUNTER, THREAD_NUM, TIME, VARIABLE
+	}
+
+	private static final class Slot {
+
+		private final SlotType type;
+
+		private final String variableName;
+
+		private Slot(SlotType type, String variableName) {
+			this.type = type;
+			this.variableName = variableName;
+		}
+	}
+
+	/**
+	 * Growable byte buffer that a template is rendered into. Buffers are meant to
+	 * be reused across requests, so that rendering does not allocate once the
+	 * buffer has grown to fit the largest body.
+	 */
+	public static final class Buffer {
+
+		private static final int DEFLATE_CHUNK_SIZE = 512;
+
+		private byte[] bytes;
+
+		private int length;
+
+		public Buffer() {
+			this(1024);
+		}
+
+		public Buffer(int initialCapacity) {
+			bytes = new byte[initialCapacity];
+		}
+
+		public byte[] array() {
+			return bytes;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public void reset() {
+			length = 0;
+		}
+
+		private void ensureCapacity(int additional) {
+			int required = length + additional;
+			if (required > bytes.length) {
+				byte[] grown = new byte[Math.max(required, bytes.length << 1)];
+				System.arraycopy(bytes, 0, grown, 0, length);
+				bytes = grown;
+			}
+		}
+
+		void write(byte[] source) {
+			ensureCapacity(source.length);
+			System.arraycopy(source, 0, bytes, length, source.length);
+			length += source.length;
+		}
+
+		void write(byte b) {
+			ensureCapacity(1);
+			bytes[length++] = b;
+		}
+
+		/**
+		 * Writes as much output of the deflater as fits, after growing the buffer
+		 * if it is nearly full.
+		 */
+		void deflate(Deflater deflater) {
+			ensureCapacity(DEFLATE_CHUNK_SIZE);
+			length += deflater.deflate(bytes, length, bytes.length - length);
+		}
+
+		private void writeLong(long value) {
+			if (value < 0) {
+				write((byte) '-');
+				if (value == Long.MIN_VALUE) {
+					write(String.valueOf(value).substring(1).getBytes(StandardCharsets.US_ASCII));
+					return;
+				}
+				value = -value;
+			}
+			int digits = 1;
+			for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+				digits++;
+			}
+			ensureCapacity(digits);
+			for (int i = length + digits - 1; i >= length; i--) {
+				bytes[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			length += digits;
+		}
+
+		private void writeHex(long value, int digits) {
+			ensureCapacity(digits);
+			for (int i = length + digits - 1; i >= length; i--) {
+				bytes[i] = HEX_DIGITS[(int) (value & 0xF)];
+				value >>>= 4;
+			}
+			length += digits;
+		}
+
+		private void writeString(String value) {
+			int count = value.length();
+			ensureCapacity(count);
+			for (int i = 0; i < count; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x80) {
+					/*
+					 * Fall back to the charset encoder for anything outside of ASCII.
+					 */
+					write(value.substring(i).getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+				bytes[length++] = (byte) c;
+			}
+		}
+	}
+
+	/**
+	 * Compiles the given template.
+	 */
+	public static RequestBodyTemplate compile(String template) {
+		List<byte[]> segments = new ArrayList<>();
+		List<Slot> slots = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+
+		int position = 0;
+		while (position < template.length()) {
+			int slotStart = template.indexOf(SLOT_PREFIX, position);
+			int slotEnd = slotStart == -1 ? -1 : template.indexOf(SLOT_SUFFIX, slotStart + SLOT_PREFIX.length());
+			if (slotEnd == -1) {
+				literal.append(template, position, template.length());
+				break;
+			}
+			String expression = template.substring(slotStart + SLOT_PREFIX.length(), slotEnd);
+			if (!SLOT_NAME_PATTERN.matcher(expression).matches()) {
+				literal.append(template, position, slotStart + SLOT_PREFIX.length());
+				position = slotStart + SLOT_PREFIX.length();
+				continue;
+			}
+			literal.append(template, position, slotStart);
+			segments.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+			literal.setLength(0);
+			slots.add(parseSlot(expression));
+			position = slotEnd + SLOT_SUFFIX.length();
+		}
+		segments.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+
+		return new RequestBodyTemplate(template, segments.toArray(new byte[0][]), slots.toArray(new Slot[0]));
+	}
+
+	private static Slot parseSlot(String expression) {
+		switch (expression) {
+		case "__UUID":
+			return new Slot(SlotType.UUID, null);
+		case "__counter":
+			return new Slot(SlotType.COUNTER, null);
+		case "__threadCounter":
+			return new Slot(SlotType.THREAD_COUNTER, null);
+		case "__threadNum":
+			return new Slot(SlotType.THREAD_NUM, null);
+		case "__time":
+			return new Slot(SlotType.TIME, null);
+		default:
+			return new Slot(SlotType.VARIABLE, expression);
+		}
+	}
+
+	private final String source;
+
+	/**
+	 * Static segments, interleaved with the slots. There is always one more
+	 * segment than there are slots.
+	 */
+	private final byte[][] segments;
+
+	private final Slot[] slots;
+
+	private long threadCounter;
+
+	private RequestBodyTemplate(String source, byte[][] segments, Slot[] slots) {
+		this.source = source;
+		this.segments = segments;
+		this.slots = slots;
+	}
+
+	/**
+	 * Returns the template text that this template was compiled from.
+	 */
+	public String source() {
+		return source;
+	}
+
+	/**
+	 * Returns whether the template has no slots, in which case every rendering is
+	 * identical and equal to {@link #staticBytes()}.
+	 */
+	public boolean isStatic() {
+		return slots.length == 0;
+	}
+
+	/**
+	 * Returns the body of a template without slots. The returned array must not
+	 * be modified.
+	 */
+	public byte[] staticBytes() {
+		if (!isStatic()) {
+			throw new IllegalStateException("Template has variable slots");
+		}
+		return segments[0];
+	}
+
+	/**
+	 * Renders the template into the given buffer, replacing its contents.
+	 *
+	 * @param variables The JMeter variables of the current thread.
+	 * @param threadNum The JMeter thread number of the current thread.
+	 */
+	public void render(Buffer buffer, JMeterVariables variables, int threadNum) {
+		buffer.reset();
+		buffer.write(segments[0]);
+		for (int i = 0; i < slots.length; i++) {
+			writeSlot(buffer, slots[i], variables, threadNum);
+			buffer.write(segments[i + 1]);
+		}
+	}
+
+	private void writeSlot(Buffer buffer, Slot slot, JMeterVariables variables, int threadNum) {
+		switch (slot.type) {
+		case UUID:
+			writeRandomUuid(buffer);
+			break;
+		case COUNTER:
+			buffer.writeLong(GLOBAL_COUNTER.incrementAndGet());
+			break;
+		case THREAD_COUNTER:
+			buffer.writeLong(++threadCounter);
+			break;
+		case THREAD_NUM:
+			buffer.writeLong(threadNum);
+			break;
+		case TIME:
+			buffer.writeLong(System.currentTimeMillis());
+			break;
+		case VARIABLE:
+			String value = variables == null ? null : variables.get(slot.variableName);
+			if (value != null) {
+				buffer.writeString(value);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Writes a random version 4 UUID in its canonical form, without going through
+	 * UUID.toString.
+	 */
+	private static void writeRandomUuid(Buffer buffer) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long mostSignificant = (random.nextLong() & ~0xF000L) | 0x4000L;
+		long leastSignificant = (random.nextLong() & ~(0xC000L << 48)) | (0x8000L << 48);
+		buffer.writeHex(mostSignificant >>> 32, 8);
+		buffer.write((byte) '-');
+		buffer.writeHex(mostSignificant >>> 16, 4);
+		buffer.write((byte) '-');
+		buffer.writeHex(mostSignificant, 4);
+		buffer.write((byte) '-');
+		buffer.writeHex(leastSignificant >>> 48, 4);
+		buffer.write((byte) '-');
+		buffer.writeHex(leastSignificant, 12);
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on Java 21 and later. The project is built for Java
+ * 8, so the virtual thread API is looked up reflectively, and callers fall back
+ * to platform threads where {@link #isSupported()} returns false.
+ * <p>
+ * Virtual threads are cheap to block, so code that blocks a thread per
+ * connection or per waiter can keep many more of them without an operating
+ * system thread each. They are always daemon threads.
+ *
+ * @author Alvin Quach
+ */
+public final class VirtualThreads {
+
+	/**
+	 * <code>Thread.ofVirtual()</code>, or null if the runtime has no virtual
+	 * threads.
+	 */
+	private static final Method OF_VIRTUAL = ofVirtual();
+
+	private static final Method NAME = builderMethod("name", String.class, long.class);
+
+	private static final Method FACTORY = builderMethod("factory");
+
+	private static final boolean SUPPORTED = OF_VIRTUAL != null && NAME != null && FACTORY != null && probe();
+
+	private VirtualThreads() {
+	}
+
+	private static Method ofVirtual() {
+		try {
+			return Thread.class.getMethod("ofVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Method builderMethod(String name, Class<?>... parameterTypes) {
+		try {
+			return Class.forName("java.lang.Thread$Builder").getMethod(name, parameterTypes);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Java 19 and 20 have the API as a preview, which throws unless preview
+	 * features are enabled, so the API is tried out once.
+	 */
+	private static boolean probe() {
+		try {
+			newFactory("virtual-thread-probe");
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether the runtime can create virtual threads.
+	 */
+	public static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	/**
+	 * Returns a factory of virtual threads that are named with the given prefix
+	 * and a sequence number.
+	 *
+	 * @throws UnsupportedOperationException if the runtime cannot create virtual
+	 *         threads.
+	 */
+	public static ThreadFactory factory(String name) {
+		if (!SUPPORTED) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		}
+		return newFactory(name);
+	}
+
+	private static ThreadFactory newFactory(String name) {
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			builder = NAME.invoke(builder, name + "-", 1L);
+			return (ThreadFactory) FACTORY.invoke(builder);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof UnsupportedOperationException) {
+				throw (UnsupportedOperationException) e.getCause();
+			}
+			throw new UnsupportedOperationException("Could not create virtual threads", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException("Could not create virtual threads", e);
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author Alvin Quach
+ */
+@SuppressWarnings("restriction")
+public class EventStreamTransportTest {
+
+	private static final int MAX_BODY_SIZE = 16;
+
+	private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+	private HttpServer server;
+
+	private EventStreamTransport transport;
+
+	/**
+	 * Serves the given streams, one per connection, and an empty stream after
+	 * the last one.
+	 */
+	private void start(String... streams) throws IOException {
+		List<String> remaining = new ArrayList<>(Arrays.asList(streams));
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/events", exchange -> {
+			String stream;
+			synchronized (remaining) {
+				stream = remaining.isEmpty() ? "" : remaining.remove(0);
+			}
+			exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(stream.getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		server.start();
+		transport = new EventStreamTransport(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/events"),
+				10, MAX_BODY_SIZE, request -> {
+					try {
+						events.add(IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8));
+					} catch (IOException e) {
+						return new CallbackResponse(400, "Bad Request", "Bad Request");
+					}
+					return new CallbackResponse(200, "OK", "OK");
+				});
+		transport.start();
+	}
+
+	@After
+	public void stop() {
+		if (transport != null) {
+			transport.stop();
+		}
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	private String nextEvent() throws InterruptedException {
+		return events.poll(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void skipsEventsWithoutData() throws Exception {
+		start(": heartbeat\n\nid: 1\n\ndata\n\ndata:\n\ndata: {\"id\":\"a\"}\n\n");
+		assertEquals("{\"id\":\"a\"}", nextEvent());
+		assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void joinsDataLinesWithAnyLineEnding() throws Exception {
+		start("data: 1\rdata: 2\r\ndata: 3\n\r\n");
+		assertEquals("1\n2\n3", nextEvent());
+	}
+
+	@Test
+	public void failsStreamOnOversizedEvent() throws Exception {
+		String data = StringUtils.repeat('x', MAX_BODY_SIZE);
+		/*
+		 * The second event is only too large with the newline between its lines,
+		 * and the rest of the first stream is lost when it fails.
+		 */
+		start("data: " + data + "\n\ndata: " + data.substring(1) + "\ndata: x\n\ndata: lost\n\n", "data: b\n\n");
+		assertEquals(data, nextEvent());
+		assertEquals("b", nextEvent());
+		assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.alvinquach.jmeter.sampler.async.transport;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Alvin Quach
+ */
+public class NanoHttpdTransportTest {
+
+	private static final int MAX_BODY_SIZE = 16;
+
+	private static final String CALLBACK = "{\"id\":\"a\"}";
+
+	private NanoHttpdTransport transport;
+
+	/**
+	 * Accepts bodies up to the maximum size, and stops reading larger ones at the
+	 * limit, like the listener does.
+	 */
+	private static CallbackResponse handle(CallbackRequest request) {
+		try {
+			byte[] body = new byte[MAX_BODY_SIZE + 1];
+			int length = 0;
+			int read;
+			InputStream in = request.getInputStream();
+			while (length < body.length && (read = in.read(body, length, body.length - length)) != -1) {
+				length += read;
+			}
+			if (length > MAX_BODY_SIZE) {
+				return new CallbackResponse(413, "Payload Too Large", "Payload Too Large");
+			}
+			return new CallbackResponse(200, "OK", new String(body, 0, length, StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			return new CallbackResponse(400, "Bad Request", "Bad Request");
+		}
+	}
+
+	@Before
+	public void start() throws IOException {
+		transport = new NanoHttpdTransport(new ListenerTransportConfig(ListenerTransportType.NANOHTTPD, 0, 0), NanoHttpdTransportTest::handle);
+		transport.start();
+	}
+
+	@After
+	public void stop() {
+		transport.stop();
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket("127.0.0.1", transport.getListeningPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private static void post(OutputStream out, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		out.write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nContent-Length: " + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(bytes);
+		out.flush();
+	}
+
+	/**
+	 * Reads one response, or returns null if the connection was closed before it.
+	 */
+	private static String readResponse(InputStream in) throws IOException {
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int b;
+		while (!head.toString("US-ASCII").endsWith("\r\n\r\n")) {
+			if ((b = in.read()) == -1) {
+				return head.size() == 0 ? null : head.toString("US-ASCII");
+			}
+			head.write(b);
+		}
+		String headers = head.toString("US-ASCII");
+		int length = Integer.parseInt(StringUtils.substringBetween(headers.toLowerCase(), "content-length: ", "\r\n").trim());
+		byte[] body = new byte[length];
+		for (int offset = 0; offset < length;) {
+			int read = in.read(body, offset, length - offset);
+			if (read == -1) {
+				break;
+			}
+			offset += read;
+		}
+		return headers + new String(body, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void keepsConnectionAliveAfterCallback() throws IOException {
+		try (Socket socket = connect()) {
+			post(socket.getOutputStream(), CALLBACK);
+			String first = readResponse(socket.getInputStream());
+			assertTrue(first, first.startsWith("HTTP/1.1 200"));
+			post(socket.getOutputStream(), CALLBACK);
+			String second = readResponse(socket.getInputStream());
+			assertTrue(second, second.startsWith("HTTP/1.1 200"));
+			assertTrue(second, second.endsWith(CALLBACK));
+		}
+	}
+
+	@Test
+	public void closesConnectionAfterOversizedBody() throws IOException {
+		try (Socket socket = connect()) {
+			/*
+			 * Without closing the connection, the unread part of the oversized body would
+			 * be parsed as the next request, and the callback after it would be lost.
+			 */
+			post(socket.getOutputStream(), "{\"id\":\"" + StringUtils.repeat('x', 1000) + "\"}");
+			post(socket.getOutputStream(), CALLBACK);
+			String response = readResponse(socket.getInputStream());
+			assertTrue(response, response.startsWith("HTTP/1.1 413"));
+			assertTrue(response, response.toLowerCase().contains("connection: close"));
+			assertNull(readResponse(socket.getInputStream()));
+		}
+		try (Socket socket = connect()) {
+			post(socket.getOutputStream(), CALLBACK);
+			String response = readResponse(socket.getInputStream());
+			assertTrue(response, response.startsWith("HTTP/1.1 200"));
+			assertTrue(response, response.endsWith(CALLBACK));
+		}
+	}
+
+	@Test
+	public void closesConnectionAfterOversizedChunkedBody() throws IOException {
+		try (Socket socket = connect()) {
+			OutputStream out = socket.getOutputStream();
+			String chunk = StringUtils.repeat('x', 100);
+			out.write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n"
+					+ Integer.toHexString(chunk.length()) + "\r\n" + chunk + "\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			post(out, CALLBACK);
+			String response = readResponse(socket.getInputStream());
+			assertTrue(response, response.startsWith("HTTP/1.1 413"));
+			assertNull(readResponse(socket.getInputStream()));
+		}
+	}
+
+}
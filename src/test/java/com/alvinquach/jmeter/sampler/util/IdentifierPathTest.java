@@ -0,0 +1,70 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * @author Alvin Quach
+ */
+public class IdentifierPathTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static String resolve(String path, String json) throws IOException {
+		JsonNode node = IdentifierPath.compile(path).resolve(MAPPER.readTree(json));
+		return node != null ? node.toString() : null;
+	}
+
+	private static void assertMalformed(String path) {
+		try {
+			IdentifierPath compiled = IdentifierPath.compile(path);
+			fail("Malformed path was compiled into " + compiled.length() + " segments");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void parsesConsecutiveIndices() throws IOException {
+		IdentifierPath path = IdentifierPath.compile("a[0][1].b");
+		assertEquals(4, path.length());
+		assertEquals("a", path.segment(0).fieldName());
+		assertEquals(0, path.segment(1).index());
+		assertEquals(1, path.segment(2).index());
+		assertEquals("b", path.segment(3).fieldName());
+		assertEquals("7", resolve("a[0][1].b", "{\"a\":[[{},{\"b\":7}]]}"));
+	}
+
+	@Test
+	public void rejectsTextAfterIndex() {
+		assertMalformed("a[0]x[1]");
+		assertMalformed("a[0]x");
+		assertMalformed("a[0] [1]");
+		assertMalformed("a[0]]");
+	}
+
+	@Test
+	public void resolvesEmptyPointerToken() throws IOException {
+		IdentifierPath path = IdentifierPath.compile("/");
+		assertEquals(1, path.length());
+		assertEquals("", path.segment(0).fieldName());
+		assertEquals("1", resolve("/", "{\"\":1,\"a\":2}"));
+		assertNull(resolve("/", "{\"a\":2}"));
+	}
+
+	@Test
+	public void keepsTrailingEmptyPointerToken() throws IOException {
+		assertEquals(2, IdentifierPath.compile("/a/").length());
+		assertEquals("3", resolve("/a/", "{\"a\":{\"\":3}}"));
+		assertEquals("4", resolve("/a~1b/~0", "{\"a/b\":{\"~\":4}}"));
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.alvinquach.jmeter.sampler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Alvin Quach
+ */
+public class JsonBatchReaderTest {
+
+	/**
+	 * Reads a JSON array, without its opening bracket, up to its end.
+	 */
+	private static List<String> readArray(String batch) throws IOException {
+		return read(batch, true);
+	}
+
+	private static List<String> readNdjson(String batch) throws IOException {
+		return read(batch, false);
+	}
+
+	private static List<String> read(String batch, boolean array) throws IOException {
+		JsonBatchReader reader = new JsonBatchReader(new ByteArrayInputStream(batch.getBytes(StandardCharsets.UTF_8)),
+				array, StandardCharsets.UTF_8, 1024);
+		List<String> elements = new ArrayList<>();
+		CallbackBody element;
+		while ((element = reader.next()) != null) {
+			elements.add(element.asString());
+			if (elements.size() > 100) {
+				fail("Reader did not end: " + elements);
+			}
+		}
+		assertNull(reader.next());
+		return elements;
+	}
+
+	private static void assertMalformed(String batch, boolean array) {
+		try {
+			List<String> elements = read(batch, array);
+			fail("Malformed batch was read as " + elements);
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void readsArray() throws IOException {
+		assertEquals(Arrays.asList("{\"id\":1}", "[2,3]", "\"a]\"", "4"), readArray(" {\"id\":1} , [2,3],\"a]\",4 ] \n"));
+	}
+
+	@Test
+	public void readsEmptyArray() throws IOException {
+		assertEquals(Arrays.asList(), readArray(" ]"));
+	}
+
+	@Test
+	public void readsNdjson() throws IOException {
+		assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":\"}\"}", "5"), readNdjson("{\"id\":1}\n{\"id\":\"}\"}\r\n\n5"));
+	}
+
+	@Test
+	public void rejectsStrayClosingBrace() {
+		assertMalformed("{\"id\":1}\n}\n", false);
+		assertMalformed("1}", true);
+	}
+
+	@Test
+	public void rejectsStrayClosingBracket() {
+		assertMalformed("{\"id\":1}\n]\n", false);
+	}
+
+	@Test
+	public void rejectsMissingAndDuplicateCommas() {
+		assertMalformed("1,,2]", true);
+		assertMalformed(",1]", true);
+		assertMalformed("1,]", true);
+		assertMalformed("1 2]", true);
+		assertMalformed("{\"id\":1},{\"id\":2}", false);
+	}
+
+	@Test
+	public void rejectsDataAfterArray() {
+		assertMalformed("1] x", true);
+		assertMalformed("1]]", true);
+	}
+
+	@Test
+	public void rejectsUnterminatedArray() {
+		assertMalformed("1,2", true);
+	}
+
+}